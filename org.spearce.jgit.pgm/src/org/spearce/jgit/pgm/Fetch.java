@@ -65,6 +65,9 @@ void nofsck(final boolean ignored) {
 	@Option(name = "--dry-run")
 	private boolean dryRun;
 
+	@Option(name = "--jobs", aliases = { "-j" }, metaVar = "N", usage = "download up to N packs at once over dumb transports")
+	int jobs = -1;
+
 	@Option(name = "--thin", usage = "fetch thin pack")
 	private Boolean thin;
 
@@ -91,6 +94,8 @@ protected void run() throws Exception {
 			tn.setFetchThin(thin.booleanValue());
 		if (0 <= timeout)
 			tn.setTimeout(timeout);
+		if (0 < jobs)
+			tn.setFetchConcurrency(jobs);
 		final FetchResult r;
 		try {
 			r = tn.fetch(new TextProgressMonitor(), toget);
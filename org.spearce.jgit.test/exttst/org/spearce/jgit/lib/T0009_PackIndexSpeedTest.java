@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import junit.textui.TestRunner;
+
+import org.spearce.jgit.transport.PackedObjectInfo;
+
+/**
+ * Compares heap footprint and lookup latency of a pack index loaded into the
+ * heap with one searched in mapped memory.
+ */
+public class T0009_PackIndexSpeedTest extends RepositoryTestCase {
+	private static final Comparator<PackedObjectInfo> BY_NAME = new Comparator<PackedObjectInfo>() {
+		public int compare(final PackedObjectInfo a, final PackedObjectInfo b) {
+			return a.compareTo(b);
+		}
+	};
+
+	private static final int OBJECTS = 2000000;
+
+	private static final int LOOKUPS = 1000000;
+
+	private File idxFile;
+
+	private ObjectId[] present;
+
+	public void setUp() throws Exception {
+		super.setUp();
+		final Random rng = new Random(42);
+		final List<PackedObjectInfo> list = new ArrayList<PackedObjectInfo>(
+				OBJECTS);
+		final byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+		for (int i = 0; i < OBJECTS; i++) {
+			rng.nextBytes(raw);
+			final PackedObjectInfo o = new PackedObjectInfo(ObjectId
+					.fromRaw(raw));
+			o.setOffset(12 + 100L * i);
+			list.add(o);
+		}
+		Collections.sort(list, BY_NAME);
+
+		present = new ObjectId[LOOKUPS];
+		for (int i = 0; i < LOOKUPS; i++)
+			present[i] = list.get(rng.nextInt(OBJECTS)).copy();
+
+		idxFile = new File(trash, "bench.idx");
+		final OutputStream out = new BufferedOutputStream(
+				new FileOutputStream(idxFile));
+		try {
+			PackIndexWriter.createVersion(out, 2).write(list, new byte[20]);
+		} finally {
+			out.close();
+		}
+	}
+
+	public void testLoadAndLookup() throws IOException {
+		System.out.println("objects=" + OBJECTS + ", index="
+				+ idxFile.length() / 1024 + " KiB");
+		for (int round = 0; round < 3; round++) {
+			run("heap", false);
+			run("mmap", true);
+		}
+	}
+
+	private void run(final String name, final boolean mmap)
+			throws IOException {
+		final long before = usedHeap();
+		long start = System.nanoTime();
+		final PackIndex idx = PackIndex.open(idxFile, mmap);
+		final long openTime = System.nanoTime() - start;
+		final long heap = usedHeap() - before;
+
+		start = System.nanoTime();
+		for (final ObjectId id : present)
+			assertTrue(idx.findOffset(id) > 0);
+		final long hitTime = System.nanoTime() - start;
+
+		System.out.println(name + ": open=" + openTime / 1000000 + "ms heap="
+				+ Math.max(heap, 0) / 1024 + "KiB lookup="
+				+ hitTime / LOOKUPS + "ns");
+		assertEquals(OBJECTS, idx.getObjectCount());
+	}
+
+	private static long usedHeap() {
+		final Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++)
+			System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	public static void main(String[] args) {
+		TestRunner.run(T0009_PackIndexSpeedTest.class);
+	}
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+/**
+ * Replays a window access trace through the cache with and without the
+ * frequency based admission policy, reporting the hit rates of each.
+ * <p>
+ * A trace file has one access per line: a pack name and a byte offset within
+ * that pack, separated by a space. Pass the file as the first argument to
+ * {@link #main(String[])}. Without a file a synthetic trace is used: several
+ * clients repeatedly reading a skewed hot set of windows, interleaved with a
+ * single pass over every window of a large pack, much like concurrent
+ * UploadPack requests serving while a full history walk runs.
+ */
+public class T0010_WindowCacheReplayTest extends TestCase {
+	private static final int WINDOW_SHIFT = 13;
+
+	private static final int CAPACITY = 1024;
+
+	private static File traceFile;
+
+	private PackFile[] packs;
+
+	private int[] tracePack;
+
+	private long[] traceOffset;
+
+	/** True for accesses by the hot set clients of the synthetic trace. */
+	private boolean[] traceHot;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		if (traceFile != null)
+			readTrace(traceFile);
+		else
+			syntheticTrace();
+	}
+
+	public void testReplay() throws IOException {
+		System.out.println("accesses=" + tracePack.length + ", capacity="
+				+ CAPACITY + " windows");
+		for (int round = 0; round < 3; round++) {
+			replay("lru    ", false);
+			replay("tinylfu", true);
+		}
+	}
+
+	private void replay(final String name, final boolean admission)
+			throws IOException {
+		final ReplayCache c = new ReplayCache(admission);
+		int hot = 0;
+		int hotMisses = 0;
+		final long start = System.nanoTime();
+		for (int i = 0; i < tracePack.length; i++) {
+			final int before = c.loads;
+			c.getOrLoad(packs[tracePack[i]], traceOffset[i]);
+			if (traceHot[i]) {
+				hot++;
+				hotMisses += c.loads - before;
+			}
+		}
+		final long time = System.nanoTime() - start;
+
+		final StringBuilder r = new StringBuilder();
+		r.append(name);
+		r.append(": hit=");
+		r.append(percent(tracePack.length - c.loads, tracePack.length));
+		if (hot > 0) {
+			r.append(" hot-hit=");
+			r.append(percent(hot - hotMisses, hot));
+		}
+		r.append(" time=");
+		r.append(time / tracePack.length);
+		r.append("ns/access");
+		System.out.println(r);
+	}
+
+	private static String percent(final long n, final long d) {
+		return (1000 * n / d) / 10.0 + "%";
+	}
+
+	private void syntheticTrace() {
+		final int hotWindows = CAPACITY / 2;
+		final int scanWindows = 200 * CAPACITY;
+		final int n = 3 * scanWindows;
+		final Random rng = new Random(1);
+
+		packs = new PackFile[] { pack("hot"), pack("scan") };
+		tracePack = new int[n];
+		traceOffset = new long[n];
+		traceHot = new boolean[n];
+		for (int i = 0, scan = 0; i < n; i++) {
+			if (i % 3 == 2) {
+				tracePack[i] = 1;
+				traceOffset[i] = ((long) scan++) << WINDOW_SHIFT;
+			} else {
+				// Zipf-like skew: low numbered windows are far more popular.
+				final double u = rng.nextDouble();
+				final int w = (int) (hotWindows * u * u * u);
+				tracePack[i] = 0;
+				traceOffset[i] = ((long) w) << WINDOW_SHIFT;
+				traceHot[i] = true;
+			}
+		}
+	}
+
+	private void readTrace(final File f) throws IOException {
+		final Map<String, Integer> ids = new HashMap<String, Integer>();
+		final List<PackFile> p = new ArrayList<PackFile>();
+		final List<String> lines = new ArrayList<String>();
+		final BufferedReader br = new BufferedReader(new FileReader(f));
+		try {
+			String line;
+			while ((line = br.readLine()) != null)
+				if (line.length() > 0)
+					lines.add(line);
+		} finally {
+			br.close();
+		}
+
+		tracePack = new int[lines.size()];
+		traceOffset = new long[lines.size()];
+		traceHot = new boolean[lines.size()];
+		for (int i = 0; i < tracePack.length; i++) {
+			final String line = lines.get(i);
+			final int sp = line.indexOf(' ');
+			final String name = line.substring(0, sp);
+			Integer id = ids.get(name);
+			if (id == null) {
+				id = Integer.valueOf(p.size());
+				ids.put(name, id);
+				p.add(pack(name));
+			}
+			tracePack[i] = id.intValue();
+			final long ofs = Long.parseLong(line.substring(sp + 1).trim());
+			traceOffset[i] = (ofs >>> WINDOW_SHIFT) << WINDOW_SHIFT;
+		}
+		packs = p.toArray(new PackFile[p.size()]);
+	}
+
+	private static PackFile pack(final String name) {
+		return new PackFile(new File(name + ".idx"), new File(name + ".pack"));
+	}
+
+	private static class ReplayCache extends
+			OffsetCache<Object, OffsetCache.Ref<Object>> {
+		private static final Object WINDOW = new Object();
+
+		int loads;
+
+		int live;
+
+		ReplayCache(final boolean admission) {
+			super(5 * CAPACITY / 2, 32, admission, false);
+		}
+
+		@Override
+		protected Object load(final PackFile p, final long position) {
+			loads++;
+			live++;
+			return WINDOW;
+		}
+
+		@Override
+		protected void clear(final Ref<Object> ref) {
+			live--;
+		}
+
+		@Override
+		protected boolean isFull() {
+			return live > CAPACITY;
+		}
+
+		@Override
+		protected int hash(final int packHash, final long position) {
+			return packHash + (int) (position >>> WINDOW_SHIFT);
+		}
+	}
+
+	public static void main(String[] args) {
+		if (args.length > 0)
+			traceFile = new File(args[0]);
+		TestRunner.run(T0010_WindowCacheReplayTest.class);
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Inflater;
+
+import junit.textui.TestRunner;
+
+import org.spearce.jgit.util.JGitTestUtil;
+
+/**
+ * Measures {@link Repository#openObject(AnyObjectId)} throughput with several
+ * threads, and the cost of obtaining an inflater from {@link InflaterCache}
+ * compared to the old synchronized array pool it replaced.
+ */
+public class T0011_OpenObjectSpeedTest extends RepositoryTestCase {
+	private static final int ROUNDS = 2000;
+
+	private static final int POOL_OPS = 2000000;
+
+	private static final int[] THREADS = { 1, 2, 4, 8 };
+
+	private List<ObjectId> ids;
+
+	public void setUp() throws Exception {
+		super.setUp();
+		ids = new ArrayList<ObjectId>();
+		final BufferedReader br = new BufferedReader(new InputStreamReader(
+				new FileInputStream(JGitTestUtil
+						.getTestResourceFile("all_packed_objects.txt")),
+				Constants.CHARSET));
+		try {
+			String line;
+			while ((line = br.readLine()) != null)
+				ids.add(ObjectId.fromString(line.split(" {1,}")[0]));
+		} finally {
+			br.close();
+		}
+	}
+
+	public void testOpenObject() throws Exception {
+		for (int round = 0; round < 2; round++) {
+			for (final int n : THREADS) {
+				final long t = run(n, new Task() {
+					public void run() throws IOException {
+						for (int r = 0; r < ROUNDS; r++)
+							for (final ObjectId id : ids)
+								db.openObject(id).getCachedBytes();
+					}
+				});
+				final long ops = (long) n * ROUNDS * ids.size();
+				System.out.println("openObject threads=" + n + ": "
+						+ (ops * 1000000L / Math.max(t, 1)) + " objects/ms");
+			}
+		}
+	}
+
+	public void testInflaterPool() throws Exception {
+		for (int round = 0; round < 2; round++) {
+			for (final int n : THREADS) {
+				final long striped = run(n, new Task() {
+					public void run() {
+						for (int i = 0; i < POOL_OPS; i++)
+							InflaterCache.release(InflaterCache.get());
+					}
+				});
+				final long locked = run(n, new Task() {
+					public void run() {
+						for (int i = 0; i < POOL_OPS; i++)
+							LockedPool.release(LockedPool.get());
+					}
+				});
+				System.out.println("inflater pool threads=" + n + ": striped="
+						+ striped / POOL_OPS + "ns/op locked=" + locked
+						/ POOL_OPS + "ns/op");
+			}
+		}
+	}
+
+	private static long run(final int n, final Task task) throws Exception {
+		final AtomicReference<Exception> failure;
+		failure = new AtomicReference<Exception>();
+		final Thread[] threads = new Thread[n];
+		for (int i = 0; i < n; i++) {
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						task.run();
+					} catch (Exception e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			};
+		}
+		final long start = System.nanoTime();
+		for (final Thread t : threads)
+			t.start();
+		for (final Thread t : threads)
+			t.join();
+		final long time = System.nanoTime() - start;
+		if (failure.get() != null)
+			throw failure.get();
+		return time;
+	}
+
+	private static interface Task {
+		void run() throws Exception;
+	}
+
+	/** The global lock pool InflaterCache used before it was striped. */
+	private static class LockedPool {
+		private static final Inflater[] inflaterCache = new Inflater[4];
+
+		private static int openInflaterCount;
+
+		static synchronized Inflater get() {
+			if (openInflaterCount > 0) {
+				final Inflater r = inflaterCache[--openInflaterCount];
+				inflaterCache[openInflaterCount] = null;
+				return r;
+			}
+			return new Inflater(false);
+		}
+
+		static synchronized void release(final Inflater i) {
+			i.reset();
+			if (openInflaterCount == inflaterCache.length)
+				i.end();
+			else
+				inflaterCache[openInflaterCount++] = i;
+		}
+	}
+
+	public static void main(String[] args) {
+		TestRunner.run(T0011_OpenObjectSpeedTest.class);
+	}
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.textui.TestRunner;
+
+import org.spearce.jgit.revwalk.RevCommit;
+import org.spearce.jgit.revwalk.RevWalk;
+import org.spearce.jgit.treewalk.EmptyTreeIterator;
+import org.spearce.jgit.treewalk.TreeWalk;
+import org.spearce.jgit.treewalk.filter.AndTreeFilter;
+import org.spearce.jgit.treewalk.filter.PathFilterGroup;
+import org.spearce.jgit.treewalk.filter.TreeFilter;
+
+/**
+ * Measures the accuracy of the changed-path filters stored in a commit graph,
+ * and the time they save in a path limited {@link RevWalk}.
+ * <p>
+ * If a file named <code>kernel.ref</code> names a repository (as for the
+ * other speed tests) its history is used, otherwise the test repository is.
+ * A commit graph is written into the repository's objects directory.
+ */
+public class T0012_ChangedPathFilterSpeedTest extends RepositoryTestCase {
+	private static final int MAX_COMMITS = 2000;
+
+	private static final int MAX_PATHS = 20;
+
+	private Repository repo;
+
+	private List<String> paths;
+
+	public void setUp() throws Exception {
+		super.setUp();
+		final File ref = new File("kernel.ref");
+		if (ref.isFile()) {
+			final BufferedReader br = new BufferedReader(new FileReader(ref));
+			try {
+				repo = new Repository(new File(br.readLine()));
+			} finally {
+				br.close();
+			}
+		} else
+			repo = db;
+
+		// Probe both top level entries and a spread of deeper files.
+		//
+		paths = new ArrayList<String>();
+		final TreeWalk tw = new TreeWalk(repo);
+		tw.reset(new RevWalk(repo).parseCommit(head()).getTree());
+		while (tw.next() && paths.size() < MAX_PATHS / 2)
+			paths.add(tw.getPathString());
+		tw.reset(new RevWalk(repo).parseCommit(head()).getTree());
+		tw.setRecursive(true);
+		final List<String> files = new ArrayList<String>();
+		while (tw.next())
+			files.add(tw.getPathString());
+		final int step = Math.max(1, files.size() / (MAX_PATHS / 2));
+		for (int i = 0; i < files.size(); i += step)
+			paths.add(files.get(i));
+		paths.add("no/such/path");
+	}
+
+	protected void tearDown() throws Exception {
+		if (repo != db)
+			repo.close();
+		super.tearDown();
+	}
+
+	public void testAccuracy() throws Exception {
+		writeGraph(true);
+		final CommitGraph g = ((ObjectDirectory) repo.getObjectDatabase())
+				.getCommitGraph();
+		assertTrue(g.hasChangedPaths());
+
+		final RevWalk rw = new RevWalk(repo);
+		rw.markStart(rw.parseCommit(head()));
+		int commits = 0;
+		int unchanged = 0;
+		int falsePositive = 0;
+		RevCommit c;
+		while ((c = rw.next()) != null && commits++ < MAX_COMMITS) {
+			final int pos = g.find(c);
+			assertTrue(pos >= 0);
+			for (final String p : paths) {
+				final boolean maybe = g.mayHaveChanged(pos, hashes(p));
+				final boolean changed = changed(c, p);
+				if (changed)
+					assertTrue(c.name() + " " + p, maybe);
+				else {
+					unchanged++;
+					if (maybe)
+						falsePositive++;
+				}
+			}
+		}
+		System.out.println("changed paths: commits=" + commits + " paths="
+				+ paths.size() + " unchanged=" + unchanged
+				+ " false positives=" + falsePositive + " ("
+				+ (100.0 * falsePositive / Math.max(unchanged, 1)) + "%)");
+	}
+
+	public void testPathLimitedWalk() throws Exception {
+		for (int round = 0; round < 2; round++) {
+			writeGraph(false);
+			final long[] plain = walkAll();
+			writeGraph(true);
+			final long[] filtered = walkAll();
+			assertEquals(plain[1], filtered[1]);
+			System.out.println("path limited walk of " + paths.size()
+					+ " paths: without filters=" + plain[0] / 1000000
+					+ "ms with filters=" + filtered[0] / 1000000 + "ms ("
+					+ plain[1] + " commits)");
+		}
+	}
+
+	private long[] walkAll() throws Exception {
+		long n = 0;
+		final long start = System.nanoTime();
+		for (final String p : paths) {
+			final RevWalk rw = new RevWalk(repo);
+			rw.setRetainBody(false);
+			rw.setTreeFilter(AndTreeFilter.create(PathFilterGroup
+					.createFromStrings(Collections.singleton(p)),
+					TreeFilter.ANY_DIFF));
+			rw.markStart(rw.parseCommit(head()));
+			while (rw.next() != null)
+				n++;
+		}
+		return new long[] { System.nanoTime() - start, n };
+	}
+
+	private boolean changed(final RevCommit c, final String path)
+			throws Exception {
+		final TreeWalk tw = new TreeWalk(repo);
+		tw.setRecursive(true);
+		tw.setFilter(AndTreeFilter.create(PathFilterGroup
+				.createFromStrings(Collections.singleton(path)),
+				TreeFilter.ANY_DIFF));
+		tw.reset();
+		if (c.getParentCount() > 0)
+			tw.addTree(new RevWalk(repo).parseCommit(c.getParent(0)).getTree());
+		else
+			tw.addTree(new EmptyTreeIterator());
+		tw.addTree(c.getTree());
+		return tw.next();
+	}
+
+	private static int[] hashes(final String p) {
+		final List<String> keys = new ArrayList<String>();
+		keys.add(p);
+		keys.add(p + "/");
+		for (int s = p.indexOf('/'); s > 0; s = p.indexOf('/', s + 1))
+			keys.add(p.substring(0, s));
+		return CommitGraph.hashPaths(keys);
+	}
+
+	private ObjectId head() throws Exception {
+		return repo.resolve(Constants.HEAD);
+	}
+
+	private void writeGraph(final boolean changedPaths) throws Exception {
+		final File f = new File(repo.getObjectsDirectory(), "info/"
+				+ CommitGraph.FILE_NAME);
+		final long before = f.lastModified();
+		final CommitGraphWriter w = new CommitGraphWriter(repo);
+		w.setChangedPaths(changedPaths);
+		w.writeFile(NullProgressMonitor.INSTANCE);
+		if (before != 0 && f.lastModified() == before)
+			f.setLastModified(before + 2000);
+	}
+
+	public static void main(String[] args) {
+		TestRunner.run(T0012_ChangedPathFilterSpeedTest.class);
+	}
+}
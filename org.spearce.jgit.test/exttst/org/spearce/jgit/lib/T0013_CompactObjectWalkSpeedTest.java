@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.textui.TestRunner;
+
+import org.spearce.jgit.revwalk.CompactObjectWalk;
+import org.spearce.jgit.revwalk.ObjectWalk;
+
+/**
+ * Compares the time and retained heap of <code>rev-list --objects</code>
+ * done by {@link ObjectWalk} and by {@link CompactObjectWalk}.
+ * <p>
+ * If a file named <code>kernel.ref</code> names a repository (as for the
+ * other speed tests) all of its refs are walked, otherwise those of the test
+ * repository are.
+ */
+public class T0013_CompactObjectWalkSpeedTest extends RepositoryTestCase {
+	private static final int ROUNDS = 3;
+
+	private Repository repo;
+
+	private List<ObjectId> tips;
+
+	public void setUp() throws Exception {
+		super.setUp();
+		final File ref = new File("kernel.ref");
+		if (ref.isFile()) {
+			final BufferedReader br = new BufferedReader(new FileReader(ref));
+			try {
+				repo = new Repository(new File(br.readLine()));
+			} finally {
+				br.close();
+			}
+		} else
+			repo = db;
+
+		tips = new ArrayList<ObjectId>();
+		for (final Ref r : repo.getAllRefs().values())
+			tips.add(r.getObjectId());
+	}
+
+	protected void tearDown() throws Exception {
+		if (repo != db)
+			repo.close();
+		super.tearDown();
+	}
+
+	public void testRevListObjects() throws Exception {
+		for (int round = 0; round < ROUNDS; round++) {
+			long before = usedMemory();
+			long start = System.nanoTime();
+			final ObjectWalk ow = new ObjectWalk(repo);
+			for (final ObjectId id : tips)
+				ow.markStart(ow.parseAny(id));
+			int n = 0;
+			while (ow.next() != null)
+				n++;
+			while (ow.nextObject() != null)
+				n++;
+			final long owTime = System.nanoTime() - start;
+			final long owHeap = usedMemory() - before;
+			ow.dispose();
+
+			before = usedMemory();
+			start = System.nanoTime();
+			final CompactObjectWalk cw = new CompactObjectWalk(repo);
+			for (final ObjectId id : tips)
+				cw.markStart(id);
+			int m = 0;
+			while (cw.next() >= 0)
+				m++;
+			while (cw.nextObject() >= 0)
+				m++;
+			final long cwTime = System.nanoTime() - start;
+			final long cwHeap = usedMemory() - before;
+			cw.release();
+
+			assertEquals(n, m);
+			System.out.println("rev-list --objects of " + n + " objects:"
+					+ " ObjectWalk=" + owTime / 1000000 + "ms "
+					+ owHeap / 1024 + "KiB" + " CompactObjectWalk="
+					+ cwTime / 1000000 + "ms " + cwHeap / 1024 + "KiB");
+		}
+	}
+
+	private static long usedMemory() {
+		final Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	public static void main(String[] args) {
+		TestRunner.run(T0013_CompactObjectWalkSpeedTest.class);
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.transport;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+
+import junit.framework.TestCase;
+import junit.textui.TestRunner;
+
+import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.transport.FreenetFCP.Message;
+
+/**
+ * Compares {@link FreenetFCPInputStream} with the line based parser it
+ * replaced, on the stream of progress messages the node sends during a large
+ * insert.
+ */
+public class T0007_FCPMessageSpeedTest extends TestCase {
+	private static final int MESSAGES = 200000;
+
+	private static final int ROUNDS = 5;
+
+	private byte[] progress;
+
+	protected void setUp() throws Exception {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int i = 0; i < MESSAGES; i++) {
+			out.write(Constants.encode("SimpleProgress\n"
+					+ "Identifier=PUT-17-CHK@\n" + "Total=" + MESSAGES + "\n"
+					+ "Required=" + MESSAGES + "\n" + "Failed=0\n"
+					+ "FatallyFailed=0\n" + "Succeeded=" + i + "\n"
+					+ "FinalizedTotal=true\n" + "EndMessage\n"));
+		}
+		progress = out.toByteArray();
+	}
+
+	public void testParseProgress() throws IOException {
+		long oldBest = Long.MAX_VALUE;
+		long newBest = Long.MAX_VALUE;
+		for (int r = 0; r < ROUNDS; r++) {
+			long start = System.currentTimeMillis();
+			assertEquals(sum(), legacy());
+			oldBest = Math.min(oldBest, System.currentTimeMillis() - start);
+
+			start = System.currentTimeMillis();
+			assertEquals(sum(), current());
+			newBest = Math.min(newBest, System.currentTimeMillis() - start);
+		}
+		System.out.println("messages=" + MESSAGES);
+		System.out.println("legacy=" + oldBest + "ms");
+		System.out.println("current=" + newBest + "ms");
+	}
+
+	private static long sum() {
+		return (long) MESSAGES * (MESSAGES - 1) / 2;
+	}
+
+	private long current() throws IOException {
+		final FreenetFCPInputStream in = new FreenetFCPInputStream(
+				new ByteArrayInputStream(progress));
+		long sum = 0;
+		for (int i = 0; i < MESSAGES; i++) {
+			final Message m = in.readHeader();
+			if (!"SimpleProgress".equals(m.type))
+				fail("unexpected " + m);
+			m.get("Identifier");
+			sum += m.getInt("Succeeded", 0);
+		}
+		return sum;
+	}
+
+	private long legacy() throws IOException {
+		final InputStream in = new BufferedInputStream(
+				new ByteArrayInputStream(progress));
+		long sum = 0;
+		for (int i = 0; i < MESSAGES; i++) {
+			final LinkedHashMap<String, String> field = new LinkedHashMap<String, String>();
+			final String type = legacyParse(in, field);
+			if (!"SimpleProgress".equals(type))
+				fail("unexpected " + type);
+			field.get("Identifier");
+			sum += Integer.parseInt(field.get("Succeeded"));
+		}
+		return sum;
+	}
+
+	/** The parser used before {@link FreenetFCPInputStream}. */
+	private static String legacyParse(final InputStream in,
+			final LinkedHashMap<String, String> field) throws IOException {
+		final String type = legacyReadLine(in);
+		for (;;) {
+			final String line = legacyReadLine(in);
+			if (line == null)
+				throw new IOException("Malformed FCP message");
+			if ("EndMessage".equals(line))
+				break;
+			String[] v = line.split("=", 2);
+			if (v.length != 2)
+				throw new IOException("No '=' found in: " + line);
+			field.put(v[0], v[1]);
+		}
+		return type;
+	}
+
+	private static String legacyReadLine(final InputStream in)
+			throws IOException {
+		byte[] buf = new byte[256];
+		int offset = 0;
+		for (;;) {
+			int b = in.read();
+			if (b == -1)
+				return null;
+			if (b == '\n') {
+				if (offset == 0)
+					continue;
+				break;
+			}
+			if (offset == buf.length) {
+				byte[] buf2 = new byte[buf.length * 2];
+				System.arraycopy(buf, 0, buf2, 0, buf.length);
+				buf = buf2;
+			}
+			buf[offset++] = (byte) b;
+		}
+		return new String(buf, 0, offset, "UTF-8");
+	}
+
+	public static void main(String[] args) {
+		TestRunner.run(T0007_FCPMessageSpeedTest.class);
+	}
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.transport;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Random;
+
+import junit.textui.TestRunner;
+
+import org.spearce.jgit.lib.Commit;
+import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.lib.NullProgressMonitor;
+import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.ObjectWriter;
+import org.spearce.jgit.lib.RefUpdate;
+import org.spearce.jgit.lib.Repository;
+import org.spearce.jgit.lib.RepositoryConfig;
+import org.spearce.jgit.lib.RepositoryTestCase;
+import org.spearce.jgit.lib.Tree;
+
+/**
+ * Measures push and fetch throughput of {@link TransportFcp2} against a
+ * {@link FreenetNodeSimulator} with a fixed per request latency.
+ */
+public class T0008_FreenetTransportSpeedTest extends RepositoryTestCase {
+	private static final long LATENCY = 20;
+
+	private static final int FILES = 64;
+
+	private static final int FILE_SIZE = 64 * 1024;
+
+	private FreenetNodeSimulator node;
+
+	private String[] keys;
+
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+		node = new FreenetNodeSimulator();
+		node.setLatency(LATENCY);
+		keys = node.generateKeyPair();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FreenetFCPPool.clear();
+		node.close();
+		super.tearDown();
+	}
+
+	public void testPushAndFetch() throws Exception {
+		final ObjectId head = createHistory();
+		configure(db);
+
+		long start = System.currentTimeMillis();
+		final Transport push = Transport.open(db, new URIish(
+				"freenet://sim/site/0/"));
+		try {
+			push.push(NullProgressMonitor.INSTANCE, Collections
+					.singleton(new RemoteRefUpdate(db, "refs/heads/bench",
+							"refs/heads/bench", false, null, null)));
+		} finally {
+			push.close();
+		}
+		final long pushTime = System.currentTimeMillis() - start;
+		final long received = node.getBytesReceived();
+		final long sentBefore = node.getBytesSent();
+
+		final Repository dst = createNewEmptyRepo();
+		configure(dst);
+		start = System.currentTimeMillis();
+		final Transport fetch = Transport.open(dst, new URIish(
+				"freenet://sim/site/0/"));
+		try {
+			fetch.fetch(NullProgressMonitor.INSTANCE, Collections
+					.singleton(new RefSpec("refs/heads/bench:refs/heads/bench")));
+		} finally {
+			fetch.close();
+		}
+		final long fetchTime = System.currentTimeMillis() - start;
+		assertEquals(head, dst.resolve("refs/heads/bench"));
+
+		System.out.println("latency=" + LATENCY + "ms");
+		System.out.println("push=" + pushTime + "ms, "
+				+ kibPerSecond(received, pushTime) + " KiB/s");
+		System.out.println("fetch=" + fetchTime + "ms, "
+				+ kibPerSecond(node.getBytesSent() - sentBefore,
+						fetchTime) + " KiB/s");
+		System.out.println("requests: get=" + node.getGetCount() + " put="
+				+ node.getPutCount());
+	}
+
+	private ObjectId createHistory() throws IOException {
+		final Random rng = new Random(42);
+		final ObjectWriter ow = new ObjectWriter(db);
+		final Tree t = new Tree(db);
+		for (int i = 0; i < FILES; i++) {
+			final byte[] data = new byte[FILE_SIZE];
+			rng.nextBytes(data);
+			t.addFile("file" + i).setId(ow.writeBlob(data));
+		}
+		t.setId(ow.writeTree(t));
+
+		final Commit c = new Commit(db);
+		c.setTree(t);
+		c.setParentIds(new ObjectId[] { db.resolve("refs/heads/master") });
+		c.setAuthor(jauthor);
+		c.setCommitter(jcommitter);
+		c.setMessage("bench\n");
+		c.commit();
+
+		final RefUpdate u = db.updateRef("refs/heads/bench");
+		u.setNewObjectId(c.getCommitId());
+		u.forceUpdate();
+		return c.getCommitId();
+	}
+
+	private void configure(final Repository r) throws IOException {
+		final RepositoryConfig cfg = r.getConfig();
+		cfg.setString("freenet", null, "host", node.getAddress()
+				.getHostAddress());
+		cfg.setInt("freenet", null, "port", node.getPort());
+
+		final FileOutputStream out = new FileOutputStream(new File(r
+				.getDirectory(), "sim"));
+		try {
+			out.write(Constants.encode("publicKey="
+					+ keys[0].replace("SSK@", "USK@") + "\nprivateKey="
+					+ keys[1].replace("SSK@", "USK@") + "\n"));
+		} finally {
+			out.close();
+		}
+	}
+
+	private static long kibPerSecond(final long bytes, final long millis) {
+		return bytes * 1000 / 1024 / Math.max(millis, 1);
+	}
+
+	public static void main(String[] args) {
+		TestRunner.run(T0008_FreenetTransportSpeedTest.class);
+	}
+}
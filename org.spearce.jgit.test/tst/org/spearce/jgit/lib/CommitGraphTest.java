@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.spearce.jgit.errors.MissingObjectException;
+import org.spearce.jgit.revwalk.RevCommit;
+import org.spearce.jgit.revwalk.RevObject;
+import org.spearce.jgit.revwalk.RevTag;
+import org.spearce.jgit.revwalk.RevWalk;
+
+public class CommitGraphTest extends RepositoryTestCase {
+	private ObjectDirectory odb;
+
+	public void setUp() throws Exception {
+		super.setUp();
+		odb = (ObjectDirectory) db.getObjectDatabase();
+	}
+
+	public void testNoGraph() {
+		assertNull(odb.getCommitGraph());
+	}
+
+	public void testGraphMatchesCommits() throws Exception {
+		final int cnt = new CommitGraphWriter(db)
+				.writeFile(NullProgressMonitor.INSTANCE);
+		final CommitGraph g = odb.getCommitGraph();
+		assertNotNull(g);
+		assertEquals(cnt, g.getCommitCount());
+
+		// C git owns commit-graph, and cannot read our format.
+		assertFalse(new File(trash_git, "objects/info/commit-graph").exists());
+
+		final List<RevCommit> all = walkAll(true);
+		assertEquals(cnt, all.size());
+		final MutableObjectId buf = new MutableObjectId();
+		for (final RevCommit c : all) {
+			final int pos = g.find(c);
+			assertTrue(pos >= 0);
+			g.getObjectId(pos, buf);
+			assertSameId(c, buf);
+			g.getTree(pos, buf);
+			assertSameId(c.getTree(), buf);
+			assertEquals(c.getCommitTime(), g.getCommitTime(pos));
+			assertEquals(c.getParentCount(), g.getParentCount(pos));
+
+			int gen = 0;
+			for (int i = 0; i < c.getParentCount(); i++) {
+				final int p = g.getParent(pos, i);
+				g.getObjectId(p, buf);
+				assertSameId(c.getParent(i), buf);
+				gen = Math.max(gen, g.getGeneration(p));
+			}
+			assertEquals(gen + 1, g.getGeneration(pos));
+		}
+		assertEquals(-1, g.find(ObjectId.zeroId()));
+	}
+
+	public void testWalkWithGraph() throws Exception {
+		final List<RevCommit> expect = walkAll(true);
+		new CommitGraphWriter(db).writeFile(NullProgressMonitor.INSTANCE);
+		final List<RevCommit> actual = walkAll(false);
+		assertEquals(expect.size(), actual.size());
+		for (int i = 0; i < expect.size(); i++) {
+			final RevCommit e = expect.get(i);
+			final RevCommit a = actual.get(i);
+			assertSameId(e, a);
+			assertSameId(e.getTree(), a.getTree());
+			assertEquals(e.getCommitTime(), a.getCommitTime());
+			assertEquals(e.getParentCount(), a.getParentCount());
+			for (int k = 0; k < e.getParentCount(); k++)
+				assertSameId(e.getParent(k), a.getParent(k));
+		}
+	}
+
+	public void testPrunedCommitIsMissing() throws Exception {
+		final RevWalk rw = new RevWalk(db);
+		final RevCommit a = rw.parseCommit(db.resolve("refs/heads/a"));
+		final RevCommit b = rw.parseCommit(db.resolve("refs/heads/b"));
+		final RevCommit c = rw.parseCommit(db.resolve("refs/heads/c"));
+		final ObjectId octopus = commit(a.getTree(), a, b, c);
+		final RefUpdate ru = db.updateRef("refs/heads/octopus");
+		ru.setNewObjectId(octopus);
+		ru.forceUpdate();
+
+		new CommitGraphWriter(db).writeFile(NullProgressMonitor.INSTANCE);
+		assertTrue(odb.getCommitGraph().find(octopus) >= 0);
+		final File loose = odb.fileFor(octopus);
+		loose.setWritable(true);
+		assertTrue(loose.delete());
+
+		// The graph still lists the commit, but it no longer exists.
+		final RevWalk noBody = new RevWalk(db);
+		noBody.setRetainBody(false);
+		try {
+			noBody.parseAny(octopus);
+			fail("parsed a commit whose object was deleted");
+		} catch (MissingObjectException e) {
+			// expected
+		}
+
+		final RevWalk lookup = new RevWalk(db);
+		lookup.setRetainBody(false);
+		try {
+			lookup.parseCommit(octopus);
+			fail("parsed a commit whose object was deleted");
+		} catch (MissingObjectException e) {
+			// expected
+		}
+	}
+
+	public void testUncoveredCommitsAreParsed() throws Exception {
+		new CommitGraphWriter(db).writeFile(NullProgressMonitor.INSTANCE);
+		final RevWalk rw = new RevWalk(db);
+		final RevCommit a = rw.parseCommit(db.resolve("refs/heads/a"));
+		final ObjectId child = commit(a.getTree(), a);
+		assertEquals(-1, odb.getCommitGraph().find(child));
+
+		final RevWalk noBody = new RevWalk(db);
+		noBody.setRetainBody(false);
+		final RevCommit c = noBody.parseCommit(child);
+		assertEquals(1, c.getParentCount());
+		assertSameId(a, c.getParent(0));
+		assertSameId(a.getTree(), c.getTree());
+	}
+
+	public void testCorruptGraphIsIgnored() throws Exception {
+		final List<RevCommit> expect = walkAll(true);
+		final FileOutputStream out = new FileOutputStream(odb
+				.getCommitGraphFile());
+		try {
+			out.write(Constants.encodeASCII("JCGR garbage"));
+		} finally {
+			out.close();
+		}
+		assertNull(odb.getCommitGraph());
+		assertEquals(expect.size(), walkAll(false).size());
+	}
+
+	private ObjectId commit(final ObjectId tree, final ObjectId... parents)
+			throws Exception {
+		final Commit c = new Commit(db);
+		c.setTreeId(tree);
+		c.setParentIds(parents);
+		c.setAuthor(new PersonIdent(jauthor, 1154236443000L, -4 * 60));
+		c.setCommitter(new PersonIdent(jcommitter, 1154236443000L, -4 * 60));
+		c.setMessage("test\n");
+		c.commit();
+		return c.getCommitId();
+	}
+
+	private List<RevCommit> walkAll(final boolean retainBody) throws Exception {
+		final RevWalk rw = new RevWalk(db);
+		rw.setRetainBody(retainBody);
+		for (final Ref r : db.getAllRefs().values()) {
+			try {
+				RevObject o = rw.parseAny(r.getObjectId());
+				while (o instanceof RevTag) {
+					o = ((RevTag) o).getObject();
+					rw.parseHeaders(o);
+				}
+				if (o instanceof RevCommit)
+					rw.markStart((RevCommit) o);
+			} catch (MissingObjectException e) {
+				// skip broken references
+			}
+		}
+		final List<RevCommit> r = new ArrayList<RevCommit>();
+		RevCommit c;
+		while ((c = rw.next()) != null)
+			r.add(c);
+		return r;
+	}
+
+	private static void assertSameId(final AnyObjectId e, final AnyObjectId a) {
+		assertEquals(e.name(), a.name());
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import junit.framework.TestCase;
+
+public class FrequencySketchTest extends TestCase {
+	public void testCountsAndSaturates() {
+		final FrequencySketch s = new FrequencySketch(512);
+		assertEquals(0, s.frequency(42));
+		for (int i = 1; i <= 10; i++) {
+			s.increment(42);
+			assertEquals(i, s.frequency(42));
+		}
+		for (int i = 0; i < 10; i++)
+			s.increment(42);
+		assertEquals(15, s.frequency(42));
+	}
+
+	public void testKeysAreIndependent() {
+		final FrequencySketch s = new FrequencySketch(512);
+		for (int i = 0; i < 5; i++)
+			s.increment(1);
+		int collisions = 0;
+		for (int key = 2; key < 258; key++)
+			if (s.frequency(key) != 0)
+				collisions++;
+		assertEquals(5, s.frequency(1));
+		assertTrue("collisions " + collisions, collisions < 8);
+	}
+
+	public void testAging() {
+		final FrequencySketch s = new FrequencySketch(16);
+		for (int i = 0; i < 8; i++)
+			s.increment(-7);
+		assertEquals(8, s.frequency(-7));
+
+		// 16 * 10 accesses fill the sample; 8 were already recorded. The
+		// other keys may collide with ours, so the count may be a bit high.
+		//
+		for (int i = 0; i < 152; i++)
+			s.increment(1000 + i);
+		final int f = s.frequency(-7);
+		assertTrue("frequency " + f, 4 <= f && f < 8);
+	}
+
+	public void testConcurrentIncrementsSaturate() throws Exception {
+		final FrequencySketch[] sketches = new FrequencySketch[20000];
+		for (int r = 0; r < sketches.length; r++)
+			sketches[r] = new FrequencySketch(64);
+		final Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					for (final FrequencySketch s : sketches)
+						for (int i = 0; i < 8; i++)
+							s.increment(42);
+				}
+			};
+			threads[t].start();
+		}
+		for (final Thread t : threads)
+			t.join();
+
+		// Without aging every counter must match a serial count exactly; a
+		// lost race must neither drop an increment nor carry a saturated
+		// counter into its neighbour.
+		//
+		final FrequencySketch expect = new FrequencySketch(64);
+		for (int i = 0; i < 8 * threads.length; i++)
+			expect.increment(42);
+		for (final FrequencySketch s : sketches)
+			for (int k = 0; k < 1024; k++)
+				assertEquals(expect.frequency(k), s.frequency(k));
+	}
+}
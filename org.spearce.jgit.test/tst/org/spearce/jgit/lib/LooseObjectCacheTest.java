@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+
+public class LooseObjectCacheTest extends RepositoryTestCase {
+	private ObjectDirectory odb;
+
+	public void setUp() throws Exception {
+		super.setUp();
+		odb = (ObjectDirectory) db.getObjectDatabase();
+		odb.setLooseObjectCache(true);
+	}
+
+	public void testConfig() throws Exception {
+		assertFalse(db.getConfig().getCore().isLooseObjectCache());
+		db.getConfig().setBoolean("core", null, "looseobjectcache", true);
+		db.getConfig().save();
+		final Repository r = new Repository(trash_git);
+		try {
+			assertTrue(r.getConfig().getCore().isLooseObjectCache());
+		} finally {
+			r.close();
+		}
+	}
+
+	public void testExistingLooseObjects() throws Exception {
+		final Repository other = new Repository(trash_git);
+		final ObjectId id;
+		try {
+			id = new ObjectWriter(other).writeBlob(Constants
+					.encode("already here\n"));
+		} finally {
+			other.close();
+		}
+		assertTrue(odb.fileFor(id).exists());
+		assertTrue(db.hasObject(id));
+		assertNotNull(db.openObject(id));
+	}
+
+	public void testWrittenObjectIsVisible() throws Exception {
+		final byte[] data = Constants.encode("written here\n");
+		final ObjectId id = new ObjectWriter(db).computeBlobSha1(data.length,
+				new ByteArrayInputStream(data));
+		assertFalse(db.hasObject(id));
+
+		assertEquals(id, new ObjectWriter(db).writeBlob(data));
+		assertTrue(db.hasObject(id));
+		assertEquals("written here\n", new String(db.openObject(id)
+				.getBytes(), "UTF-8"));
+	}
+
+	public void testOtherWriterSeenAfterRecheck() throws Exception {
+		final byte[] data = Constants.encode("written elsewhere\n");
+		final Repository other = new Repository(trash_git);
+		final ObjectId id;
+		try {
+			id = new ObjectWriter(other).computeBlobSha1(data.length,
+					new ByteArrayInputStream(data));
+			assertFalse(db.hasObject(id));
+			new ObjectWriter(other).writeBlob(data);
+		} finally {
+			other.close();
+		}
+
+		Thread.sleep(LooseObjectCache.RECHECK_INTERVAL + 100);
+		assertTrue(db.hasObject(id));
+	}
+
+	public void testDeletedObjectIsNotReported() throws Exception {
+		final ObjectId id = new ObjectWriter(db).writeBlob(Constants
+				.encode("soon gone\n"));
+		assertTrue(db.hasObject(id));
+		final File f = odb.fileFor(id);
+		f.setWritable(true);
+		assertTrue(f.delete());
+		assertFalse(db.hasObject(id));
+		assertNull(db.openObject(id));
+	}
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.spearce.jgit.util.NB;
+
+public class MultiPackIndexTest extends RepositoryTestCase {
+	private File packDir;
+
+	private File midxFile;
+
+	private ObjectDirectory odb;
+
+	public void setUp() throws Exception {
+		super.setUp();
+		packDir = new File(trash_git, "objects/pack");
+		midxFile = new File(packDir, MultiPackIndex.FILE_NAME);
+		odb = (ObjectDirectory) db.getObjectDatabase();
+	}
+
+	public void testCoversAllPacks() throws Exception {
+		odb.writeMultiPackIndex();
+		final MultiPackIndex midx = MultiPackIndex.open(midxFile);
+		assertTrue(midx.isCurrent(midxFile));
+
+		// C git owns multi-pack-index, and cannot read our format.
+		assertFalse(new File(packDir, "multi-pack-index").exists());
+
+		final Map<String, PackIndex> packs = packIndexes();
+		assertEquals(packs.size(), midx.getPackCount());
+
+		int total = 0;
+		for (final PackIndex idx : packs.values()) {
+			for (final PackIndex.MutableEntry e : idx) {
+				final ObjectId id = e.toObjectId();
+				final int pos = midx.find(id);
+				assertTrue(pos >= 0);
+				assertEquals(id, midx.getObjectId(pos));
+
+				final PackIndex owner = packs.get(midx.getPackName(midx
+						.getPackId(pos)));
+				assertEquals(owner.findOffset(id), midx.getOffset(pos));
+				total++;
+			}
+		}
+		assertTrue(midx.getObjectCount() <= total);
+		assertEquals(-1, midx.find(ObjectId.zeroId()));
+		assertEquals(-1, midx.find(ObjectId
+				.fromString("ffffffffffffffffffffffffffffffffffffffff")));
+	}
+
+	public void testReadObjectsThroughIndex() throws Exception {
+		final Map<ObjectId, byte[]> before = readAll();
+		odb.writeMultiPackIndex();
+		db.close();
+		db = new Repository(trash_git);
+		assertContent(before);
+	}
+
+	public void testCorruptIndexIsIgnored() throws Exception {
+		final Map<ObjectId, byte[]> before = readAll();
+		final FileOutputStream out = new FileOutputStream(midxFile);
+		try {
+			out.write(Constants.encodeASCII("JMDX garbage"));
+		} finally {
+			out.close();
+		}
+		try {
+			MultiPackIndex.open(midxFile);
+			fail("accepted a corrupt multi-pack index");
+		} catch (IOException e) {
+			// expected
+		}
+		db.close();
+		db = new Repository(trash_git);
+		assertContent(before);
+	}
+
+	public void testRewrittenPackIsSearchedDirectly() throws Exception {
+		final Map<ObjectId, byte[]> before = readAll();
+		odb.writeMultiPackIndex();
+
+		// Pretend every pack was rewritten after the index was built by
+		// changing the pack checksums it recorded.
+		//
+		final byte[] buf = new byte[(int) midxFile.length()];
+		final FileInputStream in = new FileInputStream(midxFile);
+		try {
+			NB.readFully(in, buf, 0, buf.length);
+		} finally {
+			in.close();
+		}
+		final int packCnt = NB.decodeInt32(buf, 8);
+		int ptr = 12;
+		for (int i = 0; i < packCnt; i++) {
+			ptr += 4 + NB.decodeInt32(buf, ptr);
+			buf[ptr] ^= 0xff;
+			ptr += 20;
+		}
+		final MessageDigest md = Constants.newMessageDigest();
+		md.update(buf, 0, buf.length - 20);
+		System.arraycopy(md.digest(), 0, buf, buf.length - 20, 20);
+		final FileOutputStream out = new FileOutputStream(midxFile);
+		try {
+			out.write(buf);
+		} finally {
+			out.close();
+		}
+
+		db.close();
+		db = new Repository(trash_git);
+		assertContent(before);
+	}
+
+	public void testUnusualPackNames() throws Exception {
+		final String base = "pack-34be9032ac282b11fa9babdc2b2a93ca996c9c2f";
+		final String[] names = { "pack-a", base + "-old" };
+		final PackFile[] packs = new PackFile[names.length];
+		for (int i = 0; i < names.length; i++) {
+			final File pack = new File(trash, names[i] + ".pack");
+			final File idx = new File(trash, names[i] + ".idx");
+			copyFile(new File(packDir, base + ".pack"), pack);
+			copyFile(new File(packDir, base + ".idx"), idx);
+			packs[i] = new PackFile(idx, pack);
+		}
+
+		final File f = new File(trash, "unusual.midx");
+		final FileOutputStream out = new FileOutputStream(f);
+		try {
+			MultiPackIndex.write(out, packs);
+		} finally {
+			out.close();
+			for (final PackFile p : packs)
+				p.close();
+		}
+
+		final MultiPackIndex midx = MultiPackIndex.open(f);
+		assertEquals(names.length, midx.getPackCount());
+		for (int i = 0; i < names.length; i++)
+			assertEquals(names[i] + ".pack", midx.getPackName(i));
+		final PackIndex idx = PackIndex.open(new File(packDir, base + ".idx"));
+		assertEquals(idx.getObjectCount(), midx.getObjectCount());
+	}
+
+	public void testMissingPackDisablesIndex() throws Exception {
+		odb.writeMultiPackIndex();
+		final String victim = "pack-df2982f284bbabb6bdb59ee3fcc6eb0983e20371";
+		final PackIndex victimIdx = PackIndex.open(new File(packDir, victim
+				+ ".idx"));
+		db.close();
+		assertTrue(new File(packDir, victim + ".pack").delete());
+		assertTrue(new File(packDir, victim + ".idx").delete());
+		db = new Repository(trash_git);
+
+		final Map<String, PackIndex> packs = packIndexes();
+		for (final PackIndex idx : packs.values()) {
+			for (final PackIndex.MutableEntry e : idx)
+				assertNotNull(db.openObject(e.toObjectId()));
+		}
+		for (final PackIndex.MutableEntry e : victimIdx) {
+			final ObjectId id = e.toObjectId();
+			boolean expect = odb.fileFor(id).exists();
+			for (final PackIndex idx : packs.values())
+				expect |= idx.hasObject(id);
+			assertEquals(expect, db.hasObject(id));
+		}
+	}
+
+	private Map<String, PackIndex> packIndexes() throws IOException {
+		final Map<String, PackIndex> r = new HashMap<String, PackIndex>();
+		for (final String n : packDir.list()) {
+			if (n.startsWith("pack-") && n.endsWith(".idx")) {
+				final String base = n.substring(0, n.length() - 4);
+				r.put(base + ".pack", PackIndex.open(new File(packDir, n)));
+			}
+		}
+		return r;
+	}
+
+	private Map<ObjectId, byte[]> readAll() throws IOException {
+		final Map<ObjectId, byte[]> r = new HashMap<ObjectId, byte[]>();
+		for (final PackIndex idx : packIndexes().values()) {
+			for (final PackIndex.MutableEntry e : idx) {
+				final ObjectId id = e.toObjectId();
+				r.put(id, db.openObject(id).getBytes());
+			}
+		}
+		return r;
+	}
+
+	private void assertContent(final Map<ObjectId, byte[]> expect)
+			throws IOException {
+		for (final Map.Entry<ObjectId, byte[]> e : expect.entrySet()) {
+			final ObjectLoader ldr = db.openObject(e.getKey());
+			assertNotNull(ldr);
+			assertTrue(Arrays.equals(e.getValue(), ldr.getBytes()));
+		}
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class ObjectDatabaseBatchTest extends RepositoryTestCase {
+	private static final ObjectId MISSING = ObjectId
+			.fromString("ffffffffffffffffffffffffffffffffffffffff");
+
+	private List<ObjectId> ids;
+
+	private ObjectId loose;
+
+	public void setUp() throws Exception {
+		super.setUp();
+		ids = new ArrayList<ObjectId>();
+		final File packDir = new File(trash_git, "objects/pack");
+		for (final String n : packDir.list()) {
+			if (n.startsWith("pack-") && n.endsWith(".idx")) {
+				for (final PackIndex.MutableEntry e : PackIndex.open(new File(
+						packDir, n)))
+					ids.add(e.toObjectId());
+			}
+		}
+		loose = new ObjectWriter(db).writeBlob(Constants
+				.encode("only stored loose\n"));
+		ids.add(loose);
+	}
+
+	public void testOpenObjects() throws IOException {
+		assertOpenObjects(db);
+	}
+
+	public void testOpenObjectsThroughMultiPackIndex() throws IOException {
+		((ObjectDirectory) db.getObjectDatabase()).writeMultiPackIndex();
+		db.close();
+		db = new Repository(trash_git);
+		assertOpenObjects(db);
+	}
+
+	public void testOpenObjectsFromAlternate() throws IOException {
+		final Repository child = createNewEmptyRepo(true);
+		final File alt = new File(child.getDirectory(),
+				"objects/info/alternates");
+		final FileOutputStream out = new FileOutputStream(alt);
+		try {
+			out.write(Constants.encode(new File(trash_git, "objects")
+					.getAbsolutePath()
+					+ "\n"));
+		} finally {
+			out.close();
+		}
+		assertOpenObjects(child);
+	}
+
+	public void testFindMissing() {
+		final List<ObjectId> want = new ArrayList<ObjectId>(ids);
+		assertTrue(db.findMissing(want).isEmpty());
+
+		want.add(MISSING);
+		want.add(ObjectId.zeroId());
+		final Set<ObjectId> missing = db.findMissing(want);
+		assertEquals(2, missing.size());
+		assertTrue(missing.contains(MISSING));
+		assertTrue(missing.contains(ObjectId.zeroId()));
+	}
+
+	public void testEmptyBatch() throws IOException {
+		final List<ObjectId> none = new ArrayList<ObjectId>();
+		assertTrue(db.findMissing(none).isEmpty());
+		assertTrue(db.openObjects(new WindowCursor(), none, null).isEmpty());
+	}
+
+	private void assertOpenObjects(final Repository r) throws IOException {
+		final List<ObjectId> want = new ArrayList<ObjectId>(ids);
+		want.add(MISSING);
+		want.add(loose); // duplicates are opened once
+
+		final Set<ObjectId> missing = new HashSet<ObjectId>();
+		final WindowCursor curs = new WindowCursor();
+		final Map<ObjectId, ObjectLoader> found;
+		try {
+			found = r.openObjects(curs, want, missing);
+		} finally {
+			curs.release();
+		}
+		assertEquals(new HashSet<ObjectId>(ids).size(), found.size());
+		assertEquals(1, missing.size());
+		assertTrue(missing.contains(MISSING));
+
+		for (final ObjectId id : ids) {
+			final ObjectLoader a = found.get(id);
+			final ObjectLoader b = r.openObject(id);
+			assertNotNull(a);
+			assertEquals(b.getType(), a.getType());
+			assertTrue(Arrays.equals(b.getBytes(), a.getBytes()));
+		}
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+public class OffsetCacheTest extends TestCase {
+	private static final int CAPACITY = 64;
+
+	private static final int HOT = 32;
+
+	private PackFile pack;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		pack = new PackFile(new File("a.idx"), new File("a.pack"));
+	}
+
+	public void testLoadOncePerKey() throws IOException {
+		final CountingCache c = new CountingCache(false);
+		for (int round = 0; round < 3; round++)
+			for (int k = 0; k < 10; k++)
+				assertEquals(Long.valueOf(k), c.getOrLoad(pack, k));
+		assertEquals(10, c.loads);
+		assertEquals(10, c.live);
+	}
+
+	public void testStaysWithinLimit() throws IOException {
+		for (final boolean admission : new boolean[] { false, true }) {
+			final CountingCache c = new CountingCache(admission);
+			for (int k = 0; k < 10 * CAPACITY; k++) {
+				assertEquals(Long.valueOf(k), c.getOrLoad(pack, k));
+				assertTrue(c.live <= CAPACITY);
+			}
+		}
+	}
+
+	public void testStrongRefsEvictExactly() throws IOException {
+		final CountingCache c = new CountingCache(false, true);
+		for (int k = 0; k < 10 * CAPACITY; k++) {
+			c.getOrLoad(pack, k);
+			assertTrue(c.live <= CAPACITY);
+		}
+		assertEquals(CAPACITY, c.live);
+		assertEquals(c.loads - CAPACITY, c.getEvictionCount());
+		assertEquals(0, c.getClearedCount());
+		for (final OffsetCache.Ref<Long> r : c.getLiveRefs())
+			assertSame(r.get(), r.strong);
+	}
+
+	public void testAdmissionResistsScan() throws IOException {
+		final int lru = hotMissesDuringScan(new CountingCache(false));
+		final int lfu = hotMissesDuringScan(new CountingCache(true));
+		assertTrue("lru " + lru + ", tinylfu " + lfu, lfu * 10 < lru);
+	}
+
+	private int hotMissesDuringScan(final CountingCache c) throws IOException {
+		for (int round = 0; round < 4; round++)
+			for (int k = 0; k < HOT; k++)
+				c.getOrLoad(pack, k);
+
+		int misses = 0;
+		for (int k = 0; k < 100 * CAPACITY; k++) {
+			c.getOrLoad(pack, 1000000 + k);
+			if (k % 4 == 0) {
+				final int before = c.loads;
+				c.getOrLoad(pack, (k / 4) % HOT);
+				misses += c.loads - before;
+			}
+		}
+		return misses;
+	}
+
+	private static class CountingCache extends
+			OffsetCache<Long, OffsetCache.Ref<Long>> {
+		int loads;
+
+		int live;
+
+		CountingCache(final boolean admission) {
+			this(admission, false);
+		}
+
+		CountingCache(final boolean admission, final boolean strong) {
+			super(5 * CAPACITY / 2, 4, admission, strong);
+		}
+
+		@Override
+		protected Long load(final PackFile p, final long position) {
+			loads++;
+			live++;
+			return Long.valueOf(position);
+		}
+
+		@Override
+		protected void clear(final Ref<Long> ref) {
+			live--;
+		}
+
+		@Override
+		protected boolean isFull() {
+			return live > CAPACITY;
+		}
+
+		@Override
+		protected int hash(final int packHash, final long position) {
+			return packHash + (int) position;
+		}
+	}
+}
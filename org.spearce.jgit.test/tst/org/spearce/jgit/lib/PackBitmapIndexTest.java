@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.spearce.jgit.revwalk.ObjectWalk;
+import org.spearce.jgit.revwalk.RevObject;
+
+public class PackBitmapIndexTest extends RepositoryTestCase {
+	private ObjectDirectory odb;
+
+	private PackFile pack;
+
+	public void setUp() throws Exception {
+		super.setUp();
+		odb = (ObjectDirectory) db.getObjectDatabase();
+		pack = repack();
+	}
+
+	public void testNoBitmaps() throws Exception {
+		assertNull(pack.getBitmapIndex());
+		final PackWriter pw = prepare(ids("refs/heads/a"), null);
+		assertNull(pw.bitmapIndex);
+	}
+
+	public void testBitmapsMatchWalk() throws Exception {
+		final PackBitmapIndexWriter w = new PackBitmapIndexWriter(db);
+		w.setSpacing(3);
+		final int cnt = w.writeFile(NullProgressMonitor.INSTANCE);
+		final PackBitmapIndex bitmaps = pack.getBitmapIndex();
+		assertNotNull(bitmaps);
+
+		// C git owns pack-*.bitmap, and cannot read our format.
+		for (final String n : pack.getPackFile().getParentFile().list())
+			assertFalse(n, n.endsWith(".bitmap"));
+		assertEquals(cnt, bitmaps.getBitmapCount());
+		assertTrue(cnt > db.getAllRefs().size() / 2);
+
+		for (final String name : new String[] { "refs/heads/a",
+				"refs/heads/master", "refs/heads/gitlink",
+				"refs/heads/symlink" }) {
+			final ObjectId tip = db.resolve(name);
+			final BitSet b = bitmaps.getBitmap(tip);
+			assertNotNull(name, b);
+			final Set<ObjectId> exp = walk(Collections.singleton(tip));
+			assertEquals(name, exp.size(), b.cardinality());
+			for (final ObjectId id : exp) {
+				final int pos = bitmaps.findPosition(id);
+				assertTrue(name, b.get(pos));
+				assertEquals(id, bitmaps.getObject(pos));
+				assertEquals(db.openObject(id).getType(), bitmaps
+						.getType(pos));
+			}
+		}
+	}
+
+	public void testEncoding() throws Exception {
+		final PackBitmapIndex in = new PackBitmapIndex(pack.getIndex(), pack
+				.getReverseIdx());
+		final int n = in.getObjectCount();
+		assertTrue(n > 64);
+		final BitSet[] exp = new BitSet[4];
+		exp[0] = new BitSet();
+		exp[1] = new BitSet();
+		exp[1].set(0, n);
+		exp[2] = new BitSet();
+		for (int i = 0; i < n; i += 3)
+			exp[2].set(i);
+		exp[3] = new BitSet();
+		exp[3].set(1);
+		exp[3].set(70, n - 10);
+		exp[3].set(n - 1);
+		for (int i = 0; i < exp.length; i++)
+			in.add(in.getObject(i), exp[i]);
+		in.setType(5, Constants.OBJ_TAG);
+
+		final File file = new File(trash, "test.jbitmap");
+		final OutputStream out = new FileOutputStream(file);
+		try {
+			in.write(out);
+		} finally {
+			out.close();
+		}
+
+		final PackBitmapIndex r = PackBitmapIndex.open(file, pack.getIndex(),
+				pack.getReverseIdx());
+		assertEquals(exp.length, r.getBitmapCount());
+		for (int i = 0; i < exp.length; i++)
+			assertEquals(exp[i], r.getBitmap(in.getObject(i)));
+		assertNull(r.getBitmap(in.getObject(exp.length)));
+		assertEquals(Constants.OBJ_TAG, r.getType(5));
+		assertEquals(Constants.OBJ_BAD, r.getType(6));
+	}
+
+	public void testPreparePackMatchesWalk() throws Exception {
+		new PackBitmapIndexWriter(db).writeFile(NullProgressMonitor.INSTANCE);
+
+		assertPrepared(ids("refs/heads/master"), ids());
+		assertPrepared(ids("refs/heads/master"), ids("refs/heads/a"));
+		assertPrepared(ids("refs/heads/a", "refs/heads/c"),
+				ids("refs/heads/b", "refs/tags/B"));
+		assertPrepared(ids("refs/tags/B", "refs/tags/spearce-gpg-pub"),
+				ids("refs/heads/pa"));
+		assertPrepared(ids("refs/heads/gitlink", "refs/heads/symlink"),
+				ids("refs/heads/master"));
+	}
+
+	public void testThinPackWithBitmaps() throws Exception {
+		new PackBitmapIndexWriter(db).writeFile(NullProgressMonitor.INSTANCE);
+
+		final PackWriter pw = new PackWriter(db, NullProgressMonitor.INSTANCE);
+		pw.setThin(true);
+		pw.preparePack(ids("refs/heads/master"), ids("refs/heads/a"));
+		assertNotNull(pw.bitmapIndex);
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		pw.writePack(out);
+		assertTrue(out.size() > 0);
+	}
+
+	public void testObjectOutsidePack() throws Exception {
+		new PackBitmapIndexWriter(db).writeFile(NullProgressMonitor.INSTANCE);
+
+		final Commit c = new Commit(db);
+		c.setTreeId(db.mapCommit("refs/heads/a").getTreeId());
+		c.setParentIds(new ObjectId[] { db.resolve("refs/heads/a") });
+		c.setAuthor(new PersonIdent(jauthor, 1236977987000L, 0));
+		c.setCommitter(new PersonIdent(jcommitter, 1236977987000L, 0));
+		c.setMessage("loose\n");
+		final ObjectId loose = new ObjectWriter(db).writeCommit(c);
+
+		final List<ObjectId> want = ids("refs/heads/master");
+		want.add(loose);
+		final PackWriter pw = prepare(want, ids("refs/heads/a"));
+		assertNull(pw.bitmapIndex);
+		assertTrue(pw.willInclude(loose));
+	}
+
+	public void testStaleBitmapsIgnored() throws Exception {
+		new PackBitmapIndexWriter(db).writeFile(NullProgressMonitor.INSTANCE);
+		assertNotNull(pack.getBitmapIndex());
+
+		final File file = pack.getBitmapFile();
+		final long modified = file.lastModified();
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(8);
+			raf.write(~raf.read());
+		} finally {
+			raf.close();
+		}
+		file.setLastModified(modified - 5000);
+		assertNull(pack.getBitmapIndex());
+	}
+
+	private void assertPrepared(final List<ObjectId> want,
+			final List<ObjectId> have) throws Exception {
+		final Set<ObjectId> exp = walk(want);
+		exp.removeAll(walk(have));
+
+		final PackWriter pw = prepare(want, have);
+		assertNotNull(pw.bitmapIndex);
+		assertEquals(exp.size(), pw.getObjectsNumber());
+		for (final ObjectId id : exp)
+			assertTrue(id.name(), pw.willInclude(id));
+	}
+
+	private PackWriter prepare(final List<ObjectId> want,
+			final List<ObjectId> have) throws Exception {
+		final PackWriter pw = new PackWriter(db, NullProgressMonitor.INSTANCE);
+		pw.preparePack(want, have);
+		return pw;
+	}
+
+	private Set<ObjectId> walk(final Collection<ObjectId> start)
+			throws Exception {
+		final ObjectWalk ow = new ObjectWalk(db);
+		for (final ObjectId id : start)
+			ow.markStart(ow.parseAny(id));
+		final Set<ObjectId> r = new HashSet<ObjectId>();
+		RevObject o;
+		while ((o = ow.next()) != null)
+			r.add(o.copy());
+		while ((o = ow.nextObject()) != null)
+			r.add(o.copy());
+		return r;
+	}
+
+	private List<ObjectId> ids(final String... names) throws Exception {
+		final List<ObjectId> r = new ArrayList<ObjectId>();
+		for (final String n : names)
+			r.add(db.resolve(n));
+		return r;
+	}
+
+	private PackFile repack() throws Exception {
+		final List<ObjectId> all = new ArrayList<ObjectId>();
+		for (final Ref r : db.getAllRefs().values())
+			all.add(r.getObjectId());
+		final PackWriter pw = new PackWriter(db, NullProgressMonitor.INSTANCE);
+		pw.preparePack(all, Collections.<ObjectId> emptySet());
+
+		final String base = "pack-" + pw.computeName().name();
+		final File dir = new File(trash_git, "objects/pack");
+		final File packFile = new File(dir, base + ".pack");
+		final File idxFile = new File(dir, base + ".idx");
+		OutputStream out = new FileOutputStream(packFile);
+		try {
+			pw.writePack(out);
+		} finally {
+			out.close();
+		}
+		out = new FileOutputStream(idxFile);
+		try {
+			pw.writeIndex(out);
+		} finally {
+			out.close();
+		}
+
+		for (final PackFile p : odb.rescanPacks()) {
+			if (p.getPackFile().equals(packFile))
+				return p;
+		}
+		fail("Pack " + packFile + " not found");
+		return null;
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.spearce.jgit.transport.PackedObjectInfo;
+
+public class PackIndexV2MappedTest extends PackIndexV2Test {
+	private static final Comparator<PackedObjectInfo> BY_NAME = new Comparator<PackedObjectInfo>() {
+		public int compare(final PackedObjectInfo a, final PackedObjectInfo b) {
+			return a.compareTo(b);
+		}
+	};
+
+	public void setUp() throws Exception {
+		super.setUp();
+		smallIdx = PackIndex.open(getFileForPack34be9032(), true);
+		denseIdx = PackIndex.open(getFileForPackdf2982f28(), true);
+		assertTrue(smallIdx instanceof PackIndexV2Mapped);
+	}
+
+	public void testSameAsHeapIndex() throws Exception {
+		final PackIndex heap = PackIndex.open(getFileForPackdf2982f28(), false);
+		assertEquals(heap.getObjectCount(), denseIdx.getObjectCount());
+		for (long i = 0; i < heap.getObjectCount(); i++)
+			assertEquals(heap.getObjectId(i), denseIdx.getObjectId(i));
+		assertEquals(-1, denseIdx.findOffset(ObjectId.zeroId()));
+		assertFalse(denseIdx.hasObject(ObjectId
+				.fromString("ffffffffffffffffffffffffffffffffffffffff")));
+	}
+
+	public void testOffset64() throws Exception {
+		final Random rng = new Random(7);
+		final List<PackedObjectInfo> list = new ArrayList<PackedObjectInfo>();
+		for (int i = 0; i < 1000; i++) {
+			final byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+			rng.nextBytes(raw);
+			final PackedObjectInfo o = new PackedObjectInfo(ObjectId
+					.fromRaw(raw));
+			o.setOffset(12 + i * (long) Integer.MAX_VALUE / 100);
+			o.setCRC(i);
+			list.add(o);
+		}
+		Collections.sort(list, BY_NAME);
+
+		final File f = new File(trash, "large.idx");
+		final FileOutputStream out = new FileOutputStream(f);
+		try {
+			PackIndexWriter.createVersion(out, 2).write(list, new byte[20]);
+		} finally {
+			out.close();
+		}
+
+		final PackIndex idx = PackIndex.open(f, true);
+		assertTrue(idx.getOffset64Count() > 0);
+		for (final PackedObjectInfo o : list) {
+			assertEquals(o.getOffset(), idx.findOffset(o));
+			assertEquals(o.getCRC(), (int) idx.findCRC32(o));
+		}
+
+		final Iterator<PackIndex.MutableEntry> i = idx.iterator();
+		for (final PackedObjectInfo o : list) {
+			final PackIndex.MutableEntry e = i.next();
+			assertEquals(o.getOffset(), e.getOffset());
+			assertEquals(o, e.toObjectId());
+		}
+		assertFalse(i.hasNext());
+	}
+}
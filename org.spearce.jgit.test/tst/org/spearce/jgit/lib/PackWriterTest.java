@@ -299,6 +299,43 @@ public void testWritePack4ThinPack() throws IOException {
 		writeVerifyPack4(true);
 	}
 
+	/**
+	 * Test pack writing with an excluded index: the blob already stored in
+	 * another pack must be left out. Pack configuration as in
+	 * {@link #testWritePack4()}.
+	 *
+	 * @throws IOException
+	 */
+	public void testWritePack4ExcludeObjects() throws IOException {
+		final ObjectId blob = ObjectId
+				.fromString("5b6e7c66c276e7610d4a73c70ec1a1f7c1003259");
+		final PackWriter other = new PackWriter(db, new TextProgressMonitor());
+		other.preparePack(Collections.singletonList(
+				new RevWalk(db).parseAny(blob)).iterator());
+		other.writePack(new ByteArrayOutputStream());
+		final File excludeIdx = new File(trash, "exclude.idx");
+		final FileOutputStream fos = new FileOutputStream(excludeIdx);
+		try {
+			other.writeIndex(fos);
+		} finally {
+			fos.close();
+		}
+		writer.excludeObjects(PackIndex.open(excludeIdx));
+
+		final LinkedList<ObjectId> interestings = new LinkedList<ObjectId>();
+		interestings.add(ObjectId
+				.fromString("82c6b885ff600be425b4ea96dee75dca255b69e7"));
+		final LinkedList<ObjectId> uninterestings = new LinkedList<ObjectId>();
+		uninterestings.add(ObjectId
+				.fromString("c59759f143fb1fe21c197981df75a7ee00290799"));
+		createVerifyOpenPack(interestings, uninterestings, false, false);
+
+		assertFalse(writer.willInclude(blob));
+		verifyObjectsOrder(new ObjectId[] {
+				ObjectId.fromString("82c6b885ff600be425b4ea96dee75dca255b69e7"),
+				ObjectId.fromString("aabf2ffaec9b497f0950352b3e582d73035c2035") });
+	}
+
 	/**
 	 * Compare sizes of packs created using {@link #testWritePack2()} and
 	 * {@link #testWritePack2DeltasReuseRefs()}. The pack using deltas should
@@ -39,6 +39,9 @@
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 import org.spearce.jgit.errors.RepositoryNotFoundException;
 import org.spearce.jgit.lib.RepositoryCache.FileKey;
@@ -123,4 +126,38 @@ public void testCacheOpen() throws Exception {
 		d2.close();
 		d2.close();
 	}
+
+	public void testWarmUp() throws Exception {
+		final FileKey loc = FileKey.exact(db.getDirectory());
+		final FileKey missing = FileKey.exact(new File(trash, "not-a-repo"));
+		final List<FileKey> keys = new ArrayList<FileKey>();
+		keys.add(loc);
+		keys.add(missing);
+
+		final Map<RepositoryCache.Key, Long> times = RepositoryCache.warmUp(
+				keys, 2);
+		assertEquals(1, times.size());
+		assertTrue(times.get(loc).longValue() >= 0);
+		assertFalse(times.containsKey(missing));
+
+		final Repository d2 = RepositoryCache.open(loc);
+		try {
+			final ObjectDirectory odb = (ObjectDirectory) d2
+					.getObjectDatabase();
+			assertEquals(7, odb.rescanPacks().length);
+			assertTrue(d2.hasObject(ObjectId
+					.fromString("49322bb17d3acc9146f98c97d078513228bbf3c0")));
+		} finally {
+			d2.close();
+			RepositoryCache.close(d2);
+		}
+	}
+
+	public void testPreloadPackIndexes() {
+		final ObjectDirectory odb = (ObjectDirectory) db.getObjectDatabase();
+		odb.preloadPackIndexes();
+		assertEquals(7, odb.rescanPacks().length);
+		assertTrue(db.hasObject(ObjectId
+				.fromString("49322bb17d3acc9146f98c97d078513228bbf3c0")));
+	}
 }
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import junit.framework.TestCase;
+
+public class StripedPoolTest extends TestCase {
+	public void testEmpty() {
+		final StripedPool<Object> p = new StripedPool<Object>(2);
+		assertNull(p.take());
+	}
+
+	public void testSameThreadReuse() {
+		final StripedPool<Object> p = new StripedPool<Object>(2);
+		final Object a = new Object();
+		final Object b = new Object();
+		final Object c = new Object();
+		assertTrue(p.offer(a));
+		assertTrue(p.offer(b));
+		assertFalse(p.offer(c));
+
+		final Object x = p.take();
+		final Object y = p.take();
+		assertTrue(x == a || x == b);
+		assertTrue(y == a || y == b);
+		assertNotSame(x, y);
+		assertNull(p.take());
+	}
+
+	public void testBoundedAcrossThreads() throws InterruptedException {
+		final StripedPool<Object> p = new StripedPool<Object>(3);
+		final AtomicInteger kept = new AtomicInteger();
+		final Thread[] threads = new Thread[32];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					for (int i = 0; i < 10; i++)
+						if (p.offer(new Object()))
+							kept.incrementAndGet();
+				}
+			};
+			threads[t].start();
+		}
+		for (final Thread t : threads)
+			t.join();
+		assertTrue(kept.get() <= p.capacity());
+	}
+
+	public void testConcurrentTakeOffer() throws InterruptedException {
+		final StripedPool<Object> p = new StripedPool<Object>(4);
+		final List<Object> all = new ArrayList<Object>();
+		for (int i = 0; i < 4; i++) {
+			final Object o = new Object();
+			all.add(o);
+			assertTrue(p.offer(o));
+		}
+		final Thread[] threads = new Thread[8];
+		final AtomicInteger errors = new AtomicInteger();
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					for (int i = 0; i < 10000; i++) {
+						final Object o = p.take();
+						if (o != null && !p.offer(o))
+							errors.incrementAndGet();
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (final Thread t : threads)
+			t.join();
+		assertEquals(0, errors.get());
+	}
+
+	public void testDeflaterRoundTrip() throws DataFormatException {
+		final byte[] data = Constants.encode("a line of text\n"
+				+ "a line of text\n" + "a line of text\n");
+		for (final int level : new int[] { Deflater.BEST_SPEED,
+				Deflater.NO_COMPRESSION, Deflater.BEST_COMPRESSION }) {
+			final Deflater def = DeflaterCache.get(level);
+			def.setInput(data);
+			def.finish();
+			final byte[] z = new byte[256];
+			int zLen = 0;
+			while (!def.finished())
+				zLen += def.deflate(z, zLen, z.length - zLen);
+			DeflaterCache.release(def);
+			if (level == Deflater.NO_COMPRESSION)
+				assertTrue(zLen > data.length);
+			else
+				assertTrue(zLen < data.length);
+
+			final Inflater inf = InflaterCache.get();
+			inf.setInput(z, 0, zLen);
+			final byte[] out = new byte[data.length];
+			int n = 0;
+			while (!inf.finished())
+				n += inf.inflate(out, n, out.length - n);
+			InflaterCache.release(inf);
+			assertEquals(data.length, n);
+			assertEquals(new String(data), new String(out));
+		}
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class UnpackedObjectCacheTest extends TestCase {
+	private PackFile packA;
+
+	private PackFile packB;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		packA = new PackFile(new File("a.idx"), new File("a.pack"));
+		packB = new PackFile(new File("b.idx"), new File("b.pack"));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		UnpackedObjectCache.purge(packA);
+		UnpackedObjectCache.purge(packB);
+		UnpackedObjectCache.reconfigure(new WindowCacheConfig());
+		super.tearDown();
+	}
+
+	public void testStoreAndGet() {
+		final long hits = UnpackedObjectCache.getHitCount();
+		final long misses = UnpackedObjectCache.getMissCount();
+
+		assertNull(UnpackedObjectCache.get(packA, 12));
+		final byte[] data = new byte[] { 1, 2, 3 };
+		UnpackedObjectCache.store(packA, 12, data, Constants.OBJ_BLOB);
+
+		final UnpackedObjectCache.Entry e = UnpackedObjectCache.get(packA, 12);
+		assertNotNull(e);
+		assertSame(data, e.data);
+		assertEquals(Constants.OBJ_BLOB, e.type);
+
+		assertEquals(hits + 1, UnpackedObjectCache.getHitCount());
+		assertEquals(misses + 1, UnpackedObjectCache.getMissCount());
+	}
+
+	public void testSameOffsetInOtherPack() {
+		// Offsets 1024 apart used to share a slot, and packs always did.
+		UnpackedObjectCache.store(packA, 12, new byte[1], Constants.OBJ_BLOB);
+		UnpackedObjectCache.store(packB, 12, new byte[2], Constants.OBJ_TREE);
+		UnpackedObjectCache.store(packA, 12 + 1024, new byte[3],
+				Constants.OBJ_COMMIT);
+
+		assertEquals(1, UnpackedObjectCache.get(packA, 12).data.length);
+		assertEquals(2, UnpackedObjectCache.get(packB, 12).data.length);
+		assertEquals(3, UnpackedObjectCache.get(packA, 12 + 1024).data.length);
+	}
+
+	public void testPurge() {
+		final long open = UnpackedObjectCache.getOpenByteCount();
+		UnpackedObjectCache.store(packA, 1, new byte[10], Constants.OBJ_BLOB);
+		UnpackedObjectCache.store(packB, 1, new byte[20], Constants.OBJ_BLOB);
+		assertEquals(open + 30, UnpackedObjectCache.getOpenByteCount());
+
+		UnpackedObjectCache.purge(packA);
+		assertNull(UnpackedObjectCache.get(packA, 1));
+		assertNotNull(UnpackedObjectCache.get(packB, 1));
+		assertEquals(open + 20, UnpackedObjectCache.getOpenByteCount());
+	}
+
+	public void testEvictsToLimit() {
+		final WindowCacheConfig cfg = new WindowCacheConfig();
+		cfg.setDeltaBaseCacheLimit(1000);
+		UnpackedObjectCache.reconfigure(cfg);
+		assertTrue(UnpackedObjectCache.getOpenByteCount() <= 1000);
+
+		final long evictions = UnpackedObjectCache.getEvictionCount();
+		for (int i = 0; i < 100; i++)
+			UnpackedObjectCache.store(packA, i * 100, new byte[100],
+					Constants.OBJ_BLOB);
+		assertTrue(UnpackedObjectCache.getOpenByteCount() <= 1000);
+		assertTrue(UnpackedObjectCache.getEvictionCount() >= evictions + 90);
+
+		// Objects larger than the whole cache are not stored.
+		UnpackedObjectCache.store(packB, 0, new byte[1001], Constants.OBJ_BLOB);
+		assertNull(UnpackedObjectCache.get(packB, 0));
+	}
+
+	public void testConcurrentAccess() throws Exception {
+		final WindowCacheConfig cfg = new WindowCacheConfig();
+		cfg.setDeltaBaseCacheLimit(64 * 1024);
+		UnpackedObjectCache.reconfigure(cfg);
+		final long open = UnpackedObjectCache.getOpenByteCount();
+
+		final List<Throwable> errors = new ArrayList<Throwable>();
+		final Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final PackFile pack = (t & 1) == 0 ? packA : packB;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < 20000; i++) {
+							final long pos = i % 500;
+							final UnpackedObjectCache.Entry e = UnpackedObjectCache
+									.get(pack, pos);
+							if (e != null)
+								assertEquals(pos % 200, e.data.length);
+							else
+								UnpackedObjectCache.store(pack, pos,
+										new byte[(int) (pos % 200)],
+										Constants.OBJ_BLOB);
+						}
+					} catch (Throwable err) {
+						synchronized (errors) {
+							errors.add(err);
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (final Thread t : threads)
+			t.join();
+		assertTrue(errors.toString(), errors.isEmpty());
+
+		// Entries of other packs may have been evicted meanwhile.
+		UnpackedObjectCache.purge(packA);
+		UnpackedObjectCache.purge(packB);
+		assertTrue(UnpackedObjectCache.getOpenByteCount() <= open);
+		assertNull(UnpackedObjectCache.get(packA, 1));
+	}
+}
@@ -41,9 +41,13 @@
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.List;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.spearce.jgit.errors.CorruptObjectException;
 import org.spearce.jgit.util.JGitTestUtil;
 import org.spearce.jgit.util.MutableInteger;
@@ -106,6 +110,105 @@ public void testCache_TooSmallLimit() throws IOException {
 		checkLimits(cfg);
 	}
 
+	public void testCache_Admission() throws IOException {
+		final WindowCacheConfig cfg = new WindowCacheConfig();
+		cfg.setPackedGitWindowSize(4096);
+		cfg.setPackedGitLimit(2 * 4096);
+		cfg.setPackedGitAdmission(true);
+		WindowCache.reconfigure(cfg);
+		doCacheTests();
+		doCacheTests();
+		checkLimits(cfg);
+	}
+
+	public void testCache_StrongRefs() throws IOException {
+		final WindowCacheConfig cfg = new WindowCacheConfig();
+		cfg.setPackedGitWindowSize(4096);
+		cfg.setPackedGitLimit(3 * 4096);
+		cfg.setPackedGitUseStrongRefs(true);
+		WindowCache.reconfigure(cfg);
+		doCacheTests();
+		checkLimits(cfg);
+		assertEquals(0, WindowCache.getStatistics().getClearedCount());
+	}
+
+	public void testCache_DirectBuffers() throws IOException {
+		final WindowCacheConfig cfg = new WindowCacheConfig();
+		cfg.setPackedGitUseStrongRefs(true);
+		cfg.setPackedGitDirectBuffers(true);
+		WindowCache.reconfigure(cfg);
+		doCacheTests();
+		checkLimits(cfg);
+
+		final WindowCache cache = WindowCache.getInstance();
+		assertEquals(6, cache.getOpenFiles());
+		assertEquals(17346, cache.getOpenBytes());
+		for (final WindowCache.WindowRef r : cache.getLiveRefs())
+			assertTrue(r.get() instanceof ByteBufferWindow);
+	}
+
+	public void testCache_Statistics() throws IOException {
+		final WindowCacheConfig cfg = new WindowCacheConfig();
+		WindowCache.reconfigure(cfg);
+		doCacheTests();
+		doCacheTests();
+
+		final WindowCacheStats s = WindowCache.getStatistics();
+		assertEquals(6, s.getMissCount());
+		assertEquals(6, s.getLoadSuccessCount());
+		assertEquals(0, s.getLoadFailureCount());
+		assertTrue(s.getHitCount() > s.getMissCount());
+		assertTrue(s.getHitRatio() > 0.5);
+		assertTrue(s.getTotalLoadTime() > 0);
+		assertEquals(0, s.getEvictionCount());
+		assertEquals(6, s.getOpenFiles());
+		assertEquals(17346, s.getOpenBytes());
+
+		long bytes = 0, hits = 0, misses = 0;
+		for (final WindowCacheStats.PackStats p : s.getPackStats()) {
+			bytes += p.getOpenBytes();
+			hits += p.getHitCount();
+			misses += p.getMissCount();
+			assertTrue(p.getOpenWindows() > 0);
+		}
+		assertEquals(s.getOpenBytes(), bytes);
+		assertEquals(s.getHitCount(), hits);
+		assertEquals(s.getMissCount(), misses);
+	}
+
+	public void testCache_EvictionCounted() throws IOException {
+		final WindowCacheConfig cfg = new WindowCacheConfig();
+		cfg.setPackedGitWindowSize(4096);
+		cfg.setPackedGitLimit(4096);
+		WindowCache.reconfigure(cfg);
+		doCacheTests();
+
+		final WindowCacheStats s = WindowCache.getStatistics();
+		assertTrue(s.getEvictionCount() > 0);
+		assertTrue(s.getEvictionCount() < s.getMissCount());
+	}
+
+	public void testCache_Monitor() throws Exception {
+		WindowCache.reconfigure(new WindowCacheConfig());
+		WindowCacheMonitor.register();
+		try {
+			doCacheTests();
+			final MBeanServer server = ManagementFactory
+					.getPlatformMBeanServer();
+			final ObjectName name = new ObjectName(
+					WindowCacheMonitor.OBJECT_NAME);
+			assertEquals(Long.valueOf(6), server.getAttribute(name,
+					"MissCount"));
+			assertEquals(Integer.valueOf(6), server.getAttribute(name,
+					"OpenFiles"));
+			final String[] packs = (String[]) server.getAttribute(name,
+					"PackStats");
+			assertEquals(6, packs.length);
+		} finally {
+			WindowCacheMonitor.unregister();
+		}
+	}
+
 	private void checkLimits(final WindowCacheConfig cfg) {
 		final WindowCache cache = WindowCache.getInstance();
 		assertTrue(cache.getOpenFiles() <= cfg.getPackedGitOpenFiles());
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.revwalk;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.spearce.jgit.errors.MissingObjectException;
+import org.spearce.jgit.lib.CommitGraph;
+import org.spearce.jgit.lib.CommitGraphWriter;
+import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.lib.MutableObjectId;
+import org.spearce.jgit.lib.NullProgressMonitor;
+import org.spearce.jgit.lib.ObjectDirectory;
+import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.Ref;
+import org.spearce.jgit.lib.RefUpdate;
+
+public class CompactObjectWalkTest extends RevWalkTestCase {
+	public void testAllRefs() throws Exception {
+		final List<ObjectId> all = new ArrayList<ObjectId>();
+		for (final Ref r : db.getAllRefs().values())
+			all.add(r.getObjectId());
+		assertSameWalk(all, new ArrayList<ObjectId>());
+	}
+
+	public void testUninterestingRefs() throws Exception {
+		final String[][] cases = { { "master", "a" }, { "master", "pa" },
+				{ "a", "master" }, { "pa", "b" }, { "master", "A" },
+				{ "B", "c" }, { "g", "f" } };
+		for (final String[] c : cases) {
+			final List<ObjectId> start = new ArrayList<ObjectId>();
+			final List<ObjectId> stop = new ArrayList<ObjectId>();
+			start.add(db.resolve(c[0]));
+			stop.add(db.resolve(c[1]));
+			assertSameWalk(start, stop);
+		}
+	}
+
+	public void testSharedTreesAndTags() throws Exception {
+		final RevBlob a = blob("a");
+		final RevBlob b = blob("b");
+		final RevTree t1 = tree(file("a", a), file("x/b", b));
+		final RevCommit c1 = commit(t1);
+		final RevCommit c2 = commit(tree(file("a", a), file("x/b", a),
+				file("x/y/z", b)), c1);
+		final RevCommit s1 = commit(tree(file("a", b)), c1);
+		final RevCommit m = commit(tree(file("a", b), file("x/y/z", b)), c2,
+				s1);
+		final RevTag onTree = tag("t", t1);
+		final RevTag onTag = tag("tt", tag("c", c2));
+
+		assertSameWalk(ids(m), ids());
+		assertSameWalk(ids(m), ids(c1));
+		assertSameWalk(ids(m), ids(s1));
+		assertSameWalk(ids(m, onTree), ids(c2));
+		assertSameWalk(ids(onTag, b), ids(c1));
+		assertSameWalk(ids(m), ids(t1));
+		assertSameWalk(ids(m, s1), ids(onTag));
+	}
+
+	public void testCommitAccessors() throws Exception {
+		final RevCommit a = commit();
+		final RevCommit b = commit(a);
+		final RevCommit c = commit(a);
+		final RevCommit d = commit(b, c);
+
+		final CompactObjectWalk w = new CompactObjectWalk(db);
+		w.markStart(d);
+		final RevCommit[] exp = { d, c, b, a };
+		final MutableObjectId id = new MutableObjectId();
+		for (final RevCommit e : exp) {
+			parse(e);
+			final int h = w.next();
+			assertEquals(Constants.OBJ_COMMIT, w.getType(h));
+			w.getObjectId(h, id);
+			assertEquals(e.name(), id.name());
+			assertEquals(e.getCommitTime(), w.getCommitTime(h));
+			assertEquals(e.getTree().name(), w.getObjectId(w.getTree(h))
+					.name());
+			assertEquals(e.getParentCount(), w.getParentCount(h));
+			for (int i = 0; i < e.getParentCount(); i++)
+				assertEquals(e.getParent(i).name(), w.getObjectId(
+						w.getParent(h, i)).name());
+		}
+		assertEquals(-1, w.next());
+		assertEquals(-1, w.next());
+	}
+
+	public void testCommitGraph() throws Exception {
+		final RevCommit a = commit(tree(file("f", blob("1"))));
+		final RevCommit b = commit(tree(file("f", blob("2"))), a);
+		final RevCommit c = commit(tree(file("g", blob("3"))), b);
+		new CommitGraphWriter(db).writeFile(NullProgressMonitor.INSTANCE);
+		assertTrue(new File(db.getObjectsDirectory(), "info/"
+				+ CommitGraph.FILE_NAME).isFile());
+
+		// A commit made after the graph is parsed from its object.
+		final RevCommit d = commit(tree(file("g", blob("4"))), c);
+		assertSameWalk(ids(d), ids());
+		assertSameWalk(ids(d), ids(a));
+	}
+
+	public void testPrunedCommitInGraph() throws Exception {
+		final RevCommit a = commit(tree(file("f", blob("1"))));
+		final RevCommit b = commit(tree(file("f", blob("2"))), a);
+		final RefUpdate ru = db.updateRef("refs/heads/pruned");
+		ru.setNewObjectId(b);
+		ru.forceUpdate();
+		new CommitGraphWriter(db).writeFile(NullProgressMonitor.INSTANCE);
+		final ObjectDirectory odb = (ObjectDirectory) db.getObjectDatabase();
+		assertTrue(odb.getCommitGraph().find(b) >= 0);
+
+		final File loose = odb.fileFor(b);
+		loose.setWritable(true);
+		assertTrue(loose.delete());
+
+		final CompactObjectWalk w = new CompactObjectWalk(db);
+		try {
+			w.markStart(b);
+			fail("accepted a commit whose object was deleted");
+		} catch (MissingObjectException e) {
+			// expected
+		}
+	}
+
+	public void testMissingObject() throws Exception {
+		final CompactObjectWalk w = new CompactObjectWalk(db);
+		try {
+			w.markStart(ObjectId
+					.fromString("0123456789012345678901234567890123456789"));
+			fail("accepted a missing object");
+		} catch (MissingObjectException e) {
+			// expected
+		}
+	}
+
+	public void testTableGrowth() {
+		final CompactObjectTable t = new CompactObjectTable();
+		final byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+		final int n = 5000;
+		for (int i = 0; i < n; i++) {
+			id(raw, i);
+			assertEquals(-1, t.find(raw, 0));
+			assertEquals(i, t.add(raw, 0, 1 + i % 4));
+		}
+		assertEquals(n, t.size());
+		for (int i = 0; i < n; i++) {
+			id(raw, i);
+			final int h = t.find(raw, 0);
+			assertEquals(i, h);
+			assertEquals(1 + i % 4, t.getType(h));
+			assertEquals(-1, t.getData(h));
+			assertEquals(ObjectId.fromRaw(raw), t.getObjectId(h));
+		}
+		t.addFlags(7, 1 << CompactObjectTable.TYPE_BITS);
+		assertTrue(t.hasFlag(7, 1 << CompactObjectTable.TYPE_BITS));
+		assertEquals(1 + 7 % 4, t.getType(7));
+	}
+
+	private static void id(final byte[] raw, final int i) {
+		for (int k = 0; k < raw.length; k++)
+			raw[k] = (byte) (i * 31 + k * (i >>> 8));
+		raw[0] = (byte) i;
+		raw[1] = (byte) (i >>> 8);
+	}
+
+	private static List<ObjectId> ids(final ObjectId... list) {
+		final List<ObjectId> r = new ArrayList<ObjectId>();
+		for (final ObjectId id : list)
+			r.add(id.copy());
+		return r;
+	}
+
+	private void assertSameWalk(final List<ObjectId> start,
+			final List<ObjectId> stop) throws Exception {
+		final ObjectWalk ow = new ObjectWalk(db);
+		for (final ObjectId id : start)
+			ow.markStart(ow.parseAny(id));
+		for (final ObjectId id : stop)
+			ow.markUninteresting(ow.parseAny(id));
+		final List<String> exp = new ArrayList<String>();
+		RevObject o;
+		while ((o = ow.next()) != null)
+			exp.add(o.name());
+		while ((o = ow.nextObject()) != null)
+			exp.add(o.name() + " " + ow.getPathString());
+
+		final CompactObjectWalk cw = new CompactObjectWalk(db);
+		for (final ObjectId id : start)
+			cw.markStart(id);
+		for (final ObjectId id : stop)
+			cw.markUninteresting(id);
+		final List<String> act = new ArrayList<String>();
+		int h;
+		while ((h = cw.next()) >= 0)
+			act.add(cw.getObjectId(h).name());
+		while ((h = cw.nextObject()) >= 0)
+			act.add(cw.getObjectId(h).name() + " " + cw.getPathString());
+
+		assertEquals(start + " ^" + stop, exp, act);
+	}
+}
@@ -37,6 +37,10 @@
 
 package org.spearce.jgit.revwalk;
 
+import java.io.File;
+
+import org.spearce.jgit.errors.MissingObjectException;
+
 public class ObjectWalkTest extends RevWalkTestCase {
 	protected ObjectWalk objw;
 
@@ -187,4 +191,34 @@ public void testCull() throws Exception {
 		assertSame(f2, objw.nextObject());
 		assertNull(objw.nextObject());
 	}
+
+	public void testCheckConnectivity() throws Exception {
+		final RevBlob f0 = blob("0");
+		final RevBlob f1 = blob("1");
+		final RevCommit a = commit(tree(file("0", f0), file("1", f1)));
+		markStart(a);
+		objw.markStart(objw.parseCommit(db.resolve("refs/heads/master")));
+		objw.checkConnectivity();
+	}
+
+	public void testCheckConnectivityMissingBlob() throws Exception {
+		final RevBlob f0 = blob("0");
+		final RevBlob f1 = blob("1");
+		final RevBlob f2 = blob("2");
+		final RevCommit a = commit(tree(file("0", f0), file("1", f1), file(
+				"2", f2)));
+		for (final RevBlob b : new RevBlob[] { f1, f2 }) {
+			final File loose = db.toFile(b);
+			loose.setWritable(true);
+			assertTrue(loose.delete());
+		}
+		markStart(a);
+		try {
+			objw.checkConnectivity();
+			fail("missing blob not detected");
+		} catch (MissingObjectException e) {
+			// The first missing blob in walk order is reported.
+			assertTrue(e.getMessage(), e.getMessage().contains(f1.name()));
+		}
+	}
 }
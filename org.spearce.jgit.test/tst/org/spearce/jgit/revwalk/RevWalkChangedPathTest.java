@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.revwalk;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.spearce.jgit.lib.CommitGraph;
+import org.spearce.jgit.lib.CommitGraphWriter;
+import org.spearce.jgit.lib.NullProgressMonitor;
+import org.spearce.jgit.lib.ObjectDirectory;
+import org.spearce.jgit.lib.RefUpdate;
+import org.spearce.jgit.treewalk.filter.AndTreeFilter;
+import org.spearce.jgit.treewalk.filter.PathFilterGroup;
+import org.spearce.jgit.treewalk.filter.TreeFilter;
+
+public class RevWalkChangedPathTest extends RevWalkTestCase {
+	private static final String[] PATHS = { "a", "a/b", "a/c", "a/b/x", "d",
+			"e", "f/g" };
+
+	private RevCommit tip;
+
+	private List<RevCommit> all;
+
+	public void setUp() throws Exception {
+		super.setUp();
+		final RevBlob b1 = blob("1");
+		final RevBlob b2 = blob("2");
+		final RevBlob b3 = blob("3");
+		final RevCommit c1 = commit(tree(file("a/b", b1), file("d", b1)));
+		final RevCommit c2 = commit(tree(file("a/b", b2), file("d", b1)), c1);
+		final RevCommit c3 = commit(tree(file("a/b", b2), file("d", b2)), c2);
+		final RevCommit c4 = commit(tree(file("a", b3), file("d", b2)), c3);
+		final RevCommit c5 = commit(tree(file("a/c", b1), file("d", b2)), c4);
+		final RevCommit s1 = commit(tree(file("a/b", b2), file("d", b3),
+				file("f/g", b1)), c2);
+		final RevCommit s2 = commit(tree(file("a/b", b2), file("d", b3)), s1);
+		tip = commit(tree(file("a/c", b1), file("d", b3)), c5, s2);
+		all = new ArrayList<RevCommit>();
+		Collections.addAll(all, c1, c2, c3, c4, c5, s1, s2, tip);
+
+		final RefUpdate ru = db.updateRef("refs/heads/changed-paths");
+		ru.setNewObjectId(tip);
+		ru.forceUpdate();
+	}
+
+	public void testFiltersHaveNoFalseNegatives() throws Exception {
+		writeGraph(true);
+		final CommitGraph g = ((ObjectDirectory) db.getObjectDatabase())
+				.getCommitGraph();
+		assertTrue(g.hasChangedPaths());
+
+		int skipped = 0;
+		for (final RevCommit c : all) {
+			final int pos = g.find(c);
+			assertTrue(pos >= 0);
+			for (final String p : PATHS) {
+				final List<String> keys = new ArrayList<String>();
+				keys.add(p);
+				keys.add(p + "/");
+				for (int s = p.indexOf('/'); s > 0; s = p.indexOf('/', s + 1))
+					keys.add(p.substring(0, s));
+				if (!g.mayHaveChanged(pos, CommitGraph.hashPaths(keys))) {
+					assertFalse(c.name() + " " + p, changed(c, p));
+					skipped++;
+				}
+			}
+		}
+		assertTrue(skipped > all.size() * PATHS.length / 2);
+	}
+
+	public void testPathLimitedWalkUnchanged() throws Exception {
+		final List<List<String>> exp = new ArrayList<List<String>>();
+		for (final String p : PATHS)
+			exp.add(walk(p));
+
+		writeGraph(false);
+		for (int i = 0; i < PATHS.length; i++)
+			assertEquals(PATHS[i], exp.get(i), walk(PATHS[i]));
+
+		writeGraph(true);
+		for (int i = 0; i < PATHS.length; i++)
+			assertEquals(PATHS[i], exp.get(i), walk(PATHS[i]));
+
+		final RevWalk rw2 = new RevWalk(db);
+		rw2.setRetainBody(true);
+		rw2.setTreeFilter(AndTreeFilter.create(PathFilterGroup
+				.createFromStrings(Collections.singleton("d")),
+				TreeFilter.ANY_DIFF));
+		rw2.markStart(rw2.parseCommit(tip));
+		assertEquals(exp.get(4).size(), count(rw2));
+	}
+
+	public void testPathFilterWithoutDiffIgnoresFilters() throws Exception {
+		final TreeFilter f = PathFilterGroup.createFromStrings(Collections
+				.singleton("d"));
+		assertNull(f.getChangedPathLimits());
+		final int exp = count(f);
+		writeGraph(true);
+		assertEquals(exp, count(f));
+	}
+
+	private int count(final TreeFilter f) throws Exception {
+		final RevWalk w = new RevWalk(db);
+		w.setTreeFilter(f);
+		w.markStart(w.parseCommit(tip));
+		return count(w);
+	}
+
+	private List<String> walk(final String path) throws Exception {
+		final RevWalk w = new RevWalk(db);
+		w.setTreeFilter(AndTreeFilter.create(PathFilterGroup
+				.createFromStrings(Collections.singleton(path)),
+				TreeFilter.ANY_DIFF));
+		w.markStart(w.parseCommit(tip));
+		final List<String> r = new ArrayList<String>();
+		RevCommit c;
+		while ((c = w.next()) != null) {
+			final StringBuilder s = new StringBuilder(c.name());
+			for (final RevCommit p : c.getParents())
+				s.append(' ').append(p.name());
+			r.add(s.toString());
+		}
+		return r;
+	}
+
+	private boolean changed(final RevCommit c, final String path)
+			throws Exception {
+		final RevWalk w = new RevWalk(db);
+		w.setTreeFilter(AndTreeFilter.create(PathFilterGroup
+				.createFromStrings(Collections.singleton(path)),
+				TreeFilter.ANY_DIFF));
+		final RevCommit wc = w.parseCommit(c);
+		w.markStart(wc);
+		for (final RevCommit p : wc.getParents())
+			w.markUninteresting(p);
+		return w.next() != null;
+	}
+
+	private static int count(final RevWalk w) throws Exception {
+		int n = 0;
+		while (w.next() != null)
+			n++;
+		return n;
+	}
+
+	private void writeGraph(final boolean changedPaths) throws Exception {
+		final File f = new File(db.getObjectsDirectory(), "info/"
+				+ CommitGraph.FILE_NAME);
+		final long before = f.lastModified();
+		final CommitGraphWriter w = new CommitGraphWriter(db);
+		w.setChangedPaths(changedPaths);
+		w.writeFile(NullProgressMonitor.INSTANCE);
+		if (before != 0 && f.lastModified() == before)
+			f.setLastModified(before + 2000);
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.revwalk;
+
+import org.spearce.jgit.lib.CommitGraphWriter;
+import org.spearce.jgit.lib.NullProgressMonitor;
+import org.spearce.jgit.lib.RefUpdate;
+
+public class RevWalkGenerationTest extends RevWalkTestCase {
+	private RevCommit a, b, c1, c2, m;
+
+	public void setUp() throws Exception {
+		super.setUp();
+		a = commit();
+		b = commit(a);
+		c1 = commit(commit(commit(b)));
+		c2 = commit(commit(b));
+		m = commit(c1, c2);
+		branch("refs/heads/gen-m", m);
+	}
+
+	public void testNoGraph() throws Exception {
+		final RevWalk w = new RevWalk(db);
+		assertEquals(RevCommit.GENERATION_UNKNOWN, w.generation(w
+				.parseCommit(m)));
+		assertMergedInto(w);
+	}
+
+	public void testGraph() throws Exception {
+		writeGraph();
+		final RevWalk w = new RevWalk(db);
+		assertEquals(1, w.generation(w.lookupCommit(a)));
+		assertEquals(2, w.generation(w.lookupCommit(b)));
+		assertEquals(5, w.generation(w.lookupCommit(c1)));
+		assertEquals(4, w.generation(w.lookupCommit(c2)));
+		assertEquals(6, w.generation(w.lookupCommit(m)));
+		assertMergedInto(w);
+	}
+
+	public void testCommitsAfterGraph() throws Exception {
+		writeGraph();
+		final RevCommit n = commit(commit(m), c2);
+
+		final RevWalk w = new RevWalk(db);
+		w.setRetainBody(true);
+		assertEquals(8, w.generation(w.lookupCommit(n)));
+		assertEquals(7, w.generation(w.parseCommit(n).getParent(0)));
+		assertTrue(w.isMergedInto(w.lookupCommit(c1), w.lookupCommit(n)));
+		assertFalse(w.isMergedInto(w.lookupCommit(n), w.lookupCommit(m)));
+		assertMergedInto(w);
+	}
+
+	public void testSameGeneration() throws Exception {
+		final RevCommit c3 = commit(commit(commit(b)));
+		branch("refs/heads/gen-c3", c3);
+		writeGraph();
+
+		final RevWalk w = new RevWalk(db);
+		final RevCommit wc1 = w.lookupCommit(c1);
+		final RevCommit wc3 = w.lookupCommit(c3);
+		assertEquals(w.generation(wc1), w.generation(wc3));
+		assertFalse(w.isMergedInto(wc1, wc3));
+		assertFalse(w.isMergedInto(wc3, wc1));
+		assertTrue(w.isMergedInto(wc1, wc1));
+	}
+
+	private void assertMergedInto(final RevWalk w) throws Exception {
+		final RevCommit[] all = { a, b, c1, c2, m };
+		final boolean[][] merged = { { true, true, true, true, true },
+				{ false, true, true, true, true },
+				{ false, false, true, false, true },
+				{ false, false, false, true, true },
+				{ false, false, false, false, true } };
+		for (int i = 0; i < all.length; i++) {
+			for (int j = 0; j < all.length; j++) {
+				final RevCommit base = w.lookupCommit(all[i]);
+				final RevCommit tip = w.lookupCommit(all[j]);
+				assertEquals(i + " into " + j, merged[i][j], w.isMergedInto(
+						base, tip));
+			}
+		}
+	}
+
+	private void writeGraph() throws Exception {
+		new CommitGraphWriter(db).writeFile(NullProgressMonitor.INSTANCE);
+	}
+
+	private void branch(final String name, final RevCommit c) throws Exception {
+		final RefUpdate ru = db.updateRef(name);
+		ru.setNewObjectId(c);
+		ru.forceUpdate();
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.transport;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.spearce.jgit.lib.RepositoryTestCase;
+import org.spearce.jgit.util.TemporaryBuffer;
+
+public class FreenetCacheTest extends RepositoryTestCase {
+	private static final String CHK_A = "CHK@aaaa,bbbb,AAIC--8/pack";
+
+	private static final String CHK_B = "CHK@cccc,dddd,AAIC--8/pack";
+
+	private static final String CHK_C = "CHK@eeee,ffff,AAIC--8/pack";
+
+	private File dir;
+
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+		dir = new File(trash_git, "freenet-cache");
+	}
+
+	public void testIsCacheable() {
+		assertTrue(FreenetCache.isCacheable(CHK_A));
+		assertTrue(FreenetCache.isCacheable("SSK@abc,def,AQACAAE/site-3/f"));
+		assertFalse(FreenetCache.isCacheable("USK@abc,def,AQACAAE/site/3/"));
+		assertFalse(FreenetCache.isCacheable("KSK@gpl.txt"));
+	}
+
+	public void testStoreAndRead() throws IOException {
+		final FreenetCache c = new FreenetCache(dir, 1024);
+		assertFalse(c.contains(CHK_A));
+		assertNull(c.open(CHK_A));
+
+		c.store(CHK_A, buffer(10, 'a'));
+		assertTrue(c.contains(CHK_A));
+		assertEquals("aaaaaaaaaa", new String(c.read(CHK_A), "UTF-8"));
+		assertFalse(c.contains(CHK_B));
+
+		// A new instance sees the content stored by the previous one.
+		assertTrue(new FreenetCache(dir, 1024).contains(CHK_A));
+	}
+
+	public void testMutableKeyNotStored() throws IOException {
+		final FreenetCache c = new FreenetCache(dir, 1024);
+		final String usk = "USK@abc,def,AQACAAE/site/3/";
+		c.store(usk, buffer(10, 'u'));
+		assertFalse(c.contains(usk));
+		assertNull(c.open(usk));
+	}
+
+	public void testEvictLeastRecentlyUsed() throws IOException {
+		final FreenetCache c = new FreenetCache(dir, 250);
+		c.store(CHK_A, buffer(100, 'a'));
+		c.store(CHK_B, buffer(100, 'b'));
+
+		// Make A the least recently used entry.
+		c.fileFor(CHK_A).setLastModified(1000);
+		c.fileFor(CHK_B).setLastModified(2000);
+
+		c.store(CHK_C, buffer(100, 'c'));
+		assertFalse(c.contains(CHK_A));
+		assertTrue(c.contains(CHK_B));
+		assertTrue(c.contains(CHK_C));
+	}
+
+	public void testTooLargeNotStored() throws IOException {
+		final FreenetCache c = new FreenetCache(dir, 50);
+		c.store(CHK_A, buffer(100, 'a'));
+		assertFalse(c.contains(CHK_A));
+	}
+
+	private static TemporaryBuffer buffer(final int len, final char c)
+			throws IOException {
+		final TemporaryBuffer b = new TemporaryBuffer();
+		for (int i = 0; i < len; i++)
+			b.write(c);
+		b.close();
+		return b;
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.lib.ObjectId;
+
+public class FreenetChunkerTest extends TestCase {
+	private static final int AVERAGE = 4096;
+
+	private FreenetChunker chunker;
+
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+		chunker = new FreenetChunker(AVERAGE);
+	}
+
+	public void testEmpty() throws IOException {
+		assertTrue(chunker.split(new ByteArrayInputStream(new byte[0]))
+				.isEmpty());
+	}
+
+	public void testSizeLimits() throws IOException {
+		final byte[] data = random(1, 200 * AVERAGE);
+		final List<FreenetChunker.Chunk> chunks = split(data);
+		for (int i = 0; i < chunks.size(); i++) {
+			final long len = chunks.get(i).data.length();
+			assertTrue(len <= chunker.getMaxSize());
+			if (i < chunks.size() - 1)
+				assertTrue(len >= chunker.getMinSize());
+		}
+		assertEquals(data.length, concat(chunks).length);
+	}
+
+	public void testReassemble() throws IOException {
+		final byte[] data = random(2, 50 * AVERAGE + 17);
+		final List<FreenetChunker.Chunk> chunks = split(data);
+		assertTrue(chunks.size() > 1);
+		assertTrue(Arrays.equals(data, concat(chunks)));
+		for (final FreenetChunker.Chunk c : chunks) {
+			final byte[] raw = c.data.toByteArray();
+			assertEquals(c.id, ObjectId.fromRaw(Constants.newMessageDigest()
+					.digest(raw)));
+		}
+	}
+
+	public void testInsertKeepsOtherChunks() throws IOException {
+		final byte[] a = random(3, 100 * AVERAGE);
+		final byte[] b = new byte[a.length + 10];
+		final int at = a.length / 2;
+		System.arraycopy(a, 0, b, 0, at);
+		System.arraycopy(a, at, b, at + 10, a.length - at);
+
+		final Set<ObjectId> before = ids(split(a));
+		final List<FreenetChunker.Chunk> after = split(b);
+		int changed = 0;
+		for (final FreenetChunker.Chunk c : after)
+			if (!before.contains(c.id))
+				changed++;
+		assertTrue(changed > 0);
+		assertTrue("changed " + changed + " of " + after.size(), changed <= 2);
+	}
+
+	public void testBoundaryDependsOnWideWindow() throws IOException {
+		final byte[] a = random(4, 10 * AVERAGE);
+		final int end = (int) split(a).get(0).data.length();
+		assertTrue(end < a.length);
+
+		// A byte 40 positions before the cut still influences it.
+		final byte[] b = a.clone();
+		b[end - 40] ^= 0x55;
+		assertTrue(end != split(b).get(0).data.length());
+	}
+
+	private List<FreenetChunker.Chunk> split(final byte[] data)
+			throws IOException {
+		return chunker.split(new ByteArrayInputStream(data));
+	}
+
+	private static byte[] concat(final List<FreenetChunker.Chunk> chunks)
+			throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (final FreenetChunker.Chunk c : chunks)
+			out.write(c.data.toByteArray());
+		return out.toByteArray();
+	}
+
+	private static Set<ObjectId> ids(final List<FreenetChunker.Chunk> chunks) {
+		final Set<ObjectId> r = new HashSet<ObjectId>();
+		for (final FreenetChunker.Chunk c : chunks)
+			r.add(c.id);
+		return r;
+	}
+
+	private static byte[] random(final long seed, final int len) {
+		final byte[] b = new byte[len];
+		new Random(seed).nextBytes(b);
+		return b;
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.transport;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.spearce.jgit.lib.RepositoryTestCase;
+
+public class FreenetEditionsTest extends RepositoryTestCase {
+	private static final String SITE = "USK@abc,def,AQACAAE/site";
+
+	private File file;
+
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+		file = new File(trash_git, "freenet-editions");
+	}
+
+	public void testSplit() {
+		assertEquals(SITE, FreenetEditions.siteOf(SITE + "/7/"));
+		assertEquals(7, FreenetEditions.editionOf(SITE + "/7/"));
+		assertEquals(7, FreenetEditions.editionOf(SITE + "/-7"));
+		assertEquals(-1, FreenetEditions.editionOf(SITE));
+		assertNull(FreenetEditions.siteOf("SSK@abc,def,AQACAAE/site-7/"));
+		assertNull(FreenetEditions.siteOf(SITE + "/seven/"));
+	}
+
+	public void testUpdate() throws IOException {
+		final FreenetEditions e = new FreenetEditions(file);
+		assertEquals(-1, e.get(SITE));
+
+		e.update(SITE + "/3/");
+		assertEquals(3, e.get(SITE));
+
+		// A new instance sees the edition recorded by the previous one.
+		assertEquals(3, new FreenetEditions(file).get(SITE));
+	}
+
+	public void testOlderEditionIgnored() throws IOException {
+		final FreenetEditions e = new FreenetEditions(file);
+		e.update(SITE + "/5/");
+		e.update(SITE + "/4/");
+		assertEquals(5, e.get(SITE));
+		assertEquals(5, new FreenetEditions(file).get(SITE));
+	}
+
+	public void testSeesOtherWriters() throws IOException {
+		final FreenetEditions a = new FreenetEditions(file);
+		final FreenetEditions b = new FreenetEditions(file);
+		a.update(SITE + "/1/");
+		b.update("USK@ghi,jkl,AQACAAE/other/2/");
+		assertEquals(1, b.get(SITE));
+		assertEquals(2, new FreenetEditions(file)
+				.get("USK@ghi,jkl,AQACAAE/other"));
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.transport.FreenetFCP.Message;
+
+public class FreenetFCPInputStreamTest extends TestCase {
+	public void testHeader() throws IOException {
+		final FreenetFCPInputStream in = stream("SimpleProgress\n"
+				+ "Identifier=PUT-1-CHK@\n" + "Total=120\n" + "Succeeded=7\n"
+				+ "Foo.Bar=x=y\n" + "EndMessage\n");
+		final Message m = in.readHeader();
+		assertSame("SimpleProgress", m.type);
+		assertEquals(-1, m.dataLength);
+		assertEquals("PUT-1-CHK@", m.get("Identifier"));
+		assertEquals(120, m.getInt("Total", -1));
+		assertEquals(7, m.getLong("Succeeded", -1));
+		assertEquals(-1, m.getInt("Failed", -1));
+		assertEquals("x=y", m.get("Foo.Bar"));
+		assertNull(m.get("Missing"));
+		assertEquals(-1, in.read());
+	}
+
+	public void testCopyTo() throws IOException {
+		final Message m = stream("DataFound\nIdentifier=a\nB=c\nEndMessage\n")
+				.readHeader();
+		final Map<String, String> f = new LinkedHashMap<String, String>();
+		m.copyTo(f);
+		assertEquals(2, f.size());
+		assertEquals("a", f.get("Identifier"));
+		assertEquals("c", f.get("B"));
+		assertEquals("DataFound:" + f, m.toString());
+	}
+
+	public void testPayloadFollowsHeader() throws IOException {
+		final FreenetFCPInputStream in = stream("AllData\nIdentifier=g\n"
+				+ "DataLength=5\nData\nhello" + "\n\nNodeHello\nEndMessage\n");
+		final Message m = in.readMessage();
+		assertEquals(5, m.dataLength);
+		assertEquals("hello", new String(m.extraData.toByteArray(), "UTF-8"));
+
+		// Empty lines between messages are skipped.
+		assertEquals("NodeHello", in.readHeader().type);
+	}
+
+	public void testComplexDirPayload() throws IOException {
+		final FreenetFCPInputStream in = stream("ClientPutComplexDir\n"
+				+ "Identifier=p\n" + "Files.0.Name=a\n"
+				+ "Files.0.UploadFrom=direct\n" + "Files.0.DataLength=2\n"
+				+ "Files.1.Name=b\n" + "Files.1.UploadFrom=redirect\n"
+				+ "Files.1.TargetURI=CHK@x\n" + "Files.2.Name=c\n"
+				+ "Files.2.UploadFrom=direct\n" + "Files.2.DataLength=3\n"
+				+ "Data\n" + "aaccc");
+		final Message m = in.readMessage();
+		assertEquals(5, m.dataLength);
+		assertEquals("aaccc", new String(m.extraData.toByteArray(), "UTF-8"));
+		assertEquals(-1, in.read());
+	}
+
+	public void testLargeHeader() throws IOException {
+		final StringBuilder b = new StringBuilder("PutSuccessful\n");
+		for (int i = 0; i < 2000; i++)
+			b.append("Field" + i + "=" + i + "\n");
+		b.append("EndMessage\n");
+		final Message m = stream(b.toString()).readHeader();
+		assertEquals(1999, m.getInt("Field1999", -1));
+	}
+
+	public void testMalformed() throws IOException {
+		try {
+			stream("GetFailed\nnoequals\nEndMessage\n").readHeader();
+			fail("accepted line without '='");
+		} catch (IOException e) {
+			// expected
+		}
+		try {
+			stream("AllData\nDataLength=x\nData\n").readHeader();
+			fail("accepted bad DataLength");
+		} catch (IOException e) {
+			// expected
+		}
+		try {
+			stream("AllData\nIdentifier=a\n").readHeader();
+			fail("accepted truncated message");
+		} catch (IOException e) {
+			assertFalse(e instanceof EOFException);
+		}
+		try {
+			stream("").readHeader();
+			fail("read a message from nothing");
+		} catch (EOFException e) {
+			// expected
+		}
+	}
+
+	public void testRoundTrip() throws IOException {
+		final Message m = new Message();
+		m.type = "ClientGet";
+		m.field.put("URI", "CHK@abc");
+		m.field.put("MaxSize", "42");
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		m.writeTo(out);
+
+		final Message r = new FreenetFCPInputStream(new ByteArrayInputStream(
+				out.toByteArray())).readHeader();
+		assertEquals("ClientGet", r.type);
+		assertEquals("CHK@abc", r.get("URI"));
+		assertEquals(42, r.getInt("MaxSize", -1));
+	}
+
+	private static FreenetFCPInputStream stream(final String s) {
+		return new FreenetFCPInputStream(new ByteArrayInputStream(Constants
+				.encode(s)));
+	}
+}
@@ -0,0 +1,1008 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.transport;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.transport.FreenetFCP.Message;
+
+/**
+ * An in-process stand-in for a Freenet node, for tests and benchmarks.
+ * <p>
+ * The simulator listens on an ephemeral port of the loopback interface and
+ * speaks enough of FCP 2.0 for {@link FreenetFCP} and {@link TransportFcp2}:
+ * <code>ClientHello</code>, <code>ClientGet</code>, <code>ClientPut</code>,
+ * <code>ClientPutComplexDir</code>, <code>GenerateSSK</code>,
+ * <code>SubscribeUSK</code> and <code>RemoveRequest</code>. Content is kept in memory. <code>CHK@</code>
+ * keys are derived from the SHA-1 of the data, sites inserted under an SSK
+ * or USK are kept per edition, and USK fetches of any but the latest edition
+ * are answered with a permanent redirect, like a node which already knows
+ * the latest edition.
+ * <p>
+ * Every request is answered after {@link #setLatency(long)} milliseconds,
+ * and fails with the configured probability, so throughput and retry
+ * behavior can be measured without a network.
+ */
+class FreenetNodeSimulator {
+	/** Extra field of the private half of an SSK. */
+	private static final String PRIVATE_EXTRA = "AQECAAE";
+
+	/** Extra field of the public half of an SSK. */
+	private static final String PUBLIC_EXTRA = "AQACAAE";
+
+	/** Size of a block, used to simulate insert progress. */
+	private static final int BLOCK_SIZE = 32 * 1024;
+
+	/** Redirects followed within one fetch before giving up. */
+	private static final int MAX_REDIRECTS = 8;
+
+	private final ServerSocket server;
+
+	private final ScheduledExecutorService executor;
+
+	private final Thread acceptor;
+
+	private final List<Connection> connections = new ArrayList<Connection>();
+
+	/** Content of CHK@ keys, by key without any path. */
+	private final Map<String, byte[]> blocks = new HashMap<String, byte[]>();
+
+	/** Sites by public key and document name, "key/docname". */
+	private final Map<String, Site> sites = new HashMap<String, Site>();
+
+	private final Random random = new Random(0);
+
+	private final AtomicInteger nextConnection = new AtomicInteger();
+
+	private final AtomicInteger getCount = new AtomicInteger();
+
+	private final AtomicInteger putCount = new AtomicInteger();
+
+	private final AtomicInteger removeCount = new AtomicInteger();
+
+	private final AtomicLong bytesSent = new AtomicLong();
+
+	private final AtomicLong bytesReceived = new AtomicLong();
+
+	private volatile long latency;
+
+	private volatile boolean reportEditions = true;
+
+	private volatile double getFailureRate;
+
+	private volatile double putFailureRate;
+
+	/**
+	 * Start a simulator.
+	 *
+	 * @throws IOException
+	 *             the listening socket could not be opened.
+	 */
+	FreenetNodeSimulator() throws IOException {
+		server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		executor = Executors.newScheduledThreadPool(4, new ThreadFactory() {
+			private final AtomicInteger next = new AtomicInteger();
+
+			public Thread newThread(final Runnable r) {
+				final Thread t = new Thread(r, "FCP-Simulator-Worker-"
+						+ next.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		acceptor = new Thread("FCP-Simulator-Accept") {
+			public void run() {
+				acceptConnections();
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/** @return address the simulator listens on. */
+	InetAddress getAddress() {
+		return server.getInetAddress();
+	}
+
+	/** @return port the simulator listens on. */
+	int getPort() {
+		return server.getLocalPort();
+	}
+
+	/**
+	 * Delay every later request.
+	 *
+	 * @param millis
+	 *            milliseconds between receiving a request and answering it.
+	 */
+	void setLatency(final long millis) {
+		latency = millis;
+	}
+
+	/**
+	 * Control whether subscribers are told of later editions.
+	 * <p>
+	 * A real node may take a long time to hear of an edition inserted
+	 * elsewhere; disabling reports simulates that.
+	 *
+	 * @param report
+	 *            true to send <code>SubscribedUSKUpdate</code> messages.
+	 */
+	void setReportEditions(final boolean report) {
+		reportEditions = report;
+	}
+
+	/**
+	 * Fail some of the later fetches.
+	 * <p>
+	 * A failed fetch is answered with <code>GetFailed</code> code 28, "All
+	 * data not found", as if the network lost the data.
+	 *
+	 * @param rate
+	 *            probability of a fetch failing, from 0 to 1.
+	 */
+	void setGetFailureRate(final double rate) {
+		getFailureRate = rate;
+	}
+
+	/**
+	 * Fail some of the later inserts.
+	 * <p>
+	 * A failed insert is answered with <code>PutFailed</code> code 5, "Route
+	 * not found", and stores nothing.
+	 *
+	 * @param rate
+	 *            probability of an insert failing, from 0 to 1.
+	 */
+	void setPutFailureRate(final double rate) {
+		putFailureRate = rate;
+	}
+
+	/** @return number of ClientGet requests received. */
+	int getGetCount() {
+		return getCount.get();
+	}
+
+	/** @return number of ClientPut and ClientPutComplexDir requests received. */
+	int getPutCount() {
+		return putCount.get();
+	}
+
+	/** @return number of requests stopped by RemoveRequest. */
+	int getRemoveCount() {
+		return removeCount.get();
+	}
+
+	/** @return number of USK subscriptions the clients did not cancel. */
+	int getSubscriptionCount() {
+		int n = 0;
+		synchronized (connections) {
+			for (final Connection c : connections)
+				n += c.getSubscriptionCount();
+		}
+		return n;
+	}
+
+	/** @return bytes sent to clients, headers and payloads. */
+	long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	/** @return bytes received from clients, headers and payloads. */
+	long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	/**
+	 * Generate a key pair, as <code>GenerateSSK</code> does.
+	 *
+	 * @return <code>key[0]</code> is the public key, <code>key[1]</code> the
+	 *         private key; both are SSKs ending with a slash.
+	 */
+	String[] generateKeyPair() {
+		final byte[] seed = new byte[Constants.OBJECT_ID_LENGTH];
+		synchronized (random) {
+			random.nextBytes(seed);
+		}
+		final String priv = ObjectId.fromRaw(seed).name();
+		return new String[] {
+				"SSK@" + publicRouting(priv) + ",sim," + PUBLIC_EXTRA + "/",
+				"SSK@" + priv + ",sim," + PRIVATE_EXTRA + "/" };
+	}
+
+	/** Stop listening and close every client connection. */
+	void close() {
+		try {
+			server.close();
+		} catch (IOException err) {
+			// Nothing else can be done with it.
+		}
+		executor.shutdownNow();
+		final List<Connection> all;
+		synchronized (connections) {
+			all = new ArrayList<Connection>(connections);
+			connections.clear();
+		}
+		for (final Connection c : all)
+			c.close();
+	}
+
+	private void acceptConnections() {
+		for (;;) {
+			final Socket s;
+			try {
+				s = server.accept();
+			} catch (IOException err) {
+				return; // closed
+			}
+			try {
+				final Connection c = new Connection(s);
+				synchronized (connections) {
+					connections.add(c);
+				}
+				c.start();
+			} catch (IOException err) {
+				try {
+					s.close();
+				} catch (IOException e) {
+					// Already unusable.
+				}
+			}
+		}
+	}
+
+	private boolean shouldFail(final double rate) {
+		if (rate <= 0)
+			return false;
+		synchronized (random) {
+			return random.nextDouble() < rate;
+		}
+	}
+
+	private static String publicRouting(final String privateRouting) {
+		final MessageDigest md = Constants.newMessageDigest();
+		md.update(Constants.encodeASCII("public:" + privateRouting));
+		return ObjectId.fromRaw(md.digest()).name();
+	}
+
+	/**
+	 * Find the public key of an insert key.
+	 *
+	 * @param insertKey
+	 *            key part of an SSK or USK insert URI, without type and path.
+	 * @return the matching public key; null if the key is malformed.
+	 */
+	private static String publicKey(final String insertKey) {
+		final String[] p = insertKey.split(",");
+		if (p.length != 3)
+			return null;
+		return publicRouting(p[0]) + "," + p[1] + "," + PUBLIC_EXTRA;
+	}
+
+	/**
+	 * Resolve a key to its content.
+	 *
+	 * @param uri
+	 *            the requested key.
+	 * @return the outcome of the fetch.
+	 */
+	private synchronized Lookup lookup(String uri) {
+		for (int depth = 0;; depth++) {
+			final Lookup r = lookupOnce(uri);
+			if (r.target == null)
+				return r;
+			if (depth == MAX_REDIRECTS)
+				return Lookup.failed(1, "Too many redirects");
+			uri = r.target;
+		}
+	}
+
+	private Lookup lookupOnce(final String uri) {
+		final int slash = uri.indexOf('/');
+		if (uri.startsWith("CHK@")) {
+			final byte[] data = blocks.get(slash < 0 ? uri : uri.substring(0,
+					slash));
+			if (data == null)
+				return Lookup.failed(13, "Data not found");
+			return Lookup.found(data);
+		}
+		if (slash < 0)
+			return Lookup.failed(20, "Invalid URI");
+
+		final String key = uri.substring(4, slash);
+		final String rest = uri.substring(slash + 1);
+		final int end = rest.indexOf('/');
+		final String path = end < 0 ? "" : rest.substring(end + 1);
+
+		if (uri.startsWith("SSK@")) {
+			final String docEdition = end < 0 ? rest : rest.substring(0, end);
+			final int dash = docEdition.lastIndexOf('-');
+			if (dash < 0)
+				return Lookup.failed(20, "Invalid URI");
+			final Site site = sites.get(key + "/"
+					+ docEdition.substring(0, dash));
+			final Manifest m;
+			try {
+				m = site != null ? site.editions.get(Long.valueOf(docEdition
+						.substring(dash + 1))) : null;
+			} catch (NumberFormatException err) {
+				return Lookup.failed(20, "Invalid URI");
+			}
+			if (m == null)
+				return Lookup.failed(13, "Data not found");
+			return m.lookup(path);
+		}
+
+		if (uri.startsWith("USK@")) {
+			// USK@key/docname/edition/path
+			final String[] p = rest.split("/", 3);
+			if (p.length < 2)
+				return Lookup.failed(20, "Invalid URI");
+			final long edition;
+			try {
+				edition = Long.parseLong(p[1]);
+			} catch (NumberFormatException err) {
+				return Lookup.failed(20, "Invalid URI");
+			}
+			final Site site = sites.get(key + "/" + p[0]);
+			if (site == null)
+				return Lookup.failed(13, "Data not found");
+
+			final long latest = site.latest();
+			if (!p[1].startsWith("-")) {
+				final Manifest m = site.editions.get(Long.valueOf(edition));
+				if (m != null)
+					return m.lookup(p.length > 2 ? p[2] : "");
+				if (latest < edition)
+					return Lookup.failed(13, "Data not found");
+			}
+			final Lookup r = Lookup.failed(27, "Permanent redirect");
+			r.redirect = "USK@" + key + "/" + p[0] + "/" + latest
+					+ (p.length > 2 ? "/" + p[2] : "");
+			return r;
+		}
+
+		return Lookup.failed(20, "Invalid URI");
+	}
+
+	/**
+	 * Store a site edition.
+	 *
+	 * @param uri
+	 *            insert URI, an SSK or USK.
+	 * @param m
+	 *            the content of the edition.
+	 * @return request URI of the new edition.
+	 * @throws InsertFailed
+	 *             the URI is not a valid insert URI, or the edition exists.
+	 */
+	private String insertSite(final String uri, final Manifest m)
+			throws InsertFailed {
+		final int slash = uri.indexOf('/');
+		final String pub = slash > 4 ? publicKey(uri.substring(4, slash))
+				: null;
+		if (pub == null)
+			throw new InsertFailed(1, "Invalid URI");
+		final String[] p = uri.substring(slash + 1).split("/");
+
+		final String doc;
+		final long edition;
+		final boolean usk = uri.startsWith("USK@");
+		try {
+			if (usk && p.length >= 2) {
+				doc = p[0];
+				edition = Math.abs(Long.parseLong(p[1]));
+			} else if (uri.startsWith("SSK@") && p.length >= 1
+					&& p[0].lastIndexOf('-') > 0) {
+				final int dash = p[0].lastIndexOf('-');
+				doc = p[0].substring(0, dash);
+				edition = Long.parseLong(p[0].substring(dash + 1));
+			} else
+				throw new InsertFailed(1, "Invalid URI");
+		} catch (NumberFormatException err) {
+			throw new InsertFailed(1, "Invalid URI");
+		}
+
+		final String id = pub + "/" + doc;
+		final long stored;
+		synchronized (this) {
+			Site site = sites.get(id);
+			if (site == null) {
+				site = new Site();
+				sites.put(id, site);
+			}
+			stored = usk ? Math.max(edition, site.latest() + 1) : edition;
+			if (site.editions.containsKey(Long.valueOf(stored)))
+				throw new InsertFailed(9, "Collision");
+			site.editions.put(Long.valueOf(stored), m);
+		}
+
+		final List<Connection> all;
+		synchronized (connections) {
+			all = new ArrayList<Connection>(connections);
+		}
+		for (final Connection c : all)
+			c.editionInserted(id, stored);
+		return usk ? "USK@" + pub + "/" + doc + "/" + stored : "SSK@" + pub
+				+ "/" + doc + "-" + stored;
+	}
+
+	private synchronized String insertBlock(final byte[] data) {
+		final MessageDigest md = Constants.newMessageDigest();
+		final String key = "CHK@" + ObjectId.fromRaw(md.digest(data)).name()
+				+ ",sim,AAIC--8";
+		blocks.put(key, data);
+		return key;
+	}
+
+	/** One client connection, with its own reader thread. */
+	private class Connection extends Thread {
+		private final Socket socket;
+
+		private final FreenetFCPInputStream in;
+
+		private final OutputStream out;
+
+		/** USK subscriptions by Identifier. */
+		private final Map<String, Subscription> subscriptions = new HashMap<String, Subscription>();
+
+		/** Identifiers of the fetches and inserts not yet answered. */
+		private final Set<String> active = new HashSet<String>();
+
+		private boolean hello;
+
+		Connection(final Socket s) throws IOException {
+			super("FCP-Simulator-Connection-" + nextConnection.incrementAndGet());
+			setDaemon(true);
+			socket = s;
+			in = new FreenetFCPInputStream(s.getInputStream());
+			out = new BufferedOutputStream(s.getOutputStream());
+		}
+
+		public void run() {
+			try {
+				for (;;) {
+					final Message m = in.readHeader();
+					long n = 0;
+					if (m.dataLength >= 0) {
+						m.extraData = Message.readData(in, m.dataLength);
+						n = m.dataLength;
+					}
+					bytesReceived.addAndGet(n);
+					receive(m);
+				}
+			} catch (EOFException err) {
+				// Client disconnected.
+			} catch (IOException err) {
+				// Connection lost.
+			} finally {
+				close();
+				synchronized (connections) {
+					connections.remove(this);
+				}
+			}
+		}
+
+		int getSubscriptionCount() {
+			synchronized (subscriptions) {
+				return subscriptions.size();
+			}
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException err) {
+				// Nothing else can be done with it.
+			}
+		}
+
+		private void receive(final Message m) throws IOException {
+			if ("ClientHello".equals(m.type)) {
+				if (hello) {
+					protocolError(null, 2, "No late ClientHello");
+					return;
+				}
+				hello = true;
+				final Message r = reply("NodeHello", null);
+				r.field.put("FCPVersion", "2.0");
+				r.field.put("Node", "Fred");
+				r.field.put("Version", "Fred,0.7,1.0,1208");
+				r.field.put("ConnectionIdentifier", getName());
+				send(r, null);
+				return;
+			}
+			if (!hello) {
+				protocolError(null, 1, "ClientHello must be first message");
+				return;
+			}
+
+			final String id = m.get("Identifier");
+			if (id == null) {
+				protocolError(null, 5, "Missing field: Identifier");
+				return;
+			}
+			if ("UnsubscribeUSK".equals(m.type)) {
+				synchronized (subscriptions) {
+					subscriptions.remove(id);
+				}
+				return;
+			}
+			if ("RemoveRequest".equals(m.type)) {
+				final boolean found;
+				synchronized (active) {
+					found = active.remove(id);
+				}
+				if (!found) {
+					protocolError(id, 15, "No such identifier");
+					return;
+				}
+				removeCount.incrementAndGet();
+				send(reply("PersistentRequestRemoved", id), null);
+				return;
+			}
+
+			final Runnable task;
+			if ("ClientGet".equals(m.type))
+				task = new Runnable() {
+					public void run() {
+						clientGet(id, m);
+					}
+				};
+			else if ("ClientPut".equals(m.type)
+					|| "ClientPutComplexDir".equals(m.type))
+				task = new Runnable() {
+					public void run() {
+						clientPut(id, m);
+					}
+				};
+			else if ("GenerateSSK".equals(m.type))
+				task = new Runnable() {
+					public void run() {
+						final String[] keys = generateKeyPair();
+						final Message r = reply("SSKKeypair", id);
+						r.field.put("InsertURI", keys[1]);
+						r.field.put("RequestURI", keys[0]);
+						send(r, null);
+					}
+				};
+			else if ("SubscribeUSK".equals(m.type))
+				task = new Runnable() {
+					public void run() {
+						subscribe(id, m);
+					}
+				};
+			else {
+				protocolError(id, 7, "Unknown message: " + m.type);
+				return;
+			}
+			if ("ClientGet".equals(m.type)
+					|| m.type.startsWith("ClientPut")) {
+				synchronized (active) {
+					active.add(id);
+				}
+			}
+			executor.schedule(task, latency, TimeUnit.MILLISECONDS);
+		}
+
+		private void clientGet(final String id, final Message m) {
+			if (!isActive(id))
+				return;
+			getCount.incrementAndGet();
+			final String uri = m.get("URI");
+			final Lookup r;
+			if (uri == null)
+				r = Lookup.failed(20, "Invalid URI");
+			else if (shouldFail(getFailureRate))
+				r = Lookup.failed(28, "All data not found");
+			else
+				r = lookup(uri);
+
+			if (r.data == null) {
+				final Message f = reply("GetFailed", id);
+				f.field.put("Code", Integer.toString(r.code));
+				f.field.put("CodeDescription", r.description);
+				f.field.put("ExtraDescription", "simulated");
+				f.field.put("Fatal", r.code == 28 ? "false" : "true");
+				if (r.redirect != null)
+					f.field.put("RedirectURI", r.redirect);
+				finished(id);
+				send(f, null);
+				return;
+			}
+
+			final String len = Integer.toString(r.data.length);
+			final Message found = reply("DataFound", id);
+			found.field.put("Metadata.ContentType", "application/octet-stream");
+			found.field.put("DataLength", len);
+			send(found, null);
+
+			final Message all = reply("AllData", id);
+			all.field.put("DataLength", len);
+			finished(id);
+			send(all, r.data);
+		}
+
+		private boolean isActive(final String id) {
+			synchronized (active) {
+				return active.contains(id);
+			}
+		}
+
+		private void finished(final String id) {
+			synchronized (active) {
+				active.remove(id);
+			}
+		}
+
+		private void clientPut(final String id, final Message m) {
+			if (!isActive(id))
+				return;
+			putCount.incrementAndGet();
+			final String uri = m.get("URI");
+			try {
+				final Manifest site;
+				final byte[] data;
+				long total = m.extraData != null ? m.extraData.length() : 0;
+				if ("ClientPutComplexDir".equals(m.type)) {
+					site = Manifest.parse(m);
+					data = null;
+				} else {
+					if (!"direct".equals(m.get("UploadFrom")))
+						throw new InsertFailed(1, "Only direct uploads");
+					data = m.extraData != null ? m.extraData.toByteArray()
+							: new byte[0];
+					site = null;
+				}
+				if (uri == null)
+					throw new InsertFailed(1, "Invalid URI");
+
+				progress(id, m, total, false);
+				if (shouldFail(putFailureRate))
+					throw new InsertFailed(5, "Route not found");
+
+				final String key;
+				if (uri.startsWith("CHK@") && site == null)
+					key = insertBlock(data);
+				else if (site != null)
+					key = insertSite(uri, site);
+				else
+					key = insertSite(uri, Manifest.single(data));
+
+				final Message g = reply("URIGenerated", id);
+				g.field.put("URI", key);
+				send(g, null);
+				progress(id, m, total, true);
+				final Message r = reply("PutSuccessful", id);
+				r.field.put("URI", key);
+				finished(id);
+				send(r, null);
+			} catch (InsertFailed err) {
+				putFailed(id, err.code, err.getMessage());
+			} catch (IOException err) {
+				putFailed(id, 2, "Bucket error");
+			}
+		}
+
+		private void putFailed(final String id, final int code,
+				final String description) {
+			finished(id);
+			final Message r = reply("PutFailed", id);
+			r.field.put("Code", Integer.toString(code));
+			r.field.put("CodeDescription", description);
+			r.field.put("ExtraDescription", "simulated");
+			r.field.put("Fatal", "true");
+			send(r, null);
+		}
+
+		private void progress(final String id, final Message m,
+				final long size, final boolean done) {
+			if ((m.getInt("Verbosity", 0) & 1) == 0)
+				return;
+			final long blockCount = 1 + (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+			final Message p = reply("SimpleProgress", id);
+			p.field.put("Total", Long.toString(blockCount));
+			p.field.put("Required", Long.toString(blockCount));
+			p.field.put("Failed", "0");
+			p.field.put("FatallyFailed", "0");
+			p.field.put("Succeeded", done ? Long.toString(blockCount) : "0");
+			p.field.put("FinalizedTotal", "true");
+			send(p, null);
+		}
+
+		private void subscribe(final String id, final Message m) {
+			final String uri = m.get("URI");
+			final String[] p = uri != null && uri.startsWith("USK@") ? uri
+					.substring(4).split("/") : new String[0];
+			final long edition;
+			try {
+				edition = p.length >= 3 ? Math.abs(Long.parseLong(p[2])) : -1;
+			} catch (NumberFormatException err) {
+				protocolError(id, 4, "URI parse error");
+				return;
+			}
+			if (edition < 0) {
+				protocolError(id, 4, "URI parse error");
+				return;
+			}
+
+			final Subscription s = new Subscription(p[0] + "/" + p[1],
+					"USK@" + p[0] + "/" + p[1] + "/", edition);
+			synchronized (subscriptions) {
+				subscriptions.put(id, s);
+			}
+			final Message r = reply("SubscribedUSK", id);
+			r.field.put("URI", uri);
+			send(r, null);
+
+			final long latest;
+			synchronized (FreenetNodeSimulator.this) {
+				final Site site = sites.get(s.site);
+				latest = site != null ? site.latest() : -1;
+			}
+			editionInserted(s.site, latest);
+		}
+
+		void editionInserted(final String site, final long edition) {
+			if (!reportEditions)
+				return;
+			final List<Message> updates = new ArrayList<Message>();
+			synchronized (subscriptions) {
+				for (final Map.Entry<String, Subscription> e : subscriptions
+						.entrySet()) {
+					final Subscription s = e.getValue();
+					if (!s.site.equals(site) || edition <= s.edition)
+						continue;
+					s.edition = edition;
+					final Message u = reply("SubscribedUSKUpdate", e.getKey());
+					u.field.put("Edition", Long.toString(edition));
+					u.field.put("URI", s.uriPrefix + edition);
+					updates.add(u);
+				}
+			}
+			for (final Message u : updates)
+				send(u, null);
+		}
+
+		private void protocolError(final String id, final int code,
+				final String description) {
+			final Message r = reply("ProtocolError", id);
+			r.field.put("Code", Integer.toString(code));
+			r.field.put("CodeDescription", description);
+			r.field.put("Fatal", "false");
+			r.field.put("Global", "false");
+			send(r, null);
+		}
+
+		private Message reply(final String type, final String id) {
+			final Message r = new Message();
+			r.type = type;
+			if (id != null)
+				r.field.put("Identifier", id);
+			return r;
+		}
+
+		private void send(final Message msg, final byte[] data) {
+			final StringBuilder b = new StringBuilder();
+			b.append(msg.type);
+			b.append('\n');
+			for (final Map.Entry<String, String> e : msg.field.entrySet()) {
+				b.append(e.getKey());
+				b.append('=');
+				b.append(e.getValue());
+				b.append('\n');
+			}
+			b.append(data != null ? "Data\n" : "EndMessage\n");
+			final byte[] hdr = Constants.encode(b.toString());
+
+			try {
+				synchronized (out) {
+					out.write(hdr);
+					if (data != null)
+						out.write(data);
+					out.flush();
+				}
+				bytesSent.addAndGet(hdr.length
+						+ (data != null ? data.length : 0));
+			} catch (IOException err) {
+				close();
+			}
+		}
+	}
+
+	/** Editions of one site. */
+	private static class Site {
+		final TreeMap<Long, Manifest> editions = new TreeMap<Long, Manifest>();
+
+		long latest() {
+			return editions.isEmpty() ? -1 : editions.lastKey().longValue();
+		}
+	}
+
+	/** Content of one site edition. */
+	private static class Manifest {
+		final Map<String, byte[]> files = new HashMap<String, byte[]>();
+
+		final Map<String, String> redirects = new HashMap<String, String>();
+
+		String defaultName;
+
+		static Manifest single(final byte[] data) {
+			final Manifest m = new Manifest();
+			m.files.put("", data);
+			m.defaultName = "";
+			return m;
+		}
+
+		static Manifest parse(final Message msg) throws InsertFailed,
+				IOException {
+			final Manifest m = new Manifest();
+			final byte[] data = msg.extraData != null ? msg.extraData
+					.toByteArray() : new byte[0];
+			int ptr = 0;
+			for (int i = 0;; i++) {
+				final String p = "Files." + i + ".";
+				final String name = msg.get(p + "Name");
+				if (name == null)
+					break;
+				final String from = msg.get(p + "UploadFrom");
+				if ("direct".equals(from)) {
+					final long len;
+					try {
+						len = msg.getLong(p + "DataLength", -1);
+					} catch (NumberFormatException err) {
+						throw new InsertFailed(2, "Bucket error");
+					}
+					if (len < 0 || ptr + len > data.length)
+						throw new InsertFailed(2, "Bucket error");
+					final byte[] f = new byte[(int) len];
+					System.arraycopy(data, ptr, f, 0, f.length);
+					ptr += f.length;
+					m.files.put(name, f);
+				} else if ("redirect".equals(from)) {
+					final String target = msg.get(p + "TargetURI");
+					if (target == null)
+						throw new InsertFailed(1, "Invalid URI");
+					m.redirects.put(name, target);
+				} else
+					throw new InsertFailed(1, "Unsupported upload: " + from);
+			}
+			m.defaultName = msg.get("DefaultName");
+			return m;
+		}
+
+		Lookup lookup(String path) {
+			if (path.length() == 0) {
+				if (defaultName == null)
+					return Lookup.failed(11, "Not enough meta strings");
+				path = defaultName;
+			}
+			final byte[] data = files.get(path);
+			if (data != null)
+				return Lookup.found(data);
+			final String target = redirects.get(path);
+			if (target != null) {
+				final Lookup r = new Lookup();
+				r.target = target;
+				return r;
+			}
+			return Lookup.failed(10, "Not in archive");
+		}
+	}
+
+	/** Outcome of resolving a key. */
+	private static class Lookup {
+		/** Content found; null if the fetch failed. */
+		byte[] data;
+
+		/** Key the node follows on its own; null if none. */
+		String target;
+
+		/** Key the client is told to fetch instead; null if none. */
+		String redirect;
+
+		int code;
+
+		String description;
+
+		static Lookup found(final byte[] data) {
+			final Lookup r = new Lookup();
+			r.data = data;
+			return r;
+		}
+
+		static Lookup failed(final int code, final String description) {
+			final Lookup r = new Lookup();
+			r.code = code;
+			r.description = description;
+			return r;
+		}
+	}
+
+	/** A USK watched by a client. */
+	private static class Subscription {
+		final String site;
+
+		final String uriPrefix;
+
+		/** Latest edition reported to the client. */
+		long edition;
+
+		Subscription(final String site, final String uriPrefix,
+				final long edition) {
+			this.site = site;
+			this.uriPrefix = uriPrefix;
+			this.edition = edition;
+		}
+	}
+
+	/** An insert the simulated node rejects. */
+	private static class InsertFailed extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		final int code;
+
+		InsertFailed(final int code, final String description) {
+			super(description);
+			this.code = code;
+		}
+	}
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.transport;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Random;
+
+import org.spearce.jgit.errors.TransportException;
+import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.lib.NullProgressMonitor;
+import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.Repository;
+import org.spearce.jgit.lib.RepositoryConfig;
+import org.spearce.jgit.lib.RepositoryTestCase;
+import org.spearce.jgit.transport.FreenetFCP.GetResult;
+import org.spearce.jgit.transport.FreenetFCP.Message;
+import org.spearce.jgit.transport.TransportFcp2.FreenetDB;
+import org.spearce.jgit.util.TemporaryBuffer;
+
+public class FreenetNodeSimulatorTest extends RepositoryTestCase {
+	private FreenetNodeSimulator node;
+
+	private FreenetFCP fcp;
+
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+		node = new FreenetNodeSimulator();
+		fcp = new FreenetFCP(node.getAddress(), node.getPort());
+		fcp.connect();
+		fcp.hello(getName());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		fcp.close();
+		FreenetFCPPool.clear();
+		node.close();
+		super.tearDown();
+	}
+
+	public void testPutAndGet() throws IOException {
+		final Message r = fcp.simplePut("CHK@", buffer("hello, world"), null,
+				null);
+		assertEquals("PutSuccessful", r.type);
+		final String key = r.field.get("URI");
+		assertTrue(key.startsWith("CHK@"));
+
+		final GetResult g = fcp.simpleGet(key);
+		assertTrue(g.isFound());
+		assertEquals("hello, world", new String(g.data.toByteArray(), "UTF-8"));
+
+		final GetResult missing = fcp.simpleGet("CHK@" + ObjectId.zeroId().name()
+				+ ",sim,AAIC--8");
+		assertFalse(missing.isFound());
+		assertEquals("13", missing.field.get("Code"));
+	}
+
+	public void testSiteEditions() throws IOException {
+		final String[] keys = fcp.generateSSK();
+		final String pub = keys[0].replace("SSK@", "USK@") + "site";
+		final String priv = keys[1].replace("SSK@", "USK@") + "site/0/";
+
+		assertEquals(pub + "/0", putSite(priv, "first"));
+		assertEquals(pub + "/1", putSite(priv, "second"));
+
+		// A search from an old edition is redirected to the latest one.
+		final GetResult g = fcp.simpleGet(pub + "/-0");
+		assertEquals(pub + "/1", g.uri);
+		assertEquals("second", new String(g.data.toByteArray(), "UTF-8"));
+
+		final String ssk = keys[0] + "site-0/";
+		assertEquals("first", new String(fcp.simpleGet(ssk + "a").data
+				.toByteArray(), "UTF-8"));
+		assertEquals("10", fcp.simpleGet(ssk + "b").field.get("Code"));
+
+		final FreenetFCP.Request<Long> sub = fcp.subscribeUSK(pub + "/1");
+		assertNull(sub.get(50));
+		putSite(priv, "third");
+		assertEquals(2, sub.get(5000).longValue());
+	}
+
+	public void testChunkListMissingPath() throws IOException {
+		final String[] keys = fcp.generateSSK();
+		final String path = "objects/pack/pack-1.pack";
+		final Message msg = new Message();
+		msg.type = "ClientPutComplexDir";
+		msg.field.put("URI", keys[1].replace("SSK@", "USK@") + "site/0/");
+		final String[] files = { ".JGIT-FREENET-FILELIST",
+				path + "\t[CHUNKED]\n", ".JGIT-FREENET-CHUNKS", "# none\n" };
+		final StringBuilder data = new StringBuilder();
+		for (int i = 0; i < files.length; i += 2) {
+			final String p = "Files." + (i / 2) + ".";
+			msg.field.put(p + "Name", files[i]);
+			msg.field.put(p + "UploadFrom", "direct");
+			msg.field.put(p + "DataLength", Integer.toString(files[i + 1]
+					.length()));
+			data.append(files[i + 1]);
+		}
+		msg.extraData = buffer(data.toString());
+		assertEquals("PutSuccessful", fcp.startPut(msg, null, null).get().type);
+
+		try {
+			new FreenetDB(fcp, null, null, 0, null, keys[0].replace("SSK@",
+					"USK@")
+					+ "site/0/", null);
+			fail("accepted a chunked file without chunks");
+		} catch (TransportException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(path));
+		}
+	}
+
+	public void testInjectedFailures() throws IOException {
+		final String key = fcp.simplePut("CHK@", buffer("data"), null, null).field
+				.get("URI");
+
+		node.setGetFailureRate(1);
+		final GetResult g = fcp.simpleGet(key);
+		assertFalse(g.isFound());
+		assertEquals("28", g.field.get("Code"));
+
+		node.setPutFailureRate(1);
+		assertEquals("PutFailed", fcp.simplePut("CHK@", buffer("other"), null,
+				null).type);
+		assertEquals(2, node.getPutCount());
+	}
+
+	public void testLatency() throws IOException {
+		node.setLatency(200);
+		final long start = System.currentTimeMillis();
+		fcp.simpleGet("CHK@" + ObjectId.zeroId().name() + ",sim,AAIC--8");
+		assertTrue(System.currentTimeMillis() - start >= 200);
+	}
+
+	public void testPoolReuseAfterAbandonedRequests() throws IOException {
+		final byte[] big = new byte[4 * FreenetFCP.STREAM_THRESHOLD];
+		new Random(1).nextBytes(big);
+		final TemporaryBuffer bigData = new TemporaryBuffer();
+		bigData.write(big);
+		bigData.close();
+		final String bigKey = fcp.simplePut("CHK@", bigData, null, null).field
+				.get("URI");
+		final String smallKey = fcp.simplePut("CHK@", buffer("small"), null,
+				null).field.get("URI");
+
+		final FreenetFCP pooled = FreenetFCPPool.lease(node.getAddress(), node
+				.getPort());
+
+		// Abandoned mid-transfer: the reader thread is blocked on the
+		// pipe until the rest of the payload is discarded.
+		final GetResult streamed = pooled.startGet(bigKey, true).get();
+		assertNotNull(streamed.stream);
+		assertEquals(big[0] & 0xff, streamed.stream.read());
+
+		// Abandoned before the node started on it.
+		node.setLatency(500);
+		final FreenetFCP.Request<GetResult> waiting = pooled.startGet(bigKey);
+		FreenetFCPPool.release(pooled);
+		try {
+			waiting.get();
+			fail("abandoned request completed");
+		} catch (IOException err) {
+			// expected
+		}
+
+		final FreenetFCP again = FreenetFCPPool.lease(node.getAddress(), node
+				.getPort());
+		try {
+			assertSame(pooled, again);
+
+			// Keep the latency: the node may not have read the abandoned
+			// get yet, and without the delay it could complete that get
+			// before reading the cancel.
+			final GetResult g = again.simpleGet(smallKey);
+			assertEquals("small", new String(g.data.toByteArray(), "UTF-8"));
+			assertEquals(1, node.getRemoveCount());
+		} finally {
+			FreenetFCPPool.release(again);
+		}
+	}
+
+	public void testPushAndFetch() throws Exception {
+		final String[] keys = node.generateKeyPair();
+		configure(db, keys);
+
+		push(db);
+
+		final Repository dst = createNewEmptyRepo();
+		configure(dst, keys);
+		final Transport fetch = Transport.open(dst, new URIish("freenet://sim/site/0/"));
+		try {
+			fetch.fetch(NullProgressMonitor.INSTANCE, Collections
+					.singleton(new RefSpec("refs/heads/master:refs/heads/x")));
+		} finally {
+			fetch.close();
+		}
+
+		final ObjectId master = db.resolve("refs/heads/master");
+		assertEquals(master, dst.resolve("refs/heads/x"));
+		assertNotNull(dst.mapCommit(master));
+	}
+
+	public void testFetchCancelsSubscription() throws Exception {
+		final String[] keys = node.generateKeyPair();
+		configure(db, keys);
+		push(db);
+
+		// The edition pushed is recorded, so opening the fetch waits
+		// on a subscription to that site before reading it.
+		final Transport fetch = Transport.open(db, new URIish(
+				"freenet://sim/site/0/"));
+		try {
+			final FetchConnection c = fetch.openFetch();
+			try {
+				assertNotNull(c.getRef("refs/heads/master"));
+				assertEquals(0, node.getSubscriptionCount());
+			} finally {
+				c.close();
+			}
+		} finally {
+			fetch.close();
+		}
+	}
+
+	public void testPushLooksUpLatestEdition() throws Exception {
+		final String[] keys = node.generateKeyPair();
+		configure(db, keys);
+		push(db, "refs/heads/master");
+
+		// Another pusher publishes a later edition, which this repository
+		// does not record, and the node does not report it.
+		final File record = new File(db.getDirectory(), "freenet-editions");
+		final File stale = new File(trash, "stale-editions");
+		copyFile(record, stale);
+		push(db, "refs/heads/a");
+		copyFile(stale, record);
+		node.setReportEditions(false);
+
+		push(db, "refs/heads/b");
+		node.setReportEditions(true);
+
+		final Transport fetch = Transport.open(db, new URIish(
+				"freenet://sim/site/0/"));
+		try {
+			final FetchConnection c = fetch.openFetch();
+			try {
+				assertNotNull(c.getRef("refs/heads/master"));
+				assertNotNull(c.getRef("refs/heads/a"));
+				assertNotNull(c.getRef("refs/heads/b"));
+			} finally {
+				c.close();
+			}
+		} finally {
+			fetch.close();
+		}
+	}
+
+	public void testCloseCancelsPrefetch() throws Exception {
+		final String[] keys = node.generateKeyPair();
+		configure(db, keys);
+		push(db);
+
+		final FreenetDB site = new FreenetDB(fcp, null, null, 0, null,
+				keys[0].replace("SSK@", "USK@") + "site/0/", null);
+		node.setLatency(500);
+		site.prefetch(Collections.singleton("info/packs"));
+		site.close();
+
+		// The node handles messages in order, so it saw the cancel
+		// before it answers the next request. Keep the latency: the
+		// node may not have read the get yet, and without the delay it
+		// could complete the get before reading the cancel.
+		fcp.generateSSK();
+		assertEquals(1, node.getRemoveCount());
+	}
+
+	private void push(final Repository r) throws Exception {
+		push(r, "refs/heads/master");
+	}
+
+	private void push(final Repository r, final String ref) throws Exception {
+		final Transport push = Transport.open(r, new URIish(
+				"freenet://sim/site/0/"));
+		try {
+			final RemoteRefUpdate u = new RemoteRefUpdate(r, ref, ref, false,
+					null, null);
+			final PushResult res = push.push(NullProgressMonitor.INSTANCE,
+					Collections.singleton(u));
+			assertEquals(RemoteRefUpdate.Status.OK, res.getRemoteUpdate(ref)
+					.getStatus());
+		} finally {
+			push.close();
+		}
+	}
+
+	private void configure(final Repository r, final String[] keys)
+			throws IOException {
+		final RepositoryConfig cfg = r.getConfig();
+		cfg.setString("freenet", null, "host", node.getAddress()
+				.getHostAddress());
+		cfg.setInt("freenet", null, "port", node.getPort());
+		cfg.setLong("freenet", null, "subscribewait", 100);
+
+		final FileOutputStream out = new FileOutputStream(new File(r
+				.getDirectory(), "sim"));
+		try {
+			out.write(Constants.encode("publicKey="
+					+ keys[0].replace("SSK@", "USK@") + "\nprivateKey="
+					+ keys[1].replace("SSK@", "USK@") + "\n"));
+		} finally {
+			out.close();
+		}
+	}
+
+	private String putSite(final String uri, final String content)
+			throws IOException {
+		final Message msg = new Message();
+		msg.type = "ClientPutComplexDir";
+		msg.field.put("URI", uri);
+		msg.field.put("DefaultName", "a");
+		msg.field.put("Files.0.Name", "a");
+		msg.field.put("Files.0.UploadFrom", "direct");
+		msg.field.put("Files.0.DataLength", Integer.toString(content.length()));
+		msg.extraData = buffer(content);
+		final Message r = fcp.startPut(msg, null, null).get();
+		assertEquals("PutSuccessful", r.type);
+		return r.field.get("URI");
+	}
+
+	private static TemporaryBuffer buffer(final String s) throws IOException {
+		final TemporaryBuffer b = new TemporaryBuffer();
+		b.write(Constants.encode(s));
+		b.close();
+		return b;
+	}
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.transport;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.spearce.jgit.errors.CompoundException;
+import org.spearce.jgit.errors.NotSupportedException;
+import org.spearce.jgit.errors.TransportException;
+import org.spearce.jgit.lib.Commit;
+import org.spearce.jgit.lib.NullProgressMonitor;
+import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.ObjectLoader;
+import org.spearce.jgit.lib.PersonIdent;
+import org.spearce.jgit.lib.Ref;
+import org.spearce.jgit.lib.RefUpdate;
+import org.spearce.jgit.lib.Repository;
+import org.spearce.jgit.lib.RepositoryTestCase;
+import org.spearce.jgit.revwalk.ObjectWalk;
+import org.spearce.jgit.revwalk.RevCommit;
+import org.spearce.jgit.revwalk.RevObject;
+
+public class WalkFetchConnectionTest extends RepositoryTestCase {
+	private static final String[] BRANCHES = { "a", "b", "c", "master", "pa",
+			"loose" };
+
+	private Repository dst;
+
+	/** Pack opens made by the background download threads. */
+	private final AtomicInteger backgroundPackOpens = new AtomicInteger();
+
+	/** If true every pack fails to open. */
+	private volatile boolean failPacks;
+
+	@Override
+	public void setUp() throws Exception {
+		super.setUp();
+		dst = createNewEmptyRepo();
+
+		// A few loose commits on top of the packed history.
+		ObjectId tip = db.resolve("refs/heads/master");
+		final ObjectId tree = db.mapCommit(tip).getTreeId();
+		for (int i = 0; i < 5; i++) {
+			final Commit c = new Commit(db);
+			c.setTreeId(tree);
+			c.setParentIds(new ObjectId[] { tip });
+			c.setAuthor(new PersonIdent(jauthor, 1154236443000L + i, -4 * 60));
+			c.setCommitter(new PersonIdent(jcommitter, 1154236443000L + i,
+					-4 * 60));
+			c.setMessage("loose " + i + "\n");
+			c.commit();
+			tip = c.getCommitId();
+		}
+		final RefUpdate ru = db.updateRef("refs/heads/loose");
+		ru.setNewObjectId(tip);
+		ru.forceUpdate();
+	}
+
+	public void testConcurrentFetch() throws Exception {
+		fetch(4);
+		assertFetched();
+		assertTrue(backgroundPackOpens.get() > 0);
+	}
+
+	public void testSerialFetch() throws Exception {
+		fetch(1);
+		assertFetched();
+		assertEquals(0, backgroundPackOpens.get());
+	}
+
+	public void testConcurrentFetchReportsErrors() throws Exception {
+		failPacks = true;
+		try {
+			fetch(4);
+			fail("fetch succeeded without any packs");
+		} catch (TransportException err) {
+			assertTrue(hasInjectedCause(err));
+		}
+	}
+
+	private void fetch(final int concurrency) throws Exception {
+		final Transport t = new LocalWalkTransport();
+		t.setFetchConcurrency(concurrency);
+		t.setCheckFetchedObjects(true);
+		try {
+			final List<RefSpec> specs = new ArrayList<RefSpec>();
+			for (final String b : BRANCHES)
+				specs.add(new RefSpec("refs/heads/" + b + ":refs/heads/" + b));
+			t.fetch(NullProgressMonitor.INSTANCE, specs);
+		} finally {
+			t.close();
+		}
+	}
+
+	private void assertFetched() throws Exception {
+		final ObjectWalk ow = new ObjectWalk(dst);
+		for (final String b : BRANCHES) {
+			final ObjectId id = dst.resolve("refs/heads/" + b);
+			assertEquals(db.resolve("refs/heads/" + b), id);
+			ow.markStart(ow.parseCommit(id));
+		}
+
+		int n = 0;
+		RevCommit c;
+		while ((c = ow.next()) != null) {
+			assertSameObject(c);
+			n++;
+		}
+		RevObject o;
+		while ((o = ow.nextObject()) != null) {
+			assertSameObject(o);
+			n++;
+		}
+		assertTrue(n > 0);
+	}
+
+	private void assertSameObject(final ObjectId id) throws IOException {
+		final ObjectLoader a = db.openObject(id);
+		final ObjectLoader b = dst.openObject(id);
+		assertNotNull(b);
+		assertEquals(a.getType(), b.getType());
+		assertTrue(Arrays.equals(a.getCachedBytes(), b.getCachedBytes()));
+	}
+
+	private static boolean hasInjectedCause(Throwable err) {
+		for (; err != null; err = err.getCause()) {
+			if (err instanceof CompoundException) {
+				for (final Throwable t : ((CompoundException) err)
+						.getAllCauses())
+					if (hasInjectedCause(t))
+						return true;
+			}
+			if ("injected".equals(err.getMessage()))
+				return true;
+		}
+		return false;
+	}
+
+	/** Walk transport reading the source repository's files directly. */
+	private class LocalWalkTransport extends Transport implements
+			WalkTransport {
+		LocalWalkTransport() throws Exception {
+			super(dst, new URIish(trash_git.toURI().toURL()));
+		}
+
+		@Override
+		public FetchConnection openFetch() throws TransportException {
+			final LocalObjectDB c = new LocalObjectDB(new File(trash_git,
+					"objects"));
+			final WalkFetchConnection r = new WalkFetchConnection(this, c);
+			final Map<String, Ref> refs = new HashMap<String, Ref>();
+			for (final Ref ref : db.getAllRefs().values()) {
+				if (ref.getObjectId() != null)
+					refs.put(ref.getName(), new Ref(Ref.Storage.NETWORK, ref
+							.getName(), ref.getObjectId()));
+			}
+			r.available(refs);
+			return r;
+		}
+
+		@Override
+		public PushConnection openPush() throws NotSupportedException {
+			throw new NotSupportedException("Fetch only");
+		}
+
+		@Override
+		public void close() {
+			// Nothing to release.
+		}
+	}
+
+	private class LocalObjectDB extends WalkRemoteObjectDatabase {
+		private final File objects;
+
+		LocalObjectDB(final File objects) {
+			this.objects = objects;
+		}
+
+		@Override
+		URIish getURI() {
+			try {
+				return new URIish(objects.toURI().toURL());
+			} catch (IOException err) {
+				throw new IllegalStateException(err.getMessage());
+			}
+		}
+
+		@Override
+		Collection<String> getPackNames() {
+			final List<String> r = new ArrayList<String>();
+			for (final String n : new File(objects, "pack").list())
+				if (n.endsWith(".pack"))
+					r.add(n);
+			return r;
+		}
+
+		@Override
+		Collection<WalkRemoteObjectDatabase> getAlternates() {
+			return null;
+		}
+
+		@Override
+		WalkRemoteObjectDatabase openAlternate(final String location)
+				throws IOException {
+			throw new IOException("No alternates");
+		}
+
+		@Override
+		boolean isConcurrentReadSupported() {
+			return true;
+		}
+
+		@Override
+		FileStream open(final String path) throws IOException {
+			if (path.endsWith(".pack")) {
+				if (Thread.currentThread().getName().startsWith(
+						"JGit-Walk-Fetch"))
+					backgroundPackOpens.incrementAndGet();
+				if (failPacks)
+					throw new IOException("injected");
+			}
+			final File f = new File(objects, path);
+			if (!f.isFile())
+				throw new FileNotFoundException(f.getPath());
+			return new FileStream(new FileInputStream(f), f.length());
+		}
+
+		@Override
+		void close() {
+			// Nothing to release.
+		}
+	}
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+
+import org.spearce.jgit.errors.CorruptObjectException;
+import org.spearce.jgit.errors.IncorrectObjectTypeException;
+import org.spearce.jgit.errors.MissingObjectException;
+import org.spearce.jgit.revwalk.RevCommit;
+import org.spearce.jgit.revwalk.RevObject;
+import org.spearce.jgit.revwalk.RevTag;
+import org.spearce.jgit.revwalk.RevTree;
+import org.spearce.jgit.revwalk.RevWalk;
+import org.spearce.jgit.treewalk.CanonicalTreeParser;
+
+/**
+ * Computes the objects of a pack reachable from a set of starting points.
+ * <p>
+ * The history is walked as usual, except that a commit with a bitmap
+ * contributes all of its reachable objects at once and is not walked past, and
+ * a tree already in the result is not read again.
+ */
+class BitmapWalker {
+	private final Repository db;
+
+	private final PackBitmapIndex bitmaps;
+
+	private final RevWalk walk;
+
+	private final WindowCursor curs = new WindowCursor();
+
+	private final MutableObjectId idBuffer = new MutableObjectId();
+
+	private final CanonicalTreeParser treeParser = new CanonicalTreeParser();
+
+	private boolean recordTypes;
+
+	/**
+	 * Create a walker for one pack.
+	 *
+	 * @param repo
+	 *            repository the pack belongs to.
+	 * @param index
+	 *            bitmaps of the pack.
+	 */
+	BitmapWalker(final Repository repo, final PackBitmapIndex index) {
+		db = repo;
+		bitmaps = index;
+		walk = new RevWalk(repo);
+		walk.setRetainBody(false);
+	}
+
+	/**
+	 * @param record
+	 *            true to record the type of each object the walk reaches in
+	 *            the bitmap index, while building it.
+	 */
+	void setRecordTypes(final boolean record) {
+		recordTypes = record;
+	}
+
+	/**
+	 * Find the objects reachable from a set of objects.
+	 *
+	 * @param start
+	 *            objects to start from.
+	 * @param ignoreMissing
+	 *            true to skip starting objects that do not exist at all.
+	 * @return the reachable objects; null if one of them is not in the pack.
+	 * @throws MissingObjectException
+	 *             an object does not exist.
+	 * @throws IncorrectObjectTypeException
+	 *             an object is not of the type its referrer says it is.
+	 * @throws IOException
+	 *             a pack file or loose object could not be read.
+	 */
+	BitSet reachable(final Collection<? extends ObjectId> start,
+			final boolean ignoreMissing) throws MissingObjectException,
+			IncorrectObjectTypeException, IOException {
+		try {
+			return reachableImp(start, ignoreMissing);
+		} finally {
+			curs.release();
+		}
+	}
+
+	private BitSet reachableImp(final Collection<? extends ObjectId> start,
+			final boolean ignoreMissing) throws MissingObjectException,
+			IncorrectObjectTypeException, IOException {
+		final BitSet bits = new BitSet(bitmaps.getObjectCount());
+		final ArrayList<RevCommit> commits = new ArrayList<RevCommit>();
+		final ArrayList<RevTree> trees = new ArrayList<RevTree>();
+
+		for (final ObjectId id : start) {
+			RevObject o;
+			try {
+				o = walk.parseAny(id);
+			} catch (MissingObjectException notFound) {
+				if (ignoreMissing)
+					continue;
+				throw notFound;
+			}
+			while (o instanceof RevTag) {
+				if (!add(bits, o, Constants.OBJ_TAG))
+					return null;
+				o = ((RevTag) o).getObject();
+				walk.parseHeaders(o);
+			}
+			if (o instanceof RevCommit)
+				commits.add((RevCommit) o);
+			else if (o instanceof RevTree)
+				trees.add((RevTree) o);
+			else if (!add(bits, o, Constants.OBJ_BLOB))
+				return null;
+		}
+
+		while (!commits.isEmpty()) {
+			final RevCommit c = commits.remove(commits.size() - 1);
+			final int pos = bitmaps.findPosition(c);
+			if (pos < 0)
+				return null;
+			if (bits.get(pos))
+				continue;
+			final BitSet b = bitmaps.getBitmap(c);
+			if (b != null) {
+				bits.or(b);
+				continue;
+			}
+
+			bits.set(pos);
+			if (recordTypes)
+				bitmaps.setType(pos, Constants.OBJ_COMMIT);
+			walk.parseHeaders(c);
+			for (final RevCommit p : c.getParents())
+				commits.add(p);
+			trees.add(c.getTree());
+		}
+
+		while (!trees.isEmpty()) {
+			final RevTree t = trees.remove(trees.size() - 1);
+			final int pos = bitmaps.findPosition(t);
+			if (pos < 0)
+				return null;
+			if (bits.get(pos))
+				continue;
+			bits.set(pos);
+			if (recordTypes)
+				bitmaps.setType(pos, Constants.OBJ_TREE);
+
+			treeParser.reset(db, t, curs);
+			for (; !treeParser.eof(); treeParser.next(1)) {
+				final FileMode mode = treeParser.getEntryFileMode();
+				switch (mode.getObjectType()) {
+				case Constants.OBJ_BLOB:
+					treeParser.getEntryObjectId(idBuffer);
+					if (!add(bits, idBuffer, Constants.OBJ_BLOB))
+						return null;
+					break;
+				case Constants.OBJ_TREE:
+					treeParser.getEntryObjectId(idBuffer);
+					trees.add(walk.lookupTree(idBuffer));
+					break;
+				default:
+					if (FileMode.GITLINK.equals(mode))
+						break;
+					treeParser.getEntryObjectId(idBuffer);
+					throw new CorruptObjectException("Invalid mode " + mode
+							+ " for " + idBuffer.name() + " "
+							+ treeParser.getEntryPathString() + " in " + t
+							+ ".");
+				}
+			}
+		}
+		return bits;
+	}
+
+	private boolean add(final BitSet bits, final AnyObjectId id, final int type) {
+		final int pos = bitmaps.findPosition(id);
+		if (pos < 0)
+			return false;
+		bits.set(pos);
+		if (recordTypes)
+			bitmaps.setType(pos, type);
+		return true;
+	}
+}
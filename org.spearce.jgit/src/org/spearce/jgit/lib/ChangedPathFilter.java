@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.util.Collection;
+
+/**
+ * Bloom filter of the paths a commit changed relative to its first parent.
+ * <p>
+ * A filter may claim a path was changed when it was not, but never the
+ * reverse. Each path is hashed twice with 32 bit MurmurHash3, and those two
+ * hashes are combined to set {@link #HASHES} bits per path, in a filter of
+ * {@link #BITS_PER_PATH} bits per path, but at least {@link #MIN_BYTES}
+ * bytes long. A commit changing more than
+ * {@link #MAX_PATHS} paths gets a single byte filter with all bits set, which
+ * matches any path.
+ */
+final class ChangedPathFilter {
+	/** Largest number of paths stored in a filter. */
+	static final int MAX_PATHS = 512;
+
+	/** Size of a filter, in bits per stored path. */
+	static final int BITS_PER_PATH = 10;
+
+	/** Smallest non-empty filter, in bytes; tiny filters fill up too fast. */
+	static final int MIN_BYTES = 8;
+
+	/** Number of bits set for each stored path. */
+	static final int HASHES = 7;
+
+	private static final int SEED1 = 0x293ae76f;
+
+	private static final int SEED2 = 0x7e646e2c;
+
+	/**
+	 * Create the filter of a set of paths.
+	 *
+	 * @param paths
+	 *            the changed paths.
+	 * @return the filter; empty if no path changed.
+	 */
+	static byte[] create(final Collection<String> paths) {
+		if (paths.size() > MAX_PATHS)
+			return new byte[] { (byte) 0xff };
+		if (paths.isEmpty())
+			return new byte[0];
+		final int sz = (paths.size() * BITS_PER_PATH + 7) / 8;
+		final byte[] f = new byte[Math.max(sz, MIN_BYTES)];
+		for (final String p : paths) {
+			final byte[] raw = Constants.encode(p);
+			final int h1 = murmur3(raw, SEED1);
+			final int h2 = murmur3(raw, SEED2);
+			for (int i = 0; i < HASHES; i++) {
+				final int bit = bit(h1 + i * h2, f.length);
+				f[bit >>> 3] |= 1 << (bit & 7);
+			}
+		}
+		return f;
+	}
+
+	/**
+	 * Hash a path for {@link #mightContain(byte[], int, int, int[], int)}.
+	 *
+	 * @param path
+	 *            the path.
+	 * @param dst
+	 *            array to store the two hashes in.
+	 * @param ptr
+	 *            position of the first hash in <code>dst</code>.
+	 */
+	static void hash(final String path, final int[] dst, final int ptr) {
+		final byte[] raw = Constants.encode(path);
+		dst[ptr] = murmur3(raw, SEED1);
+		dst[ptr + 1] = murmur3(raw, SEED2);
+	}
+
+	/**
+	 * Test a filter for a path.
+	 *
+	 * @param buf
+	 *            buffer holding the filter.
+	 * @param ptr
+	 *            position of the filter in <code>buf</code>.
+	 * @param len
+	 *            length of the filter in bytes.
+	 * @param hashes
+	 *            hashes of paths, two per path, as stored by
+	 *            {@link #hash(String, int[], int)}.
+	 * @param hashPtr
+	 *            position of the path's first hash in <code>hashes</code>.
+	 * @return false if the path was definitely not changed.
+	 */
+	static boolean mightContain(final byte[] buf, final int ptr,
+			final int len, final int[] hashes, final int hashPtr) {
+		if (len == 0)
+			return false;
+		final int h1 = hashes[hashPtr];
+		final int h2 = hashes[hashPtr + 1];
+		for (int i = 0; i < HASHES; i++) {
+			final int bit = bit(h1 + i * h2, len);
+			if ((buf[ptr + (bit >>> 3)] & (1 << (bit & 7))) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	private static int bit(final int hash, final int len) {
+		return (int) ((hash & 0xffffffffL) % (len * 8L));
+	}
+
+	static int murmur3(final byte[] data, final int seed) {
+		final int c1 = 0xcc9e2d51;
+		final int c2 = 0x1b873593;
+		final int end = data.length & ~3;
+		int h = seed;
+		for (int i = 0; i < end; i += 4) {
+			int k = (data[i] & 0xff) | (data[i + 1] & 0xff) << 8
+					| (data[i + 2] & 0xff) << 16 | (data[i + 3] & 0xff) << 24;
+			k *= c1;
+			k = Integer.rotateLeft(k, 15);
+			k *= c2;
+			h ^= k;
+			h = Integer.rotateLeft(h, 13);
+			h = h * 5 + 0xe6546b64;
+		}
+
+		if (end < data.length) {
+			int k = 0;
+			for (int i = data.length - 1; i >= end; i--)
+				k = k << 8 | (data[i] & 0xff);
+			k *= c1;
+			k = Integer.rotateLeft(k, 15);
+			k *= c2;
+			h ^= k;
+		}
+
+		h ^= data.length;
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private ChangedPathFilter() {
+		// Don't create instances of a static only utility.
+	}
+}
@@ -0,0 +1,536 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.spearce.jgit.revwalk.RevCommit;
+import org.spearce.jgit.util.NB;
+
+/**
+ * The parents, commit time and tree of many commits, without their bodies.
+ * <p>
+ * A revision walk only needs these few fields of most commits it visits, but
+ * obtaining them otherwise means locating, inflating and parsing each commit
+ * object. The graph records them for every commit reachable from the
+ * repository's references when it was written, along with a generation number:
+ * 1 for a root commit, otherwise one more than the largest generation of its
+ * parents.
+ * <p>
+ * The file is stored as <code>objects/info/jgit-commit-graph</code>. Its
+ * layout is private to jgit, so it deliberately avoids the name and signature
+ * of C git's <code>commit-graph</code>, which C git would report as corrupt:
+ * <ul>
+ * <li>the signature <code>JCGR</code> and a 4 byte version number, 1 or
+ * 2;</li>
+ * <li>the standard 256 entry fan-out table;</li>
+ * <li>the sorted commit names;</li>
+ * <li>for each commit, the name of its tree;</li>
+ * <li>for each commit, 4 words: the positions of its first and second
+ * parents, its commit time and its generation number. A missing parent is
+ * {@link #NO_PARENT}. With more than two parents the second word has the top
+ * bit set and the remaining bits locate the 2nd and later parents in the extra
+ * edge table;</li>
+ * <li>the 4 byte size of the extra edge table, and its entries, each a
+ * parent position; the top bit is set on the last parent of a commit;</li>
+ * <li>in version 2 only, for each commit the 4 byte end offset of its
+ * changed-path filter, then the filters themselves (see
+ * {@link #mayHaveChanged(int, int[])});</li>
+ * <li>the SHA-1 checksum of all preceding bytes.</li>
+ * </ul>
+ * <p>
+ * Commits are immutable, so the fields recorded for a commit never change,
+ * and commits created after the graph was written are simply not covered.
+ * The graph does go stale when garbage collection prunes commits it lists:
+ * {@link #find(AnyObjectId)} still reports them. Readers must therefore check
+ * that a listed commit still exists in the object database before trusting
+ * its entry, and treat it as missing otherwise, as
+ * {@link org.spearce.jgit.revwalk.RevWalk} does.
+ */
+public class CommitGraph {
+	/** Name of the graph file within <code>objects/info</code>. */
+	public static final String FILE_NAME = "jgit-commit-graph";
+
+	private static final byte[] SIGNATURE = { 'J', 'C', 'G', 'R' };
+
+	private static final int VERSION = 1;
+
+	private static final int VERSION_CHANGED_PATHS = 2;
+
+	private static final int FANOUT = 256;
+
+	private static final int NO_PARENT = 0x70000000;
+
+	private static final int EXTRA_EDGES = 0x80000000;
+
+	private static final int LAST_EDGE = 0x80000000;
+
+	/**
+	 * Read a commit graph file.
+	 *
+	 * @param file
+	 *            the file to read.
+	 * @return the parsed graph.
+	 * @throws IOException
+	 *             the file cannot be read, or is corrupt.
+	 */
+	public static CommitGraph open(final File file) throws IOException {
+		final long lastModified = file.lastModified();
+		final long length = file.length();
+		if (length > Integer.MAX_VALUE)
+			throw new IOException("Commit graph is too large for jgit: "
+					+ file);
+
+		final byte[] buf = new byte[(int) length];
+		final FileInputStream in = new FileInputStream(file);
+		try {
+			NB.readFully(in, buf, 0, buf.length);
+		} finally {
+			in.close();
+		}
+
+		try {
+			return new CommitGraph(file, lastModified, buf);
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Truncated commit graph: " + file);
+		}
+	}
+
+	/**
+	 * Write a commit graph.
+	 *
+	 * @param out
+	 *            stream to write the graph to. The stream is flushed but not
+	 *            closed.
+	 * @param commits
+	 *            the commits to describe, sorted by name. Each must be parsed,
+	 *            and each of its parents must also be in the array.
+	 * @param generation
+	 *            generation number of each commit, in the same order.
+	 * @throws IOException
+	 *             the stream cannot be written.
+	 */
+	static void write(final OutputStream out, final RevCommit[] commits,
+			final int[] generation) throws IOException {
+		write(out, commits, generation, null);
+	}
+
+	/**
+	 * Write a commit graph with changed-path filters.
+	 *
+	 * @param out
+	 *            stream to write the graph to. The stream is flushed but not
+	 *            closed.
+	 * @param commits
+	 *            the commits to describe, sorted by name. Each must be parsed,
+	 *            and each of its parents must also be in the array.
+	 * @param generation
+	 *            generation number of each commit, in the same order.
+	 * @param changedPaths
+	 *            filter of the paths each commit changed, in the same order;
+	 *            null to write a graph without filters.
+	 * @throws IOException
+	 *             the stream cannot be written.
+	 */
+	static void write(final OutputStream out, final RevCommit[] commits,
+			final int[] generation, final byte[][] changedPaths)
+			throws IOException {
+		final MessageDigest md = Constants.newMessageDigest();
+		final DigestOutputStream dos = new DigestOutputStream(
+				new BufferedOutputStream(out), md);
+		final byte[] tmp = new byte[16];
+
+		dos.write(SIGNATURE);
+		NB.encodeInt32(tmp, 0, changedPaths != null ? VERSION_CHANGED_PATHS
+				: VERSION);
+		dos.write(tmp, 0, 4);
+
+		final int[] fanout = new int[FANOUT];
+		for (final RevCommit c : commits)
+			fanout[c.getFirstByte()]++;
+		for (int i = 1; i < FANOUT; i++)
+			fanout[i] += fanout[i - 1];
+		for (final int f : fanout) {
+			NB.encodeInt32(tmp, 0, f);
+			dos.write(tmp, 0, 4);
+		}
+
+		final byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+		for (final RevCommit c : commits) {
+			c.copyRawTo(raw, 0);
+			dos.write(raw);
+		}
+		for (final RevCommit c : commits) {
+			c.getTree().copyRawTo(raw, 0);
+			dos.write(raw);
+		}
+
+		int extraCnt = 0;
+		for (final RevCommit c : commits) {
+			if (c.getParentCount() > 2)
+				extraCnt += c.getParentCount() - 1;
+		}
+		final int[] extra = new int[extraCnt];
+		extraCnt = 0;
+		for (int i = 0; i < commits.length; i++) {
+			final RevCommit c = commits[i];
+			final int n = c.getParentCount();
+			final int p1 = n > 0 ? position(commits, c.getParent(0))
+					: NO_PARENT;
+			final int p2;
+			if (n > 2) {
+				p2 = EXTRA_EDGES | extraCnt;
+				for (int k = 1; k < n; k++)
+					extra[extraCnt++] = position(commits, c.getParent(k));
+				extra[extraCnt - 1] |= LAST_EDGE;
+			} else if (n == 2)
+				p2 = position(commits, c.getParent(1));
+			else
+				p2 = NO_PARENT;
+			NB.encodeInt32(tmp, 0, p1);
+			NB.encodeInt32(tmp, 4, p2);
+			NB.encodeInt32(tmp, 8, c.getCommitTime());
+			NB.encodeInt32(tmp, 12, generation[i]);
+			dos.write(tmp, 0, 16);
+		}
+
+		NB.encodeInt32(tmp, 0, extra.length);
+		dos.write(tmp, 0, 4);
+		for (final int e : extra) {
+			NB.encodeInt32(tmp, 0, e);
+			dos.write(tmp, 0, 4);
+		}
+
+		if (changedPaths != null) {
+			int end = 0;
+			for (final byte[] f : changedPaths) {
+				end += f.length;
+				NB.encodeInt32(tmp, 0, end);
+				dos.write(tmp, 0, 4);
+			}
+			for (final byte[] f : changedPaths)
+				dos.write(f);
+		}
+
+		dos.on(false);
+		dos.write(md.digest());
+		dos.flush();
+	}
+
+	private static int position(final RevCommit[] commits, final RevCommit c) {
+		final int p = Arrays.binarySearch(commits, c);
+		if (p < 0)
+			throw new IllegalArgumentException("Parent " + c.name()
+					+ " is not in the commit graph");
+		return p;
+	}
+
+	private final long lastModified;
+
+	private final long length;
+
+	private final long[] fanoutTable;
+
+	/** Commit names, 5 ints per commit. */
+	private final int[] names;
+
+	/** Tree names, 5 ints per commit. */
+	private final int[] trees;
+
+	/** Parent 1, parent 2, commit time and generation; 4 ints per commit. */
+	private final int[] data;
+
+	private final int[] extraEdges;
+
+	/** End of each commit's filter in {@link #changedPaths}; null if none. */
+	private final int[] changedPathEnd;
+
+	private final byte[] changedPaths;
+
+	private CommitGraph(final File file, final long lastModified,
+			final byte[] buf) throws IOException {
+		this.lastModified = lastModified;
+		this.length = buf.length;
+
+		final int trailer = buf.length - Constants.OBJECT_ID_LENGTH;
+		final MessageDigest md = Constants.newMessageDigest();
+		md.update(buf, 0, trailer);
+		final byte[] sum = new byte[Constants.OBJECT_ID_LENGTH];
+		System.arraycopy(buf, trailer, sum, 0, sum.length);
+		if (!Arrays.equals(md.digest(), sum))
+			throw new IOException("Commit graph checksum mismatch: " + file);
+		for (int i = 0; i < SIGNATURE.length; i++) {
+			if (buf[i] != SIGNATURE[i])
+				throw new IOException("Not a commit graph: " + file);
+		}
+		final int version = NB.decodeInt32(buf, 4);
+		if (version != VERSION && version != VERSION_CHANGED_PATHS)
+			throw new IOException("Unsupported commit graph version "
+					+ version + ": " + file);
+
+		int ptr = 8;
+		fanoutTable = new long[FANOUT];
+		for (int k = 0; k < FANOUT; k++, ptr += 4)
+			fanoutTable[k] = NB.decodeUInt32(buf, ptr);
+		final long commitCnt = fanoutTable[FANOUT - 1];
+		if (commitCnt * (2 * Constants.OBJECT_ID_LENGTH + 16) > trailer - ptr)
+			throw new IOException("Truncated commit graph: " + file);
+		final int cnt = (int) commitCnt;
+
+		names = new int[cnt * 5];
+		for (int i = 0; i < names.length; i++, ptr += 4)
+			names[i] = NB.decodeInt32(buf, ptr);
+		trees = new int[cnt * 5];
+		for (int i = 0; i < trees.length; i++, ptr += 4)
+			trees[i] = NB.decodeInt32(buf, ptr);
+		data = new int[cnt * 4];
+		for (int i = 0; i < data.length; i++, ptr += 4)
+			data[i] = NB.decodeInt32(buf, ptr);
+
+		extraEdges = new int[NB.decodeInt32(buf, ptr)];
+		ptr += 4;
+		if (extraEdges.length < 0 || extraEdges.length > (trailer - ptr) / 4)
+			throw new IOException("Corrupt commit graph: " + file);
+		for (int i = 0; i < extraEdges.length; i++, ptr += 4)
+			extraEdges[i] = NB.decodeInt32(buf, ptr);
+
+		if (version == VERSION_CHANGED_PATHS) {
+			if (cnt > (trailer - ptr) / 4)
+				throw new IOException("Truncated commit graph: " + file);
+			changedPathEnd = new int[cnt];
+			int last = 0;
+			for (int i = 0; i < cnt; i++, ptr += 4) {
+				changedPathEnd[i] = NB.decodeInt32(buf, ptr);
+				if (changedPathEnd[i] < last)
+					throw new IOException("Corrupt commit graph: " + file);
+				last = changedPathEnd[i];
+			}
+			changedPaths = new byte[last];
+			if (last != trailer - ptr)
+				throw new IOException("Corrupt commit graph: " + file);
+			System.arraycopy(buf, ptr, changedPaths, 0, last);
+		} else {
+			if (ptr != trailer)
+				throw new IOException("Corrupt commit graph: " + file);
+			changedPathEnd = null;
+			changedPaths = null;
+		}
+	}
+
+	/**
+	 * Determine if this graph still describes the file on disk.
+	 *
+	 * @param file
+	 *            location of the graph file.
+	 * @return true if the file has not been modified since it was read.
+	 */
+	public boolean isCurrent(final File file) {
+		return file.lastModified() == lastModified && file.length() == length;
+	}
+
+	/** @return number of commits in the graph. */
+	public int getCommitCount() {
+		return data.length / 4;
+	}
+
+	/**
+	 * Locate a commit.
+	 *
+	 * @param id
+	 *            the commit to search for.
+	 * @return position of the commit within this graph; -1 if not present.
+	 */
+	public int find(final AnyObjectId id) {
+		final int levelOne = id.getFirstByte();
+		int low = levelOne > 0 ? (int) fanoutTable[levelOne - 1] : 0;
+		int high = (int) fanoutTable[levelOne];
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			final int cmp = id.compareTo(names, (mid << 2) + mid);
+			if (cmp < 0)
+				high = mid;
+			else if (cmp == 0)
+				return mid;
+			else
+				low = mid + 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Obtain the name of a commit.
+	 *
+	 * @param position
+	 *            position of the commit within this graph.
+	 * @param dst
+	 *            receives the name of the commit.
+	 */
+	public void getObjectId(final int position, final MutableObjectId dst) {
+		dst.fromRaw(names, (position << 2) + position);
+	}
+
+	/**
+	 * Obtain the name of a commit's tree.
+	 *
+	 * @param position
+	 *            position of the commit within this graph.
+	 * @param dst
+	 *            receives the name of the tree.
+	 */
+	public void getTree(final int position, final MutableObjectId dst) {
+		dst.fromRaw(trees, (position << 2) + position);
+	}
+
+	/**
+	 * @param position
+	 *            position of the commit within this graph.
+	 * @return number of parents of the commit.
+	 */
+	public int getParentCount(final int position) {
+		final int p1 = data[position << 2];
+		final int p2 = data[(position << 2) + 1];
+		if (p1 == NO_PARENT)
+			return 0;
+		if (p2 == NO_PARENT)
+			return 1;
+		if ((p2 & EXTRA_EDGES) == 0)
+			return 2;
+		int e = p2 & ~EXTRA_EDGES;
+		int n = 2;
+		while ((extraEdges[e++] & LAST_EDGE) == 0)
+			n++;
+		return n;
+	}
+
+	/**
+	 * @param position
+	 *            position of the commit within this graph.
+	 * @param nth
+	 *            parent to obtain, 0 for the first parent.
+	 * @return position of the parent within this graph.
+	 */
+	public int getParent(final int position, final int nth) {
+		if (nth == 0)
+			return data[position << 2];
+		final int p2 = data[(position << 2) + 1];
+		if ((p2 & EXTRA_EDGES) == 0)
+			return p2;
+		return extraEdges[(p2 & ~EXTRA_EDGES) + nth - 1] & ~LAST_EDGE;
+	}
+
+	/**
+	 * @param position
+	 *            position of the commit within this graph.
+	 * @return committer time of the commit, in seconds since the epoch.
+	 */
+	public int getCommitTime(final int position) {
+		return data[(position << 2) + 2];
+	}
+
+	/**
+	 * @param position
+	 *            position of the commit within this graph.
+	 * @return generation number of the commit; 1 for a root commit.
+	 */
+	public int getGeneration(final int position) {
+		return data[(position << 2) + 3];
+	}
+
+	/** @return true if the graph records the paths each commit changed. */
+	public boolean hasChangedPaths() {
+		return changedPathEnd != null;
+	}
+
+	/**
+	 * Hash paths for {@link #mayHaveChanged(int, int[])}.
+	 * <p>
+	 * A path names a file or symlink exactly, as <code>a/b</code>. A trailing
+	 * '/', as <code>a/</code>, names a directory and matches a change to
+	 * anything below it.
+	 *
+	 * @param paths
+	 *            the paths to look for.
+	 * @return hashes of the paths, to be passed to
+	 *         {@link #mayHaveChanged(int, int[])}.
+	 */
+	public static int[] hashPaths(final Collection<String> paths) {
+		final int[] r = new int[paths.size() * 2];
+		int ptr = 0;
+		for (final String p : paths) {
+			ChangedPathFilter.hash(p, r, ptr);
+			ptr += 2;
+		}
+		return r;
+	}
+
+	/**
+	 * Test whether a commit may have changed any of some paths.
+	 * <p>
+	 * The changed paths of a commit are those that differ from its first
+	 * parent, or every path of its tree if it has no parents. They are stored
+	 * in a Bloom filter, so a commit may be reported as changing a path it did
+	 * not change, but never the reverse.
+	 *
+	 * @param position
+	 *            position of the commit within this graph.
+	 * @param pathHashes
+	 *            the paths, as returned by {@link #hashPaths(Collection)}.
+	 * @return false if the commit changed none of the paths; true if it may
+	 *         have changed one, or the graph has no changed-path filters.
+	 */
+	public boolean mayHaveChanged(final int position, final int[] pathHashes) {
+		if (changedPathEnd == null)
+			return true;
+		final int start = position > 0 ? changedPathEnd[position - 1] : 0;
+		final int len = changedPathEnd[position] - start;
+		for (int i = 0; i < pathHashes.length; i += 2) {
+			if (ChangedPathFilter.mightContain(changedPaths, start, len,
+					pathHashes, i))
+				return true;
+		}
+		return false;
+	}
+}
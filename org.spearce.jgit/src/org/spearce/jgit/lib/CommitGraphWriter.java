@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.spearce.jgit.errors.MissingObjectException;
+import org.spearce.jgit.errors.ObjectWritingException;
+import org.spearce.jgit.revwalk.RevCommit;
+import org.spearce.jgit.revwalk.RevObject;
+import org.spearce.jgit.revwalk.RevSort;
+import org.spearce.jgit.revwalk.RevTag;
+import org.spearce.jgit.revwalk.RevWalk;
+import org.spearce.jgit.treewalk.EmptyTreeIterator;
+import org.spearce.jgit.treewalk.TreeWalk;
+import org.spearce.jgit.treewalk.filter.TreeFilter;
+
+/**
+ * Creates the {@link CommitGraph} of a repository.
+ * <p>
+ * The graph covers every commit reachable from the repository's references.
+ */
+public class CommitGraphWriter {
+	private final Repository db;
+
+	private boolean changedPaths;
+
+	/**
+	 * Create a writer for a repository.
+	 *
+	 * @param repo
+	 *            the repository whose commits are described.
+	 */
+	public CommitGraphWriter(final Repository repo) {
+		db = repo;
+	}
+
+	/** @return true if the paths changed by each commit are recorded. */
+	public boolean isChangedPaths() {
+		return changedPaths;
+	}
+
+	/**
+	 * Set whether to record the paths changed by each commit.
+	 * <p>
+	 * Path limited revision walks use these to skip commits that changed none
+	 * of the paths of interest without reading their trees. Recording them
+	 * means comparing the tree of every commit to its first parent's, so
+	 * writing the graph takes much longer.
+	 *
+	 * @param record
+	 *            true to record changed paths.
+	 * @see CommitGraph#mayHaveChanged(int, int[])
+	 */
+	public void setChangedPaths(final boolean record) {
+		changedPaths = record;
+	}
+
+	/**
+	 * Write the graph to <code>objects/info/jgit-commit-graph</code>.
+	 * <p>
+	 * The file is replaced atomically, so readers see either the old graph or
+	 * the new one.
+	 *
+	 * @param pm
+	 *            progress monitor to report counting and writing to.
+	 * @return number of commits in the graph.
+	 * @throws IOException
+	 *             the commits cannot be read, or the file cannot be written.
+	 */
+	public int writeFile(final ProgressMonitor pm) throws IOException {
+		final ObjectDatabase odb = db.getObjectDatabase();
+		if (!(odb instanceof ObjectDirectory))
+			throw new IOException("Commit graph requires an ObjectDirectory");
+		final File file = ((ObjectDirectory) odb).getCommitGraphFile();
+		final LockFile lck = new LockFile(file);
+		if (!lck.lock())
+			throw new ObjectWritingException("Unable to lock " + file);
+		final int cnt;
+		try {
+			final OutputStream out = lck.getOutputStream();
+			try {
+				cnt = write(out, pm);
+			} finally {
+				out.close();
+			}
+		} catch (IOException err) {
+			lck.unlock();
+			throw err;
+		} catch (RuntimeException err) {
+			lck.unlock();
+			throw err;
+		}
+		if (!lck.commit())
+			throw new ObjectWritingException("Unable to write " + file);
+		return cnt;
+	}
+
+	/**
+	 * Write the graph to a stream.
+	 *
+	 * @param out
+	 *            stream to write the graph to. The stream is flushed but not
+	 *            closed.
+	 * @param pm
+	 *            progress monitor to report counting and writing to.
+	 * @return number of commits in the graph.
+	 * @throws IOException
+	 *             the commits cannot be read, or the stream cannot be written.
+	 */
+	public int write(final OutputStream out, final ProgressMonitor pm)
+			throws IOException {
+		final RevWalk rw = new RevWalk(db);
+		rw.setRetainBody(false);
+		rw.sort(RevSort.TOPO);
+		rw.sort(RevSort.REVERSE, true);
+		for (final Ref r : db.getAllRefs().values()) {
+			final RevCommit c = peel(rw, r.getObjectId());
+			if (c != null)
+				rw.markStart(c);
+		}
+
+		pm.beginTask("Counting commits", ProgressMonitor.UNKNOWN);
+		final List<RevCommit> order = new ArrayList<RevCommit>();
+		RevCommit c;
+		while ((c = rw.next()) != null) {
+			order.add(c);
+			pm.update(1);
+		}
+		pm.endTask();
+
+		final RevCommit[] commits = order.toArray(new RevCommit[order.size()]);
+		Arrays.sort(commits);
+
+		// Parents are produced before their children, so the generation
+		// of every parent is known by the time a child is reached.
+		//
+		final int[] generation = new int[commits.length];
+		for (final RevCommit child : order) {
+			int g = 0;
+			for (final RevCommit p : child.getParents())
+				g = Math.max(g, generation[Arrays.binarySearch(commits, p)]);
+			generation[Arrays.binarySearch(commits, child)] = g + 1;
+		}
+
+		final byte[][] filters = changedPaths ? changedPaths(commits, pm)
+				: null;
+
+		pm.beginTask("Writing commit graph", ProgressMonitor.UNKNOWN);
+		CommitGraph.write(out, commits, generation, filters);
+		pm.endTask();
+		return commits.length;
+	}
+
+	private byte[][] changedPaths(final RevCommit[] commits,
+			final ProgressMonitor pm) throws IOException {
+		final TreeWalk tw = new TreeWalk(db);
+		tw.setRecursive(true);
+		tw.setFilter(TreeFilter.ANY_DIFF);
+
+		pm.beginTask("Computing changed paths", commits.length);
+		final byte[][] filters = new byte[commits.length][];
+		final Set<String> paths = new HashSet<String>();
+		for (int i = 0; i < commits.length; i++) {
+			final RevCommit c = commits[i];
+			tw.reset();
+			if (c.getParentCount() > 0)
+				tw.addTree(c.getParent(0).getTree());
+			else
+				tw.addTree(new EmptyTreeIterator());
+			tw.addTree(c.getTree());
+
+			paths.clear();
+			while (tw.next() && paths.size() <= ChangedPathFilter.MAX_PATHS) {
+				final String p = tw.getPathString();
+				paths.add(p);
+				for (int s = p.indexOf('/'); s > 0; s = p.indexOf('/', s + 1))
+					paths.add(p.substring(0, s + 1));
+			}
+			filters[i] = ChangedPathFilter.create(paths);
+			pm.update(1);
+		}
+		pm.endTask();
+		return filters;
+	}
+
+	private static RevCommit peel(final RevWalk rw, final AnyObjectId id)
+			throws IOException {
+		if (id == null)
+			return null;
+		try {
+			RevObject o = rw.parseAny(id);
+			while (o instanceof RevTag) {
+				o = ((RevTag) o).getObject();
+				rw.parseHeaders(o);
+			}
+			return o instanceof RevCommit ? (RevCommit) o : null;
+		} catch (MissingObjectException notFound) {
+			// A broken reference cannot contribute commits.
+			return null;
+		}
+	}
+}
@@ -57,9 +57,15 @@ public CoreConfig parse(final Config cfg) {
 
 	private final int packIndexVersion;
 
+	private final boolean looseObjectCache;
+
+	private final boolean packUseBitmaps;
+
 	private CoreConfig(final Config rc) {
 		compression = rc.getInt("core", "compression", DEFAULT_COMPRESSION);
 		packIndexVersion = rc.getInt("pack", "indexversion", 2);
+		looseObjectCache = rc.getBoolean("core", "looseobjectcache", false);
+		packUseBitmaps = rc.getBoolean("pack", "usebitmaps", true);
 	}
 
 	/**
@@ -77,4 +83,21 @@ public int getCompression() {
 	public int getPackIndexVersion() {
 		return packIndexVersion;
 	}
+
+	/**
+	 * @return true if loose object directory listings should be cached.
+	 * @see ObjectDirectory#setLooseObjectCache(boolean)
+	 */
+	public boolean isLooseObjectCache() {
+		return looseObjectCache;
+	}
+
+	/**
+	 * @return true if reachability bitmaps should be used to find the objects
+	 *         of a pack being written.
+	 * @see PackWriter#setUseBitmaps(boolean)
+	 */
+	public boolean isPackUseBitmaps() {
+		return packUseBitmaps;
+	}
 }
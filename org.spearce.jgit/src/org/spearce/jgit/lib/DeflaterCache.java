@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.util.zip.Deflater;
+
+/**
+ * Creates zlib based deflaters as necessary for object compression.
+ * <p>
+ * Released deflaters are kept in a small striped pool, so writers creating
+ * loose objects or packs reuse the native compression state instead of
+ * allocating it again for each writer and leaving it to finalization.
+ */
+public class DeflaterCache {
+	private static final StripedPool<Deflater> pool = new StripedPool<Deflater>(
+			2);
+
+	/**
+	 * Obtain a Deflater for compression.
+	 * <p>
+	 * Deflaters obtained through this cache should be returned (if possible) by
+	 * {@link #release(Deflater)} to avoid garbage collection and reallocation.
+	 *
+	 * @param level
+	 *            compression level, as defined by {@link Deflater}.
+	 * @return an available deflater using the requested level. Never null.
+	 */
+	public static Deflater get(final int level) {
+		final Deflater r = pool.take();
+		if (r == null)
+			return new Deflater(level, false);
+		r.setLevel(level);
+		return r;
+	}
+
+	/**
+	 * Release a deflater previously obtained from this cache.
+	 *
+	 * @param d
+	 *            the deflater to return. May be null, in which case this method
+	 *            does nothing.
+	 */
+	public static void release(final Deflater d) {
+		if (d != null) {
+			d.reset();
+			if (!pool.offer(d))
+				d.end();
+		}
+	}
+
+	private DeflaterCache() {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Approximate, aging access frequency of cache keys.
+ * <p>
+ * This is a count-min sketch of 4 bit counters, as used by the TinyLFU cache
+ * admission policy. Each key is counted in 4 counters chosen by independent
+ * hash functions, and its frequency is estimated as the smallest of them, so
+ * collisions can only overestimate a key's popularity. Counters saturate at
+ * 15.
+ * <p>
+ * To let the sketch follow a changing workload, every counter is halved once
+ * the number of recorded accesses reaches a sample size proportional to the
+ * cache capacity. Keys that stop being accessed thus fade away, while keys in
+ * current use quickly regain their counts.
+ * <p>
+ * The sketch is safe for concurrent use without locking. Each counter is
+ * updated by compare-and-swap on its table word, so a saturated counter never
+ * wraps into its neighbour. An increment racing with the periodic halving may
+ * be lost, which only makes the estimate slightly less accurate.
+ */
+class FrequencySketch {
+	private static final long[] SEED = { 0xc3a5c85c97cb3127L,
+			0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+
+	private static final long RESET_MASK = 0x7777777777777777L;
+
+	private final AtomicLongArray table;
+
+	private final int tableMask;
+
+	private final int sampleSize;
+
+	private final AtomicInteger size = new AtomicInteger();
+
+	/**
+	 * Create a sketch sized for a cache.
+	 *
+	 * @param capacity
+	 *            maximum number of entries the cache holds.
+	 */
+	FrequencySketch(final int capacity) {
+		final int c = Math.max(1, Math.min(capacity, 1 << 30));
+		table = new AtomicLongArray(Integer.highestOneBit(c - 1 | 15) << 1);
+		tableMask = table.length() - 1;
+		sampleSize = (int) Math.min(10L * c, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Estimate how often a key was recently accessed.
+	 *
+	 * @param hash
+	 *            hash code of the key.
+	 * @return estimated number of accesses, between 0 and 15.
+	 */
+	int frequency(final int hash) {
+		final int start = (hash & 3) << 2;
+		int f = 15;
+		for (int i = 0; i < 4; i++) {
+			final int shift = (start + i) << 2;
+			final int c = (int) ((table.get(indexOf(hash, i)) >>> shift) & 15);
+			if (c < f)
+				f = c;
+		}
+		return f;
+	}
+
+	/**
+	 * Record an access to a key.
+	 *
+	 * @param hash
+	 *            hash code of the key.
+	 */
+	void increment(final int hash) {
+		final int start = (hash & 3) << 2;
+		boolean added = false;
+		for (int i = 0; i < 4; i++) {
+			final int idx = indexOf(hash, i);
+			final int shift = (start + i) << 2;
+			if (incrementAt(idx, shift))
+				added = true;
+		}
+		if (added && size.incrementAndGet() >= sampleSize)
+			reset();
+	}
+
+	private boolean incrementAt(final int idx, final int shift) {
+		for (;;) {
+			final long v = table.get(idx);
+			if (((v >>> shift) & 15) == 15)
+				return false;
+			if (table.compareAndSet(idx, v, v + (1L << shift)))
+				return true;
+		}
+	}
+
+	private void reset() {
+		// Only the thread that halves size also halves the table, so two
+		// threads crossing the sample size together do not age it twice.
+		//
+		final int n = size.get();
+		if (n < sampleSize || !size.compareAndSet(n, n >>> 1))
+			return;
+		for (int i = 0; i < table.length(); i++) {
+			long v;
+			do {
+				v = table.get(i);
+			} while (!table.compareAndSet(i, v, (v >>> 1) & RESET_MASK));
+		}
+	}
+
+	private int indexOf(final int hash, final int i) {
+		long h = (hash + SEED[i]) * SEED[i];
+		h += h >>> 32;
+		return ((int) h) & tableMask;
+	}
+}
@@ -39,17 +39,15 @@
 
 import java.util.zip.Inflater;
 
-/** Creates zlib based inflaters as necessary for object decompression. */
+/**
+ * Creates zlib based inflaters as necessary for object decompression.
+ * <p>
+ * Released inflaters are kept in a small striped pool, so threads reading
+ * objects concurrently do not contend on a single lock to obtain one.
+ */
 public class InflaterCache {
-	private static final int SZ = 4;
-
-	private static final Inflater[] inflaterCache;
-
-	private static int openInflaterCount;
-
-	static {
-		inflaterCache = new Inflater[SZ];
-	}
+	private static final StripedPool<Inflater> pool = new StripedPool<Inflater>(
+			4);
 
 	/**
 	 * Obtain an Inflater for decompression.
@@ -60,19 +58,10 @@ public class InflaterCache {
 	 * @return an available inflater. Never null.
 	 */
 	public static Inflater get() {
-		final Inflater r = getImpl();
+		final Inflater r = pool.take();
 		return r != null ? r : new Inflater(false);
 	}
 
-	private synchronized static Inflater getImpl() {
-		if (openInflaterCount > 0) {
-			final Inflater r = inflaterCache[--openInflaterCount];
-			inflaterCache[openInflaterCount] = null;
-			return r;
-		}
-		return null;
-	}
-
 	/**
 	 * Release an inflater previously obtained from this cache.
 	 * 
@@ -83,19 +72,11 @@ private synchronized static Inflater getImpl() {
 	public static void release(final Inflater i) {
 		if (i != null) {
 			i.reset();
-			if (releaseImpl(i))
+			if (!pool.offer(i))
 				i.end();
 		}
 	}
 
-	private static synchronized boolean releaseImpl(final Inflater i) {
-		if (openInflaterCount < SZ) {
-			inflaterCache[openInflaterCount++] = i;
-			return false;
-		}
-		return true;
-	}
-
 	private InflaterCache() {
 		throw new UnsupportedOperationException();
 	}
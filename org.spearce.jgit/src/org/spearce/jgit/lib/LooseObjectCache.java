@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Remembers the names of the loose objects in each <code>objects/xx</code>
+ * directory.
+ * <p>
+ * Looking for an object that is not stored loose otherwise costs a failed
+ * <code>stat</code> call per lookup. With this cache the lookup is answered
+ * from a snapshot of the directory listing instead. A snapshot is compared
+ * against the directory's modification time again only after it has been
+ * used for {@link #RECHECK_INTERVAL} milliseconds, so a loose object written
+ * by another process may not be seen until then. Objects written by this
+ * process should be reported through {@link #add(AnyObjectId)}.
+ */
+class LooseObjectCache {
+	/** Milliseconds a snapshot is trusted before its directory is checked. */
+	static final long RECHECK_INTERVAL = 1000;
+
+	private final File objects;
+
+	private final AtomicReferenceArray<Listing> dirs;
+
+	/**
+	 * Create an empty cache.
+	 *
+	 * @param objects
+	 *            the <code>objects</code> directory holding the loose objects.
+	 */
+	LooseObjectCache(final File objects) {
+		this.objects = objects;
+		this.dirs = new AtomicReferenceArray<Listing>(256);
+	}
+
+	/**
+	 * Determine if a loose object may exist.
+	 *
+	 * @param objectName
+	 *            name of the object.
+	 * @return false if the object was not in the directory when it was last
+	 *         listed; true if it was.
+	 */
+	boolean contains(final String objectName) {
+		final int d = fanout(objectName);
+		final long now = System.currentTimeMillis();
+		Listing l = dirs.get(d);
+		if (l == null || (l.lastChecked + RECHECK_INTERVAL < now && !l
+				.isCurrent(dir(objectName), now))) {
+			l = new Listing(dir(objectName), now);
+			dirs.set(d, l);
+		}
+		return l.names.contains(objectName.substring(2));
+	}
+
+	/**
+	 * Record a loose object written by this process.
+	 *
+	 * @param objectId
+	 *            the object now stored loose.
+	 */
+	void add(final AnyObjectId objectId) {
+		final String name = objectId.name();
+		final int d = fanout(name);
+		for (;;) {
+			final Listing o = dirs.get(d);
+			if (o == null || o.names.contains(name.substring(2)))
+				return;
+			if (dirs.compareAndSet(d, o, o.add(name.substring(2))))
+				return;
+		}
+	}
+
+	private File dir(final String objectName) {
+		return new File(objects, objectName.substring(0, 2));
+	}
+
+	private static int fanout(final String objectName) {
+		return Character.digit(objectName.charAt(0), 16) << 4
+				| Character.digit(objectName.charAt(1), 16);
+	}
+
+	private static class Listing {
+		/** Last modification time of the directory when it was listed. */
+		final long lastModified;
+
+		/** Wall-clock time the directory was listed. */
+		final long lastRead;
+
+		/** Names of the files in the directory. */
+		final Set<String> names;
+
+		/** Last wall-clock time the listing was known to be current. */
+		volatile long lastChecked;
+
+		Listing(final File dir, final long now) {
+			lastModified = dir.lastModified();
+			lastRead = now;
+			lastChecked = now;
+			final String[] list = dir.list();
+			if (list != null)
+				names = new HashSet<String>(Arrays.asList(list));
+			else
+				names = Collections.emptySet();
+		}
+
+		private Listing(final Listing o, final String name) {
+			lastModified = o.lastModified;
+			lastRead = o.lastRead;
+			lastChecked = o.lastChecked;
+			names = new HashSet<String>(o.names);
+			names.add(name);
+		}
+
+		Listing add(final String name) {
+			return new Listing(this, name);
+		}
+
+		boolean isCurrent(final File dir, final long now) {
+			// A listing taken too close to the last modification may
+			// have missed a file created within the same timestamp.
+			//
+			if (lastRead - lastModified <= 2 * 60 * 1000L)
+				return false;
+			if (dir.lastModified() != lastModified)
+				return false;
+			lastChecked = now;
+			return true;
+		}
+	}
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.spearce.jgit.util.NB;
+import org.spearce.jgit.util.RawParseUtils;
+
+/**
+ * A single index over the objects of several packs.
+ * <p>
+ * Each {@link PackIndex} only answers for its own pack, so a directory holding
+ * hundreds of packs may need hundreds of binary searches to locate one object.
+ * A multi-pack index merges the object names of many packs into one sorted
+ * table, mapping each object to the pack holding it and its offset within
+ * that pack, so a single search is enough.
+ * <p>
+ * The file is stored as <code>objects/pack/jgit-multi-pack-index</code>. Its
+ * layout is private to jgit, so it deliberately avoids the name and signature
+ * of C git's <code>multi-pack-index</code>, which C git would refuse to load:
+ * <ul>
+ * <li>the signature <code>JMDX</code> and a 4 byte version number, 1;</li>
+ * <li>the 4 byte number of packs, and for each pack the 4 byte length of its
+ * file name, the UTF-8 encoded name, e.g. <code>pack-1234...abcd.pack</code>,
+ * and the 20 byte checksum of the pack content;</li>
+ * <li>the standard 256 entry fan-out table;</li>
+ * <li>the sorted object names;</li>
+ * <li>for each object, the 4 byte position of its pack in the pack table;</li>
+ * <li>for each object, its 32 bit offset, and then the table of 64 bit offsets,
+ * encoded exactly as in the version 2 pack index;</li>
+ * <li>the SHA-1 checksum of all preceding bytes.</li>
+ * </ul>
+ * <p>
+ * An object stored in more than one pack is attributed to the pack sorting
+ * first according to {@link PackFile#SORT}, which is the pack a sequential
+ * search would have found it in.
+ */
+class MultiPackIndex {
+	/** Name of the index file within the pack directory. */
+	static final String FILE_NAME = "jgit-multi-pack-index";
+
+	private static final byte[] SIGNATURE = { 'J', 'M', 'D', 'X' };
+
+	private static final int VERSION = 1;
+
+	private static final long IS_O64 = 1L << 31;
+
+	private static final int FANOUT = 256;
+
+	/**
+	 * Read a multi-pack index file.
+	 *
+	 * @param file
+	 *            the file to read.
+	 * @return the parsed index.
+	 * @throws IOException
+	 *             the file cannot be read, or is corrupt.
+	 */
+	static MultiPackIndex open(final File file) throws IOException {
+		final long lastModified = file.lastModified();
+		final long length = file.length();
+		if (length > Integer.MAX_VALUE)
+			throw new IOException("Multi-pack index is too large for jgit: "
+					+ file);
+
+		final byte[] buf = new byte[(int) length];
+		final FileInputStream in = new FileInputStream(file);
+		try {
+			NB.readFully(in, buf, 0, buf.length);
+		} finally {
+			in.close();
+		}
+
+		try {
+			return new MultiPackIndex(file, lastModified, buf);
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Truncated multi-pack index: " + file);
+		}
+	}
+
+	/**
+	 * Write a multi-pack index covering the given packs.
+	 *
+	 * @param out
+	 *            stream to write the index to. The stream is flushed but not
+	 *            closed.
+	 * @param packs
+	 *            the packs to index, sorted by {@link PackFile#SORT}.
+	 * @throws IOException
+	 *             a pack index cannot be read, or the stream cannot be written.
+	 */
+	static void write(final OutputStream out, final PackFile[] packs)
+			throws IOException {
+		final ObjectIdSubclassMap<Entry> all = new ObjectIdSubclassMap<Entry>();
+		final List<byte[]> checksums = new ArrayList<byte[]>(packs.length);
+		for (int packId = 0; packId < packs.length; packId++) {
+			final PackIndex idx = packs[packId].getIndex();
+			checksums.add(idx.packChecksum);
+			for (final PackIndex.MutableEntry e : idx) {
+				final ObjectId id = e.toObjectId();
+				if (all.get(id) == null)
+					all.add(new Entry(id, packId, e.getOffset()));
+			}
+		}
+
+		final Entry[] entries = new Entry[all.size()];
+		int n = 0;
+		for (final Entry e : all)
+			entries[n++] = e;
+		Arrays.sort(entries);
+
+		final MessageDigest md = Constants.newMessageDigest();
+		final DigestOutputStream dos = new DigestOutputStream(
+				new BufferedOutputStream(out), md);
+		final byte[] tmp = new byte[8];
+
+		dos.write(SIGNATURE);
+		NB.encodeInt32(tmp, 0, VERSION);
+		dos.write(tmp, 0, 4);
+		NB.encodeInt32(tmp, 0, packs.length);
+		dos.write(tmp, 0, 4);
+		for (int packId = 0; packId < packs.length; packId++) {
+			final byte[] name = Constants.encode(packs[packId].getPackFile()
+					.getName());
+			NB.encodeInt32(tmp, 0, name.length);
+			dos.write(tmp, 0, 4);
+			dos.write(name);
+			dos.write(checksums.get(packId));
+		}
+
+		final int[] fanout = new int[FANOUT];
+		for (final Entry e : entries)
+			fanout[e.getFirstByte()]++;
+		for (int i = 1; i < FANOUT; i++)
+			fanout[i] += fanout[i - 1];
+		for (final int f : fanout) {
+			NB.encodeInt32(tmp, 0, f);
+			dos.write(tmp, 0, 4);
+		}
+
+		final byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+		for (final Entry e : entries) {
+			e.copyRawTo(raw, 0);
+			dos.write(raw);
+		}
+		for (final Entry e : entries) {
+			NB.encodeInt32(tmp, 0, e.packId);
+			dos.write(tmp, 0, 4);
+		}
+		int o64 = 0;
+		for (final Entry e : entries) {
+			if (e.offset < Integer.MAX_VALUE)
+				NB.encodeInt32(tmp, 0, (int) e.offset);
+			else
+				NB.encodeInt32(tmp, 0, (1 << 31) | o64++);
+			dos.write(tmp, 0, 4);
+		}
+		for (final Entry e : entries) {
+			if (e.offset >= Integer.MAX_VALUE) {
+				NB.encodeInt64(tmp, 0, e.offset);
+				dos.write(tmp, 0, 8);
+			}
+		}
+
+		dos.on(false);
+		dos.write(md.digest());
+		dos.flush();
+	}
+
+	private final long lastModified;
+
+	private final long length;
+
+	/** Names of the indexed pack files, by pack position. */
+	private final String[] packNames;
+
+	/** Checksums of the indexed pack files, by pack position. */
+	private final byte[][] packChecksums;
+
+	private final long[] fanoutTable;
+
+	/** Object names, 5 ints per object. */
+	private final int[] names;
+
+	private final int[] packIds;
+
+	private final int[] offset32;
+
+	private final long[] offset64;
+
+	private MultiPackIndex(final File file, final long lastModified,
+			final byte[] buf) throws IOException {
+		this.lastModified = lastModified;
+		this.length = buf.length;
+
+		final int trailer = buf.length - Constants.OBJECT_ID_LENGTH;
+		final MessageDigest md = Constants.newMessageDigest();
+		md.update(buf, 0, trailer);
+		if (!Arrays.equals(md.digest(), slice(buf, trailer,
+				Constants.OBJECT_ID_LENGTH)))
+			throw new IOException("Multi-pack index checksum mismatch: "
+					+ file);
+		if (!Arrays.equals(SIGNATURE, slice(buf, 0, SIGNATURE.length)))
+			throw new IOException("Not a multi-pack index: " + file);
+		final int version = NB.decodeInt32(buf, 4);
+		if (version != VERSION)
+			throw new IOException("Unsupported multi-pack index version "
+					+ version + ": " + file);
+
+		int ptr = 8;
+		final int packCnt = NB.decodeInt32(buf, ptr);
+		ptr += 4;
+		packNames = new String[packCnt];
+		packChecksums = new byte[packCnt][];
+		for (int i = 0; i < packCnt; i++) {
+			final int nameLen = NB.decodeInt32(buf, ptr);
+			ptr += 4;
+			if (nameLen < 0 || nameLen > trailer - ptr)
+				throw new IOException("Corrupt multi-pack index: " + file);
+			packNames[i] = RawParseUtils.decode(buf, ptr, ptr + nameLen);
+			ptr += nameLen;
+			packChecksums[i] = slice(buf, ptr, Constants.OBJECT_ID_LENGTH);
+			ptr += Constants.OBJECT_ID_LENGTH;
+		}
+
+		fanoutTable = new long[FANOUT];
+		for (int k = 0; k < FANOUT; k++, ptr += 4)
+			fanoutTable[k] = NB.decodeUInt32(buf, ptr);
+		final long objectCnt = fanoutTable[FANOUT - 1];
+		if (objectCnt * (Constants.OBJECT_ID_LENGTH + 8) > trailer - ptr)
+			throw new IOException("Truncated multi-pack index: " + file);
+		final int cnt = (int) objectCnt;
+
+		names = new int[cnt * 5];
+		for (int i = 0; i < names.length; i++, ptr += 4)
+			names[i] = NB.decodeInt32(buf, ptr);
+
+		packIds = new int[cnt];
+		for (int i = 0; i < cnt; i++, ptr += 4) {
+			packIds[i] = NB.decodeInt32(buf, ptr);
+			if (packIds[i] < 0 || packIds[i] >= packCnt)
+				throw new IOException("Corrupt multi-pack index: " + file);
+		}
+
+		offset32 = new int[cnt];
+		for (int i = 0; i < cnt; i++, ptr += 4)
+			offset32[i] = NB.decodeInt32(buf, ptr);
+
+		if ((trailer - ptr) % 8 != 0)
+			throw new IOException("Corrupt multi-pack index: " + file);
+		offset64 = new long[(trailer - ptr) / 8];
+		for (int i = 0; i < offset64.length; i++, ptr += 8)
+			offset64[i] = NB.decodeUInt64(buf, ptr);
+	}
+
+	/**
+	 * Determine if this index still describes the file on disk.
+	 *
+	 * @param file
+	 *            location of the index file.
+	 * @return true if the file has not been modified since it was read.
+	 */
+	boolean isCurrent(final File file) {
+		return file.lastModified() == lastModified && file.length() == length;
+	}
+
+	/** @return number of packs covered by this index. */
+	int getPackCount() {
+		return packNames.length;
+	}
+
+	/**
+	 * @param packId
+	 *            position of the pack within this index.
+	 * @return file name of the pack, e.g. <code>pack-1234...abcd.pack</code>.
+	 */
+	String getPackName(final int packId) {
+		return packNames[packId];
+	}
+
+	/**
+	 * @param packId
+	 *            position of the pack within this index.
+	 * @return checksum of the pack content when the index was written.
+	 */
+	byte[] getPackChecksum(final int packId) {
+		return packChecksums[packId];
+	}
+
+	/** @return total number of distinct objects in the index. */
+	int getObjectCount() {
+		return packIds.length;
+	}
+
+	/**
+	 * Locate an object.
+	 *
+	 * @param objId
+	 *            the object to search for.
+	 * @return position of the object within this index; -1 if not present.
+	 */
+	int find(final AnyObjectId objId) {
+		final int levelOne = objId.getFirstByte();
+		int low = levelOne > 0 ? (int) fanoutTable[levelOne - 1] : 0;
+		int high = (int) fanoutTable[levelOne];
+		while (low < high) {
+			final int mid = (low + high) >>> 1;
+			final int cmp = objId.compareTo(names, (mid << 2) + mid);
+			if (cmp < 0)
+				high = mid;
+			else if (cmp == 0)
+				return mid;
+			else
+				low = mid + 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param position
+	 *            position of an object, as returned by {@link #find(AnyObjectId)}.
+	 * @return position of the pack holding the object.
+	 */
+	int getPackId(final int position) {
+		return packIds[position];
+	}
+
+	/**
+	 * @param position
+	 *            position of an object, as returned by {@link #find(AnyObjectId)}.
+	 * @return offset of the object within its pack.
+	 */
+	long getOffset(final int position) {
+		final int p = offset32[position];
+		if ((p & IS_O64) != 0)
+			return offset64[p & ~(int) IS_O64];
+		return p & 0xffffffffL;
+	}
+
+	/**
+	 * @param position
+	 *            position of an object within this index.
+	 * @return name of the object.
+	 */
+	ObjectId getObjectId(final int position) {
+		return ObjectId.fromRaw(names, (position << 2) + position);
+	}
+
+	private static byte[] slice(final byte[] buf, final int ptr, final int len) {
+		final byte[] r = new byte[len];
+		System.arraycopy(buf, ptr, r, 0, len);
+		return r;
+	}
+
+	private static class Entry extends ObjectId {
+		final int packId;
+
+		final long offset;
+
+		Entry(final AnyObjectId id, final int packId, final long offset) {
+			super(id);
+			this.packId = packId;
+			this.offset = offset;
+		}
+	}
+}
@@ -38,7 +38,14 @@
 package org.spearce.jgit.lib;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -274,6 +281,168 @@ protected ObjectLoader openObject2(WindowCursor curs, String objectName,
 		return null;
 	}
 
+	/**
+	 * Determine which of several objects do not exist in this database.
+	 * <p>
+	 * Alternates (if present) are searched automatically. The result is the
+	 * same as calling {@link #hasObject(AnyObjectId)} for each object, but the
+	 * pack list and alternates are walked once for the whole batch.
+	 *
+	 * @param objectIds
+	 *            identities of the objects to test for existence of.
+	 * @return the objects not stored in this database, or any of the alternate
+	 *         databases. Empty if all of them exist.
+	 */
+	public final Set<ObjectId> findMissing(
+			final Collection<? extends AnyObjectId> objectIds) {
+		final Set<ObjectId> found = new HashSet<ObjectId>();
+		final List<ObjectId> rest = hasObjectsImpl1(sort(objectIds), found);
+		final Set<ObjectId> missing = new HashSet<ObjectId>();
+		for (final ObjectId id : rest) {
+			if (!hasObjectImpl2(id.name()))
+				missing.add(id);
+		}
+		return missing;
+	}
+
+	private List<ObjectId> hasObjectsImpl1(List<ObjectId> ids,
+			final Set<ObjectId> found) {
+		hasObjects1(ids, found);
+		ids = remaining(ids, found);
+		for (final ObjectDatabase alt : getAlternates()) {
+			if (ids.isEmpty())
+				return ids;
+			ids = alt.hasObjectsImpl1(ids, found);
+		}
+		if (!ids.isEmpty() && tryAgain1()) {
+			hasObjects1(ids, found);
+			ids = remaining(ids, found);
+		}
+		return ids;
+	}
+
+	/**
+	 * Fast half of {@link #findMissing(Collection)}.
+	 * <p>
+	 * The default implementation calls {@link #hasObject1(AnyObjectId)} once
+	 * per object; implementations able to search many objects at once should
+	 * override it.
+	 *
+	 * @param objectIds
+	 *            identities of the objects to test for existence of, sorted.
+	 * @param found
+	 *            receives each object stored in this database.
+	 */
+	protected void hasObjects1(final List<ObjectId> objectIds,
+			final Set<ObjectId> found) {
+		for (final ObjectId id : objectIds) {
+			if (hasObject1(id))
+				found.add(id);
+		}
+	}
+
+	/**
+	 * Open several objects from this database.
+	 * <p>
+	 * Alternates (if present) are searched automatically. The result is the
+	 * same as calling {@link #openObject(WindowCursor, AnyObjectId)} for each
+	 * object, but the pack list and alternates are walked once for the whole
+	 * batch, and objects stored in the same pack are opened in the order they
+	 * appear in that pack.
+	 * <p>
+	 * Every returned loader holds its object's inflated content, so the whole
+	 * batch is in memory at once. Callers handling objects of unbounded size
+	 * should open them one at a time instead.
+	 *
+	 * @param curs
+	 *            temporary working space associated with the calling thread.
+	 * @param objectIds
+	 *            identities of the objects to open.
+	 * @param missing
+	 *            if not null, receives each object that does not exist.
+	 * @return loaders for the objects that exist, keyed by their identity.
+	 * @throws IOException
+	 */
+	public final Map<ObjectId, ObjectLoader> openObjects(
+			final WindowCursor curs,
+			final Collection<? extends AnyObjectId> objectIds,
+			final Collection<ObjectId> missing) throws IOException {
+		final Map<ObjectId, ObjectLoader> found;
+		found = new HashMap<ObjectId, ObjectLoader>();
+		final List<ObjectId> rest = openObjectsImpl1(curs, sort(objectIds),
+				found);
+		for (final ObjectId id : rest) {
+			final ObjectLoader ldr = openObjectImpl2(curs, id.name(), id);
+			if (ldr != null)
+				found.put(id, ldr);
+			else if (missing != null)
+				missing.add(id);
+		}
+		return found;
+	}
+
+	private List<ObjectId> openObjectsImpl1(final WindowCursor curs,
+			List<ObjectId> ids, final Map<ObjectId, ObjectLoader> found)
+			throws IOException {
+		openObjects1(curs, ids, found);
+		ids = remaining(ids, found.keySet());
+		for (final ObjectDatabase alt : getAlternates()) {
+			if (ids.isEmpty())
+				return ids;
+			ids = alt.openObjectsImpl1(curs, ids, found);
+		}
+		if (!ids.isEmpty() && tryAgain1()) {
+			openObjects1(curs, ids, found);
+			ids = remaining(ids, found.keySet());
+		}
+		return ids;
+	}
+
+	/**
+	 * Fast half of {@link #openObjects(WindowCursor, Collection, Collection)}.
+	 * <p>
+	 * The default implementation calls
+	 * {@link #openObject1(WindowCursor, AnyObjectId)} once per object;
+	 * implementations able to search many objects at once should override it.
+	 *
+	 * @param curs
+	 *            temporary working space associated with the calling thread.
+	 * @param objectIds
+	 *            identities of the objects to open, sorted.
+	 * @param found
+	 *            receives a loader for each object stored in this database.
+	 * @throws IOException
+	 */
+	protected void openObjects1(final WindowCursor curs,
+			final List<ObjectId> objectIds,
+			final Map<ObjectId, ObjectLoader> found) throws IOException {
+		for (final ObjectId id : objectIds) {
+			final ObjectLoader ldr = openObject1(curs, id);
+			if (ldr != null)
+				found.put(id, ldr);
+		}
+	}
+
+	private static List<ObjectId> sort(
+			final Collection<? extends AnyObjectId> objectIds) {
+		final Set<ObjectId> unique = new HashSet<ObjectId>();
+		for (final AnyObjectId id : objectIds)
+			unique.add(id.copy());
+		final ObjectId[] r = unique.toArray(new ObjectId[unique.size()]);
+		Arrays.sort(r);
+		return Arrays.asList(r);
+	}
+
+	private static List<ObjectId> remaining(final List<ObjectId> ids,
+			final Set<ObjectId> found) {
+		final List<ObjectId> r = new ArrayList<ObjectId>(ids.size());
+		for (final ObjectId id : ids) {
+			if (!found.contains(id))
+				r.add(id);
+		}
+		return r;
+	}
+
 	/**
 	 * Open the object from all packs containing it.
 	 * <p>
@@ -42,6 +42,7 @@
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -53,6 +54,7 @@
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicReference;
 
+import org.spearce.jgit.errors.ObjectWritingException;
 import org.spearce.jgit.errors.PackMismatchException;
 import org.spearce.jgit.lib.RepositoryCache.FileKey;
 import org.spearce.jgit.util.FS;
@@ -64,6 +66,10 @@
  * where objects are stored loose by hashing them into directories by their
  * {@link ObjectId}, or are stored in compressed containers known as
  * {@link PackFile}s.
+ * <p>
+ * If the pack directory holds a <code>jgit-multi-pack-index</code> file (see
+ * {@link #writeMultiPackIndex()}) the packs it covers are searched with a
+ * single lookup in that index, rather than one lookup per pack.
  */
 public class ObjectDirectory extends ObjectDatabase {
 	private static final PackList NO_PACKS = new PackList(-1, -1, new PackFile[0]);
@@ -76,8 +82,16 @@ public class ObjectDirectory extends ObjectDatabase {
 
 	private final File alternatesFile;
 
+	private final File multiPackIndexFile;
+
+	private final File commitGraphFile;
+
+	private volatile CommitGraph commitGraph;
+
 	private final AtomicReference<PackList> packList;
 
+	private volatile LooseObjectCache looseObjects;
+
 	/**
 	 * Initialize a reference to an on-disk object directory.
 	 *
@@ -89,6 +103,8 @@ public ObjectDirectory(final File dir) {
 		infoDirectory = new File(objects, "info");
 		packDirectory = new File(objects, "pack");
 		alternatesFile = new File(infoDirectory, "alternates");
+		multiPackIndexFile = new File(packDirectory, MultiPackIndex.FILE_NAME);
+		commitGraphFile = new File(infoDirectory, CommitGraph.FILE_NAME);
 		packList = new AtomicReference<PackList>(NO_PACKS);
 	}
 
@@ -117,6 +133,7 @@ public void closeSelf() {
 		packList.set(NO_PACKS);
 		for (final PackFile p : packs.packs)
 			p.close();
+		commitGraph = null;
 	}
 
 	/**
@@ -130,6 +147,43 @@ public File fileFor(final AnyObjectId objectId) {
 		return fileFor(objectId.name());
 	}
 
+	/**
+	 * Enable or disable caching of the loose object directory listings.
+	 * <p>
+	 * While enabled, a lookup for an object that is not stored loose is
+	 * answered from a snapshot of its <code>objects/xx</code> directory rather
+	 * than by asking the filesystem. The snapshot is refreshed when the
+	 * directory's modification time changes, but is only compared with it
+	 * about once a second, so an object written by another process may be
+	 * briefly invisible. Plain directory alternates opened later inherit the
+	 * setting.
+	 *
+	 * @param enable
+	 *            true to cache the listings; false to stat each object file.
+	 */
+	public void setLooseObjectCache(final boolean enable) {
+		if (!enable)
+			looseObjects = null;
+		else if (looseObjects == null)
+			looseObjects = new LooseObjectCache(objects);
+	}
+
+	/**
+	 * Record that a loose object was written by this process.
+	 * <p>
+	 * Writers placing a new file at {@link #fileFor(AnyObjectId)} should call
+	 * this so the object is immediately visible while the loose object cache
+	 * is enabled.
+	 *
+	 * @param objectId
+	 *            the object just written.
+	 */
+	public void looseObjectWritten(final AnyObjectId objectId) {
+		final LooseObjectCache c = looseObjects;
+		if (c != null)
+			c.add(objectId);
+	}
+
 	private File fileFor(final String objectName) {
 		final String d = objectName.substring(0, 2);
 		final String f = objectName.substring(2);
@@ -163,6 +217,118 @@ public void openPack(final File pack, final File idx) throws IOException {
 		insertPack(new PackFile(idx, pack));
 	}
 
+	/**
+	 * Scan the pack directory and load every pack's index now.
+	 * <p>
+	 * Normally the directory is scanned on the first object lookup, and each
+	 * index is loaded the first time its pack is searched. Calling this method
+	 * moves that cost up front. Packs whose index cannot be read are dropped,
+	 * as they would be by a lookup.
+	 *
+	 * @see RepositoryCache#warmUp(Collection, int)
+	 */
+	public void preloadPackIndexes() {
+		for (final PackFile p : rescanPacks())
+			loadIndex(p);
+	}
+
+	/** @return the packs found by scanning the pack directory now. */
+	PackFile[] rescanPacks() {
+		return scanPacks(packList.get()).packs;
+	}
+
+	/** @return the packs currently known, scanning for them on first use. */
+	PackFile[] getPacks() {
+		final PackList p = packList.get();
+		if (p == NO_PACKS)
+			return scanPacks(p).packs;
+		return p.packs;
+	}
+
+	/**
+	 * Load the index of one pack, dropping the pack if that fails.
+	 *
+	 * @param p
+	 *            a pack returned by {@link #rescanPacks()}.
+	 */
+	void loadIndex(final PackFile p) {
+		try {
+			p.getIndex();
+		} catch (IOException e) {
+			// As in hasObject1, an unreadable index makes the
+			// pack unreadable by this process.
+			//
+			removePack(p);
+		}
+	}
+
+	/**
+	 * Get the commit graph of this directory, if one was written.
+	 * <p>
+	 * The graph is read once, and read again only if the file changes.
+	 *
+	 * @return the graph; null if there is none, or it cannot be read.
+	 * @see CommitGraphWriter
+	 */
+	public CommitGraph getCommitGraph() {
+		CommitGraph g = commitGraph;
+		if (g != null && g.isCurrent(commitGraphFile))
+			return g;
+		if (!commitGraphFile.isFile()) {
+			commitGraph = null;
+			return null;
+		}
+		try {
+			g = CommitGraph.open(commitGraphFile);
+		} catch (IOException e) {
+			// An unreadable graph only costs us speed; the commits
+			// can still be parsed from their objects.
+			//
+			g = null;
+		}
+		commitGraph = g;
+		return g;
+	}
+
+	/** @return location of the commit graph file. */
+	File getCommitGraphFile() {
+		return commitGraphFile;
+	}
+
+	/**
+	 * Write a multi-pack index covering every pack of this directory.
+	 * <p>
+	 * Once written, objects in the covered packs are located with a single
+	 * search of the combined index. Packs added later are searched one at a
+	 * time as usual, until the index is written again.
+	 *
+	 * @throws IOException
+	 *             a pack index cannot be read, or the combined index cannot be
+	 *             written.
+	 */
+	public void writeMultiPackIndex() throws IOException {
+		final PackList pList = scanPacks(packList.get());
+		final LockFile lck = new LockFile(multiPackIndexFile);
+		if (!lck.lock())
+			throw new ObjectWritingException("Unable to lock "
+					+ multiPackIndexFile);
+		try {
+			final OutputStream out = lck.getOutputStream();
+			try {
+				MultiPackIndex.write(out, pList.packs);
+			} finally {
+				out.close();
+			}
+		} catch (IOException err) {
+			lck.unlock();
+			throw err;
+		}
+		if (!lck.commit())
+			throw new ObjectWritingException("Unable to write "
+					+ multiPackIndexFile);
+		scanPacks(packList.get());
+	}
+
 	@Override
 	public String toString() {
 		return "ObjectDirectory[" + getDirectory() + "]";
@@ -170,7 +336,10 @@ public String toString() {
 
 	@Override
 	protected boolean hasObject1(final AnyObjectId objectId) {
-		for (final PackFile p : packList.get().packs) {
+		final PackList pList = packList.get();
+		if (pList.usesMultiPackIndex() && pList.midx.find(objectId) >= 0)
+			return true;
+		for (final PackFile p : pList.uncovered) {
 			try {
 				if (p.hasObject(objectId)) {
 					return true;
@@ -192,7 +361,39 @@ protected ObjectLoader openObject1(final WindowCursor curs,
 			final AnyObjectId objectId) throws IOException {
 		PackList pList = packList.get();
 		SEARCH: for (;;) {
-			for (final PackFile p : pList.packs) {
+			if (pList.usesMultiPackIndex()) {
+				final int pos = pList.midx.find(objectId);
+				if (pos >= 0) {
+					final int packId = pList.midx.getPackId(pos);
+					final PackFile p = pList.midxPacks[packId];
+					try {
+						if (!pList.verify(packId)) {
+							// The pack was rewritten since the combined
+							// index was, so its offsets cannot be trusted.
+							//
+							pList = dropMultiPackIndex(pList);
+							continue SEARCH;
+						}
+						final PackedObjectLoader ldr;
+						ldr = p.get(curs, pList.midx.getOffset(pos));
+						ldr.materialize(curs);
+						return ldr;
+					} catch (PackMismatchException e) {
+						// Pack was modified; refresh the entire pack list.
+						//
+						pList = scanPacks(pList);
+						continue SEARCH;
+					} catch (IOException e) {
+						// Assume the pack is corrupted. Without it the
+						// combined index is no longer usable.
+						//
+						removePack(p);
+						pList = packList.get();
+						continue SEARCH;
+					}
+				}
+			}
+			for (final PackFile p : pList.uncovered) {
 				try {
 					final PackedObjectLoader ldr = p.get(curs, objectId);
 					if (ldr != null) {
@@ -214,6 +415,135 @@ protected ObjectLoader openObject1(final WindowCursor curs,
 		}
 	}
 
+	@Override
+	protected void hasObjects1(final List<ObjectId> objectIds,
+			final Set<ObjectId> found) {
+		final PackList pList = packList.get();
+		List<ObjectId> rest = objectIds;
+		if (pList.usesMultiPackIndex()) {
+			rest = new ArrayList<ObjectId>(objectIds.size());
+			for (final ObjectId id : objectIds) {
+				if (pList.midx.find(id) >= 0)
+					found.add(id);
+				else
+					rest.add(id);
+			}
+		}
+		for (final PackFile p : pList.uncovered) {
+			if (rest.isEmpty())
+				return;
+			try {
+				final PackIndex idx = p.getIndex();
+				final List<ObjectId> next = new ArrayList<ObjectId>(rest
+						.size());
+				for (final ObjectId id : rest) {
+					if (idx.hasObject(id))
+						found.add(id);
+					else
+						next.add(id);
+				}
+				rest = next;
+			} catch (IOException e) {
+				// Only the index was touched; as in hasObject1 the
+				// pack is unreadable by this process.
+				//
+				removePack(p);
+			}
+		}
+	}
+
+	@Override
+	protected void openObjects1(final WindowCursor curs,
+			final List<ObjectId> objectIds,
+			final Map<ObjectId, ObjectLoader> found) throws IOException {
+		PackList pList = packList.get();
+		SEARCH: for (;;) {
+			final List<Location> todo = locate(pList, objectIds, found);
+			Collections.sort(todo);
+			for (final Location loc : todo) {
+				try {
+					if (loc.packId >= 0 && !pList.verify(loc.packId)) {
+						// The pack was rewritten since the combined
+						// index was, so its offsets cannot be trusted.
+						//
+						pList = dropMultiPackIndex(pList);
+						continue SEARCH;
+					}
+					final PackedObjectLoader ldr;
+					ldr = loc.pack.get(curs, loc.offset);
+					ldr.materialize(curs);
+					found.put(loc.id, ldr);
+				} catch (PackMismatchException e) {
+					// Pack was modified; refresh the entire pack list.
+					//
+					pList = scanPacks(pList);
+					continue SEARCH;
+				} catch (IOException e) {
+					// Assume the pack is corrupted.
+					//
+					removePack(loc.pack);
+					pList = packList.get();
+					continue SEARCH;
+				}
+			}
+			return;
+		}
+	}
+
+	/**
+	 * Find the pack and offset of each object not yet found.
+	 * <p>
+	 * Packs are searched in the same order as by {@link #openObject1}, so the
+	 * same copy of an object stored in several packs is chosen.
+	 */
+	private List<Location> locate(final PackList pList,
+			final List<ObjectId> objectIds,
+			final Map<ObjectId, ObjectLoader> found) {
+		final List<Location> r = new ArrayList<Location>();
+		List<ObjectId> rest = new ArrayList<ObjectId>(objectIds.size());
+		for (final ObjectId id : objectIds) {
+			if (!found.containsKey(id))
+				rest.add(id);
+		}
+		if (pList.usesMultiPackIndex()) {
+			final List<ObjectId> next = new ArrayList<ObjectId>(rest.size());
+			for (final ObjectId id : rest) {
+				final int pos = pList.midx.find(id);
+				if (pos >= 0) {
+					final int packId = pList.midx.getPackId(pos);
+					r.add(new Location(id, pList.midxPacks[packId], packId,
+							pList.midx.getOffset(pos)));
+				} else
+					next.add(id);
+			}
+			rest = next;
+		}
+		int order = 0;
+		for (final PackFile p : pList.uncovered) {
+			if (rest.isEmpty())
+				break;
+			try {
+				final PackIndex idx = p.getIndex();
+				final List<ObjectId> next = new ArrayList<ObjectId>(rest
+						.size());
+				for (final ObjectId id : rest) {
+					final long offset = idx.findOffset(id);
+					if (0 < offset)
+						r.add(new Location(id, p, -1 - order, offset));
+					else
+						next.add(id);
+				}
+				rest = next;
+			} catch (IOException e) {
+				// Only the index was touched; the pack is unreadable.
+				//
+				removePack(p);
+			}
+			order++;
+		}
+		return r;
+	}
+
 	@Override
 	void openObjectInAllPacks1(final Collection<PackedObjectLoader> out,
 			final WindowCursor curs, final AnyObjectId objectId)
@@ -243,6 +573,9 @@ void openObjectInAllPacks1(final Collection<PackedObjectLoader> out,
 
 	@Override
 	protected boolean hasObject2(final String objectName) {
+		final LooseObjectCache c = looseObjects;
+		if (c != null && !c.contains(objectName))
+			return false;
 		return fileFor(objectName).exists();
 	}
 
@@ -250,6 +583,9 @@ protected boolean hasObject2(final String objectName) {
 	protected ObjectLoader openObject2(final WindowCursor curs,
 			final String objectName, final AnyObjectId objectId)
 			throws IOException {
+		final LooseObjectCache c = looseObjects;
+		if (c != null && !c.contains(objectName))
+			return null;
 		try {
 			return new UnpackedObjectLoader(fileFor(objectName), objectId);
 		} catch (FileNotFoundException noFile) {
@@ -273,7 +609,8 @@ private void insertPack(final PackFile pf) {
 			final PackFile[] newList = new PackFile[1 + oldList.length];
 			newList[0] = pf;
 			System.arraycopy(oldList, 0, newList, 1, oldList.length);
-			n = new PackList(o.lastRead, o.lastModified, newList);
+			n = new PackList(o.lastRead, o.lastModified, newList, o.midx, o
+					.usesMultiPackIndex());
 		} while (!packList.compareAndSet(o, n));
 	}
 
@@ -290,11 +627,20 @@ private void removePack(final PackFile deadPack) {
 			final PackFile[] newList = new PackFile[oldList.length - 1];
 			System.arraycopy(oldList, 0, newList, 0, j);
 			System.arraycopy(oldList, j + 1, newList, j, newList.length - j);
-			n = new PackList(o.lastRead, o.lastModified, newList);
+			n = new PackList(o.lastRead, o.lastModified, newList, o.midx, o
+					.usesMultiPackIndex());
 		} while (!packList.compareAndSet(o, n));
 		deadPack.close();
 	}
 
+	private PackList dropMultiPackIndex(final PackList o) {
+		final PackList n = new PackList(o.lastRead, o.lastModified, o.packs,
+				o.midx, false);
+		if (packList.compareAndSet(o, n))
+			return n;
+		return packList.get();
+	}
+
 	private static int indexOf(final PackFile[] list, final PackFile pack) {
 		for (int i = 0; i < list.length; i++) {
 			if (list[i] == pack)
@@ -357,24 +703,47 @@ private PackList scanPacksImpl(final PackList old) {
 			foundNew = true;
 		}
 
+		final MultiPackIndex midx = openMultiPackIndex(old);
+
 		// If we did not discover any new files, the modification time was not
 		// changed, and we did not remove any files, then the set of files is
 		// the same as the set we were given. Instead of building a new object
 		// return the same collection.
 		//
-		if (!foundNew && lastModified == old.lastModified && forReuse.isEmpty())
+		if (!foundNew && lastModified == old.lastModified && forReuse.isEmpty()
+				&& midx == old.midx)
 			return old.updateLastRead(lastRead);
 
 		for (final PackFile p : forReuse.values()) {
 			p.close();
 		}
 
+		// A combined index we previously found to be stale stays unused
+		// until it is written again.
+		//
+		final boolean useMidx = midx != old.midx || old.usesMultiPackIndex();
 		if (list.isEmpty())
-			return new PackList(lastRead, lastModified, NO_PACKS.packs);
+			return new PackList(lastRead, lastModified, NO_PACKS.packs, midx,
+					useMidx);
 
 		final PackFile[] r = list.toArray(new PackFile[list.size()]);
 		Arrays.sort(r, PackFile.SORT);
-		return new PackList(lastRead, lastModified, r);
+		return new PackList(lastRead, lastModified, r, midx, useMidx);
+	}
+
+	private MultiPackIndex openMultiPackIndex(final PackList old) {
+		if (old.midx != null && old.midx.isCurrent(multiPackIndexFile))
+			return old.midx;
+		if (!multiPackIndexFile.isFile())
+			return null;
+		try {
+			return MultiPackIndex.open(multiPackIndexFile);
+		} catch (IOException e) {
+			// An unreadable combined index only costs us speed; the
+			// packs can still be searched one at a time.
+			//
+			return null;
+		}
 	}
 
 	private static Map<String, PackFile> reuseMap(final PackList old) {
@@ -446,7 +815,40 @@ private ObjectDatabase openAlternate(final String location)
 			final Repository db = RepositoryCache.open(FileKey.exact(parent));
 			return new AlternateRepositoryDatabase(db);
 		}
-		return new ObjectDirectory(objdir);
+		final ObjectDirectory db = new ObjectDirectory(objdir);
+		db.setLooseObjectCache(looseObjects != null);
+		return db;
+	}
+
+	/** Position of an object in a pack, ordered by pack then offset. */
+	private static final class Location implements Comparable<Location> {
+		final ObjectId id;
+
+		final PackFile pack;
+
+		/**
+		 * Position of {@link #pack} in the multi-pack index; a negative value
+		 * if the pack is not covered by it.
+		 */
+		final int packId;
+
+		final long offset;
+
+		Location(final ObjectId id, final PackFile pack, final int packId,
+				final long offset) {
+			this.id = id;
+			this.pack = pack;
+			this.packId = packId;
+			this.offset = offset;
+		}
+
+		public int compareTo(final Location o) {
+			if (pack != o.pack)
+				return packId < o.packId ? -1 : 1;
+			if (offset != o.offset)
+				return offset < o.offset ? -1 : 1;
+			return 0;
+		}
 	}
 
 	private static final class PackList {
@@ -459,14 +861,94 @@ private static final class PackList {
 		/** All known packs, sorted by {@link PackFile#SORT}. */
 		final PackFile[] packs;
 
+		/** Combined index read from the pack directory; null if none. */
+		final MultiPackIndex midx;
+
+		/**
+		 * Pack for each pack position of {@link #midx}; null if the index is
+		 * not used because it names a pack we do not have.
+		 */
+		final PackFile[] midxPacks;
+
+		/** Packs not covered by {@link #midxPacks}, in {@link #packs} order. */
+		final PackFile[] uncovered;
+
+		/** Packs of {@link #midxPacks} whose checksum was already compared. */
+		private final boolean[] verified;
+
 		private boolean cannotBeRacilyClean;
 
 		PackList(final long lastRead, final long lastModified,
 				final PackFile[] packs) {
+			this(lastRead, lastModified, packs, null, false);
+		}
+
+		PackList(final long lastRead, final long lastModified,
+				final PackFile[] packs, final MultiPackIndex midx,
+				final boolean useMidx) {
 			this.lastRead = lastRead;
 			this.lastModified = lastModified;
 			this.packs = packs;
+			this.midx = midx;
 			this.cannotBeRacilyClean = notRacyClean(lastRead);
+
+			final PackFile[] covered = useMidx ? cover(packs, midx) : null;
+			if (covered != null) {
+				final Set<PackFile> in = new HashSet<PackFile>(Arrays
+						.asList(covered));
+				final List<PackFile> rest = new ArrayList<PackFile>();
+				for (final PackFile p : packs) {
+					if (!in.contains(p))
+						rest.add(p);
+				}
+				midxPacks = covered;
+				uncovered = rest.toArray(new PackFile[rest.size()]);
+				verified = new boolean[covered.length];
+			} else {
+				midxPacks = null;
+				uncovered = packs;
+				verified = null;
+			}
+		}
+
+		private static PackFile[] cover(final PackFile[] packs,
+				final MultiPackIndex midx) {
+			if (midx == null)
+				return null;
+			final Map<String, PackFile> byName = new HashMap<String, PackFile>();
+			for (final PackFile p : packs)
+				byName.put(p.getPackFile().getName(), p);
+			final PackFile[] r = new PackFile[midx.getPackCount()];
+			for (int i = 0; i < r.length; i++) {
+				r[i] = byName.get(midx.getPackName(i));
+				if (r[i] == null)
+					return null;
+			}
+			return r;
+		}
+
+		boolean usesMultiPackIndex() {
+			return midxPacks != null;
+		}
+
+		/**
+		 * Check a covered pack still has the content the index was built from.
+		 *
+		 * @param packId
+		 *            position of the pack in {@link #midx}.
+		 * @return true if the offsets recorded for the pack can be used.
+		 * @throws IOException
+		 *             the pack's own index cannot be read.
+		 */
+		boolean verify(final int packId) throws IOException {
+			if (verified[packId])
+				return true;
+			final byte[] want = midx.getPackChecksum(packId);
+			final byte[] have = midxPacks[packId].getIndex().packChecksum;
+			if (!Arrays.equals(want, have))
+				return false;
+			verified[packId] = true;
+			return true;
 		}
 
 		private boolean notRacyClean(final long read) {
@@ -40,6 +40,8 @@
 import java.io.IOException;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReferenceArray;
@@ -70,10 +72,24 @@
  * comprised of roughly 10% of the cache, and evicting the oldest accessed entry
  * within that window.
  * <p>
+ * Optionally the cache also applies a TinyLFU admission policy. Accesses are
+ * counted in a {@link FrequencySketch}, and when a newly loaded entry would
+ * force another entry out, the entry that was accessed less often recently is
+ * the one discarded. A single pass over many entries that are each used once
+ * (such as a full history walk) then cannot flush entries that concurrent
+ * readers use over and over.
+ * <p>
  * Entities created by the cache are held under SoftReferences, permitting the
  * Java runtime's garbage collector to evict entries when heap memory gets low.
  * Most JREs implement a loose least recently used algorithm for this eviction.
  * <p>
+ * Alternatively entities may also be held strongly, in which case the garbage
+ * collector never drops them and the cache's own limits alone decide what is
+ * kept. In this mode the thread inserting an entry always waits to evict
+ * until the cache is back under its limit, rather than leaving the eviction
+ * to whichever thread is already doing it, so the limit is only exceeded by
+ * entries still being loaded.
+ * <p>
  * The internal hash table does not expand at runtime, instead it is fixed in
  * size at cache creation time. The internal lock table used to gate load
  * invocations is also fixed in size.
@@ -103,6 +119,11 @@
  * {@link OffsetCache.Ref} subclass, as the cached entity may have already been
  * evicted by the JRE's garbage collector.
  * <p>
+ * The cache counts hits, misses, load failures, time spent loading, evictions
+ * and entries cleared by the garbage collector. The counters are striped over
+ * several cache lines so they can be left enabled under heavy concurrent
+ * access.
+ * <p>
  * To maintain higher concurrency workloads, during eviction only one thread
  * performs the eviction work, while other threads can continue to insert new
  * objects in parallel. This means that the cache can be temporarily over limit,
@@ -138,6 +159,24 @@
 	/** Number of {@link #table} buckets to scan for an eviction window. */
 	private final int evictBatch;
 
+	/** True if entries are held strongly, not just through their Ref. */
+	private final boolean strongRefs;
+
+	/** Access frequencies for admission; null if every load is admitted. */
+	private final FrequencySketch sketch;
+
+	private final StripedCounter hitCount = new StripedCounter();
+
+	private final StripedCounter missCount = new StripedCounter();
+
+	private final StripedCounter loadFailureCount = new StripedCounter();
+
+	private final StripedCounter totalLoadTime = new StripedCounter();
+
+	private final StripedCounter evictionCount = new StripedCounter();
+
+	private final StripedCounter clearedCount = new StripedCounter();
+
 	/**
 	 * Create a new cache with a fixed size entry table and lock table.
 	 *
@@ -149,6 +188,28 @@
 	 *            {@link #load(PackFile, long)} invocations.
 	 */
 	OffsetCache(final int tSize, final int lockCount) {
+		this(tSize, lockCount, false, false);
+	}
+
+	/**
+	 * Create a new cache with a fixed size entry table and lock table.
+	 *
+	 * @param tSize
+	 *            number of entries in the entry hash table.
+	 * @param lockCount
+	 *            number of entries in the lock table. This is the maximum
+	 *            concurrency rate for creation of new objects through
+	 *            {@link #load(PackFile, long)} invocations.
+	 * @param admission
+	 *            true to retain a newly loaded entry only if it was accessed
+	 *            more often recently than the entry it would evict.
+	 * @param strong
+	 *            true to hold entries with strong references, so they are only
+	 *            removed by eviction; false to let the garbage collector drop
+	 *            them when memory is low.
+	 */
+	OffsetCache(final int tSize, final int lockCount, final boolean admission,
+			final boolean strong) {
 		if (tSize < 1)
 			throw new IllegalArgumentException("tSize must be >= 1");
 		if (lockCount < 1)
@@ -171,6 +232,8 @@ else if (eb < 4)
 		if (tableSize < eb)
 			eb = tableSize;
 		evictBatch = eb;
+		sketch = admission ? new FrequencySketch(tableSize) : null;
+		strongRefs = strong;
 	}
 
 	/**
@@ -186,12 +249,16 @@ else if (eb < 4)
 	 *             obtained by {@link #load(PackFile, long)}.
 	 */
 	V getOrLoad(final PackFile pack, final long position) throws IOException {
-		final int slot = slot(pack, position);
+		final int hash = hash(pack.hash, position);
+		final int slot = (hash >>> 1) % tableSize;
+		if (sketch != null)
+			sketch.increment(hash);
 		final Entry<V> e1 = table.get(slot);
 		V v = scan(e1, pack, position);
 		if (v != null)
 			return v;
 
+		Entry<V> n;
 		synchronized (lock(pack, position)) {
 			Entry<V> e2 = table.get(slot);
 			if (e2 != e1) {
@@ -200,21 +267,47 @@ V getOrLoad(final PackFile pack, final long position) throws IOException {
 					return v;
 			}
 
-			v = load(pack, position);
+			missCount.increment();
+			pack.cacheMisses.increment();
+			final long start = System.nanoTime();
+			try {
+				v = load(pack, position);
+			} catch (IOException e) {
+				loadFailureCount.increment();
+				throw e;
+			} catch (RuntimeException e) {
+				loadFailureCount.increment();
+				throw e;
+			} catch (Error e) {
+				loadFailureCount.increment();
+				throw e;
+			} finally {
+				totalLoadTime.add(System.nanoTime() - start);
+			}
 			final Ref<V> ref = createRef(pack, position, v);
+			if (strongRefs)
+				ref.strong = v;
 			hit(ref);
 			for (;;) {
-				final Entry<V> n = new Entry<V>(clean(e2), ref);
+				n = new Entry<V>(clean(e2), ref);
 				if (table.compareAndSet(slot, e2, n))
 					break;
 				e2 = table.get(slot);
 			}
 		}
 
-		if (evictLock.tryLock()) {
+		if (strongRefs) {
+			evictLock.lock();
+			try {
+				gc();
+				evict(n, slot);
+			} finally {
+				evictLock.unlock();
+			}
+		} else if (evictLock.tryLock()) {
 			try {
 				gc();
-				evict();
+				evict(n, slot);
 			} finally {
 				evictLock.unlock();
 			}
@@ -230,8 +323,12 @@ private V scan(Entry<V> n, final PackFile pack, final long position) {
 				final V v = r.get();
 				if (v != null) {
 					hit(r);
+					hitCount.increment();
+					pack.cacheHits.increment();
 					return v;
 				}
+				if (!n.dead)
+					clearedCount.increment();
 				n.kill();
 				break;
 			}
@@ -252,7 +349,7 @@ private void hit(final Ref<V> r) {
 		r.lastAccess = c;
 	}
 
-	private void evict() {
+	private void evict(Entry<V> candidate, final int candidateSlot) {
 		while (isFull()) {
 			int ptr = rng.nextInt(tableSize);
 			Entry<V> old = null;
@@ -270,7 +367,17 @@ private void evict() {
 				}
 			}
 			if (old != null) {
+				if (candidate != null && candidate != old && !candidate.dead
+						&& !admit(candidate.ref, old.ref)) {
+					// The new entry is less popular than the one it would
+					// replace. Drop it instead; the caller still has it.
+					//
+					old = candidate;
+					slot = candidateSlot;
+				}
+				candidate = null;
 				old.kill();
+				evictionCount.increment();
 				gc();
 				final Entry<V> e1 = table.get(slot);
 				table.compareAndSet(slot, e1, clean(e1));
@@ -278,6 +385,65 @@ private void evict() {
 		}
 	}
 
+	private boolean admit(final Ref<V> candidate, final Ref<V> victim) {
+		if (sketch == null)
+			return true;
+		final int c = sketch.frequency(hash(candidate.pack.hash,
+				candidate.position));
+		final int v = sketch.frequency(hash(victim.pack.hash, victim.position));
+		return c > v;
+	}
+
+	/** @return number of lookups that found their entry in the cache. */
+	long getHitCount() {
+		return hitCount.get();
+	}
+
+	/** @return number of lookups that had to load their entry. */
+	long getMissCount() {
+		return missCount.get();
+	}
+
+	/** @return number of loads that threw an exception. */
+	long getLoadFailureCount() {
+		return loadFailureCount.get();
+	}
+
+	/** @return total nanoseconds spent loading entries, including failures. */
+	long getTotalLoadTime() {
+		return totalLoadTime.get();
+	}
+
+	/** @return number of entries evicted to stay within the cache limits. */
+	long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	/** @return number of entries dropped by the garbage collector. */
+	long getClearedCount() {
+		return clearedCount.get();
+	}
+
+	/**
+	 * List the entries currently held.
+	 * <p>
+	 * The table is walked without locking, so the list may include entries
+	 * being evicted and omit entries being added concurrently.
+	 *
+	 * @return references of the entries held by the cache.
+	 */
+	@SuppressWarnings("unchecked")
+	List<R> getLiveRefs() {
+		final List<R> r = new ArrayList<R>();
+		for (int s = 0; s < tableSize; s++) {
+			for (Entry<V> e = table.get(s); e != null; e = e.next) {
+				if (!e.dead)
+					r.add((R) e.ref);
+			}
+		}
+		return r;
+	}
+
 	/**
 	 * Clear every entry from the cache.
 	 *<p>
@@ -425,6 +591,8 @@ private void gc() {
 				final Entry<V> e1 = table.get(s);
 				for (Entry<V> n = e1; n != null; n = n.next) {
 					if (n.ref == r) {
+						if (!n.dead)
+							clearedCount.increment();
 						n.dead = true;
 						found = true;
 						break;
@@ -493,6 +661,7 @@ private static <V> Entry<V> clean(Entry<V> top) {
 
 		final void kill() {
 			dead = true;
+			ref.strong = null;
 			ref.enqueue();
 		}
 	}
@@ -510,6 +679,9 @@ final void kill() {
 
 		long lastAccess;
 
+		/** The cached object, if the cache holds entries strongly. */
+		V strong;
+
 		private boolean cleared;
 
 		protected Ref(final PackFile pack, final long position, final V v,
@@ -0,0 +1,427 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import org.spearce.jgit.util.NB;
+
+/**
+ * Reachability bitmaps for selected commits of one pack.
+ * <p>
+ * Bit <i>n</i> of a bitmap stands for the <i>n</i>th object of the pack, in
+ * the order of {@link PackReverseIndex}. The bitmap of a commit has a bit set
+ * for every object reachable from it, so the objects reachable from one set of
+ * commits but not another can be found with a few bitwise operations, instead
+ * of parsing every commit and tree in between.
+ * <p>
+ * The file is stored beside the pack as <code>pack-*.jbitmap</code>. Its
+ * layout is private to jgit, so it deliberately avoids the extension and
+ * signature of C git's EWAH encoded <code>pack-*.bitmap</code>, which C git
+ * would try to load:
+ * <ul>
+ * <li>the signature <code>JBMP</code> and a 4 byte version number, 1;</li>
+ * <li>the checksum of the pack the bitmaps describe;</li>
+ * <li>the 4 byte number of objects in the pack;</li>
+ * <li>one bitmap each of the commits, trees, blobs and tags in the pack;</li>
+ * <li>the 4 byte number of commits with a bitmap, then each commit's name
+ * followed by its bitmap;</li>
+ * <li>the SHA-1 checksum of all preceding bytes.</li>
+ * </ul>
+ * A bitmap is a series of chunks, each covering a run of 64 bit words: a 4 byte
+ * header whose top bit is the value of a run of words with all bits clear or
+ * all bits set, and whose remaining bits are the length of that run; the 4
+ * byte number of literal words following the run; and those literal words.
+ * <p>
+ * The type bitmaps only cover objects reachable from some commit bitmap.
+ */
+class PackBitmapIndex {
+	/** File name extension of the bitmaps, replacing the pack's. */
+	static final String EXTENSION = ".jbitmap";
+
+	private static final byte[] SIGNATURE = { 'J', 'B', 'M', 'P' };
+
+	private static final int VERSION = 1;
+
+	private static final int[] TYPES = { Constants.OBJ_COMMIT,
+			Constants.OBJ_TREE, Constants.OBJ_BLOB, Constants.OBJ_TAG };
+
+	private static final int FILL_ONES = 0x80000000;
+
+	/**
+	 * Read the bitmaps of a pack.
+	 *
+	 * @param file
+	 *            the bitmap file to read.
+	 * @param idx
+	 *            index of the pack.
+	 * @param rev
+	 *            reverse index of the pack.
+	 * @return the parsed bitmaps.
+	 * @throws IOException
+	 *             the file cannot be read, is corrupt, or describes a different
+	 *             pack.
+	 */
+	static PackBitmapIndex open(final File file, final PackIndex idx,
+			final PackReverseIndex rev) throws IOException {
+		final long length = file.length();
+		if (length > Integer.MAX_VALUE)
+			throw new IOException("Pack bitmaps are too large for jgit: "
+					+ file);
+
+		final byte[] buf = new byte[(int) length];
+		final FileInputStream in = new FileInputStream(file);
+		try {
+			NB.readFully(in, buf, 0, buf.length);
+		} finally {
+			in.close();
+		}
+
+		try {
+			final PackBitmapIndex r = new PackBitmapIndex(idx, rev, buf);
+			r.parse(file);
+			return r;
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Truncated pack bitmaps: " + file);
+		}
+	}
+
+	private final PackIndex index;
+
+	private final PackReverseIndex reverseIndex;
+
+	private final int objectCount;
+
+	/** Objects of each type, indexed by type code. */
+	private final BitSet[] types;
+
+	private final ObjectIdSubclassMap<Entry> bitmaps;
+
+	/** Bitmaps in the order they were added or read. */
+	private final List<Entry> entries;
+
+	/** Content of the file the bitmaps were read from; null if built. */
+	private final byte[] buf;
+
+	/**
+	 * Create an empty set of bitmaps, to be filled in and written.
+	 *
+	 * @param idx
+	 *            index of the pack.
+	 * @param rev
+	 *            reverse index of the pack.
+	 */
+	PackBitmapIndex(final PackIndex idx, final PackReverseIndex rev) {
+		this(idx, rev, null);
+	}
+
+	private PackBitmapIndex(final PackIndex idx, final PackReverseIndex rev,
+			final byte[] buf) {
+		index = idx;
+		reverseIndex = rev;
+		objectCount = rev.getObjectCount();
+		types = new BitSet[Constants.OBJ_TAG + 1];
+		for (final int t : TYPES)
+			types[t] = new BitSet(objectCount);
+		bitmaps = new ObjectIdSubclassMap<Entry>();
+		entries = new ArrayList<Entry>();
+		this.buf = buf;
+	}
+
+	private void parse(final File file) throws IOException {
+		final int trailer = buf.length - Constants.OBJECT_ID_LENGTH;
+		final MessageDigest md = Constants.newMessageDigest();
+		md.update(buf, 0, trailer);
+		final byte[] sum = new byte[Constants.OBJECT_ID_LENGTH];
+		System.arraycopy(buf, trailer, sum, 0, sum.length);
+		if (!Arrays.equals(md.digest(), sum))
+			throw new IOException("Pack bitmap checksum mismatch: " + file);
+		for (int i = 0; i < SIGNATURE.length; i++) {
+			if (buf[i] != SIGNATURE[i])
+				throw new IOException("Not a pack bitmap file: " + file);
+		}
+		final int version = NB.decodeInt32(buf, 4);
+		if (version != VERSION)
+			throw new IOException("Unsupported pack bitmap version " + version
+					+ ": " + file);
+
+		final byte[] packSum = new byte[Constants.OBJECT_ID_LENGTH];
+		System.arraycopy(buf, 8, packSum, 0, packSum.length);
+		if (!Arrays.equals(packSum, index.packChecksum)
+				|| NB.decodeInt32(buf, 28) != objectCount)
+			throw new IOException("Pack bitmaps do not match the pack: "
+					+ file);
+
+		int ptr = 32;
+		for (final int t : TYPES)
+			ptr = decode(buf, ptr, types[t]);
+
+		final int cnt = NB.decodeInt32(buf, ptr);
+		ptr += 4;
+		for (int i = 0; i < cnt; i++) {
+			final Entry e = new Entry(ObjectId.fromRaw(buf, ptr), ptr
+					+ Constants.OBJECT_ID_LENGTH);
+			bitmaps.add(e);
+			entries.add(e);
+			ptr = skip(buf, e.offset);
+		}
+		if (ptr != trailer)
+			throw new IOException("Corrupt pack bitmaps: " + file);
+	}
+
+	/** @return number of objects in the pack. */
+	int getObjectCount() {
+		return objectCount;
+	}
+
+	/** @return number of commits with a bitmap. */
+	int getBitmapCount() {
+		return entries.size();
+	}
+
+	/**
+	 * Find the position of an object within the pack.
+	 *
+	 * @param id
+	 *            the object.
+	 * @return bit number of the object; -1 if it is not in the pack.
+	 */
+	int findPosition(final AnyObjectId id) {
+		final long offset = index.findOffset(id);
+		return offset < 0 ? -1 : reverseIndex.findPosition(offset);
+	}
+
+	/**
+	 * @param position
+	 *            bit number of an object.
+	 * @return the name of the object.
+	 */
+	ObjectId getObject(final int position) {
+		return reverseIndex.findObjectByPosition(position);
+	}
+
+	/**
+	 * @param position
+	 *            bit number of an object.
+	 * @return type code of the object; {@link Constants#OBJ_BAD} if it is not
+	 *         reachable from any bitmap.
+	 */
+	int getType(final int position) {
+		for (final int t : TYPES) {
+			if (types[t].get(position))
+				return t;
+		}
+		return Constants.OBJ_BAD;
+	}
+
+	/**
+	 * Record the type of an object, while building bitmaps.
+	 *
+	 * @param position
+	 *            bit number of the object.
+	 * @param type
+	 *            type code of the object.
+	 */
+	void setType(final int position, final int type) {
+		types[type].set(position);
+	}
+
+	/**
+	 * Get the bitmap of a commit.
+	 *
+	 * @param commit
+	 *            the commit.
+	 * @return objects reachable from the commit; null if it has no bitmap. The
+	 *         caller must not modify the returned set.
+	 * @throws IOException
+	 *             the stored bitmap is corrupt.
+	 */
+	BitSet getBitmap(final AnyObjectId commit) throws IOException {
+		final Entry e = bitmaps.get(commit);
+		if (e == null)
+			return null;
+		if (e.bits != null)
+			return e.bits;
+		final BitSet r = new BitSet(objectCount);
+		decode(buf, e.offset, r);
+		return r;
+	}
+
+	/**
+	 * Add the bitmap of a commit, while building bitmaps.
+	 *
+	 * @param commit
+	 *            the commit.
+	 * @param bits
+	 *            objects reachable from the commit.
+	 */
+	void add(final AnyObjectId commit, final BitSet bits) {
+		final Entry e = new Entry(commit, -1);
+		e.bits = bits;
+		bitmaps.add(e);
+		entries.add(e);
+	}
+
+	/**
+	 * Write the bitmaps.
+	 *
+	 * @param out
+	 *            stream to write to. The stream is flushed but not closed.
+	 * @throws IOException
+	 *             the stream cannot be written.
+	 */
+	void write(final OutputStream out) throws IOException {
+		final MessageDigest md = Constants.newMessageDigest();
+		final DigestOutputStream dos = new DigestOutputStream(
+				new BufferedOutputStream(out), md);
+		final byte[] tmp = new byte[Constants.OBJECT_ID_LENGTH];
+
+		dos.write(SIGNATURE);
+		NB.encodeInt32(tmp, 0, VERSION);
+		dos.write(tmp, 0, 4);
+		dos.write(index.packChecksum);
+		NB.encodeInt32(tmp, 0, objectCount);
+		dos.write(tmp, 0, 4);
+
+		for (final int t : TYPES)
+			encode(dos, types[t]);
+
+		NB.encodeInt32(tmp, 0, entries.size());
+		dos.write(tmp, 0, 4);
+		for (final Entry e : entries) {
+			e.copyRawTo(tmp, 0);
+			dos.write(tmp);
+			encode(dos, getBitmap(e));
+		}
+
+		dos.on(false);
+		dos.write(md.digest());
+		dos.flush();
+	}
+
+	private void encode(final OutputStream out, final BitSet bits)
+			throws IOException {
+		final long[] words = new long[(objectCount + 63) >>> 6];
+		for (int i = bits.nextSetBit(0); 0 <= i && i < objectCount; i = bits
+				.nextSetBit(i + 1))
+			words[i >>> 6] |= 1L << (i & 63);
+
+		final byte[] tmp = new byte[8];
+		int w = 0;
+		while (w < words.length) {
+			final long fill = words[w] == -1L ? -1L : 0L;
+			final int runStart = w;
+			while (w < words.length && words[w] == fill)
+				w++;
+			final int litStart = w;
+			while (w < words.length && words[w] != 0L && words[w] != -1L)
+				w++;
+
+			final int run = litStart - runStart;
+			NB.encodeInt32(tmp, 0, fill == -1L ? FILL_ONES | run : run);
+			NB.encodeInt32(tmp, 4, w - litStart);
+			out.write(tmp, 0, 8);
+			for (int k = litStart; k < w; k++) {
+				NB.encodeInt64(tmp, 0, words[k]);
+				out.write(tmp, 0, 8);
+			}
+		}
+	}
+
+	private int decode(final byte[] src, int ptr, final BitSet dst)
+			throws IOException {
+		final int wordCnt = (objectCount + 63) >>> 6;
+		int w = 0;
+		while (w < wordCnt) {
+			final int hdr = NB.decodeInt32(src, ptr);
+			final int run = hdr & ~FILL_ONES;
+			final int lit = NB.decodeInt32(src, ptr + 4);
+			ptr += 8;
+			if (run < 0 || lit < 0 || wordCnt - w < run + lit)
+				throw new IOException("Corrupt pack bitmap");
+			if ((hdr & FILL_ONES) != 0)
+				dst.set(w << 6, Math.min((w + run) << 6, objectCount));
+			w += run;
+			for (int k = 0; k < lit; k++, w++, ptr += 8) {
+				long word = NB.decodeUInt64(src, ptr);
+				while (word != 0) {
+					dst.set((w << 6) + Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+		}
+		return ptr;
+	}
+
+	private int skip(final byte[] src, int ptr) throws IOException {
+		final int wordCnt = (objectCount + 63) >>> 6;
+		int w = 0;
+		while (w < wordCnt) {
+			final int run = NB.decodeInt32(src, ptr) & ~FILL_ONES;
+			final int lit = NB.decodeInt32(src, ptr + 4);
+			if (lit < 0 || wordCnt - w < run + lit)
+				throw new IOException("Corrupt pack bitmap");
+			w += run + lit;
+			ptr += 8 + lit * 8;
+		}
+		return ptr;
+	}
+
+	private static class Entry extends ObjectId {
+		/** Position of the encoded bitmap in the file; -1 if built. */
+		final int offset;
+
+		BitSet bits;
+
+		Entry(final AnyObjectId id, final int offset) {
+			super(id);
+			this.offset = offset;
+		}
+	}
+}
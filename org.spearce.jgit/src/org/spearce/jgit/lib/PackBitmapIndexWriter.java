@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+import org.spearce.jgit.errors.MissingObjectException;
+import org.spearce.jgit.errors.ObjectWritingException;
+import org.spearce.jgit.revwalk.RevCommit;
+import org.spearce.jgit.revwalk.RevFlag;
+import org.spearce.jgit.revwalk.RevObject;
+import org.spearce.jgit.revwalk.RevSort;
+import org.spearce.jgit.revwalk.RevTag;
+import org.spearce.jgit.revwalk.RevWalk;
+
+/**
+ * Creates the reachability bitmaps of a pack.
+ * <p>
+ * Bitmaps are stored for the commits the repository's references point to,
+ * and for every {@link #getSpacing()}th commit of the history in between, so
+ * that finding the objects reachable from any commit needs only a short walk
+ * to the nearest commits with bitmaps. Only commits whose reachable objects
+ * are all in the pack get a bitmap.
+ *
+ * @see PackWriter
+ */
+public class PackBitmapIndexWriter {
+	/** Default number of commits between two selected commits. */
+	public static final int DEFAULT_SPACING = 100;
+
+	private final Repository db;
+
+	private int spacing = DEFAULT_SPACING;
+
+	/**
+	 * Create a writer for a repository.
+	 *
+	 * @param repo
+	 *            the repository whose largest pack is described.
+	 */
+	public PackBitmapIndexWriter(final Repository repo) {
+		db = repo;
+	}
+
+	/** @return number of commits between two selected commits. */
+	public int getSpacing() {
+		return spacing;
+	}
+
+	/**
+	 * @param n
+	 *            number of commits between two selected commits. Smaller
+	 *            values make the file larger, but the walks using it shorter.
+	 */
+	public void setSpacing(final int n) {
+		if (n < 1)
+			throw new IllegalArgumentException("Spacing must be >= 1");
+		spacing = n;
+	}
+
+	/**
+	 * Write the bitmaps of the repository's largest pack beside the pack.
+	 * <p>
+	 * The file is replaced atomically, so readers see either the old bitmaps
+	 * or the new ones.
+	 *
+	 * @param pm
+	 *            progress monitor to report selection and building to.
+	 * @return number of commits given a bitmap.
+	 * @throws IOException
+	 *             the repository has no pack, the objects cannot be read, or
+	 *             the file cannot be written.
+	 */
+	public int writeFile(final ProgressMonitor pm) throws IOException {
+		final ObjectDatabase odb = db.getObjectDatabase();
+		if (!(odb instanceof ObjectDirectory))
+			throw new IOException("Pack bitmaps require an ObjectDirectory");
+		PackFile pack = null;
+		for (final PackFile p : ((ObjectDirectory) odb).getPacks()) {
+			if (pack == null || pack.getObjectCount() < p.getObjectCount())
+				pack = p;
+		}
+		if (pack == null)
+			throw new IOException("No pack to write bitmaps for");
+
+		final File file = pack.getBitmapFile();
+		final LockFile lck = new LockFile(file);
+		if (!lck.lock())
+			throw new ObjectWritingException("Unable to lock " + file);
+		final int cnt;
+		try {
+			final OutputStream out = lck.getOutputStream();
+			try {
+				cnt = write(pack, out, pm);
+			} finally {
+				out.close();
+			}
+		} catch (IOException err) {
+			lck.unlock();
+			throw err;
+		} catch (RuntimeException err) {
+			lck.unlock();
+			throw err;
+		}
+		if (!lck.commit())
+			throw new ObjectWritingException("Unable to write " + file);
+		return cnt;
+	}
+
+	/**
+	 * Write the bitmaps of a pack to a stream.
+	 *
+	 * @param pack
+	 *            the pack to describe.
+	 * @param out
+	 *            stream to write the bitmaps to. The stream is flushed but not
+	 *            closed.
+	 * @param pm
+	 *            progress monitor to report selection and building to.
+	 * @return number of commits given a bitmap.
+	 * @throws IOException
+	 *             the objects cannot be read, or the stream cannot be written.
+	 */
+	int write(final PackFile pack, final OutputStream out,
+			final ProgressMonitor pm) throws IOException {
+		final PackBitmapIndex bitmaps = new PackBitmapIndex(pack.getIndex(),
+				pack.getReverseIdx());
+		final List<RevCommit> selected = select(bitmaps, pm);
+
+		// Oldest first, so each walk stops at the bitmaps just built
+		// for the commit's ancestors.
+		//
+		pm.beginTask("Building bitmaps", selected.size());
+		final BitmapWalker bw = new BitmapWalker(db, bitmaps);
+		bw.setRecordTypes(true);
+		for (final RevCommit c : selected) {
+			final BitSet bits = bw.reachable(Collections.singleton(c), false);
+			if (bits != null)
+				bitmaps.add(c, bits);
+			pm.update(1);
+		}
+		pm.endTask();
+
+		bitmaps.write(out);
+		return bitmaps.getBitmapCount();
+	}
+
+	private List<RevCommit> select(final PackBitmapIndex bitmaps,
+			final ProgressMonitor pm) throws IOException {
+		final RevWalk rw = new RevWalk(db);
+		final RevFlag tip = rw.newFlag("TIP");
+		rw.setRetainBody(false);
+		rw.sort(RevSort.TOPO);
+		rw.sort(RevSort.REVERSE, true);
+		for (final Ref r : db.getAllRefs().values()) {
+			final RevCommit c = peel(rw, r.getObjectId());
+			if (c != null) {
+				c.add(tip);
+				rw.markStart(c);
+			}
+		}
+
+		pm.beginTask("Selecting commits", ProgressMonitor.UNKNOWN);
+		final List<RevCommit> selected = new ArrayList<RevCommit>();
+		int n = 0;
+		RevCommit c;
+		while ((c = rw.next()) != null) {
+			pm.update(1);
+			if (bitmaps.findPosition(c) < 0)
+				continue;
+			if (c.has(tip) || ++n % spacing == 0)
+				selected.add(c);
+		}
+		pm.endTask();
+		return selected;
+	}
+
+	private static RevCommit peel(final RevWalk rw, final AnyObjectId id)
+			throws IOException {
+		if (id == null)
+			return null;
+		try {
+			RevObject o = rw.parseAny(id);
+			while (o instanceof RevTag) {
+				o = ((RevTag) o).getObject();
+				rw.parseHeaders(o);
+			}
+			return o instanceof RevCommit ? (RevCommit) o : null;
+		} catch (MissingObjectException notFound) {
+			// A broken reference cannot contribute commits.
+			return null;
+		}
+	}
+}
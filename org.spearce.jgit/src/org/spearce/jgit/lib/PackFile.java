@@ -43,6 +43,7 @@
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel.MapMode;
 import java.util.Arrays;
@@ -78,6 +79,12 @@ public int compare(final PackFile a, final PackFile b) {
 
 	final int hash;
 
+	/** Lookups of this pack's windows found in {@link WindowCache}. */
+	final StripedCounter cacheHits = new StripedCounter();
+
+	/** Lookups of this pack's windows that had to read the pack. */
+	final StripedCounter cacheMisses = new StripedCounter();
+
 	private RandomAccessFile fd;
 
 	long length;
@@ -96,6 +103,10 @@ public int compare(final PackFile a, final PackFile b) {
 
 	private PackReverseIndex reverseIdx;
 
+	private PackBitmapIndex bitmapIdx;
+
+	private long bitmapLastModified;
+
 	/**
 	 * Construct a reader for an existing, pre-indexed packfile.
 	 * 
@@ -122,7 +133,8 @@ private synchronized PackIndex idx() throws IOException {
 				throw new PackInvalidException(packFile);
 
 			try {
-				final PackIndex idx = PackIndex.open(idxFile);
+				final PackIndex idx = PackIndex.open(idxFile, WindowCache
+						.getInstance().isPackedIndexMMAP());
 
 				if (packChecksum == null)
 					packChecksum = idx.packChecksum;
@@ -183,6 +195,72 @@ public PackedObjectLoader get(final WindowCursor curs, final AnyObjectId id)
 		return 0 < offset ? reader(curs, offset) : null;
 	}
 
+	/**
+	 * Get the object starting at a known position of this pack.
+	 *
+	 * @param curs
+	 *            temporary working space associated with the calling thread.
+	 * @param offset
+	 *            offset of the object's header within the pack, as recorded
+	 *            by an index of the pack.
+	 * @return the object loader for the object.
+	 * @throws IOException
+	 *             the pack file or the index could not be read.
+	 */
+	final PackedObjectLoader get(final WindowCursor curs, final long offset)
+			throws IOException {
+		return reader(curs, offset);
+	}
+
+	/**
+	 * @return the index of this pack, loading it if necessary.
+	 * @throws IOException
+	 *             the index file cannot be loaded into memory.
+	 */
+	final PackIndex getIndex() throws IOException {
+		return idx();
+	}
+
+	/** @return location of the reachability bitmaps of this pack. */
+	File getBitmapFile() {
+		final String name = idxFile.getName();
+		final String base = name.substring(0, name.length() - 4);
+		return new File(idxFile.getParentFile(), base
+				+ PackBitmapIndex.EXTENSION);
+	}
+
+	/**
+	 * Get the reachability bitmaps of this pack, if they were written.
+	 * <p>
+	 * The bitmaps are read again if the file changes.
+	 *
+	 * @return the bitmaps; null if there are none, they cannot be read, or
+	 *         they were written for a different pack of the same name.
+	 * @throws IOException
+	 *             the index file cannot be loaded into memory.
+	 * @see PackBitmapIndexWriter
+	 */
+	synchronized PackBitmapIndex getBitmapIndex() throws IOException {
+		final File file = getBitmapFile();
+		final long modified = file.lastModified();
+		if (modified != bitmapLastModified) {
+			final PackIndex idx = idx();
+			final PackReverseIndex rev = getReverseIdx();
+			bitmapLastModified = modified;
+			bitmapIdx = null;
+			if (modified != 0) {
+				try {
+					bitmapIdx = PackBitmapIndex.open(file, idx, rev);
+				} catch (IOException e) {
+					// Without bitmaps objects are found by walking
+					// the history, which is only slower.
+					//
+				}
+			}
+		}
+		return bitmapIdx;
+	}
+
 	/**
 	 * Close the resources utilized by this repository
 	 */
@@ -192,6 +270,8 @@ public void close() {
 		synchronized (this) {
 			loadedIdx = null;
 			reverseIdx = null;
+			bitmapIdx = null;
+			bitmapLastModified = 0;
 		}
 	}
 
@@ -397,6 +477,19 @@ ByteArrayWindow read(final long pos, int size) throws IOException {
 		return new ByteArrayWindow(this, pos, buf);
 	}
 
+	ByteBufferWindow readDirect(final long pos, int size) throws IOException {
+		if (length < pos + size)
+			size = (int) (length - pos);
+		final ByteBuffer buf = ByteBuffer.allocateDirect(size);
+		while (buf.hasRemaining()) {
+			final int r = fd.getChannel().read(buf, pos + buf.position());
+			if (r <= 0)
+				throw new EOFException("Short read of block.");
+		}
+		buf.flip();
+		return new ByteBufferWindow(this, pos, buf);
+	}
+
 	ByteWindow mmap(final long pos, int size) throws IOException {
 		if (length < pos + size)
 			size = (int) (length - pos);
@@ -500,7 +593,7 @@ private long findEndOffset(final long startOffset)
 		return getReverseIdx().findNextOffset(startOffset, maxOffset);
 	}
 
-	private synchronized PackReverseIndex getReverseIdx() throws IOException {
+	synchronized PackReverseIndex getReverseIdx() throws IOException {
 		if (reverseIdx == null)
 			reverseIdx = new PackReverseIndex(idx());
 		return reverseIdx;
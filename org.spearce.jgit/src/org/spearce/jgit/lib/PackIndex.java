@@ -75,6 +75,28 @@ public abstract class PackIndex implements Iterable<PackIndex.MutableEntry> {
 	 *             unrecognized data version, or unexpected data corruption.
 	 */
 	public static PackIndex open(final File idxFile) throws IOException {
+		return open(idxFile, false);
+	}
+
+	/**
+	 * Open an existing pack <code>.idx</code> file for reading.
+	 * <p>
+	 * As {@link #open(File)}, but a version 2 index may be searched in place
+	 * in mapped memory instead of being loaded into the heap.
+	 *
+	 * @param idxFile
+	 *            existing pack .idx to read.
+	 * @param mmap
+	 *            true to map a version 2 index instead of loading it.
+	 * @return access implementation for the requested file.
+	 * @throws FileNotFoundException
+	 *             the file does not exist.
+	 * @throws IOException
+	 *             the file exists but could not be read due to security errors,
+	 *             unrecognized data version, or unexpected data corruption.
+	 */
+	static PackIndex open(final File idxFile, final boolean mmap)
+			throws IOException {
 		final FileInputStream fd = new FileInputStream(idxFile);
 		try {
 			final byte[] hdr = new byte[8];
@@ -83,6 +105,8 @@ public static PackIndex open(final File idxFile) throws IOException {
 				final int v = NB.decodeInt32(hdr, 4);
 				switch (v) {
 				case 2:
+					if (mmap)
+						return new PackIndexV2Mapped(idxFile);
 					return new PackIndexV2(fd);
 				default:
 					throw new IOException("Unsupported pack index version " + v);
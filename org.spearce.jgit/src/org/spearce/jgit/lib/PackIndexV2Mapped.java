@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.spearce.jgit.errors.MissingObjectException;
+import org.spearce.jgit.util.NB;
+
+/**
+ * Support for the pack index v2 format, searched in place in mapped memory.
+ * <p>
+ * Unlike {@link PackIndexV2} nothing but the fan-out table is copied onto the
+ * heap; lookups binary search the object name table of the mapped file. The
+ * operating system pages the index in as it is used, and may page it out
+ * again under memory pressure. The mapping is released when this instance is
+ * garbage collected.
+ * <p>
+ * A single mapping cannot exceed 2 GB, so larger indexes are mapped as
+ * several segments. Consecutive segments overlap by a few bytes, so reading
+ * any single name or offset never crosses from one segment to the next.
+ */
+class PackIndexV2Mapped extends PackIndex {
+	private static final long IS_O64 = 1L << 31;
+
+	private static final int FANOUT = 256;
+
+	private static final int SEGMENT_SHIFT = 30;
+
+	private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+
+	/** Bytes each segment extends into the next one. */
+	private static final int SEGMENT_OVERLAP = 64;
+
+	/** Position of the object name table. */
+	private static final long NAMES = 8 + 4 * FANOUT;
+
+	private final ByteBuffer[] segments;
+
+	private final long[] fanoutTable;
+
+	private final long objectCnt;
+
+	private final long crcTable;
+
+	private final long offset32Table;
+
+	private final long offset64Table;
+
+	private final long offset64Cnt;
+
+	PackIndexV2Mapped(final File idxFile) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(idxFile, "r");
+		try {
+			final FileChannel ch = raf.getChannel();
+			final long size = ch.size();
+			final int n = (int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+			segments = new ByteBuffer[Math.max(n, 1)];
+			for (int i = 0; i < segments.length; i++) {
+				final long pos = (long) i << SEGMENT_SHIFT;
+				final long len = Math.min(size - pos, SEGMENT_SIZE
+						+ SEGMENT_OVERLAP);
+				segments[i] = ch.map(MapMode.READ_ONLY, pos, len);
+			}
+
+			if (size < NAMES + 40)
+				throw new IOException("Truncated pack index");
+			fanoutTable = new long[FANOUT];
+			for (int k = 0; k < FANOUT; k++)
+				fanoutTable[k] = uint32(8 + 4 * k);
+			objectCnt = fanoutTable[FANOUT - 1];
+
+			crcTable = NAMES + objectCnt * Constants.OBJECT_ID_LENGTH;
+			offset32Table = crcTable + objectCnt * 4;
+			offset64Table = offset32Table + objectCnt * 4;
+			final long trailer = size - 2 * Constants.OBJECT_ID_LENGTH;
+			if (trailer < offset64Table || (trailer - offset64Table) % 8 != 0)
+				throw new IOException("Pack index size does not match its"
+						+ " object count");
+			offset64Cnt = (trailer - offset64Table) / 8;
+
+			packChecksum = new byte[Constants.OBJECT_ID_LENGTH];
+			for (int i = 0; i < packChecksum.length; i++)
+				packChecksum[i] = segment(trailer + i).get(offset(trailer + i));
+		} finally {
+			raf.close();
+		}
+	}
+
+	@Override
+	long getObjectCount() {
+		return objectCnt;
+	}
+
+	@Override
+	long getOffset64Count() {
+		return offset64Cnt;
+	}
+
+	@Override
+	ObjectId getObjectId(final long nthPosition) {
+		final long p = NAMES + nthPosition * Constants.OBJECT_ID_LENGTH;
+		final ByteBuffer b = segment(p);
+		final int o = offset(p);
+		return new ObjectId(b.getInt(o), b.getInt(o + 4), b.getInt(o + 8), b
+				.getInt(o + 12), b.getInt(o + 16));
+	}
+
+	@Override
+	long findOffset(final AnyObjectId objId) {
+		final long n = find(objId);
+		if (n < 0)
+			return -1;
+		final long p = uint32(offset32Table + n * 4);
+		if ((p & IS_O64) != 0)
+			return uint64(offset64Table + 8 * (p & ~IS_O64));
+		return p;
+	}
+
+	@Override
+	long findCRC32(final AnyObjectId objId) throws MissingObjectException {
+		final long n = find(objId);
+		if (n < 0)
+			throw new MissingObjectException(objId.copy(), "unknown");
+		return uint32(crcTable + n * 4);
+	}
+
+	@Override
+	boolean hasCRC32Support() {
+		return true;
+	}
+
+	public Iterator<MutableEntry> iterator() {
+		return new EntriesIteratorV2Mapped();
+	}
+
+	/**
+	 * Locate an object in the name table.
+	 *
+	 * @param objId
+	 *            the object to look for.
+	 * @return position of the object in the name table; -1 if not present.
+	 */
+	private long find(final AnyObjectId objId) {
+		final int levelOne = objId.getFirstByte();
+		long low = levelOne > 0 ? fanoutTable[levelOne - 1] : 0;
+		long high = fanoutTable[levelOne];
+		while (low < high) {
+			final long mid = (low + high) >>> 1;
+			final int cmp = compare(objId, NAMES + mid
+					* Constants.OBJECT_ID_LENGTH);
+			if (cmp < 0)
+				high = mid;
+			else if (cmp == 0)
+				return mid;
+			else
+				low = mid + 1;
+		}
+		return -1;
+	}
+
+	private int compare(final AnyObjectId objId, final long pos) {
+		final ByteBuffer b = segment(pos);
+		final int o = offset(pos);
+		int cmp;
+
+		cmp = NB.compareUInt32(objId.w1, b.getInt(o));
+		if (cmp != 0)
+			return cmp;
+		cmp = NB.compareUInt32(objId.w2, b.getInt(o + 4));
+		if (cmp != 0)
+			return cmp;
+		cmp = NB.compareUInt32(objId.w3, b.getInt(o + 8));
+		if (cmp != 0)
+			return cmp;
+		cmp = NB.compareUInt32(objId.w4, b.getInt(o + 12));
+		if (cmp != 0)
+			return cmp;
+		return NB.compareUInt32(objId.w5, b.getInt(o + 16));
+	}
+
+	private long uint32(final long pos) {
+		return segment(pos).getInt(offset(pos)) & 0xffffffffL;
+	}
+
+	private long uint64(final long pos) {
+		return segment(pos).getLong(offset(pos));
+	}
+
+	private ByteBuffer segment(final long pos) {
+		return segments[(int) (pos >>> SEGMENT_SHIFT)];
+	}
+
+	private static int offset(final long pos) {
+		return (int) (pos & (SEGMENT_SIZE - 1));
+	}
+
+	private class EntriesIteratorV2Mapped extends EntriesIterator {
+		@Override
+		protected MutableEntry initEntry() {
+			return new MutableEntry() {
+				protected void ensureId() {
+					final long p = NAMES + (returnedNumber - 1)
+							* Constants.OBJECT_ID_LENGTH;
+					final ByteBuffer b = segment(p);
+					final int o = offset(p);
+					idBuffer.w1 = b.getInt(o);
+					idBuffer.w2 = b.getInt(o + 4);
+					idBuffer.w3 = b.getInt(o + 8);
+					idBuffer.w4 = b.getInt(o + 12);
+					idBuffer.w5 = b.getInt(o + 16);
+				}
+			};
+		}
+
+		public MutableEntry next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			long offset = uint32(offset32Table + returnedNumber * 4);
+			if ((offset & IS_O64) != 0)
+				offset = uint64(offset64Table + 8 * (offset & ~IS_O64));
+			entry.offset = offset;
+			returnedNumber++;
+			return entry;
+		}
+	}
+}
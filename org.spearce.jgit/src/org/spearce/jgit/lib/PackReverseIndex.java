@@ -140,6 +140,44 @@ ObjectId findObject(final long offset) {
 		}
 	}
 
+	/**
+	 * Find the position of an object within the pack.
+	 * <p>
+	 * Objects are numbered from 0 in the order they appear in the pack file,
+	 * that is by increasing offset.
+	 *
+	 * @param offset
+	 *            start offset of the object.
+	 * @return position of the object; -1 if no object starts at the offset.
+	 */
+	int findPosition(final long offset) {
+		if (offset <= Integer.MAX_VALUE) {
+			final int i32 = Arrays.binarySearch(offsets32, (int) offset);
+			return i32 < 0 ? -1 : i32;
+		}
+		final int i64 = Arrays.binarySearch(offsets64, offset);
+		return i64 < 0 ? -1 : offsets32.length + i64;
+	}
+
+	/**
+	 * Get the object at a position within the pack.
+	 *
+	 * @param nthPosition
+	 *            position of the object, as returned by
+	 *            {@link #findPosition(long)}.
+	 * @return object id at that position.
+	 */
+	ObjectId findObjectByPosition(final int nthPosition) {
+		if (nthPosition < offsets32.length)
+			return index.getObjectId(nth32[nthPosition]);
+		return index.getObjectId(nth64[nthPosition - offsets32.length]);
+	}
+
+	/** @return number of objects in the pack. */
+	int getObjectCount() {
+		return offsets32.length + offsets64.length;
+	}
+
 	/**
 	 * Search for the next offset to the specified offset in this pack (reverse)
 	 * index.
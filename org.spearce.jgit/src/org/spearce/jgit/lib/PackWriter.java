@@ -42,6 +42,7 @@
 import java.io.OutputStream;
 import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
@@ -79,6 +80,12 @@
  * producing the stream with {@link #writePack(OutputStream)}.
  * </p>
  * <p>
+ * When the repository's largest pack has reachability bitmaps (see
+ * {@link PackBitmapIndexWriter}) and every object to be sent is in that pack,
+ * {@link #preparePack(Collection, Collection)} finds the objects with bitmap
+ * operations rather than by walking the history.
+ * </p>
+ * <p>
  * Class provide set of configurable options and {@link ProgressMonitor}
  * support, as operations may take a long time for big repositories. Deltas
  * searching algorithm is <b>NOT IMPLEMENTED</b> yet - this implementation
@@ -161,11 +168,16 @@ public class PackWriter {
 	// edge objects for thin packs
 	private final ObjectIdSubclassMap<ObjectId> edgeObjects = new ObjectIdSubclassMap<ObjectId>();
 
+	// objects the receiver already holds, which must not be packed
+	private final List<PackIndex> excludeInPacks = new ArrayList<PackIndex>();
+
 	private final Repository db;
 
 	private PackOutputStream out;
 
-	private final Deflater deflater;
+	private final int compressionLevel;
+
+	private Deflater deflater;
 
 	private ProgressMonitor initMonitor;
 
@@ -193,6 +205,14 @@ public class PackWriter {
 
 	private boolean ignoreMissingUninteresting = true;
 
+	private boolean useBitmaps;
+
+	/** Bitmaps the objects were found with; null if they were walked. */
+	PackBitmapIndex bitmapIndex;
+
+	/** Objects the receiver has, if found with {@link #bitmapIndex}. */
+	private BitSet haveObjects;
+
 	/**
 	 * Create writer for specified repository.
 	 * <p>
@@ -232,8 +252,9 @@ public PackWriter(final Repository repo, final ProgressMonitor imonitor,
 		this.db = repo;
 		initMonitor = imonitor == null ? NullProgressMonitor.INSTANCE : imonitor;
 		writeMonitor = wmonitor == null ? NullProgressMonitor.INSTANCE : wmonitor;
-		this.deflater = new Deflater(db.getConfig().getCore().getCompression());
+		compressionLevel = db.getConfig().getCore().getCompression();
 		outputVersion = repo.getConfig().getCore().getPackIndexVersion();
+		useBitmaps = repo.getConfig().getCore().isPackUseBitmaps();
 	}
 
 	/**
@@ -402,6 +423,29 @@ public void setIgnoreMissingUninteresting(final boolean ignore) {
 		ignoreMissingUninteresting = ignore;
 	}
 
+	/**
+	 * @return true if reachability bitmaps are used to find the objects to
+	 *         pack, when the repository has them.
+	 */
+	public boolean isUseBitmaps() {
+		return useBitmaps;
+	}
+
+	/**
+	 * Set whether {@link #preparePack(Collection, Collection)} may find the
+	 * objects to pack with reachability bitmaps.
+	 * <p>
+	 * Default setting: the <code>pack.usebitmaps</code> configuration
+	 * variable, which defaults to true.
+	 *
+	 * @param use
+	 *            true to use bitmaps when the repository has them; false to
+	 *            always walk the history.
+	 */
+	public void setUseBitmaps(final boolean use) {
+		useBitmaps = use;
+	}
+
 	/**
 	 * Set the pack index file format version this instance will create.
 	 *
@@ -414,6 +458,26 @@ public void setIndexVersion(final int version) {
 		outputVersion = version;
 	}
 
+	/**
+	 * Exclude the objects listed in a pack index from the output pack.
+	 * <p>
+	 * Objects found in the index are silently skipped while the pack is being
+	 * prepared, as though they were never reachable. This is useful when the
+	 * receiver is known to already hold the pack, but not every object in it
+	 * is reachable from the receiver's refs. Excluded objects are never used
+	 * as delta bases, so the resulting pack remains self-contained unless
+	 * {@link #setThin(boolean)} is also used.
+	 * <p>
+	 * Must be called before {@link #preparePack(Collection, Collection)} or
+	 * {@link #preparePack(Iterator)}.
+	 *
+	 * @param idx
+	 *            index of the objects to exclude.
+	 */
+	public void excludeObjects(final PackIndex idx) {
+		excludeInPacks.add(idx);
+	}
+
 	/**
 	 * Returns objects number in a pack file that was created by this writer.
 	 *
@@ -489,6 +553,10 @@ public void preparePack(
 			final Collection<? extends ObjectId> interestingObjects,
 			final Collection<? extends ObjectId> uninterestingObjects)
 			throws IOException {
+		if (useBitmaps
+				&& findObjectsFromBitmaps(interestingObjects,
+						uninterestingObjects))
+			return;
 		ObjectWalk walker = setUpWalker(interestingObjects,
 				uninterestingObjects);
 		findObjectsToPack(walker);
@@ -588,9 +656,15 @@ public void writePack(OutputStream packStream) throws IOException {
 		out = new PackOutputStream(packStream);
 
 		writeMonitor.beginTask(WRITING_OBJECTS_PROGRESS, getObjectsNumber());
-		writeHeader();
-		writeObjects();
-		writeChecksum();
+		deflater = DeflaterCache.get(compressionLevel);
+		try {
+			writeHeader();
+			writeObjects();
+			writeChecksum();
+		} finally {
+			DeflaterCache.release(deflater);
+			deflater = null;
+		}
 
 		out.flush();
 		windowCursor.release();
@@ -639,7 +713,7 @@ private void selectDeltaReuseForObject(final ObjectToPack otp,
 			ObjectToPack otpBase = objectsMap.get(idBase);
 
 			// only if base is in set of objects to write or thin-pack's edge
-			if ((otpBase != null || (thin && edgeObjects.get(idBase) != null))
+			if ((otpBase != null || (thin && isEdge(idBase)))
 			// select smallest possible delta if > 1 available
 					&& isBetterDeltaReuseLoader(bestLoader, loader)) {
 				bestLoader = loader;
@@ -653,6 +727,16 @@ && isBetterDeltaReuseLoader(bestLoader, loader)) {
 		}
 	}
 
+	private boolean isEdge(final ObjectId id) {
+		if (edgeObjects.get(id) != null)
+			return true;
+		if (haveObjects != null) {
+			final int pos = bitmapIndex.findPosition(id);
+			return 0 <= pos && haveObjects.get(pos);
+		}
+		return false;
+	}
+
 	private static boolean isBetterDeltaReuseLoader(
 			PackedObjectLoader currentLoader, PackedObjectLoader loader)
 			throws IOException {
@@ -864,6 +948,61 @@ private void findObjectsToPack(final ObjectWalk walker)
 		initMonitor.endTask();
 	}
 
+	private boolean findObjectsFromBitmaps(
+			final Collection<? extends ObjectId> interestingObjects,
+			final Collection<? extends ObjectId> uninterestingObjects)
+			throws MissingObjectException, IncorrectObjectTypeException,
+			IOException {
+		final PackBitmapIndex bitmaps = findBitmapIndex();
+		if (bitmaps == null)
+			return false;
+
+		final BitmapWalker bw = new BitmapWalker(db, bitmaps);
+		final BitSet want = bw.reachable(interestingObjects, false);
+		if (want == null)
+			return false;
+		final BitSet have;
+		if (uninterestingObjects != null) {
+			have = bw.reachable(uninterestingObjects,
+					ignoreMissingUninteresting);
+			if (have == null)
+				return false;
+			want.andNot(have);
+		} else
+			have = new BitSet();
+
+		initMonitor.beginTask(COUNTING_OBJECTS_PROGRESS,
+				ProgressMonitor.UNKNOWN);
+		for (int pos = want.nextSetBit(0); pos >= 0; pos = want
+				.nextSetBit(pos + 1)) {
+			final ObjectId id = bitmaps.getObject(pos);
+			int type = bitmaps.getType(pos);
+			if (type == Constants.OBJ_BAD)
+				type = db.openObject(windowCursor, id).getType();
+			addObject(id, type);
+			initMonitor.update(1);
+		}
+		initMonitor.endTask();
+		windowCursor.release();
+
+		bitmapIndex = bitmaps;
+		if (thin)
+			haveObjects = have;
+		return true;
+	}
+
+	private PackBitmapIndex findBitmapIndex() throws IOException {
+		final ObjectDatabase odb = db.getObjectDatabase();
+		if (!(odb instanceof ObjectDirectory))
+			return null;
+		for (final PackFile p : ((ObjectDirectory) odb).getPacks()) {
+			final PackBitmapIndex b = p.getBitmapIndex();
+			if (b != null)
+				return b;
+		}
+		return null;
+	}
+
 	/**
 	 * Include one object to the output file.
 	 * <p>
@@ -883,16 +1022,25 @@ public void addObject(final RevObject object)
 			thin = true;
 			return;
 		}
+		addObject(object, object.getType());
+	}
+
+	private void addObject(final AnyObjectId object, final int type)
+			throws IncorrectObjectTypeException {
+		for (final PackIndex idx : excludeInPacks) {
+			if (idx.hasObject(object))
+				return;
+		}
 
-		final ObjectToPack otp = new ObjectToPack(object, object.getType());
+		final ObjectToPack otp = new ObjectToPack(object, type);
 		try {
-			objectsLists[object.getType()].add(otp);
+			objectsLists[type].add(otp);
 		} catch (ArrayIndexOutOfBoundsException x) {
-			throw new IncorrectObjectTypeException(object,
+			throw new IncorrectObjectTypeException(object.copy(),
 					"COMMIT nor TREE nor BLOB nor TAG");
 		} catch (UnsupportedOperationException x) {
 			// index pointing to "dummy" empty list
-			throw new IncorrectObjectTypeException(object,
+			throw new IncorrectObjectTypeException(object.copy(),
 					"COMMIT nor TREE nor BLOB nor TAG");
 		}
 		objectsMap.add(otp);
@@ -144,6 +144,8 @@ public Repository(final File d) throws IOException {
 				throw new IOException("Unknown repository format \""
 						+ repositoryFormatVersion + "\"; expected \"0\".");
 			}
+			objectDatabase.setLooseObjectCache(getConfig().getCore()
+					.isLooseObjectCache());
 		}
 	}
 
@@ -232,6 +234,18 @@ public File toFile(final AnyObjectId objectId) {
 		return objectDatabase.fileFor(objectId);
 	}
 
+	/**
+	 * Record that a loose object was just written to
+	 * {@link #toFile(AnyObjectId)}.
+	 *
+	 * @param objectId
+	 *            the object written.
+	 * @see ObjectDirectory#looseObjectWritten(AnyObjectId)
+	 */
+	public void looseObjectWritten(final AnyObjectId objectId) {
+		objectDatabase.looseObjectWritten(objectId);
+	}
+
 	/**
 	 * @param objectId
 	 * @return true if the specified object is stored in this repo or any of the
@@ -274,6 +288,34 @@ public ObjectLoader openObject(final WindowCursor curs, final AnyObjectId id)
 		return objectDatabase.openObject(curs, id);
 	}
 
+	/**
+	 * @param objectIds
+	 *            SHA-1s of several objects.
+	 * @return the objects not stored in this repo nor any of the known shared
+	 *         repositories; empty if all of them are.
+	 */
+	public Set<ObjectId> findMissing(
+			final Collection<? extends AnyObjectId> objectIds) {
+		return objectDatabase.findMissing(objectIds);
+	}
+
+	/**
+	 * @param curs
+	 *            temporary working space associated with the calling thread.
+	 * @param objectIds
+	 *            SHA-1s of several objects.
+	 * @param missing
+	 *            if not null, receives each object that does not exist.
+	 * @return {@link ObjectLoader}s for accessing the data of the objects that
+	 *         exist, keyed by their SHA-1.
+	 * @throws IOException
+	 */
+	public Map<ObjectId, ObjectLoader> openObjects(final WindowCursor curs,
+			final Collection<? extends AnyObjectId> objectIds,
+			final Collection<ObjectId> missing) throws IOException {
+		return objectDatabase.openObjects(curs, objectIds, missing);
+	}
+
 	/**
 	 * Open object in all packs containing specified object.
 	 *
@@ -41,9 +41,16 @@
 import java.io.IOException;
 import java.lang.ref.Reference;
 import java.lang.ref.SoftReference;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.spearce.jgit.errors.RepositoryNotFoundException;
 import org.spearce.jgit.util.FS;
@@ -135,6 +142,55 @@ public static void clear() {
 		cache.clearAll();
 	}
 
+	/**
+	 * Open several repositories and load their pack indexes concurrently.
+	 * <p>
+	 * A server opening many repositories at startup would otherwise stall on
+	 * the first object lookup in each, while it scans the pack directory and
+	 * parses the indexes one after another. This method does that work ahead
+	 * of time on a pool of {@code threads} threads, with each index of a
+	 * repository loaded by its own task.
+	 * <p>
+	 * Each repository warmed up is left open in the cache, as if it had been
+	 * opened once by {@link #open(Key)}; use {@link #close(Repository)} to
+	 * release it.
+	 *
+	 * @param locations
+	 *            repositories to open. Typically {@link FileKey}s.
+	 * @param threads
+	 *            maximum number of threads to use.
+	 * @return milliseconds from the start of opening each repository until
+	 *         its last index was loaded. Repositories that could not be opened
+	 *         are not included.
+	 * @throws InterruptedException
+	 *             the calling thread was interrupted while waiting.
+	 */
+	public static Map<Key, Long> warmUp(
+			final Collection<? extends Key> locations, final int threads)
+			throws InterruptedException {
+		final ExecutorService pool = Executors.newFixedThreadPool(threads,
+				new ThreadFactory() {
+					private final AtomicInteger cnt = new AtomicInteger();
+
+					public Thread newThread(final Runnable r) {
+						final Thread t = new Thread(r, "JGit-Warm-Up-"
+								+ cnt.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		try {
+			final Map<Key, Long> times = new ConcurrentHashMap<Key, Long>();
+			final CountDownLatch done = new CountDownLatch(locations.size());
+			for (final Key location : locations)
+				pool.execute(new WarmUp(pool, location, times, done));
+			done.await();
+			return times;
+		} finally {
+			pool.shutdown();
+		}
+	}
+
 	private final ConcurrentHashMap<Key, Reference<Repository>> cacheMap;
 
 	private final Lock[] openLocks;
@@ -202,6 +258,78 @@ private static class Lock {
 		// Used only for its monitor.
 	}
 
+	/**
+	 * Opens one repository, then queues a task per pack index.
+	 * <p>
+	 * Tasks never wait for each other, so a small pool cannot deadlock.
+	 */
+	private static class WarmUp implements Runnable {
+		private final Executor executor;
+
+		private final Key location;
+
+		private final Map<Key, Long> times;
+
+		private final CountDownLatch done;
+
+		private final AtomicInteger pending;
+
+		private long start;
+
+		WarmUp(final Executor executor, final Key location,
+				final Map<Key, Long> times, final CountDownLatch done) {
+			this.executor = executor;
+			this.location = location;
+			this.times = times;
+			this.done = done;
+			this.pending = new AtomicInteger(1);
+		}
+
+		public void run() {
+			start = System.nanoTime();
+			try {
+				final Repository db = open(location);
+				final ObjectDatabase odb = db.getObjectDatabase();
+				if (odb instanceof ObjectDirectory)
+					loadIndexes((ObjectDirectory) odb);
+				finish();
+			} catch (IOException e) {
+				// The repository cannot be opened; leave it out.
+				done.countDown();
+			} catch (RuntimeException e) {
+				done.countDown();
+				throw e;
+			} catch (Error e) {
+				done.countDown();
+				throw e;
+			}
+		}
+
+		private void loadIndexes(final ObjectDirectory odb) {
+			final PackFile[] packs = odb.rescanPacks();
+			pending.addAndGet(packs.length);
+			for (final PackFile p : packs) {
+				executor.execute(new Runnable() {
+					public void run() {
+						try {
+							odb.loadIndex(p);
+						} finally {
+							finish();
+						}
+					}
+				});
+			}
+		}
+
+		private void finish() {
+			if (pending.decrementAndGet() == 0) {
+				final long ms = (System.nanoTime() - start) / 1000000L;
+				times.put(location, Long.valueOf(ms));
+				done.countDown();
+			}
+		}
+	}
+
 	/**
 	 * Abstract hash key for {@link RepositoryCache} entries.
 	 * <p>
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter updated by many threads at once, read only occasionally.
+ * <p>
+ * A single {@link java.util.concurrent.atomic.AtomicLong} bumped on every
+ * cache access makes all reading threads contend on one cache line. This
+ * counter spreads increments over several cells, each on its own cache line,
+ * picked by the calling thread's identity. Reading the value sums the cells,
+ * so a read concurrent with updates may miss the most recent increments.
+ */
+class StripedCounter {
+	/** Longs between two cells, so each cell sits on its own cache line. */
+	private static final int PAD_SHIFT = 3;
+
+	private static final int STRIPES;
+
+	static {
+		final int cpus = Runtime.getRuntime().availableProcessors();
+		STRIPES = Math.min(16, Integer.highestOneBit(Math.max(cpus, 1)) << 1);
+	}
+
+	private final AtomicLongArray cells;
+
+	/** Create a counter starting at 0. */
+	StripedCounter() {
+		cells = new AtomicLongArray(STRIPES << PAD_SHIFT);
+	}
+
+	/** Add one to the counter. */
+	void increment() {
+		add(1);
+	}
+
+	/**
+	 * Add to the counter.
+	 *
+	 * @param delta
+	 *            amount to add; may be negative.
+	 */
+	void add(final long delta) {
+		cells.addAndGet(cell(), delta);
+	}
+
+	/** @return current value of the counter. */
+	long get() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++)
+			sum += cells.get(i << PAD_SHIFT);
+		return sum;
+	}
+
+	private static int cell() {
+		final long id = Thread.currentThread().getId();
+		final int h = (int) (id * 0x9e3779b97f4a7c15L >>> 32);
+		return (h & (STRIPES - 1)) << PAD_SHIFT;
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A small, bounded pool of reusable objects without a global lock.
+ * <p>
+ * The pool is split into stripes of a few slots each. A thread takes from and
+ * returns to the stripe chosen by its identity, claiming slots with atomic
+ * compare-and-set operations, so threads rarely touch the same slots. The
+ * pool never holds more than its fixed number of slots; an object returned to
+ * a full stripe is refused, and the caller should dispose of it.
+ *
+ * @param <T>
+ *            type of object pooled.
+ */
+class StripedPool<T> {
+	/** Slots reserved per stripe, keeping stripes on separate cache lines. */
+	private static final int STRIDE = 16;
+
+	private final int stripeMask;
+
+	private final int slots;
+
+	private final AtomicReferenceArray<T> table;
+
+	/**
+	 * Create an empty pool.
+	 *
+	 * @param slotsPerStripe
+	 *            number of objects each stripe may hold; at most 16.
+	 */
+	StripedPool(final int slotsPerStripe) {
+		if (slotsPerStripe < 1 || STRIDE < slotsPerStripe)
+			throw new IllegalArgumentException("slotsPerStripe must be 1..16");
+		final int cpus = Runtime.getRuntime().availableProcessors();
+		final int stripes = Math.min(16, Integer
+				.highestOneBit(Math.max(cpus, 1)) << 1);
+		stripeMask = stripes - 1;
+		slots = slotsPerStripe;
+		table = new AtomicReferenceArray<T>(stripes * STRIDE);
+	}
+
+	/** @return maximum number of objects the pool retains. */
+	int capacity() {
+		return (stripeMask + 1) * slots;
+	}
+
+	/** @return a pooled object, removed from the pool; null if none. */
+	T take() {
+		final int base = stripe();
+		for (int i = 0; i < slots; i++) {
+			if (table.get(base + i) != null) {
+				final T r = table.getAndSet(base + i, null);
+				if (r != null)
+					return r;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Return an object to the pool.
+	 *
+	 * @param obj
+	 *            the object to retain for a later {@link #take()}.
+	 * @return true if the pool kept the object; false if the stripe is full
+	 *         and the caller remains responsible for it.
+	 */
+	boolean offer(final T obj) {
+		final int base = stripe();
+		for (int i = 0; i < slots; i++) {
+			if (table.get(base + i) == null
+					&& table.compareAndSet(base + i, null, obj))
+				return true;
+		}
+		return false;
+	}
+
+	private int stripe() {
+		final long id = Thread.currentThread().getId();
+		final int h = (int) (id * 0x9e3779b97f4a7c15L >>> 32);
+		return (h & stripeMask) * STRIDE;
+	}
+}
@@ -38,124 +38,138 @@
 package org.spearce.jgit.lib;
 
 import java.lang.ref.SoftReference;
-
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Caches inflated delta bases, keyed by <code>(PackFile,position)</code>.
+ * <p>
+ * The cache is split into a fixed number of stripes, each with its own lock,
+ * hash table and least recently used list, so threads inflating deltas from
+ * unrelated objects rarely contend. The byte limit is shared by all stripes:
+ * once it is exceeded one thread evicts the least recently used entry of each
+ * stripe in turn until the cache is back under the limit, while the others
+ * carry on. Like {@link OffsetCache} the cache may therefore be briefly over
+ * its limit.
+ * <p>
+ * Entries are held under SoftReferences, permitting the garbage collector to
+ * discard them when heap memory gets low.
+ */
 class UnpackedObjectCache {
-	private static final int CACHE_SZ = 1024;
+	/** Number of stripes; must be a power of 2. */
+	private static final int STRIPES = 32;
 
-	private static final SoftReference<Entry> DEAD;
-
-	private static int hash(final long position) {
-		return (((int) position) << 22) >>> 22;
-	}
+	private static final int STRIPE_SHIFT = 32 - Integer
+			.numberOfTrailingZeros(STRIPES);
 
-	private static int maxByteCount;
+	private static final Stripe[] stripes;
 
-	private static final Slot[] cache;
+	private static final AtomicLong openByteCount = new AtomicLong();
 
-	private static Slot lruHead;
+	/** Stripe the next eviction takes its oldest entry from. */
+	private static final AtomicInteger evictPtr = new AtomicInteger();
 
-	private static Slot lruTail;
+	/** Lock to elect the thread performing evictions. */
+	private static final ReentrantLock evictLock = new ReentrantLock();
 
-	private static int openByteCount;
+	private static volatile int maxByteCount;
 
 	static {
-		DEAD = new SoftReference<Entry>(null);
 		maxByteCount = new WindowCacheConfig().getDeltaBaseCacheLimit();
+		stripes = new Stripe[STRIPES];
+		for (int i = 0; i < STRIPES; i++)
+			stripes[i] = new Stripe();
+	}
+
+	private static int hash(final PackFile pack, final long position) {
+		int h = pack.hash + (int) position + (int) (position >>> 32);
+		h *= 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
 
-		cache = new Slot[CACHE_SZ];
-		for (int i = 0; i < CACHE_SZ; i++)
-			cache[i] = new Slot();
+	private static Stripe stripe(final int hash) {
+		return stripes[(hash * 31) >>> STRIPE_SHIFT];
 	}
 
-	static synchronized void reconfigure(final WindowCacheConfig cfg) {
+	static void reconfigure(final WindowCacheConfig cfg) {
 		final int dbLimit = cfg.getDeltaBaseCacheLimit();
 		if (maxByteCount != dbLimit) {
 			maxByteCount = dbLimit;
-			releaseMemory();
+			evictLock.lock();
+			try {
+				releaseMemory();
+			} finally {
+				evictLock.unlock();
+			}
 		}
 	}
 
-	static synchronized Entry get(final PackFile pack, final long position) {
-		final Slot e = cache[hash(position)];
-		if (e.provider == pack && e.position == position) {
-			final Entry buf = e.data.get();
-			if (buf != null) {
-				moveToHead(e);
-				return buf;
-			}
-		}
-		return null;
+	static Entry get(final PackFile pack, final long position) {
+		final int h = hash(pack, position);
+		return stripe(h).get(pack, position, h);
 	}
 
-	static synchronized void store(final PackFile pack, final long position,
+	static void store(final PackFile pack, final long position,
 			final byte[] data, final int objectType) {
 		if (data.length > maxByteCount)
 			return; // Too large to cache.
 
-		final Slot e = cache[hash(position)];
-		clearEntry(e);
+		final int h = hash(pack, position);
+		stripe(h).store(pack, position, h, new Entry(data, objectType));
 
-		openByteCount += data.length;
-		releaseMemory();
-
-		e.provider = pack;
-		e.position = position;
-		e.sz = data.length;
-		e.data = new SoftReference<Entry>(new Entry(data, objectType));
-		moveToHead(e);
+		if (openByteCount.get() > maxByteCount && evictLock.tryLock()) {
+			try {
+				releaseMemory();
+			} finally {
+				evictLock.unlock();
+			}
+		}
 	}
 
 	private static void releaseMemory() {
-		while (openByteCount > maxByteCount && lruTail != null) {
-			final Slot currOldest = lruTail;
-			final Slot nextOldest = currOldest.lruPrev;
-
-			clearEntry(currOldest);
-			currOldest.lruPrev = null;
-			currOldest.lruNext = null;
-
-			if (nextOldest == null)
-				lruHead = null;
+		int empty = 0;
+		while (openByteCount.get() > maxByteCount && empty < STRIPES) {
+			final int i = evictPtr.getAndIncrement() & (STRIPES - 1);
+			if (stripes[i].evictOldest())
+				empty = 0;
 			else
-				nextOldest.lruNext = null;
-			lruTail = nextOldest;
+				empty++;
 		}
 	}
 
-	static synchronized void purge(final PackFile file) {
-		for (final Slot e : cache) {
-			if (e.provider == file) {
-				clearEntry(e);
-				unlink(e);
-			}
-		}
+	static void purge(final PackFile file) {
+		for (final Stripe s : stripes)
+			s.purge(file);
+	}
+
+	/** @return number of lookups which found a cached object. */
+	static long getHitCount() {
+		long n = 0;
+		for (final Stripe s : stripes)
+			n += s.hits();
+		return n;
 	}
 
-	private static void moveToHead(final Slot e) {
-		unlink(e);
-		e.lruPrev = null;
-		e.lruNext = lruHead;
-		if (lruHead != null)
-			lruHead.lruPrev = e;
-		else
-			lruTail = e;
-		lruHead = e;
+	/** @return number of lookups which did not find a cached object. */
+	static long getMissCount() {
+		long n = 0;
+		for (final Stripe s : stripes)
+			n += s.misses();
+		return n;
 	}
 
-	private static void unlink(final Slot e) {
-		final Slot prev = e.lruPrev;
-		final Slot next = e.lruNext;
-		if (prev != null)
-			prev.lruNext = next;
-		if (next != null)
-			next.lruPrev = prev;
+	/** @return number of entries evicted to stay within the byte limit. */
+	static long getEvictionCount() {
+		long n = 0;
+		for (final Stripe s : stripes)
+			n += s.evictions();
+		return n;
 	}
 
-	private static void clearEntry(final Slot e) {
-		openByteCount -= e.sz;
-		e.provider = null;
-		e.data = DEAD;
-		e.sz = 0;
+	/** @return number of bytes currently held by the cache. */
+	static long getOpenByteCount() {
+		return openByteCount.get();
 	}
 
 	private UnpackedObjectCache() {
@@ -173,17 +187,175 @@ static class Entry {
 		}
 	}
 
+	/** One independently locked part of the cache. */
+	private static class Stripe {
+		/** Hash chains; the length is always a power of 2. */
+		private Slot[] table = new Slot[16];
+
+		private int count;
+
+		/** Most recently used slot. */
+		private Slot lruHead;
+
+		/** Least recently used slot, the next one to evict. */
+		private Slot lruTail;
+
+		private long hits;
+
+		private long misses;
+
+		private long evictions;
+
+		synchronized Entry get(final PackFile pack, final long position,
+				final int hash) {
+			for (Slot s = table[hash & (table.length - 1)]; s != null; s = s.next) {
+				if (s.provider == pack && s.position == position) {
+					final Entry e = s.data.get();
+					if (e != null) {
+						moveToHead(s);
+						hits++;
+						return e;
+					}
+					remove(s); // Discarded by the garbage collector.
+					break;
+				}
+			}
+			misses++;
+			return null;
+		}
+
+		synchronized void store(final PackFile pack, final long position,
+				final int hash, final Entry e) {
+			final int idx = hash & (table.length - 1);
+			for (Slot s = table[idx]; s != null; s = s.next) {
+				if (s.provider == pack && s.position == position) {
+					openByteCount.addAndGet(e.data.length - s.sz);
+					s.sz = e.data.length;
+					s.data = new SoftReference<Entry>(e);
+					moveToHead(s);
+					return;
+				}
+			}
+
+			final Slot s = new Slot(pack, position, hash, e);
+			s.next = table[idx];
+			table[idx] = s;
+			openByteCount.addAndGet(s.sz);
+			moveToHead(s);
+			if (++count > table.length * 3 / 4)
+				grow();
+		}
+
+		/** @return true if an entry was evicted; false if none is left. */
+		synchronized boolean evictOldest() {
+			if (lruTail == null)
+				return false;
+			remove(lruTail);
+			evictions++;
+			return true;
+		}
+
+		synchronized void purge(final PackFile file) {
+			for (Slot s = lruHead; s != null;) {
+				final Slot n = s.lruNext;
+				if (s.provider == file)
+					remove(s);
+				s = n;
+			}
+		}
+
+		synchronized long hits() {
+			return hits;
+		}
+
+		synchronized long misses() {
+			return misses;
+		}
+
+		synchronized long evictions() {
+			return evictions;
+		}
+
+		private void remove(final Slot e) {
+			final int idx = e.hash & (table.length - 1);
+			if (table[idx] == e)
+				table[idx] = e.next;
+			else {
+				Slot p = table[idx];
+				while (p.next != e)
+					p = p.next;
+				p.next = e.next;
+			}
+			unlink(e);
+			count--;
+			openByteCount.addAndGet(-e.sz);
+		}
+
+		private void grow() {
+			final Slot[] n = new Slot[table.length * 2];
+			for (Slot s : table) {
+				while (s != null) {
+					final Slot next = s.next;
+					final int idx = s.hash & (n.length - 1);
+					s.next = n[idx];
+					n[idx] = s;
+					s = next;
+				}
+			}
+			table = n;
+		}
+
+		private void moveToHead(final Slot e) {
+			if (lruHead == e)
+				return;
+			unlink(e);
+			e.lruNext = lruHead;
+			if (lruHead != null)
+				lruHead.lruPrev = e;
+			else
+				lruTail = e;
+			lruHead = e;
+		}
+
+		private void unlink(final Slot e) {
+			final Slot prev = e.lruPrev;
+			final Slot next = e.lruNext;
+			if (prev != null)
+				prev.lruNext = next;
+			else if (lruHead == e)
+				lruHead = next;
+			if (next != null)
+				next.lruPrev = prev;
+			else if (lruTail == e)
+				lruTail = prev;
+			e.lruPrev = null;
+			e.lruNext = null;
+		}
+	}
+
 	private static class Slot {
+		Slot next;
+
 		Slot lruPrev;
 
 		Slot lruNext;
 
-		PackFile provider;
+		final PackFile provider;
 
-		long position;
+		final long position;
+
+		final int hash;
 
 		int sz;
 
-		SoftReference<Entry> data = DEAD;
+		SoftReference<Entry> data;
+
+		Slot(final PackFile pack, final long pos, final int h, final Entry e) {
+			provider = pack;
+			position = pos;
+			hash = h;
+			sz = e.data.length;
+			data = new SoftReference<Entry>(e);
+		}
 	}
 }
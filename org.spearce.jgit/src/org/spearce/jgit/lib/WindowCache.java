@@ -120,6 +120,15 @@ static WindowCache getInstance() {
 		return cache;
 	}
 
+	/**
+	 * Take a snapshot of the current cache's statistics.
+	 *
+	 * @return the counters of the cache, and its per-pack contents.
+	 */
+	public static WindowCacheStats getStatistics() {
+		return new WindowCacheStats(cache);
+	}
+
 	static final ByteWindow get(final PackFile pack, final long offset)
 			throws IOException {
 		final WindowCache c = cache;
@@ -145,6 +154,10 @@ static final void purge(final PackFile pack) {
 
 	private final boolean mmap;
 
+	private final boolean mmapIndex;
+
+	private final boolean directBuffers;
+
 	private final int windowSizeShift;
 
 	private final int windowSize;
@@ -154,10 +167,13 @@ static final void purge(final PackFile pack) {
 	private final AtomicLong openBytes;
 
 	private WindowCache(final WindowCacheConfig cfg) {
-		super(tableSize(cfg), lockCount(cfg));
+		super(tableSize(cfg), lockCount(cfg), cfg.isPackedGitAdmission(), cfg
+				.isPackedGitUseStrongRefs());
 		maxFiles = cfg.getPackedGitOpenFiles();
 		maxBytes = cfg.getPackedGitLimit();
 		mmap = cfg.isPackedGitMMAP();
+		mmapIndex = cfg.isPackedIndexMMAP();
+		directBuffers = cfg.isPackedGitDirectBuffers();
 		windowSizeShift = bits(cfg.getPackedGitWindowSize());
 		windowSize = 1 << windowSizeShift;
 
@@ -170,6 +186,11 @@ private WindowCache(final WindowCacheConfig cfg) {
 			throw new IllegalArgumentException("Window size must be < limit");
 	}
 
+	/** @return true if pack indexes should be searched in mapped memory. */
+	boolean isPackedIndexMMAP() {
+		return mmapIndex;
+	}
+
 	int getOpenFiles() {
 		return openFiles.get();
 	}
@@ -191,6 +212,8 @@ protected ByteWindow load(final PackFile pack, final long offset)
 		try {
 			if (mmap)
 				return pack.mmap(offset, windowSize);
+			if (directBuffers)
+				return pack.readDirect(offset, windowSize);
 			return pack.read(offset, windowSize);
 		} catch (IOException e) {
 			close(pack);
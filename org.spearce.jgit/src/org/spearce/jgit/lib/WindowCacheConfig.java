@@ -53,6 +53,14 @@ public class WindowCacheConfig {
 
 	private boolean packedGitMMAP;
 
+	private boolean packedIndexMMAP;
+
+	private boolean packedGitAdmission;
+
+	private boolean packedGitUseStrongRefs;
+
+	private boolean packedGitDirectBuffers;
+
 	private int deltaBaseCacheLimit;
 
 	/** Create a default configuration. */
@@ -61,6 +69,10 @@ public WindowCacheConfig() {
 		packedGitLimit = 10 * MB;
 		packedGitWindowSize = 8 * KB;
 		packedGitMMAP = false;
+		packedIndexMMAP = false;
+		packedGitAdmission = false;
+		packedGitUseStrongRefs = false;
+		packedGitDirectBuffers = false;
 		deltaBaseCacheLimit = 10 * MB;
 	}
 
@@ -133,6 +145,85 @@ public void setPackedGitMMAP(final boolean usemmap) {
 		packedGitMMAP = usemmap;
 	}
 
+	/**
+	 * @return true searches pack indexes in place through Java NIO virtual
+	 *         memory mapping; false loads each index into the heap when its
+	 *         pack is first accessed. <b>Default false.</b>
+	 */
+	public boolean isPackedIndexMMAP() {
+		return packedIndexMMAP;
+	}
+
+	/**
+	 * @param usemmap
+	 *            true searches pack indexes in place through Java NIO virtual
+	 *            memory mapping; false loads each index into the heap when
+	 *            its pack is first accessed.
+	 */
+	public void setPackedIndexMMAP(final boolean usemmap) {
+		packedIndexMMAP = usemmap;
+	}
+
+	/**
+	 * @return true if a newly read window is kept only when it was accessed
+	 *         more often recently than the window it would evict; false if
+	 *         every new window is kept. <b>Default false.</b>
+	 */
+	public boolean isPackedGitAdmission() {
+		return packedGitAdmission;
+	}
+
+	/**
+	 * @param admit
+	 *            true to keep a newly read window only when it was accessed
+	 *            more often recently than the window it would evict. This
+	 *            protects frequently used windows from being flushed by a
+	 *            single pass over a large pack, such as a full history walk.
+	 */
+	public void setPackedGitAdmission(final boolean admit) {
+		packedGitAdmission = admit;
+	}
+
+	/**
+	 * @return true if windows are held with strong references, so only the
+	 *         cache limits decide which windows are dropped; false if the
+	 *         garbage collector may also drop windows when heap memory runs
+	 *         low. <b>Default false.</b>
+	 */
+	public boolean isPackedGitUseStrongRefs() {
+		return packedGitUseStrongRefs;
+	}
+
+	/**
+	 * @param strong
+	 *            true to hold windows with strong references, so memory use
+	 *            and hit rate depend only on {@link #getPackedGitLimit()} and
+	 *            {@link #getPackedGitOpenFiles()}, not on garbage collection.
+	 *            The limit must then fit comfortably within the heap (or, with
+	 *            direct buffers, within the JVM's direct memory limit).
+	 */
+	public void setPackedGitUseStrongRefs(final boolean strong) {
+		packedGitUseStrongRefs = strong;
+	}
+
+	/**
+	 * @return true if windows that are read rather than mapped are stored in
+	 *         direct buffers outside of the Java heap. <b>Default false.</b>
+	 */
+	public boolean isPackedGitDirectBuffers() {
+		return packedGitDirectBuffers;
+	}
+
+	/**
+	 * @param direct
+	 *            true to read windows into direct buffers outside of the Java
+	 *            heap, keeping cached pack data out of the garbage collector's
+	 *            way. Has no effect if {@link #isPackedGitMMAP()} is set.
+	 */
+	public void setPackedGitDirectBuffers(final boolean direct) {
+		packedGitDirectBuffers = direct;
+	}
+
 	/**
 	 * @return maximum number of bytes to cache in {@link UnpackedObjectCache}
 	 *         for inflated, recently accessed objects, without delta chains.
@@ -165,6 +256,10 @@ public void fromConfig(final Config rc) {
 		setPackedGitLimit(rc.getLong("core", null, "packedgitlimit", getPackedGitLimit()));
 		setPackedGitWindowSize(rc.getInt("core", null, "packedgitwindowsize", getPackedGitWindowSize()));
 		setPackedGitMMAP(rc.getBoolean("core", null, "packedgitmmap", isPackedGitMMAP()));
+		setPackedIndexMMAP(rc.getBoolean("core", null, "packedindexmmap", isPackedIndexMMAP()));
+		setPackedGitAdmission(rc.getBoolean("core", null, "packedgitadmission", isPackedGitAdmission()));
+		setPackedGitUseStrongRefs(rc.getBoolean("core", null, "packedgitusestrongrefs", isPackedGitUseStrongRefs()));
+		setPackedGitDirectBuffers(rc.getBoolean("core", null, "packedgitdirectbuffers", isPackedGitDirectBuffers()));
 		setDeltaBaseCacheLimit(rc.getInt("core", null, "deltabasecachelimit", getDeltaBaseCacheLimit()));
 	}
 }
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Publishes the {@link WindowCache} statistics through JMX.
+ * <p>
+ * The monitor always reports on the current cache, so it remains valid after
+ * {@link WindowCache#reconfigure(WindowCacheConfig)}. Every attribute other
+ * than {@link #getPackStats()} only reads counters, and is cheap to poll.
+ */
+public class WindowCacheMonitor implements WindowCacheMonitorMBean {
+	/** Name the monitor is registered under by {@link #register()}. */
+	public static final String OBJECT_NAME = "org.spearce.jgit:type=WindowCache";
+
+	/**
+	 * Register a monitor with the platform MBean server.
+	 * <p>
+	 * Registering more than once has no further effect.
+	 *
+	 * @throws JMException
+	 *             the monitor could not be registered.
+	 */
+	public static synchronized void register() throws JMException {
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		final ObjectName name = new ObjectName(OBJECT_NAME);
+		if (!server.isRegistered(name))
+			server.registerMBean(new WindowCacheMonitor(), name);
+	}
+
+	/**
+	 * Remove the monitor from the platform MBean server, if registered.
+	 *
+	 * @throws JMException
+	 *             the monitor could not be unregistered.
+	 */
+	public static synchronized void unregister() throws JMException {
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		final ObjectName name = new ObjectName(OBJECT_NAME);
+		if (server.isRegistered(name))
+			server.unregisterMBean(name);
+	}
+
+	public long getHitCount() {
+		return WindowCache.getInstance().getHitCount();
+	}
+
+	public long getMissCount() {
+		return WindowCache.getInstance().getMissCount();
+	}
+
+	public double getHitRatio() {
+		final WindowCache c = WindowCache.getInstance();
+		final long hits = c.getHitCount();
+		final long n = hits + c.getMissCount();
+		return n == 0 ? 1.0 : (double) hits / n;
+	}
+
+	public long getLoadFailureCount() {
+		return WindowCache.getInstance().getLoadFailureCount();
+	}
+
+	public long getTotalLoadTime() {
+		return WindowCache.getInstance().getTotalLoadTime();
+	}
+
+	public double getAverageLoadTime() {
+		final WindowCache c = WindowCache.getInstance();
+		final long misses = c.getMissCount();
+		return misses == 0 ? 0 : (double) c.getTotalLoadTime() / misses;
+	}
+
+	public long getEvictionCount() {
+		return WindowCache.getInstance().getEvictionCount();
+	}
+
+	public long getClearedCount() {
+		return WindowCache.getInstance().getClearedCount();
+	}
+
+	public int getOpenFiles() {
+		return WindowCache.getInstance().getOpenFiles();
+	}
+
+	public long getOpenBytes() {
+		return WindowCache.getInstance().getOpenBytes();
+	}
+
+	public String[] getPackStats() {
+		final List<WindowCacheStats.PackStats> list = WindowCache
+				.getStatistics().getPackStats();
+		final String[] r = new String[list.size()];
+		for (int i = 0; i < r.length; i++)
+			r[i] = list.get(i).toString();
+		return r;
+	}
+
+	public long getDeltaBaseHitCount() {
+		return UnpackedObjectCache.getHitCount();
+	}
+
+	public long getDeltaBaseMissCount() {
+		return UnpackedObjectCache.getMissCount();
+	}
+
+	public long getDeltaBaseEvictionCount() {
+		return UnpackedObjectCache.getEvictionCount();
+	}
+
+	public long getDeltaBaseOpenBytes() {
+		return UnpackedObjectCache.getOpenByteCount();
+	}
+}
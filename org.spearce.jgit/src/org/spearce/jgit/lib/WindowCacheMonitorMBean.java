@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+/**
+ * Management interface of {@link WindowCacheMonitor}.
+ * <p>
+ * Window attributes mirror the property of the same name in
+ * {@link WindowCacheStats}. The <code>DeltaBase</code> attributes report on
+ * the cache of inflated delta bases sized by
+ * {@link WindowCacheConfig#getDeltaBaseCacheLimit()}.
+ */
+public interface WindowCacheMonitorMBean {
+	/** @return number of window lookups that found the window cached. */
+	long getHitCount();
+
+	/** @return number of window lookups that had to read the pack. */
+	long getMissCount();
+
+	/** @return fraction of lookups served from the cache. */
+	double getHitRatio();
+
+	/** @return number of window reads that failed with an exception. */
+	long getLoadFailureCount();
+
+	/** @return total nanoseconds spent reading or mapping windows. */
+	long getTotalLoadTime();
+
+	/** @return average nanoseconds spent reading or mapping one window. */
+	double getAverageLoadTime();
+
+	/** @return number of windows evicted to stay within the limits. */
+	long getEvictionCount();
+
+	/** @return number of windows dropped by the garbage collector. */
+	long getClearedCount();
+
+	/** @return number of pack files held open by the cache. */
+	int getOpenFiles();
+
+	/** @return number of bytes held in cached windows. */
+	long getOpenBytes();
+
+	/** @return one line of statistics for each pack in the cache. */
+	String[] getPackStats();
+
+	/** @return lookups that found an object in the delta base cache. */
+	long getDeltaBaseHitCount();
+
+	/** @return lookups that did not find an object in the delta base cache. */
+	long getDeltaBaseMissCount();
+
+	/** @return objects evicted from the delta base cache. */
+	long getDeltaBaseEvictionCount();
+
+	/** @return bytes held in the delta base cache. */
+	long getDeltaBaseOpenBytes();
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.lib;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A snapshot of the counters of {@link WindowCache}.
+ * <p>
+ * Counters start at zero whenever the cache is reconfigured, except for the
+ * per-pack hit and miss counts, which cover the lifetime of each open pack.
+ * Counters are read without locking, so a snapshot taken during concurrent
+ * access may be very slightly out of date, or inconsistent between counters.
+ *
+ * @see WindowCache#getStatistics()
+ */
+public class WindowCacheStats {
+	private final long hitCount;
+
+	private final long missCount;
+
+	private final long loadFailureCount;
+
+	private final long totalLoadTime;
+
+	private final long evictionCount;
+
+	private final long clearedCount;
+
+	private final int openFiles;
+
+	private final long openBytes;
+
+	private final List<PackStats> packStats;
+
+	WindowCacheStats(final WindowCache cache) {
+		hitCount = cache.getHitCount();
+		missCount = cache.getMissCount();
+		loadFailureCount = cache.getLoadFailureCount();
+		totalLoadTime = cache.getTotalLoadTime();
+		evictionCount = cache.getEvictionCount();
+		clearedCount = cache.getClearedCount();
+		openFiles = cache.getOpenFiles();
+		openBytes = cache.getOpenBytes();
+
+		final Map<PackFile, PackStats> byPack = new HashMap<PackFile, PackStats>();
+		for (final WindowCache.WindowRef ref : cache.getLiveRefs()) {
+			PackStats p = byPack.get(ref.pack);
+			if (p == null) {
+				p = new PackStats(ref.pack);
+				byPack.put(ref.pack, p);
+			}
+			p.openWindows++;
+			p.openBytes += ref.size;
+		}
+		final List<PackStats> list = new ArrayList<PackStats>(byPack.values());
+		Collections.sort(list, new Comparator<PackStats>() {
+			public int compare(final PackStats a, final PackStats b) {
+				if (a.openBytes != b.openBytes)
+					return a.openBytes < b.openBytes ? 1 : -1;
+				return a.getPackFile().compareTo(b.getPackFile());
+			}
+		});
+		packStats = Collections.unmodifiableList(list);
+	}
+
+	/** @return number of window lookups that found the window cached. */
+	public long getHitCount() {
+		return hitCount;
+	}
+
+	/** @return number of window lookups that had to read the pack. */
+	public long getMissCount() {
+		return missCount;
+	}
+
+	/** @return total number of window lookups. */
+	public long getRequestCount() {
+		return hitCount + missCount;
+	}
+
+	/** @return fraction of lookups served from the cache; 1.0 if none. */
+	public double getHitRatio() {
+		final long n = getRequestCount();
+		return n == 0 ? 1.0 : (double) hitCount / n;
+	}
+
+	/** @return number of windows read from a pack successfully. */
+	public long getLoadSuccessCount() {
+		return missCount - loadFailureCount;
+	}
+
+	/** @return number of window reads that failed with an exception. */
+	public long getLoadFailureCount() {
+		return loadFailureCount;
+	}
+
+	/** @return total nanoseconds spent reading or mapping windows. */
+	public long getTotalLoadTime() {
+		return totalLoadTime;
+	}
+
+	/** @return average nanoseconds spent reading or mapping one window. */
+	public double getAverageLoadTime() {
+		return missCount == 0 ? 0 : (double) totalLoadTime / missCount;
+	}
+
+	/** @return number of windows evicted to stay within the limits. */
+	public long getEvictionCount() {
+		return evictionCount;
+	}
+
+	/** @return number of windows dropped by the garbage collector. */
+	public long getClearedCount() {
+		return clearedCount;
+	}
+
+	/** @return number of pack files held open by the cache. */
+	public int getOpenFiles() {
+		return openFiles;
+	}
+
+	/** @return number of bytes held in cached windows. */
+	public long getOpenBytes() {
+		return openBytes;
+	}
+
+	/**
+	 * @return statistics for each pack with at least one window in the cache,
+	 *         the packs holding the most bytes first.
+	 */
+	public List<PackStats> getPackStats() {
+		return packStats;
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder r = new StringBuilder();
+		r.append("WindowCacheStats[");
+		r.append("hits=").append(hitCount);
+		r.append(", misses=").append(missCount);
+		r.append(", loadFailures=").append(loadFailureCount);
+		r.append(", avgLoadTime=").append((long) getAverageLoadTime());
+		r.append("ns, evictions=").append(evictionCount);
+		r.append(", cleared=").append(clearedCount);
+		r.append(", openFiles=").append(openFiles);
+		r.append(", openBytes=").append(openBytes);
+		r.append("]");
+		return r.toString();
+	}
+
+	/** Cache statistics of a single pack. */
+	public static class PackStats {
+		private final File packFile;
+
+		private final long hitCount;
+
+		private final long missCount;
+
+		int openWindows;
+
+		long openBytes;
+
+		PackStats(final PackFile pack) {
+			packFile = pack.getPackFile();
+			hitCount = pack.cacheHits.get();
+			missCount = pack.cacheMisses.get();
+		}
+
+		/** @return location of the pack on disk. */
+		public File getPackFile() {
+			return packFile;
+		}
+
+		/** @return lookups of this pack's windows found in the cache. */
+		public long getHitCount() {
+			return hitCount;
+		}
+
+		/** @return lookups of this pack's windows that read the pack. */
+		public long getMissCount() {
+			return missCount;
+		}
+
+		/** @return number of this pack's windows held in the cache. */
+		public int getOpenWindows() {
+			return openWindows;
+		}
+
+		/** @return number of bytes of this pack held in the cache. */
+		public long getOpenBytes() {
+			return openBytes;
+		}
+
+		@Override
+		public String toString() {
+			return packFile.getName() + ": hits=" + hitCount + ", misses="
+					+ missCount + ", windows=" + openWindows + ", bytes="
+					+ openBytes;
+		}
+	}
+}
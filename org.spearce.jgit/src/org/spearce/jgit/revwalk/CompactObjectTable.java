@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.revwalk;
+
+import org.spearce.jgit.lib.AnyObjectId;
+import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.lib.MutableObjectId;
+import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.util.NB;
+
+/**
+ * Object ids, types and flags held in parallel primitive arrays.
+ * <p>
+ * Each object is named by an int handle, assigned in the order the objects
+ * were added. Unlike {@link org.spearce.jgit.lib.ObjectIdSubclassMap} no
+ * object is allocated per id; the table is a handful of arrays that double
+ * in size as they fill.
+ * <p>
+ * The low {@link #TYPE_BITS} bits of an object's flags hold its type, the
+ * remaining bits are free for the caller. Each object also has one int of
+ * caller defined data, initially -1.
+ */
+final class CompactObjectTable {
+	/** Number of low bits of the flags used to hold the object type. */
+	static final int TYPE_BITS = 3;
+
+	private static final int TYPE_MASK = (1 << TYPE_BITS) - 1;
+
+	private final byte[] rawBuffer = new byte[Constants.OBJECT_ID_LENGTH];
+
+	private int size;
+
+	/** Five words of object id per handle. */
+	private int[] ids;
+
+	/** Type and flags of each handle. */
+	private int[] flags;
+
+	/** Caller defined data of each handle. */
+	private int[] data;
+
+	/** Open addressed hash table of handle + 1; 0 marks an empty slot. */
+	private int[] table;
+
+	/** Create an empty table. */
+	CompactObjectTable() {
+		clear();
+	}
+
+	/** Remove all objects from the table. */
+	void clear() {
+		size = 0;
+		ids = new int[64 * 5];
+		flags = new int[64];
+		data = new int[64];
+		table = new int[128];
+	}
+
+	/** @return number of objects in the table. */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Find an existing object.
+	 *
+	 * @param id
+	 *            the object to find.
+	 * @return the object's handle; -1 if it is not in the table.
+	 */
+	int find(final AnyObjectId id) {
+		id.copyRawTo(rawBuffer, 0);
+		return find(rawBuffer, 0);
+	}
+
+	/**
+	 * Find an existing object.
+	 *
+	 * @param raw
+	 *            buffer holding the raw 20 byte object id.
+	 * @param p
+	 *            position of the object id within raw.
+	 * @return the object's handle; -1 if it is not in the table.
+	 */
+	int find(final byte[] raw, final int p) {
+		final int w1 = NB.decodeInt32(raw, p);
+		final int w2 = NB.decodeInt32(raw, p + 4);
+		final int w3 = NB.decodeInt32(raw, p + 8);
+		final int w4 = NB.decodeInt32(raw, p + 12);
+		final int w5 = NB.decodeInt32(raw, p + 16);
+		final int mask = table.length - 1;
+		for (int i = w1 & mask;; i = (i + 1) & mask) {
+			final int h = table[i] - 1;
+			if (h < 0)
+				return -1;
+			final int w = h * 5;
+			if (ids[w] == w1 && ids[w + 1] == w2 && ids[w + 2] == w3
+					&& ids[w + 3] == w4 && ids[w + 4] == w5)
+				return h;
+		}
+	}
+
+	/**
+	 * Add an object not yet in the table.
+	 *
+	 * @param raw
+	 *            buffer holding the raw 20 byte object id.
+	 * @param p
+	 *            position of the object id within raw.
+	 * @param type
+	 *            type of the object.
+	 * @return the new handle.
+	 */
+	int add(final byte[] raw, final int p, final int type) {
+		if (size == flags.length)
+			growArrays();
+		if (table.length - (table.length >>> 2) <= size)
+			growTable();
+
+		final int h = size++;
+		final int w = h * 5;
+		for (int i = 0; i < 5; i++)
+			ids[w + i] = NB.decodeInt32(raw, p + i * 4);
+		flags[h] = type;
+		data[h] = -1;
+		insert(h);
+		return h;
+	}
+
+	/**
+	 * Add an object not yet in the table.
+	 *
+	 * @param id
+	 *            the object to add.
+	 * @param type
+	 *            type of the object.
+	 * @return the new handle.
+	 */
+	int add(final AnyObjectId id, final int type) {
+		id.copyRawTo(rawBuffer, 0);
+		return add(rawBuffer, 0, type);
+	}
+
+	int getType(final int h) {
+		return flags[h] & TYPE_MASK;
+	}
+
+	boolean hasFlag(final int h, final int f) {
+		return (flags[h] & f) != 0;
+	}
+
+	void addFlags(final int h, final int f) {
+		flags[h] |= f;
+	}
+
+	int getData(final int h) {
+		return data[h];
+	}
+
+	void setData(final int h, final int d) {
+		data[h] = d;
+	}
+
+	void getObjectId(final int h, final MutableObjectId dst) {
+		dst.fromRaw(ids, h * 5);
+	}
+
+	ObjectId getObjectId(final int h) {
+		return ObjectId.fromRaw(ids, h * 5);
+	}
+
+	private void insert(final int h) {
+		final int mask = table.length - 1;
+		int i = ids[h * 5] & mask;
+		while (table[i] != 0)
+			i = (i + 1) & mask;
+		table[i] = h + 1;
+	}
+
+	private void growArrays() {
+		final int n = flags.length * 2;
+		ids = grow(ids, n * 5);
+		flags = grow(flags, n);
+		data = grow(data, n);
+	}
+
+	private void growTable() {
+		table = new int[table.length * 2];
+		for (int h = 0; h < size; h++)
+			insert(h);
+	}
+
+	private static int[] grow(final int[] src, final int n) {
+		final int[] r = new int[n];
+		System.arraycopy(src, 0, r, 0, src.length);
+		return r;
+	}
+}
@@ -0,0 +1,875 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.spearce.jgit.revwalk;
+
+import java.io.IOException;
+
+import org.spearce.jgit.errors.CorruptObjectException;
+import org.spearce.jgit.errors.IncorrectObjectTypeException;
+import org.spearce.jgit.errors.MissingObjectException;
+import org.spearce.jgit.lib.AnyObjectId;
+import org.spearce.jgit.lib.CommitGraph;
+import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.lib.FileMode;
+import org.spearce.jgit.lib.MutableObjectId;
+import org.spearce.jgit.lib.ObjectDatabase;
+import org.spearce.jgit.lib.ObjectDirectory;
+import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.ObjectLoader;
+import org.spearce.jgit.lib.Repository;
+import org.spearce.jgit.lib.WindowCursor;
+import org.spearce.jgit.util.MutableInteger;
+import org.spearce.jgit.util.RawParseUtils;
+
+/**
+ * Object walker storing its graph in primitive arrays, not in RevObjects.
+ * <p>
+ * This walker produces the same commits and objects as an {@link ObjectWalk}
+ * using the default {@link RevSort#NONE} ordering, but never allocates an
+ * object per commit, tree or blob it visits. Objects are instead named by int
+ * handles into a table of ids and flags, with the commit time, tree and
+ * parents of each parsed commit in further arrays. Walking the millions of
+ * objects of a large repository thus creates a few large arrays rather than
+ * millions of small objects for the garbage collector to trace.
+ * <p>
+ * Commits are popped first from {@link #next()}, then the annotated tags,
+ * trees and blobs from {@link #nextObject()}. Handles remain valid for the
+ * life of the walker, and can be translated back through methods such as
+ * {@link #getObjectId(int)} and {@link #getType(int)}.
+ * <p>
+ * The walker is meant for a single traversal; create a new one for each.
+ */
+public class CompactObjectWalk {
+	private static final int SEEN = 1 << CompactObjectTable.TYPE_BITS;
+
+	private static final int UNINTERESTING = SEEN << 1;
+
+	private static final int IN_PENDING = SEEN << 2;
+
+	private static final int BOUNDARY = SEEN << 3;
+
+	private static final int OVER_SCAN = PendingGenerator.OVER_SCAN;
+
+	/** Entry type of a gitlink, whose commit is not part of the walk. */
+	private static final int SKIP = 0;
+
+	private final Repository db;
+
+	private final WindowCursor curs;
+
+	private final MutableObjectId idBuffer;
+
+	private final CompactObjectTable objects;
+
+	private CommitGraph graph;
+
+	private boolean graphLoaded;
+
+	/** Number of parsed commits; each has a slot in the commit arrays. */
+	private int commitCount;
+
+	private int[] commitTime;
+
+	private int[] commitTree;
+
+	/** Offset in {@link #parentList} of each commit's parent count. */
+	private int[] commitParents;
+
+	/** Parent counts, each followed by that many parent handles. */
+	private int[] parentList;
+
+	private int parentListSize;
+
+	/** Handle of each parsed commit. */
+	private int[] commitHandle;
+
+	/**
+	 * Commits still to pop, as a list sorted like {@link DateRevQueue}.
+	 * Entries are commit slots; -1 ends the list.
+	 */
+	private int queueHead = -1;
+
+	private int[] queueNext;
+
+	private int overScan = OVER_SCAN;
+
+	private int lastTime;
+
+	private boolean commitsDone;
+
+	/** Uninteresting parents of the commits produced. */
+	private int[] boundary;
+
+	private int boundarySize;
+
+	private int[] stack;
+
+	private int[] pendingObjects;
+
+	private int pendingHead;
+
+	private int pendingTail;
+
+	/** Raw trees being walked by {@link #nextObject()}, root first. */
+	private byte[][] treeRaw;
+
+	private int[] treeHandle;
+
+	private int[] treePtr;
+
+	/** Length of each tree's path prefix within {@link #path}. */
+	private int[] treePrefix;
+
+	private int depth;
+
+	private int nextSubtree = -1;
+
+	private int nextPrefix;
+
+	private byte[] path;
+
+	private int pathLen;
+
+	private boolean fromTreeWalk;
+
+	private int entryMode;
+
+	private int entryNameStart;
+
+	private int entryNameEnd;
+
+	/**
+	 * Create a new walker for a given repository.
+	 *
+	 * @param repo
+	 *            the repository the walker will obtain data from.
+	 */
+	public CompactObjectWalk(final Repository repo) {
+		db = repo;
+		curs = new WindowCursor();
+		idBuffer = new MutableObjectId();
+		objects = new CompactObjectTable();
+		commitTime = new int[64];
+		commitTree = new int[64];
+		commitParents = new int[64];
+		commitHandle = new int[64];
+		queueNext = new int[64];
+		parentList = new int[128];
+		boundary = new int[16];
+		stack = new int[64];
+		pendingObjects = new int[16];
+		treeRaw = new byte[16][];
+		treeHandle = new int[16];
+		treePtr = new int[16];
+		treePrefix = new int[16];
+		path = new byte[256];
+	}
+
+	/**
+	 * Mark an object or commit to start graph traversal from.
+	 * <p>
+	 * Annotated tags are peeled, and both the tags and the object they refer
+	 * to are included in the traversal.
+	 *
+	 * @param id
+	 *            the object to start traversing from.
+	 * @throws MissingObjectException
+	 *             the object, or an object it refers to, is not available
+	 *             from the object database.
+	 * @throws IncorrectObjectTypeException
+	 *             a referenced object is not of the type its referrer claims.
+	 * @throws IOException
+	 *             a pack file or loose object could not be read.
+	 */
+	public void markStart(final AnyObjectId id) throws MissingObjectException,
+			IncorrectObjectTypeException, IOException {
+		int h = lookupAny(id);
+		while (objects.getType(h) == Constants.OBJ_TAG) {
+			addObject(h);
+			h = parseTag(h);
+		}
+
+		if (objects.getType(h) == Constants.OBJ_COMMIT)
+			markStartCommit(h);
+		else
+			addObject(h);
+	}
+
+	/**
+	 * Mark an object to not produce in the output.
+	 * <p>
+	 * Uninteresting objects denote not just themselves but also their entire
+	 * reachable chain, back until the merge base of an uninteresting commit and
+	 * an otherwise interesting commit.
+	 *
+	 * @param id
+	 *            the object to exclude from the traversal.
+	 * @throws MissingObjectException
+	 *             the object, or an object it refers to, is not available
+	 *             from the object database.
+	 * @throws IncorrectObjectTypeException
+	 *             a referenced object is not of the type its referrer claims.
+	 * @throws IOException
+	 *             a pack file or loose object could not be read.
+	 */
+	public void markUninteresting(final AnyObjectId id)
+			throws MissingObjectException, IncorrectObjectTypeException,
+			IOException {
+		int h = lookupAny(id);
+		while (objects.getType(h) == Constants.OBJ_TAG) {
+			objects.addFlags(h, UNINTERESTING);
+			h = parseTag(h);
+		}
+
+		switch (objects.getType(h)) {
+		case Constants.OBJ_COMMIT:
+			objects.addFlags(h, UNINTERESTING);
+			parseCommit(h);
+			carryUninteresting(h);
+			markStartCommit(h);
+			break;
+		case Constants.OBJ_TREE:
+			markTreeUninteresting(h);
+			break;
+		default:
+			objects.addFlags(h, UNINTERESTING);
+			break;
+		}
+	}
+
+	/**
+	 * Pop the next most recent commit.
+	 *
+	 * @return handle of the next most recent commit; -1 if traversal is over.
+	 * @throws MissingObjectException
+	 *             one or more of the next commit's parents are not available
+	 *             from the object database.
+	 * @throws IncorrectObjectTypeException
+	 *             one or more of the next commit's parents are not commits.
+	 * @throws IOException
+	 *             a pack file or loose object could not be read.
+	 */
+	public int next() throws MissingObjectException,
+			IncorrectObjectTypeException, IOException {
+		if (commitsDone)
+			return -1;
+		for (;;) {
+			final int c = pop();
+			if (c < 0) {
+				finishCommits();
+				return -1;
+			}
+
+			final int ptr = commitParents[objects.getData(c)];
+			final int n = parentList[ptr];
+			for (int i = 1; i <= n; i++) {
+				final int p = parentList[ptr + i];
+				if (objects.hasFlag(p, SEEN))
+					continue;
+				parseCommit(p);
+				objects.addFlags(p, SEEN);
+				push(p);
+			}
+
+			if (objects.hasFlag(c, UNINTERESTING)) {
+				carryUninteresting(c);
+				if (everybodyUninteresting()) {
+					if (queueHead >= 0 && commitTime[queueHead] >= lastTime) {
+						// Too close to call, as in PendingGenerator; keep
+						// going to carry the flag as far as necessary.
+						//
+						overScan = OVER_SCAN;
+					} else if (--overScan == 0) {
+						queueHead = -1;
+						finishCommits();
+						return -1;
+					}
+				} else
+					overScan = OVER_SCAN;
+				continue;
+			}
+
+			for (int i = 1; i <= n; i++) {
+				final int p = parentList[ptr + i];
+				if (objects.hasFlag(p, UNINTERESTING))
+					boundary = append(boundary, boundarySize++, p);
+			}
+			addObject(commitTree[objects.getData(c)]);
+			lastTime = time(c);
+			return c;
+		}
+	}
+
+	/**
+	 * Pop the next tag, tree or blob.
+	 * <p>
+	 * Any commits not yet popped from {@link #next()} are popped first, as
+	 * the uninteresting side of the graph must be known before objects can
+	 * be produced.
+	 *
+	 * @return handle of the next object; -1 if traversal is over.
+	 * @throws MissingObjectException
+	 *             one or more of the next objects are not available from the
+	 *             object database.
+	 * @throws IncorrectObjectTypeException
+	 *             one or more of the objects in a tree do not match the type
+	 *             indicated.
+	 * @throws IOException
+	 *             a pack file or loose object could not be read.
+	 */
+	public int nextObject() throws MissingObjectException,
+			IncorrectObjectTypeException, IOException {
+		while (next() >= 0) {
+			// Finish the commits first.
+		}
+		fromTreeWalk = false;
+
+		if (nextSubtree >= 0) {
+			enterTree(nextSubtree, nextPrefix);
+			nextSubtree = -1;
+		}
+
+		while (depth > 0) {
+			final int d = depth - 1;
+			final byte[] raw = treeRaw[d];
+			final int ptr = treePtr[d];
+			if (ptr == raw.length) {
+				treeRaw[d] = null;
+				depth--;
+				continue;
+			}
+
+			final int idPtr = parseEntry(raw, ptr);
+			treePtr[d] = idPtr + Constants.OBJECT_ID_LENGTH;
+			setPath(treePrefix[d], raw);
+			final int type = entryType();
+			if (type == Constants.OBJ_BAD)
+				throw invalidMode(raw, idPtr, getPathStringAlways(),
+						treeHandle[d]);
+			if (type == SKIP)
+				continue;
+
+			final int h = lookup(raw, idPtr, type);
+			if (objects.hasFlag(h, SEEN))
+				continue;
+			objects.addFlags(h, SEEN);
+			if (objects.hasFlag(h, UNINTERESTING))
+				continue;
+			if (type == Constants.OBJ_TREE) {
+				path = ensure(path, pathLen + 1);
+				path[pathLen] = '/';
+				nextSubtree = h;
+				nextPrefix = pathLen + 1;
+			}
+			fromTreeWalk = true;
+			return h;
+		}
+
+		while (pendingHead < pendingTail) {
+			final int h = pendingObjects[pendingHead++];
+			if (objects.hasFlag(h, SEEN))
+				continue;
+			objects.addFlags(h, SEEN);
+			if (objects.hasFlag(h, UNINTERESTING))
+				continue;
+			if (objects.getType(h) == Constants.OBJ_TREE) {
+				nextSubtree = h;
+				nextPrefix = 0;
+			}
+			return h;
+		}
+		curs.release();
+		return -1;
+	}
+
+	/**
+	 * Get the current object's complete path.
+	 *
+	 * @return complete path of the object last returned by
+	 *         {@link #nextObject()}, from the root of the repository. Null if
+	 *         the object has no path, such as for annotated tags or root level
+	 *         trees.
+	 */
+	public String getPathString() {
+		return fromTreeWalk ? getPathStringAlways() : null;
+	}
+
+	/** @return number of distinct objects the walker has seen so far. */
+	public int getObjectCount() {
+		return objects.size();
+	}
+
+	/**
+	 * @param h
+	 *            handle of an object.
+	 * @return type of the object, one of the OBJ_ constants in
+	 *         {@link Constants}.
+	 */
+	public int getType(final int h) {
+		return objects.getType(h);
+	}
+
+	/**
+	 * @param h
+	 *            handle of an object.
+	 * @return the object's name.
+	 */
+	public ObjectId getObjectId(final int h) {
+		return objects.getObjectId(h);
+	}
+
+	/**
+	 * Copy an object's name, without allocating.
+	 *
+	 * @param h
+	 *            handle of an object.
+	 * @param dst
+	 *            receives the object's name.
+	 */
+	public void getObjectId(final int h, final MutableObjectId dst) {
+		objects.getObjectId(h, dst);
+	}
+
+	/**
+	 * @param h
+	 *            handle of a commit returned by {@link #next()}.
+	 * @return time from the commit's "committer " line.
+	 */
+	public int getCommitTime(final int h) {
+		return time(h);
+	}
+
+	/**
+	 * @param h
+	 *            handle of a commit returned by {@link #next()}.
+	 * @return handle of the commit's tree.
+	 */
+	public int getTree(final int h) {
+		return commitTree[objects.getData(h)];
+	}
+
+	/**
+	 * @param h
+	 *            handle of a commit returned by {@link #next()}.
+	 * @return number of parents of the commit.
+	 */
+	public int getParentCount(final int h) {
+		return parentList[commitParents[objects.getData(h)]];
+	}
+
+	/**
+	 * @param h
+	 *            handle of a commit returned by {@link #next()}.
+	 * @param nth
+	 *            parent to return, 0 for the first parent.
+	 * @return handle of the nth parent of the commit.
+	 */
+	public int getParent(final int h, final int nth) {
+		return parentList[commitParents[objects.getData(h)] + 1 + nth];
+	}
+
+	/** Release any resources used by this walker's reader. */
+	public void release() {
+		curs.release();
+	}
+
+	private int lookupAny(final AnyObjectId id) throws MissingObjectException,
+			IOException {
+		int h = objects.find(id);
+		if (h >= 0)
+			return h;
+
+		// The graph may still list commits pruned since it was written.
+		//
+		final CommitGraph g = loadCommitGraph();
+		if (g != null && g.find(id) >= 0 && db.hasObject(id))
+			return objects.add(id, Constants.OBJ_COMMIT);
+
+		final ObjectLoader ldr = db.openObject(curs, id);
+		if (ldr == null)
+			throw new MissingObjectException(id.copy(), "unknown");
+		return objects.add(id, ldr.getType());
+	}
+
+	private int lookup(final AnyObjectId id, final int type)
+			throws IncorrectObjectTypeException {
+		final int h = objects.find(id);
+		if (h < 0)
+			return objects.add(id, type);
+		if (objects.getType(h) != type)
+			throw new IncorrectObjectTypeException(objects.getObjectId(h), type);
+		return h;
+	}
+
+	private int lookup(final byte[] raw, final int ptr, final int type)
+			throws IncorrectObjectTypeException {
+		final int h = objects.find(raw, ptr);
+		if (h < 0)
+			return objects.add(raw, ptr, type);
+		if (objects.getType(h) != type)
+			throw new IncorrectObjectTypeException(objects.getObjectId(h), type);
+		return h;
+	}
+
+	private byte[] load(final int h, final int type)
+			throws MissingObjectException, IncorrectObjectTypeException,
+			IOException {
+		objects.getObjectId(h, idBuffer);
+		final ObjectLoader ldr = db.openObject(curs, idBuffer);
+		if (ldr == null)
+			throw new MissingObjectException(objects.getObjectId(h), type);
+		final byte[] raw = ldr.getCachedBytes();
+		if (ldr.getType() != type)
+			throw new IncorrectObjectTypeException(objects.getObjectId(h), type);
+		return raw;
+	}
+
+	private CommitGraph loadCommitGraph() {
+		if (!graphLoaded) {
+			final ObjectDatabase odb = db.getObjectDatabase();
+			if (odb instanceof ObjectDirectory)
+				graph = ((ObjectDirectory) odb).getCommitGraph();
+			graphLoaded = true;
+		}
+		return graph;
+	}
+
+	private int parseTag(final int h) throws MissingObjectException,
+			IncorrectObjectTypeException, IOException {
+		final byte[] raw = load(h, Constants.OBJ_TAG);
+		final MutableInteger pos = new MutableInteger();
+		pos.value = 53; // "object $sha1\ntype "
+		final int type = Constants.decodeTypeString(objects.getObjectId(h),
+				raw, (byte) '\n', pos);
+		idBuffer.fromString(raw, 7);
+		return lookup(idBuffer, type);
+	}
+
+	private void parseCommit(final int h) throws MissingObjectException,
+			IncorrectObjectTypeException, IOException {
+		if (objects.getData(h) >= 0)
+			return;
+
+		final int tree;
+		final int ptr;
+		final int time;
+		final CommitGraph g = loadCommitGraph();
+		objects.getObjectId(h, idBuffer);
+		final int pos = g != null ? g.find(idBuffer) : -1;
+		if (pos >= 0 && db.hasObject(idBuffer)) {
+			g.getTree(pos, idBuffer);
+			tree = lookup(idBuffer, Constants.OBJ_TREE);
+			final int n = g.getParentCount(pos);
+			ptr = allocParents(n);
+			for (int i = 0; i < n; i++) {
+				g.getObjectId(g.getParent(pos, i), idBuffer);
+				parentList[ptr + 1 + i] = lookup(idBuffer,
+						Constants.OBJ_COMMIT);
+			}
+			time = g.getCommitTime(pos);
+		} else {
+			final byte[] raw = load(h, Constants.OBJ_COMMIT);
+			idBuffer.fromString(raw, 5);
+			tree = lookup(idBuffer, Constants.OBJ_TREE);
+
+			int p = 46;
+			int n = 0;
+			while (raw[p + n * 48] == 'p')
+				n++;
+			ptr = allocParents(n);
+			for (int i = 0; i < n; i++, p += 48) {
+				idBuffer.fromString(raw, p + 7);
+				parentList[ptr + 1 + i] = lookup(idBuffer,
+						Constants.OBJ_COMMIT);
+			}
+
+			p = RawParseUtils.committer(raw, p);
+			if (p > 0) {
+				p = RawParseUtils.nextLF(raw, p, '>');
+				time = RawParseUtils.parseBase10(raw, p, null);
+			} else
+				time = 0;
+		}
+
+		final int ci = commitCount++;
+		if (ci == commitTime.length) {
+			commitTime = grow(commitTime);
+			commitTree = grow(commitTree);
+			commitParents = grow(commitParents);
+			commitHandle = grow(commitHandle);
+			queueNext = grow(queueNext);
+		}
+		commitTime[ci] = time;
+		commitTree[ci] = tree;
+		commitParents[ci] = ptr;
+		commitHandle[ci] = h;
+		objects.setData(h, ci);
+	}
+
+	private int allocParents(final int n) {
+		final int ptr = parentListSize;
+		parentList = ensure(parentList, ptr + 1 + n);
+		parentList[ptr] = n;
+		parentListSize = ptr + 1 + n;
+		return ptr;
+	}
+
+	private int time(final int h) {
+		return commitTime[objects.getData(h)];
+	}
+
+	private void markStartCommit(final int h) throws MissingObjectException,
+			IncorrectObjectTypeException, IOException {
+		parseCommit(h);
+		if (objects.hasFlag(h, SEEN))
+			return;
+		objects.addFlags(h, SEEN);
+		push(h);
+	}
+
+	private void carryUninteresting(final int c) {
+		int n = 0;
+		stack[n++] = c;
+		while (n > 0) {
+			final int ci = objects.getData(stack[--n]);
+			if (ci < 0)
+				continue;
+			final int ptr = commitParents[ci];
+			final int cnt = parentList[ptr];
+			for (int i = 1; i <= cnt; i++) {
+				final int p = parentList[ptr + i];
+				if (objects.hasFlag(p, UNINTERESTING))
+					continue;
+				objects.addFlags(p, UNINTERESTING);
+				stack = append(stack, n++, p);
+			}
+		}
+	}
+
+	private boolean everybodyUninteresting() {
+		for (int q = queueHead; q >= 0; q = queueNext[q]) {
+			if (!objects.hasFlag(commitHandle[q], UNINTERESTING))
+				return false;
+		}
+		return true;
+	}
+
+	private void finishCommits() throws MissingObjectException,
+			IncorrectObjectTypeException, IOException {
+		commitsDone = true;
+		for (int i = 0; i < boundarySize; i++) {
+			final int c = boundary[i];
+			if (objects.hasFlag(c, BOUNDARY))
+				continue;
+			objects.addFlags(c, BOUNDARY);
+			parseCommit(c);
+			markTreeUninteresting(commitTree[objects.getData(c)]);
+		}
+		boundarySize = 0;
+		curs.release();
+	}
+
+	private void markTreeUninteresting(final int tree)
+			throws MissingObjectException, IncorrectObjectTypeException,
+			IOException {
+		if (objects.hasFlag(tree, UNINTERESTING))
+			return;
+		objects.addFlags(tree, UNINTERESTING);
+
+		int n = 0;
+		stack[n++] = tree;
+		while (n > 0) {
+			final int t = stack[--n];
+			final byte[] raw = load(t, Constants.OBJ_TREE);
+			for (int ptr = 0; ptr < raw.length;) {
+				final int idPtr = parseEntry(raw, ptr);
+				ptr = idPtr + Constants.OBJECT_ID_LENGTH;
+				final int type = entryType();
+				if (type == Constants.OBJ_BAD)
+					throw invalidMode(raw, idPtr, RawParseUtils.decode(
+							Constants.CHARSET, raw, entryNameStart,
+							entryNameEnd), t);
+				if (type == SKIP)
+					continue;
+
+				final int h = lookup(raw, idPtr, type);
+				if (objects.hasFlag(h, UNINTERESTING))
+					continue;
+				objects.addFlags(h, UNINTERESTING);
+				if (type == Constants.OBJ_TREE)
+					stack = append(stack, n++, h);
+			}
+		}
+	}
+
+	private void addObject(final int h) {
+		if (!objects.hasFlag(h, IN_PENDING)) {
+			objects.addFlags(h, IN_PENDING);
+			pendingObjects = append(pendingObjects, pendingTail++, h);
+		}
+	}
+
+	private void enterTree(final int h, final int prefix)
+			throws MissingObjectException, IncorrectObjectTypeException,
+			IOException {
+		final byte[] raw = load(h, Constants.OBJ_TREE);
+		if (depth == treeRaw.length) {
+			final byte[][] n = new byte[depth * 2][];
+			System.arraycopy(treeRaw, 0, n, 0, depth);
+			treeRaw = n;
+			treeHandle = grow(treeHandle);
+			treePtr = grow(treePtr);
+			treePrefix = grow(treePrefix);
+		}
+		treeRaw[depth] = raw;
+		treeHandle[depth] = h;
+		treePtr[depth] = 0;
+		treePrefix[depth] = prefix;
+		depth++;
+	}
+
+	/**
+	 * Parse the mode and name of the tree entry at ptr.
+	 *
+	 * @return position of the entry's object id.
+	 */
+	private int parseEntry(final byte[] raw, int ptr) {
+		int mode = 0;
+		byte c;
+		while ((c = raw[ptr++]) != ' ')
+			mode = (mode << 3) + (c - '0');
+		entryMode = mode;
+		entryNameStart = ptr;
+		while (raw[ptr] != 0)
+			ptr++;
+		entryNameEnd = ptr;
+		return ptr + 1;
+	}
+
+	/**
+	 * @return type of the entry last parsed; {@link #SKIP} for a gitlink,
+	 *         OBJ_BAD if the mode is not valid.
+	 */
+	private int entryType() {
+		switch (entryMode & FileMode.TYPE_MASK) {
+		case FileMode.TYPE_TREE:
+			return Constants.OBJ_TREE;
+		case FileMode.TYPE_FILE:
+		case FileMode.TYPE_SYMLINK:
+			return Constants.OBJ_BLOB;
+		case FileMode.TYPE_GITLINK:
+			return SKIP;
+		default:
+			return Constants.OBJ_BAD;
+		}
+	}
+
+	private CorruptObjectException invalidMode(final byte[] raw,
+			final int idPtr, final String name, final int tree) {
+		return new CorruptObjectException("Invalid mode "
+				+ Integer.toOctalString(entryMode) + " for "
+				+ ObjectId.fromRaw(raw, idPtr).name() + " " + name + " in "
+				+ objects.getObjectId(tree).name() + ".");
+	}
+
+	private void setPath(final int prefix, final byte[] raw) {
+		final int len = entryNameEnd - entryNameStart;
+		path = ensure(path, prefix + len);
+		System.arraycopy(raw, entryNameStart, path, prefix, len);
+		pathLen = prefix + len;
+	}
+
+	private String getPathStringAlways() {
+		return RawParseUtils.decode(Constants.CHARSET, path, 0, pathLen);
+	}
+
+	private void push(final int c) {
+		final int n = objects.getData(c);
+		final int when = commitTime[n];
+		int q = queueHead;
+		if (q < 0 || when > commitTime[q]) {
+			queueNext[n] = q;
+			queueHead = n;
+		} else {
+			int p = queueNext[q];
+			while (p >= 0 && commitTime[p] > when) {
+				q = p;
+				p = queueNext[q];
+			}
+			queueNext[n] = queueNext[q];
+			queueNext[q] = n;
+		}
+	}
+
+	private int pop() {
+		final int q = queueHead;
+		if (q < 0)
+			return -1;
+		queueHead = queueNext[q];
+		return commitHandle[q];
+	}
+
+	private static int[] append(int[] a, final int n, final int v) {
+		a = ensure(a, n + 1);
+		a[n] = v;
+		return a;
+	}
+
+	private static int[] grow(final int[] a) {
+		final int[] r = new int[a.length * 2];
+		System.arraycopy(a, 0, r, 0, a.length);
+		return r;
+	}
+
+	private static int[] ensure(final int[] a, final int n) {
+		if (n <= a.length)
+			return a;
+		final int[] r = new int[Math.max(n, a.length * 2)];
+		System.arraycopy(a, 0, r, 0, a.length);
+		return r;
+	}
+
+	private static byte[] ensure(final byte[] a, final int n) {
+		if (n <= a.length)
+			return a;
+		final byte[] r = new byte[Math.max(n, a.length * 2)];
+		System.arraycopy(a, 0, r, 0, a.length);
+		return r;
+	}
+}
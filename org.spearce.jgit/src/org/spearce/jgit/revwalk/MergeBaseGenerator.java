@@ -54,6 +54,10 @@
  * flags will be automatically released on the next reset of the RevWalk, but
  * not until then, as they are assigned to commits throughout the history.
  * <p>
+ * When {@link RevWalk#isMergedInto(RevCommit, RevCommit)} knows the
+ * generation of the base it sets a cutoff, and parents of a lower generation
+ * are not walked, as they cannot have the base as an ancestor.
+ * <p>
  * Several internal flags are reused here for a different purpose, but this
  * should not have any impact as this generator should be run alone, and without
  * any other generators wrapped around it.
@@ -77,9 +81,12 @@ class MergeBaseGenerator extends Generator {
 
 	private int recarryMask;
 
+	private final int cutoff;
+
 	MergeBaseGenerator(final RevWalk w) {
 		walker = w;
 		pending = new DateRevQueue();
+		cutoff = w.generationCutoff;
 	}
 
 	void init(final AbstractRevQueue p) {
@@ -136,6 +143,12 @@ RevCommit next() throws MissingObjectException,
 			for (final RevCommit p : c.parents) {
 				if ((p.flags & IN_PENDING) != 0)
 					continue;
+				if (cutoff != 0 && walker.generation(p) < cutoff) {
+					// Too old to have any of the commits we are
+					// looking for as an ancestor.
+					//
+					continue;
+				}
 				if ((p.flags & PARSED) == 0)
 					p.parseHeaders(walker);
 				p.flags |= IN_PENDING;
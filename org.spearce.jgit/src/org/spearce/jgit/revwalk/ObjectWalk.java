@@ -38,6 +38,9 @@
 package org.spearce.jgit.revwalk;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 
 import org.spearce.jgit.errors.CorruptObjectException;
 import org.spearce.jgit.errors.IncorrectObjectTypeException;
@@ -45,6 +48,7 @@
 import org.spearce.jgit.lib.AnyObjectId;
 import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.FileMode;
+import org.spearce.jgit.lib.ObjectId;
 import org.spearce.jgit.lib.Repository;
 import org.spearce.jgit.treewalk.CanonicalTreeParser;
 
@@ -335,12 +339,24 @@ public void checkConnectivity() throws MissingObjectException,
 			if (c == null)
 				break;
 		}
+		final List<RevBlob> blobs = new ArrayList<RevBlob>();
 		for (;;) {
 			final RevObject o = nextObject();
 			if (o == null)
 				break;
-			if (o instanceof RevBlob && !db.hasObject(o))
-				throw new MissingObjectException(o, Constants.TYPE_BLOB);
+			if (o instanceof RevBlob)
+				blobs.add((RevBlob) o);
+		}
+
+		// The walk never reads blobs, so test them all at once, searching
+		// the pack list once rather than once per blob.
+		//
+		final Set<ObjectId> missing = db.findMissing(blobs);
+		if (missing.isEmpty())
+			return;
+		for (final RevBlob b : blobs) {
+			if (missing.contains(b.copy()))
+				throw new MissingObjectException(b, Constants.TYPE_BLOB);
 		}
 	}
 
@@ -48,6 +48,7 @@
 import org.spearce.jgit.errors.MissingObjectException;
 import org.spearce.jgit.lib.AnyObjectId;
 import org.spearce.jgit.lib.Commit;
+import org.spearce.jgit.lib.CommitGraph;
 import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.MutableObjectId;
 import org.spearce.jgit.lib.PersonIdent;
@@ -57,6 +58,9 @@
 public class RevCommit extends RevObject {
 	static final RevCommit[] NO_PARENTS = {};
 
+	/** Generation of a commit whose ancestry is not described by a graph. */
+	static final int GENERATION_UNKNOWN = Integer.MAX_VALUE;
+
 	private RevTree tree;
 
 	RevCommit[] parents;
@@ -65,6 +69,9 @@ public class RevCommit extends RevObject {
 
 	int inDegree;
 
+	/** Generation number; 0 until {@link RevWalk#generation} computes it. */
+	int generation;
+
 	private byte[] buffer;
 
 	/**
@@ -80,6 +87,17 @@ protected RevCommit(final AnyObjectId id) {
 	@Override
 	void parseHeaders(final RevWalk walk) throws MissingObjectException,
 			IncorrectObjectTypeException, IOException {
+		final CommitGraph graph = walk.getCommitGraph();
+		if (graph != null) {
+			// The graph is not rewritten when objects are pruned, so it
+			// may still name a commit which no longer exists.
+			//
+			final int pos = graph.find(this);
+			if (pos >= 0 && walk.db.hasObject(this)) {
+				parseGraph(walk, graph, pos);
+				return;
+			}
+		}
 		parseCanonical(walk, loadCanonical(walk));
 	}
 
@@ -93,6 +111,31 @@ void parseBody(final RevWalk walk) throws MissingObjectException,
 		}
 	}
 
+	void parseGraph(final RevWalk walk, final CommitGraph graph,
+			final int pos) {
+		final MutableObjectId idBuffer = walk.idBuffer;
+		graph.getTree(pos, idBuffer);
+		tree = walk.lookupTree(idBuffer);
+
+		if (parents == null) {
+			final int nParents = graph.getParentCount(pos);
+			if (nParents == 0)
+				parents = NO_PARENTS;
+			else {
+				final RevCommit[] pList = new RevCommit[nParents];
+				for (int i = 0; i < nParents; i++) {
+					graph.getObjectId(graph.getParent(pos, i), idBuffer);
+					pList[i] = walk.lookupCommit(idBuffer);
+				}
+				parents = pList;
+			}
+		}
+
+		commitTime = graph.getCommitTime(pos);
+		generation = graph.getGeneration(pos);
+		flags |= PARSED;
+	}
+
 	void parseCanonical(final RevWalk walk, final byte[] raw) {
 		final MutableObjectId idBuffer = walk.idBuffer;
 		idBuffer.fromString(raw, 5);
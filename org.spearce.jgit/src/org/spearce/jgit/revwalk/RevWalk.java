@@ -48,8 +48,11 @@
 import org.spearce.jgit.errors.MissingObjectException;
 import org.spearce.jgit.errors.RevWalkException;
 import org.spearce.jgit.lib.AnyObjectId;
+import org.spearce.jgit.lib.CommitGraph;
 import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.MutableObjectId;
+import org.spearce.jgit.lib.ObjectDatabase;
+import org.spearce.jgit.lib.ObjectDirectory;
 import org.spearce.jgit.lib.ObjectId;
 import org.spearce.jgit.lib.ObjectIdSubclassMap;
 import org.spearce.jgit.lib.ObjectLoader;
@@ -177,6 +180,16 @@ public class RevWalk implements Iterable<RevCommit> {
 
 	private boolean retainBody;
 
+	private CommitGraph commitGraph;
+
+	private boolean commitGraphLoaded;
+
+	/**
+	 * Smallest generation a commit may have to be worth walking through, in
+	 * the merge base generator; 0 to walk all commits.
+	 */
+	int generationCutoff;
+
 	/**
 	 * Create a new revision walker for a given repository.
 	 * 
@@ -355,10 +368,24 @@ public boolean isMergedInto(final RevCommit base, final RevCommit tip)
 			treeFilter = TreeFilter.ALL;
 			markStart(tip);
 			markStart(base);
+
+			// An ancestor always has a smaller generation than its
+			// descendants, so nothing at or below the generation of
+			// base but base itself can lead to it.
+			//
+			final int baseGen = generation(base);
+			if (baseGen != RevCommit.GENERATION_UNKNOWN && base != tip) {
+				final int tipGen = generation(tip);
+				if (tipGen != RevCommit.GENERATION_UNKNOWN
+						&& tipGen <= baseGen)
+					return false;
+				generationCutoff = baseGen;
+			}
 			return next() == base;
 		} finally {
 			filter = oldRF;
 			treeFilter = oldTF;
+			generationCutoff = 0;
 		}
 	}
 
@@ -538,6 +565,100 @@ public void setRetainBody(final boolean retain) {
 		retainBody = retain;
 	}
 
+	/**
+	 * Get the commit graph used to parse commits without their bodies.
+	 * <p>
+	 * The graph is only consulted while bodies are not retained, as it holds
+	 * nothing but the parents, commit time and tree of each commit.
+	 *
+	 * @return the repository's commit graph; null if bodies are retained, or
+	 *         the repository has no graph.
+	 */
+	CommitGraph getCommitGraph() {
+		return retainBody ? null : loadCommitGraph();
+	}
+
+	CommitGraph loadCommitGraph() {
+		if (!commitGraphLoaded) {
+			final ObjectDatabase odb = db.getObjectDatabase();
+			if (odb instanceof ObjectDirectory)
+				commitGraph = ((ObjectDirectory) odb).getCommitGraph();
+			commitGraphLoaded = true;
+		}
+		return commitGraph;
+	}
+
+	/**
+	 * Get the generation number of a commit.
+	 * <p>
+	 * Numbers are read from the commit graph. A commit created after the graph
+	 * was written is numbered from its parents, parsing it and any of its
+	 * ancestors not covered by the graph. Results are remembered on each
+	 * commit for the life of this walker.
+	 *
+	 * @param c
+	 *            the commit.
+	 * @return 1 for a root commit, otherwise one more than the largest
+	 *         generation of its parents; {@link RevCommit#GENERATION_UNKNOWN}
+	 *         if the repository has no commit graph.
+	 * @throws MissingObjectException
+	 *             an uncovered ancestor does not exist.
+	 * @throws IncorrectObjectTypeException
+	 *             an uncovered ancestor is not a commit.
+	 * @throws IOException
+	 *             a pack file or loose object could not be read.
+	 */
+	int generation(final RevCommit c) throws MissingObjectException,
+			IncorrectObjectTypeException, IOException {
+		if (c.generation != 0)
+			return c.generation;
+		final CommitGraph graph = loadCommitGraph();
+		if (graph == null) {
+			c.generation = RevCommit.GENERATION_UNKNOWN;
+			return c.generation;
+		}
+
+		// Number uncovered commits without recursion; a long run of
+		// commits made since the graph was written must not overflow
+		// the stack.
+		//
+		final ArrayList<RevCommit> stack = new ArrayList<RevCommit>();
+		stack.add(c);
+		while (!stack.isEmpty()) {
+			final RevCommit top = stack.get(stack.size() - 1);
+			if (top.generation != 0) {
+				stack.remove(stack.size() - 1);
+				continue;
+			}
+			final int pos = graph.find(top);
+			if (pos >= 0) {
+				top.generation = graph.getGeneration(pos);
+				stack.remove(stack.size() - 1);
+				continue;
+			}
+
+			parseHeaders(top);
+			int g = 0;
+			boolean ready = true;
+			for (final RevCommit p : top.parents) {
+				if (p.generation == 0) {
+					stack.add(p);
+					ready = false;
+				} else if (p.generation == RevCommit.GENERATION_UNKNOWN
+						|| g == RevCommit.GENERATION_UNKNOWN)
+					g = RevCommit.GENERATION_UNKNOWN;
+				else
+					g = Math.max(g, p.generation);
+			}
+			if (ready) {
+				top.generation = g == RevCommit.GENERATION_UNKNOWN ? g
+						: g + 1;
+				stack.remove(stack.size() - 1);
+			}
+		}
+		return c.generation;
+	}
+
 	/**
 	 * Locate a reference to a blob without loading it.
 	 * <p>
@@ -720,6 +841,15 @@ public RevObject parseAny(final AnyObjectId id)
 			throws MissingObjectException, IOException {
 		RevObject r = objects.get(id);
 		if (r == null) {
+			final CommitGraph graph = getCommitGraph();
+			final int pos = graph != null ? graph.find(id) : -1;
+			if (pos >= 0 && db.hasObject(id)) {
+				final RevCommit c = createCommit(id);
+				c.parseGraph(this, graph, pos);
+				objects.add(c);
+				return c;
+			}
+
 			final ObjectLoader ldr = db.openObject(curs, id);
 			if (ldr == null)
 				throw new MissingObjectException(id.toObjectId(), "unknown");
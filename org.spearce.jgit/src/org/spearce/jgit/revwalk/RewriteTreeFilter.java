@@ -38,10 +38,13 @@
 package org.spearce.jgit.revwalk;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.spearce.jgit.errors.IncorrectObjectTypeException;
 import org.spearce.jgit.errors.MissingObjectException;
 import org.spearce.jgit.errors.StopWalkException;
+import org.spearce.jgit.lib.CommitGraph;
 import org.spearce.jgit.lib.ObjectId;
 import org.spearce.jgit.revwalk.filter.RevFilter;
 import org.spearce.jgit.treewalk.TreeWalk;
@@ -58,6 +61,10 @@
  * the commit is colored with {@link RevWalk#REWRITE}, allowing a later pass
  * implemented by {@link RewriteGenerator} to remove those colored commits from
  * the DAG.
+ * <p>
+ * If the commit graph records changed paths and the TreeFilter only includes
+ * differences to a set of paths, a commit whose first parent differs in none
+ * of those paths is colored without comparing their trees.
  * 
  * @see RewriteGenerator
  */
@@ -70,10 +77,41 @@ class RewriteTreeFilter extends RevFilter {
 
 	private final TreeWalk pathFilter;
 
+	/** Hashes of the paths a change must touch; null if not path limited. */
+	private final int[] changedPathHashes;
+
 	RewriteTreeFilter(final RevWalk walker, final TreeFilter t) {
 		pathFilter = new TreeWalk(walker.db);
 		pathFilter.setFilter(t);
 		pathFilter.setRecursive(t.shouldBeRecursive());
+		changedPathHashes = hashLimits(t.getChangedPathLimits());
+	}
+
+	private static int[] hashLimits(final String[] limits) {
+		if (limits == null)
+			return null;
+
+		// A path is changed if it, anything below it, or a file
+		// standing in place of one of its parent directories is.
+		//
+		final List<String> keys = new ArrayList<String>();
+		for (final String p : limits) {
+			keys.add(p);
+			keys.add(p + "/");
+			for (int s = p.indexOf('/'); s > 0; s = p.indexOf('/', s + 1))
+				keys.add(p.substring(0, s));
+		}
+		return CommitGraph.hashPaths(keys);
+	}
+
+	private boolean mayHaveChanged(final RevWalk walker, final RevCommit c) {
+		if (changedPathHashes == null)
+			return true;
+		final CommitGraph g = walker.loadCommitGraph();
+		if (g == null || !g.hasChangedPaths())
+			return true;
+		final int pos = g.find(c);
+		return pos < 0 || g.mayHaveChanged(pos, changedPathHashes);
 	}
 
 	@Override
@@ -98,6 +136,24 @@ public boolean include(final RevWalk walker, final RevCommit c)
 			trees[i] = p.getTree();
 		}
 		trees[nParents] = c.getTree();
+
+		if (!mayHaveChanged(walker, c)) {
+			// The commit is the same as its first parent, in every path
+			// the filter can include. If it has no parent, none of the
+			// paths exists at all.
+			//
+			if (nParents <= 1) {
+				c.flags |= REWRITE;
+				return false;
+			}
+			final RevCommit p = pList[0];
+			if ((p.flags & UNINTERESTING) == 0) {
+				c.flags |= REWRITE;
+				c.parents = new RevCommit[] { p };
+				return false;
+			}
+		}
+
 		tw.reset(trees);
 
 		if (nParents == 1) {
@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.transport;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.transport.WalkRemoteObjectDatabase.FileStream;
+import org.spearce.jgit.util.TemporaryBuffer;
+
+/**
+ * Local disk cache of immutable Freenet content.
+ * <p>
+ * Data stored under a <code>CHK@</code> key is addressed by its content, and a
+ * <code>SSK@</code> key cannot be inserted twice with different content, so
+ * anything fetched through either never goes stale. Each such key's data is
+ * kept in a file named by the SHA-1 of the key. When the files grow beyond
+ * the size limit the least recently used ones are deleted.
+ */
+class FreenetCache {
+	/** Default size limit of the cache, in bytes. */
+	static final long DEFAULT_LIMIT = 256 * 1024 * 1024;
+
+	private static final String TMP_PREFIX = "tmp_";
+
+	/**
+	 * Determine if the data of a key may be cached.
+	 *
+	 * @param freenetURI
+	 *            the key.
+	 * @return true if the key always names the same data.
+	 */
+	static boolean isCacheable(final String freenetURI) {
+		return freenetURI.startsWith("CHK@") || freenetURI.startsWith("SSK@");
+	}
+
+	private final File directory;
+
+	private final long limit;
+
+	/** Total size of the cached files; -1 until the directory is scanned. */
+	private long size = -1;
+
+	/**
+	 * Create a cache stored in a directory.
+	 *
+	 * @param directory
+	 *            directory holding the cached files. It is created on the
+	 *            first store.
+	 * @param limit
+	 *            maximum number of bytes to keep.
+	 */
+	FreenetCache(final File directory, final long limit) {
+		this.directory = directory;
+		this.limit = limit;
+	}
+
+	/**
+	 * Determine if a key's data is in the cache.
+	 *
+	 * @param freenetURI
+	 *            the key.
+	 * @return true if {@link #open(String)} would find the data.
+	 */
+	synchronized boolean contains(final String freenetURI) {
+		return isCacheable(freenetURI) && fileFor(freenetURI).isFile();
+	}
+
+	/**
+	 * Open the cached data of a key.
+	 *
+	 * @param freenetURI
+	 *            the key.
+	 * @return the cached data, or null if the key is not cached.
+	 */
+	synchronized FileStream open(final String freenetURI) {
+		if (!isCacheable(freenetURI))
+			return null;
+		final File f = fileFor(freenetURI);
+		try {
+			final FileInputStream in = new FileInputStream(f);
+			f.setLastModified(System.currentTimeMillis());
+			return new FileStream(in, f.length());
+		} catch (FileNotFoundException notCached) {
+			return null;
+		}
+	}
+
+	/**
+	 * Read the cached data of a key into memory.
+	 *
+	 * @param freenetURI
+	 *            the key.
+	 * @return the cached data, or null if the key is not cached.
+	 * @throws IOException
+	 *             the cached file could not be read.
+	 */
+	byte[] read(final String freenetURI) throws IOException {
+		final FileStream s = open(freenetURI);
+		return s != null ? s.toArray() : null;
+	}
+
+	/**
+	 * Store the data of a key.
+	 * <p>
+	 * Data of keys which are not {@link #isCacheable(String)} is ignored.
+	 *
+	 * @param freenetURI
+	 *            the key the data was fetched from.
+	 * @param data
+	 *            the fetched data. The buffer is only read.
+	 * @throws IOException
+	 *             the data could not be written to the cache directory.
+	 */
+	synchronized void store(final String freenetURI, final TemporaryBuffer data)
+			throws IOException {
+		if (!isCacheable(freenetURI) || limit <= 0 || data.length() > limit)
+			return;
+		final File f = fileFor(freenetURI);
+		if (f.isFile())
+			return;
+
+		final File tmp = createTemp();
+		try {
+			final OutputStream out = new FileOutputStream(tmp);
+			try {
+				data.writeTo(out, null);
+			} finally {
+				out.close();
+			}
+		} catch (IOException err) {
+			tmp.delete();
+			throw err;
+		}
+		commit(tmp, f);
+	}
+
+	/**
+	 * Store the data of a key while it is being read by someone else.
+	 * <p>
+	 * The returned stream passes the data through unchanged. The data enters
+	 * the cache only if the stream is read to its end and the expected number
+	 * of bytes was seen. Failures to write the cache are ignored.
+	 *
+	 * @param freenetURI
+	 *            the key the data is being fetched from.
+	 * @param in
+	 *            the data being fetched.
+	 * @param length
+	 *            the expected length of the data.
+	 * @return stream to read the data from instead of <code>in</code>.
+	 */
+	InputStream storing(final String freenetURI, final InputStream in,
+			final long length) {
+		if (!isCacheable(freenetURI) || limit <= 0 || length > limit)
+			return in;
+		final File f = fileFor(freenetURI);
+		final File tmp;
+		final OutputStream out;
+		try {
+			synchronized (this) {
+				if (f.isFile())
+					return in;
+				tmp = createTemp();
+			}
+			out = new FileOutputStream(tmp);
+		} catch (IOException err) {
+			return in;
+		}
+
+		return new FilterInputStream(in) {
+			private long seen;
+
+			private boolean failed;
+
+			@Override
+			public int read() throws IOException {
+				final byte[] b = new byte[1];
+				return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+			}
+
+			@Override
+			public int read(final byte[] b, final int off, final int len)
+					throws IOException {
+				final int n = super.read(b, off, len);
+				if (n > 0 && !failed) {
+					try {
+						out.write(b, off, n);
+						seen += n;
+					} catch (IOException err) {
+						failed = true;
+					}
+				} else if (n < 0 && !failed && seen == length) {
+					failed = true; // committed; record nothing more
+					out.close();
+					synchronized (FreenetCache.this) {
+						commit(tmp, f);
+					}
+				}
+				return n;
+			}
+
+			@Override
+			public long skip(final long n) throws IOException {
+				failed = true;
+				return super.skip(n);
+			}
+
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					out.close();
+					tmp.delete();
+				}
+			}
+		};
+	}
+
+	private File createTemp() throws IOException {
+		directory.mkdirs();
+		scan();
+		return File.createTempFile(TMP_PREFIX, null, directory);
+	}
+
+	private void commit(final File tmp, final File f) {
+		if (!tmp.renameTo(f)) {
+			tmp.delete();
+			return;
+		}
+
+		size += f.length();
+		if (size > limit)
+			evict();
+	}
+
+	File fileFor(final String freenetURI) {
+		final MessageDigest md = Constants.newMessageDigest();
+		md.update(Constants.encode(freenetURI));
+		return new File(directory, ObjectId.fromRaw(md.digest()).name());
+	}
+
+	private void scan() {
+		if (size >= 0)
+			return;
+		size = 0;
+		for (final File f : list()) {
+			if (f.getName().startsWith(TMP_PREFIX))
+				f.delete(); // left behind by an interrupted store
+			else
+				size += f.length();
+		}
+	}
+
+	private void evict() {
+		final File[] files = list();
+		final long[] used = new long[files.length];
+		for (int i = 0; i < files.length; i++)
+			used[i] = files[i].lastModified();
+		final Integer[] order = new Integer[files.length];
+		for (int i = 0; i < order.length; i++)
+			order[i] = Integer.valueOf(i);
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(final Integer a, final Integer b) {
+				final long x = used[a.intValue()];
+				final long y = used[b.intValue()];
+				return x < y ? -1 : x == y ? 0 : 1;
+			}
+		});
+
+		// Leave some headroom so the next few stores do not each have
+		// to list and sort the whole directory again.
+		//
+		final long target = limit - limit / 8;
+		for (final Integer i : order) {
+			if (size <= target)
+				break;
+			final File f = files[i.intValue()];
+			if (f.getName().startsWith(TMP_PREFIX))
+				continue;
+			final long len = f.length();
+			if (f.delete())
+				size -= len;
+		}
+	}
+
+	private File[] list() {
+		final File[] files = directory.listFiles();
+		return files != null ? files : new File[0];
+	}
+}
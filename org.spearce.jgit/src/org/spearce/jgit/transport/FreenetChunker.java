@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.util.TemporaryBuffer;
+
+/**
+ * Splits data into chunks at content-defined boundaries.
+ * <p>
+ * A boundary is placed after any byte where a rolling hash of the preceding
+ * bytes has its high bits clear, so boundaries move with the content rather
+ * than with absolute offsets. Inserting or removing bytes therefore only
+ * changes the chunks around the edit; the chunks before and after it keep
+ * their content, and so their CHK@ keys.
+ * <p>
+ * The hash is a "gear" hash: each byte shifts the hash left by one and adds
+ * a random value chosen by the byte, so bit k of the hash depends only on
+ * the last k + 1 bytes. Testing the high bits makes each boundary depend on
+ * a window of about 64 bytes; the low bits would only see the last dozen or
+ * so, giving weaker and more repetitive cut points. The random table is generated from a fixed seed, as boundaries must be the
+ * same on every machine that splits the same data.
+ */
+class FreenetChunker {
+	/** Default average chunk size, in bytes. */
+	static final int DEFAULT_AVERAGE = 1024 * 1024;
+
+	private static final long[] GEAR = new long[256];
+
+	static {
+		final Random r = new Random(0x4a476974L);
+		for (int i = 0; i < GEAR.length; i++)
+			GEAR[i] = r.nextLong();
+	}
+
+	private final int minSize;
+
+	private final int maxSize;
+
+	private final long mask;
+
+	/**
+	 * Create a chunker.
+	 *
+	 * @param average
+	 *            desired average chunk size. It is rounded down to a power of
+	 *            two. Chunks are never smaller than a quarter of it, nor
+	 *            larger than four times it, except for the last chunk which
+	 *            may be smaller.
+	 */
+	FreenetChunker(final int average) {
+		final int avg = Integer.highestOneBit(Math.max(average, 64));
+		minSize = avg / 4;
+		maxSize = avg * 4;
+
+		// A boundary after minSize bytes is expected every (avg - minSize)
+		// bytes, so aim the mask at that to keep the mean close to avg.
+		//
+		final int bits = Integer.numberOfTrailingZeros(Integer
+				.highestOneBit(avg - minSize));
+		mask = -1L << (64 - bits);
+	}
+
+	/** @return smallest size of any chunk but the last. */
+	int getMinSize() {
+		return minSize;
+	}
+
+	/** @return largest size of any chunk. */
+	int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Split a stream into chunks.
+	 *
+	 * @param in
+	 *            the data. It is read to the end, but not closed.
+	 * @return the chunks, in order. The caller must destroy their buffers.
+	 * @throws IOException
+	 *             the data could not be read, or a chunk could not be
+	 *             buffered.
+	 */
+	List<Chunk> split(final InputStream in) throws IOException {
+		final List<Chunk> chunks = new ArrayList<Chunk>();
+		final MessageDigest md = Constants.newMessageDigest();
+		final byte[] buf = new byte[8192];
+		TemporaryBuffer out = new TemporaryBuffer();
+		int size = 0;
+		long hash = 0;
+
+		try {
+			int cnt;
+			while ((cnt = in.read(buf)) > 0) {
+				int start = 0;
+				for (int i = 0; i < cnt; i++) {
+					hash = (hash << 1) + GEAR[buf[i] & 0xff];
+					size++;
+					if (size < minSize)
+						continue;
+					if ((hash & mask) != 0 && size < maxSize)
+						continue;
+
+					out.write(buf, start, i + 1 - start);
+					md.update(buf, start, i + 1 - start);
+					chunks.add(finish(out, md));
+					start = i + 1;
+					out = new TemporaryBuffer();
+					size = 0;
+					hash = 0;
+				}
+				out.write(buf, start, cnt - start);
+				md.update(buf, start, cnt - start);
+			}
+			if (size > 0)
+				chunks.add(finish(out, md));
+			else
+				out.destroy();
+			out = null;
+			return chunks;
+		} catch (IOException err) {
+			if (out != null)
+				out.destroy();
+			for (final Chunk c : chunks)
+				c.data.destroy();
+			throw err;
+		}
+	}
+
+	private static Chunk finish(final TemporaryBuffer out,
+			final MessageDigest md) throws IOException {
+		out.close();
+		return new Chunk(out, ObjectId.fromRaw(md.digest()));
+	}
+
+	/** One piece of the data passed to {@link FreenetChunker#split}. */
+	static class Chunk {
+		/** Content of the chunk. */
+		final TemporaryBuffer data;
+
+		/** SHA-1 of {@link #data}. */
+		final ObjectId id;
+
+		Chunk(final TemporaryBuffer data, final ObjectId id) {
+			this.data = data;
+			this.id = id;
+		}
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.transport;
+
+import org.spearce.jgit.lib.Config;
+import org.spearce.jgit.lib.Config.SectionParser;
+
+/** The "freenet" configuration parameters used by {@link TransportFcp2}. */
+class FreenetConfig {
+	/** Key for {@link Config#get(SectionParser)}. */
+	static final Config.SectionParser<FreenetConfig> KEY = new SectionParser<FreenetConfig>() {
+		public FreenetConfig parse(final Config cfg) {
+			return new FreenetConfig(cfg);
+		}
+	};
+
+	private final String host;
+
+	private final int port;
+
+	private final long cacheLimit;
+
+	private final boolean editionCache;
+
+	private final long subscribeWait;
+
+	private final boolean chunking;
+
+	private final int chunkSize;
+
+	private FreenetConfig(final Config rc) {
+		final String h = rc.getString("freenet", null, "host");
+		host = h != null && h.length() > 0 ? h : "127.0.0.1";
+		port = rc.getInt("freenet", "port", FreenetFCP.DEFAULT_FCP_PORT);
+		cacheLimit = rc.getLong("freenet", null, "cachelimit",
+				FreenetCache.DEFAULT_LIMIT);
+		editionCache = rc.getBoolean("freenet", "editioncache", true);
+		subscribeWait = rc.getLong("freenet", null, "subscribewait", 2000);
+		chunking = rc.getBoolean("freenet", "chunking", false);
+		chunkSize = rc.getInt("freenet", "chunksize",
+				FreenetChunker.DEFAULT_AVERAGE);
+	}
+
+	/** @return host name or address of the node to connect to. */
+	String getHost() {
+		return host;
+	}
+
+	/** @return FCP port of the node to connect to. */
+	int getPort() {
+		return port;
+	}
+
+	/**
+	 * @return maximum number of bytes kept in the local cache of fetched
+	 *         content; 0 disables the cache.
+	 */
+	long getCacheLimit() {
+		return cacheLimit;
+	}
+
+	/**
+	 * @return true if the latest known edition of each USK is recorded, and
+	 *         used as the starting point of the next lookup.
+	 */
+	boolean isEditionCache() {
+		return editionCache;
+	}
+
+	/**
+	 * Time a fetch waits for news of a later edition.
+	 * <p>
+	 * When an edition of the site was recorded, a fetch subscribes to the
+	 * site and waits this long for the node to report a later one. If none is
+	 * reported the recorded edition is read without looking it up on the
+	 * network. A fetch may therefore read stale data if the node does not
+	 * learn of a newer edition within this time. When nothing was published,
+	 * every fetch waits the full time, 2000 ms by default, before reading the
+	 * site. Pushes always look the edition up.
+	 *
+	 * @return milliseconds to wait for the node to report an edition later
+	 *         than the recorded one before using the recorded edition as is;
+	 *         0 to look the edition up on the network each time.
+	 */
+	long getSubscribeWait() {
+		return subscribeWait;
+	}
+
+	/**
+	 * @return true if large packs are inserted as chunks split at content
+	 *         defined boundaries. Clients reading such a remote must support
+	 *         the chunk list.
+	 */
+	boolean isChunking() {
+		return chunking;
+	}
+
+	/** @return desired average size of a chunk, in bytes. */
+	int getChunkSize() {
+		return chunkSize;
+	}
+}
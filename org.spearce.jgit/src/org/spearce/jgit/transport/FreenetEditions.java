@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.transport;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.lib.LockFile;
+import org.spearce.jgit.util.NB;
+import org.spearce.jgit.util.RawParseUtils;
+
+/**
+ * Record of the latest known edition of each <code>USK@</code> site.
+ * <p>
+ * Finding the latest edition of a USK on the network is slow, so the edition
+ * found by each lookup (or produced by each insert) is remembered in a small
+ * text file. A later open can start from the recorded edition rather than the
+ * one in the remote's URI. Each line holds a site, as the USK without its
+ * edition, and its edition separated by a tab.
+ */
+class FreenetEditions {
+	/**
+	 * Get the site of a <code>USK@</code> URI.
+	 *
+	 * @param usk
+	 *            URI of the form <code>USK@key/docname/edition/...</code>.
+	 * @return the site <code>USK@key/docname</code>; null if the URI is not
+	 *         a USK with an edition.
+	 */
+	static String siteOf(final String usk) {
+		if (editionOf(usk) < 0)
+			return null;
+		final String[] p = usk.split("/");
+		return p[0] + "/" + p[1];
+	}
+
+	/**
+	 * Get the edition of a <code>USK@</code> URI.
+	 *
+	 * @param usk
+	 *            URI of the form <code>USK@key/docname/edition/...</code>. The
+	 *            edition may be negated, as in a request for a later edition.
+	 * @return the edition, never negative; -1 if the URI is not a USK with an
+	 *         edition.
+	 */
+	static long editionOf(final String usk) {
+		if (!usk.startsWith("USK@"))
+			return -1;
+		final String[] p = usk.split("/");
+		if (p.length < 3)
+			return -1;
+		String e = p[2];
+		if (e.startsWith("-"))
+			e = e.substring(1);
+		try {
+			return Long.parseLong(e);
+		} catch (NumberFormatException err) {
+			return -1;
+		}
+	}
+
+	private final File file;
+
+	/** Editions by site; null until the file is read. */
+	private Map<String, Long> editions;
+
+	/**
+	 * Create a record kept in a file.
+	 *
+	 * @param file
+	 *            the file holding the editions. It is created on the first
+	 *            update.
+	 */
+	FreenetEditions(final File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Get the latest edition recorded for a site.
+	 *
+	 * @param site
+	 *            the site, as <code>USK@key/docname</code>.
+	 * @return the edition; -1 if the site has not been seen before.
+	 */
+	synchronized long get(final String site) {
+		final Long e = load().get(site);
+		return e != null ? e.longValue() : -1;
+	}
+
+	/**
+	 * Record an edition of a site, unless a later one is already known.
+	 *
+	 * @param usk
+	 *            URI of the edition, as accepted by {@link #siteOf(String)}.
+	 *            Other URIs are ignored.
+	 * @throws IOException
+	 *             the record could not be written.
+	 */
+	synchronized void update(final String usk) throws IOException {
+		final String site = siteOf(usk);
+		if (site == null)
+			return;
+		final long edition = editionOf(usk);
+
+		// Re-read the file under the lock so concurrent updates made by
+		// another process are not lost.
+		//
+		final LockFile lck = new LockFile(file);
+		if (!lck.lock())
+			return; // Another process is recording an edition.
+		try {
+			editions = null;
+			final Long old = load().get(site);
+			if (old != null && old.longValue() >= edition) {
+				lck.unlock();
+				return;
+			}
+			editions.put(site, Long.valueOf(edition));
+
+			final StringBuilder w = new StringBuilder();
+			for (final Map.Entry<String, Long> e : editions.entrySet()) {
+				w.append(e.getKey());
+				w.append('\t');
+				w.append(e.getValue());
+				w.append('\n');
+			}
+			lck.write(Constants.encode(w.toString()));
+		} catch (IOException err) {
+			lck.unlock();
+			throw err;
+		}
+		if (!lck.commit())
+			throw new IOException("Cannot commit write to " + file);
+	}
+
+	private Map<String, Long> load() {
+		if (editions != null)
+			return editions;
+
+		editions = new TreeMap<String, Long>();
+		final byte[] raw;
+		try {
+			raw = NB.readFully(file);
+		} catch (FileNotFoundException e) {
+			return editions;
+		} catch (IOException e) {
+			// The record is only a hint; go on without it.
+			return editions;
+		}
+
+		for (final String line : RawParseUtils.decode(raw).split("\n")) {
+			final int tab = line.indexOf('\t');
+			if (tab <= 0)
+				continue;
+			try {
+				editions.put(line.substring(0, tab), Long.valueOf(line
+						.substring(tab + 1)));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+		}
+		return editions;
+	}
+}
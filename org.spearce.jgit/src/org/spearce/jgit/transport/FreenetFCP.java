@@ -37,18 +37,23 @@
 
 package org.spearce.jgit.transport;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.ProgressMonitor;
+import org.spearce.jgit.util.RawParseUtils;
 import org.spearce.jgit.util.TemporaryBuffer;
 
 /**
@@ -56,21 +61,51 @@
  * <p>
  * See <a href="http://wiki.freenetproject.org/FreenetFCPSpec2Point0">Freenet
  * Client Protocol 2.0 Specification</a> for detail on this protocol.
+ * <p>
+ * Once the {@link #hello(String)} handshake completes a single reader thread
+ * owns the input side of the connection. It routes each reply to the pending
+ * {@link Request} named by the reply's <code>Identifier</code>, so any number
+ * of requests may be in flight on the same node connection.
+ * <p>
+ * Large payloads of fetches started with streaming enabled are not buffered:
+ * the reader thread copies them from the socket to the caller as it reads
+ * them, and does not read any other reply until the payload has been
+ * consumed or its stream closed.
  */
 public class FreenetFCP {
 	/** Default FCP port */
 	public static final int DEFAULT_FCP_PORT = 9481;
 
+	/** Payloads smaller than this are always buffered, even if streaming. */
+	static final int STREAM_THRESHOLD = 64 * 1024;
+
+	private static final byte[] END_MESSAGE = Constants
+			.encodeASCII("EndMessage\n");
+
+	private static final byte[] DATA = Constants.encodeASCII("Data\n");
+
 	private InetAddress addr;
 
 	private int port;
 
 	private Socket socket;
 
-	private InputStream is;
+	private FreenetFCPInputStream is;
 
 	private OutputStream os;
 
+	/** Requests awaiting their final reply, keyed by FCP Identifier. */
+	private final Map<String, Request<?>> pending = new ConcurrentHashMap<String, Request<?>>();
+
+	/** Sequence making the Identifier of every request unique. */
+	private final AtomicInteger nextId = new AtomicInteger();
+
+	/** Thread dispatching replies; null until the handshake completes. */
+	private Thread reader;
+
+	/** Why {@link #reader} stopped; null while the connection is usable. */
+	private IOException readerError;
+
 	/**
 	 * Create a new FCP Connection to default host and port (
 	 * <code>localhost:9481</code>)
@@ -104,8 +139,9 @@ public FreenetFCP(InetAddress address, int port) {
 	 */
 	public void connect() throws IOException {
 		socket = new Socket(addr, port);
+		socket.setKeepAlive(true);
 
-		is = new BufferedInputStream(socket.getInputStream());
+		is = new FreenetFCPInputStream(socket.getInputStream());
 		os = new BufferedOutputStream(socket.getOutputStream());
 	}
 
@@ -113,7 +149,8 @@ public void connect() throws IOException {
 	 * Hello Message
 	 * 
 	 * Send handshake <code>ClientHello</code> message to node. Block until
-	 * <code>NodeHello</code> is received.
+	 * <code>NodeHello</code> is received, then start dispatching replies of
+	 * later requests in the background.
 	 * 
 	 * @param clientName
 	 *            Client name, must be unique in the freenet node
@@ -129,76 +166,77 @@ public void hello(String clientName) throws IOException {
 		send(msg);
 
 		while (true) {
-			Message reply = read(true);
+			Message reply = is.readMessage();
 			if ("NodeHello".equals(reply.type))
-				return;
+				break;
 			if ("ProtocolError".equals(reply.type))
 				throw new IOException("FCP error");
 		}
+		startReader(clientName);
 	}
 
-	Message simplePut(String freenetURI, TemporaryBuffer data,
+	/**
+	 * Start inserting data under a key.
+	 * 
+	 * @param freenetURI
+	 *            the key to insert under, e.g. <code>CHK@</code>.
+	 * @param data
+	 *            the data to insert. It is fully sent to the node before
+	 *            this method returns.
+	 * @param monitor
+	 *            (optional) progress monitor, updated from the reader thread.
+	 * @param monitorTask
+	 *            (optional) task name to display on the monitor.
+	 * @return the pending request. Its result is the final reply, one of
+	 *         <code>PutSuccessful</code>, <code>PutFetchable</code> or
+	 *         <code>PutFailed</code>, merged with any
+	 *         <code>URIGenerated</code> fields received before it.
+	 * @throws IOException
+	 *             the request could not be sent.
+	 */
+	Request<Message> startPut(String freenetURI, TemporaryBuffer data,
 			ProgressMonitor monitor, String monitorTask) throws IOException {
 		Message msg = new Message();
 		msg.type = "ClientPut";
 		msg.field.put("URI", freenetURI);
-		msg.field.put("Identifier", freenetURI);
-		msg.field.put("Verbosity", monitor == null ? "0" : "1");
 		msg.field.put("PriorityClass", "1");
 		msg.field.put("Global", "false");
 		msg.field.put("EarlyEncode", "true"); // for progress
 		msg.field.put("UploadFrom", "direct");
 		msg.field.put("DataLength", "" + data.length());
 		msg.extraData = data;
+		return startPut(msg, monitor, monitorTask);
+	}
 
-		send(msg);
-
-		int totalBlocks = -1;
-		int completedBlocks = 0;
-
-		if (monitor != null)
-			monitor.beginTask(monitorTask, ProgressMonitor.UNKNOWN);
-
-		LinkedHashMap<String, String> allFields = new LinkedHashMap<String, String>();
-		try {
-			while (true) {
-				Message reply = read(true);
-				if ("ProtocolError".equals(reply.type))
-					throw new IOException("Protocol error");
-				if (!freenetURI.equals(reply.field.get("Identifier")))
-					continue; // identifier don't match, ignore it
-				if ("IdentifierCollision".equals(reply.type))
-					throw new IOException("IdentifierCollision");
-
-				if ("SimpleProgress".equals(reply.type) && monitor != null) {
-					if (totalBlocks == -1) {
-						totalBlocks = Integer
-								.parseInt(reply.field.get("Total"));
-						monitor.beginTask(monitorTask, totalBlocks);
-					}
-					int tmp = Integer.parseInt(reply.field.get("Succeeded"));
-					if (tmp < totalBlocks)
-						monitor.update(tmp - completedBlocks);
-					completedBlocks = tmp;
-				}
+	/**
+	 * Start an insert described by a prepared message.
+	 * <p>
+	 * The <code>Identifier</code> and <code>Verbosity</code> fields of the
+	 * message are filled in by this method.
+	 * 
+	 * @param msg
+	 *            a <code>ClientPut</code> or <code>ClientPutComplexDir</code>
+	 *            message.
+	 * @param monitor
+	 *            (optional) progress monitor, updated from the reader thread.
+	 * @param monitorTask
+	 *            (optional) task name to display on the monitor.
+	 * @return the pending request.
+	 * @throws IOException
+	 *             the request could not be sent.
+	 */
+	Request<Message> startPut(Message msg, ProgressMonitor monitor,
+			String monitorTask) throws IOException {
+		final PutRequest r = new PutRequest(msg.get("URI"), monitor,
+				monitorTask);
+		msg.field.put("Identifier", r.identifier);
+		msg.field.put("Verbosity", monitor == null ? "0" : "1");
+		return submit(r, msg);
+	}
 
-				if (monitor != null && totalBlocks == -1)
-					monitor.update(1);
-
-				if ("URIGenerated".equals(reply.type))
-					allFields.putAll(reply.field);
-				if ("PutFailed".equals(reply.type)
-						|| "PutSuccessful".equals(reply.type)
-						|| "PutFetchable".equals(reply.type)) {
-					allFields.putAll(reply.field);
-					reply.field = allFields;
-					return reply;
-				}
-			}
-		} finally {
-			if (monitor != null)
-				monitor.endTask();
-		}
+	Message simplePut(String freenetURI, TemporaryBuffer data,
+			ProgressMonitor monitor, String monitorTask) throws IOException {
+		return startPut(freenetURI, data, monitor, monitorTask).get();
 	}
 
 	static class GetResult {
@@ -206,53 +244,65 @@ static class GetResult {
 
 		String uri;
 
+		/** The payload, if buffered; null if streamed or not found. */
 		TemporaryBuffer data;
-	}
 
-	GetResult simpleGet(String freenetURI) throws IOException {
-		GET_LOOP: for (;;) {
-			final String rID = "GET-" + freenetURI;
+		/** The payload as it arrives, if streamed; otherwise null. */
+		InputStream stream;
 
-			Message msg = new Message();
-			msg.type = "ClientGet";
-			msg.field.put("URI", freenetURI);
-			msg.field.put("Identifier", rID);
-			msg.field.put("PriorityClass", "1");
-			msg.field.put("Verbosity", "1");
-			msg.field.put("MaxSize", Integer.toString(Integer.MAX_VALUE));
-			msg.field.put("Global", "false");
-			msg.field.put("ClientToken", rID);
-			msg.field.put("ReturnType", "direct");
+		/** Length of the payload; -1 if not found. */
+		long length = -1;
 
-			send(msg);
+		boolean isFound() {
+			return data != null || stream != null;
+		}
+	}
 
-			GetResult ret = new GetResult();
-			ret.uri = freenetURI;
-			for (;;) {
-				Message reply = read(true);
-				if ("ProtocolError".equals(reply.type))
-					throw new IOException("Protocol error");
-				if (!rID.equals(reply.field.get("Identifier")))
-					continue; // identifier don't match, ignore it
-				if ("IdentifierCollision".equals(reply.type))
-					throw new IOException("IdentifierCollision");
-
-				if ("DataFound".equals(reply.type))
-					ret.field.putAll(reply.field);
-				if ("GetFailed".equals(reply.type)
-						|| "AllData".equals(reply.type)) {
-					final String rURI = reply.field.get("RedirectURI");
-					if (rURI != null) {
-						freenetURI = rURI;
-						continue GET_LOOP;
-					}
+	/**
+	 * Start fetching a key.
+	 * <p>
+	 * Redirects reported by the node are followed automatically.
+	 * 
+	 * @param freenetURI
+	 *            the key to fetch.
+	 * @return the pending request. Its result holds the data, or the fields
+	 *         of the <code>GetFailed</code> message if there is none.
+	 * @throws IOException
+	 *             the request could not be sent.
+	 */
+	Request<GetResult> startGet(String freenetURI) throws IOException {
+		return startGet(freenetURI, false);
+	}
 
-					ret.field.putAll(reply.field);
-					ret.data = reply.extraData;
-					return ret;
-				}
-			}
-		}
+	/**
+	 * Start fetching a key.
+	 * <p>
+	 * Redirects reported by the node are followed automatically.
+	 * <p>
+	 * If <code>stream</code> is true and the payload is large, the result
+	 * completes as soon as the payload starts to arrive, and holds a
+	 * {@link GetResult#stream} instead of a buffer. The caller must read the
+	 * stream to its end or close it promptly, and must not wait for another
+	 * request of this connection before doing so: no other reply is
+	 * processed while the payload is being transferred.
+	 * 
+	 * @param freenetURI
+	 *            the key to fetch.
+	 * @param stream
+	 *            true to stream large payloads instead of buffering them.
+	 * @return the pending request. Its result holds the data, or the fields
+	 *         of the <code>GetFailed</code> message if there is none.
+	 * @throws IOException
+	 *             the request could not be sent.
+	 */
+	Request<GetResult> startGet(String freenetURI, boolean stream)
+			throws IOException {
+		final GetRequest r = new GetRequest(freenetURI, stream);
+		return submit(r, r.createMessage());
+	}
+
+	GetResult simpleGet(String freenetURI) throws IOException {
+		return startGet(freenetURI).get();
 	}
 
 	/**
@@ -264,122 +314,713 @@ GetResult simpleGet(String freenetURI) throws IOException {
 	 *             if any I/O error occurred
 	 */
 	String[] generateSSK() throws IOException {
+		final Request<String[]> r = new Request<String[]>("SSK", "") {
+			@Override
+			void onMessage(final Message reply) {
+				if ("SSKKeypair".equals(reply.type)) {
+					String[] keys = new String[2];
+					keys[0] = reply.get("RequestURI");
+					keys[1] = reply.get("InsertURI");
+					complete(keys);
+				}
+			}
+
+			@Override
+			Message createCancel() {
+				return null; // answered at once, nothing to stop
+			}
+		};
+
 		Message msg = new Message();
 		msg.type = "GenerateSSK";
-		msg.field.put("Identifier", "GenerateSSK");
+		msg.field.put("Identifier", r.identifier);
+		return submit(r, msg).get();
+	}
 
-		send(msg);
+	/**
+	 * Ask the node to watch a USK for new editions.
+	 * <p>
+	 * The node keeps polling the USK in the background until the request is
+	 * {@link #cancel(Request) cancelled} or the connection is closed, and
+	 * reports each later edition it finds. Nodes
+	 * remember the editions they have seen, so if a later edition is already
+	 * known the request usually completes almost immediately.
+	 * 
+	 * @param uri
+	 *            the USK, including the latest edition known to the caller.
+	 * @return request completing with the first later edition reported.
+	 * @throws IOException
+	 *             the request could not be sent to the node.
+	 */
+	Request<Long> subscribeUSK(final String uri) throws IOException {
+		final long known = FreenetEditions.editionOf(uri);
+		final Request<Long> r = new Request<Long>("USK", uri) {
+			@Override
+			void onMessage(final Message reply) {
+				if ("SubscribedUSKUpdate".equals(reply.type)) {
+					try {
+						final long e = reply.getLong("Edition", -1);
+						if (e > known)
+							complete(Long.valueOf(e));
+					} catch (NumberFormatException err) {
+						// Wait for a better formed update.
+					}
+				}
+			}
 
-		while (true) {
-			Message reply = read(true);
-			if ("ProtocolError".equals(reply.type))
-				throw new IOException("Protocol error");
+			@Override
+			Message createCancel() {
+				Message msg = new Message();
+				msg.type = "UnsubscribeUSK";
+				msg.field.put("Identifier", identifier);
+				return msg;
+			}
+		};
+
+		Message msg = new Message();
+		msg.type = "SubscribeUSK";
+		msg.field.put("Identifier", r.identifier);
+		msg.field.put("URI", uri);
+		msg.field.put("DontPoll", "false");
+		return submit(r, msg);
+	}
+
+	void send(Message msg) throws IOException {
+		synchronized (os) {
+			msg.writeTo(os);
+		}
+	}
+
+	private <T> Request<T> submit(final Request<T> r, final Message msg)
+			throws IOException {
+		synchronized (this) {
+			if (reader == null)
+				throw new IOException("FCP handshake not completed");
+			if (readerError != null)
+				throw readerError;
+			pending.put(r.identifier, r);
+		}
+
+		// A request cancelled while following a redirect stays cancelled.
+		//
+		if (r.isDone()) {
+			pending.remove(r.identifier);
+			return r;
+		}
+
+		try {
+			send(msg);
+		} catch (IOException err) {
+			pending.remove(r.identifier);
+			r.fail(err);
+			throw err;
+		}
+		return r;
+	}
 
-			if ("SSKKeypair".equals(reply.type)) {
-				String[] keys = new String[2];
-				keys[0] = reply.field.get("RequestURI");
-				keys[1] = reply.field.get("InsertURI");
-				return keys;
+	private synchronized void startReader(final String clientName) {
+		reader = new Thread("JGit-FCP-Reader " + clientName) {
+			public void run() {
+				try {
+					for (;;)
+						receive();
+				} catch (IOException err) {
+					abort(err);
+				}
 			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	private void receive() throws IOException {
+		final Message reply = is.readHeader();
+		final String id = reply.get("Identifier");
+		final Request<?> r = id != null ? pending.get(id) : null;
+
+		if (reply.dataLength >= 0) {
+			final DataPipe pipe = r != null ? r.openData(reply) : null;
+			if (pipe != null)
+				pipe.copyFrom(is, reply.dataLength);
+			else if (r == null || r.isDone())
+				Message.skipData(is, reply.dataLength);
+			else
+				reply.extraData = Message.readData(is, reply.dataLength);
 		}
+		dispatch(id, r, reply);
+	}
+
+	private void dispatch(final String id, final Request<?> r,
+			final Message reply) {
+		if (r == null) {
+			// A ProtocolError we cannot attribute may belong to any of
+			// the pending requests; fail all of them like a blocking
+			// client would have done. One naming a request no longer
+			// pending is the node's late answer to a cancelled request.
+			//
+			if (id == null && "ProtocolError".equals(reply.type))
+				failAll(new IOException("Protocol error: " + reply));
+			return;
+		}
+
+		try {
+			if ("ProtocolError".equals(reply.type))
+				throw new IOException("Protocol error: " + reply);
+			if ("IdentifierCollision".equals(reply.type))
+				throw new IOException("IdentifierCollision");
+			r.onMessage(reply);
+		} catch (IOException err) {
+			r.fail(err);
+		}
+
+		// A redirected request registers itself under a new Identifier.
+		//
+		if (r.isDone() || !id.equals(r.identifier))
+			pending.remove(id);
+	}
+
+	private void abort(final IOException err) {
+		synchronized (this) {
+			if (readerError == null)
+				readerError = err;
+		}
+		failAll(err);
+	}
+
+	private synchronized void failAll(final IOException err) {
+		for (final Request<?> r : new ArrayList<Request<?>>(pending.values()))
+			r.fail(err);
+		pending.clear();
+	}
+
+	private String newIdentifier(final String kind, final String name) {
+		return kind + "-" + nextId.incrementAndGet() + "-" + name;
+	}
+
+	/** @return address of the node this connection talks to. */
+	InetAddress getAddress() {
+		return addr;
+	}
+
+	/** @return FCP port of the node this connection talks to. */
+	int getPort() {
+		return port;
 	}
 
 	/**
-	 * Get next FCP message
+	 * Determine if the connection can still carry new requests.
 	 * 
-	 * @param blocking
-	 *            blocks when no data is available. NOTE: It may still block
-	 *            even if <code>blocking</code> is <code>false</code>
-	 * @return the FCP Message, or
-	 *         <code>null<code> if no message available and <code>blocking</code>
-	 *         is false.
-	 * @throws IOException
-	 *             if I/O error occur
+	 * @return true if the handshake completed and the connection has not
+	 *         failed or been closed since.
 	 */
-	Message read(boolean blocking) throws IOException {
-		if (!blocking && is.available() == 0)
-			return null;
+	synchronized boolean isUsable() {
+		return reader != null && readerError == null && !socket.isClosed();
+	}
 
-		Message msg = Message.parse(is);
-		return msg;
+	/**
+	 * Stop a request, keeping the connection open.
+	 * <p>
+	 * The node is asked to stop working on the request, and callers waiting
+	 * on it fail with an {@link IOException}. Replies the node still sends
+	 * for it are read and discarded, as is the rest of a payload being
+	 * streamed to the caller.
+	 * <p>
+	 * A request which already completed may still be cancelled, to stop work
+	 * the node does beyond the result, such as polling a subscribed USK. Its
+	 * result must not be used afterwards.
+	 * 
+	 * @param r
+	 *            the request to stop.
+	 */
+	void cancel(final Request<?> r) {
+		r.fail(new IOException("FCP request cancelled: " + r.identifier));
+		r.discard();
+
+		// Read the Identifier after failing the request: a redirect
+		// racing with us either saw the failure and did not resubmit,
+		// or made its new Identifier visible to us.
+		//
+		pending.remove(r.identifier);
+		final Message msg = r.createCancel();
+		if (msg == null)
+			return;
+		try {
+			send(msg);
+		} catch (IOException err) {
+			// The connection is lost; the node dropped the request.
+		}
 	}
 
-	void send(Message msg) throws IOException {
-		msg.writeTo(os);
+	/**
+	 * Abandon every request still in flight, keeping the connection open.
+	 * <p>
+	 * Each request is {@link #cancel(Request) cancelled}, so the connection
+	 * can be reused without the node still working for the former user.
+	 */
+	void abandonPending() {
+		for (final Request<?> r : new ArrayList<Request<?>>(pending.values()))
+			cancel(r);
 	}
 
 	/**
 	 * Close the connection
+	 * <p>
+	 * Requests still in flight fail with an {@link IOException}.
 	 * 
 	 * @throws IOException
 	 *             if any I/O error occurred
 	 */
 	public void close() throws IOException {
-		os.close();
-		is.close();
-		socket.close();
+		try {
+			os.close();
+			is.close();
+			socket.close();
+		} finally {
+			abort(new IOException("FCP connection closed"));
+		}
+	}
+
+	/**
+	 * A request in flight on this connection.
+	 * <p>
+	 * Replies carrying the request's <code>Identifier</code> are passed to
+	 * {@link #onMessage(Message)} on the reader thread, in the order the node
+	 * sent them. Callers wait for the outcome with {@link #get()}.
+	 * 
+	 * @param <T>
+	 *            type of the request's result.
+	 */
+	abstract class Request<T> {
+		String identifier;
+
+		private boolean done;
+
+		private T result;
+
+		private IOException error;
+
+		Request(final String kind, final String name) {
+			identifier = newIdentifier(kind, name);
+		}
+
+		/**
+		 * Decide where the payload of a reply goes.
+		 * <p>
+		 * Called on the reader thread before the payload is read, and before
+		 * {@link #onMessage(Message)} is called for the same reply.
+		 * 
+		 * @param reply
+		 *            the reply, without its payload.
+		 * @return a pipe to stream the payload into, or null to buffer it
+		 *         into {@link Message#extraData}.
+		 */
+		DataPipe openData(final Message reply) {
+			return null;
+		}
+
+		/**
+		 * Build the message asking the node to stop this request.
+		 * 
+		 * @return the message to send; null if the node needs no notice.
+		 */
+		Message createCancel() {
+			Message msg = new Message();
+			msg.type = "RemoveRequest";
+			msg.field.put("Identifier", identifier);
+			msg.field.put("Global", "false");
+			return msg;
+		}
+
+		/**
+		 * Release what the request holds for a caller who no longer wants it.
+		 * <p>
+		 * Called by {@link FreenetFCP#cancel(Request)} after the request was
+		 * failed or completed.
+		 */
+		void discard() {
+			// Nothing held by default.
+		}
+
+		/**
+		 * Process one reply addressed to this request.
+		 * 
+		 * @param reply
+		 *            the reply.
+		 * @throws IOException
+		 *             the request failed; it is completed with this error.
+		 */
+		abstract void onMessage(Message reply) throws IOException;
+
+		/**
+		 * Complete the request with a result.
+		 * 
+		 * @param r
+		 *            the result.
+		 * @return true if the request completed; false if it was already done,
+		 *         in which case <code>r</code> is not delivered.
+		 */
+		synchronized boolean complete(final T r) {
+			if (done)
+				return false;
+			result = r;
+			done = true;
+			notifyAll();
+			return true;
+		}
+
+		synchronized void fail(final IOException err) {
+			if (!done) {
+				error = err;
+				done = true;
+				notifyAll();
+			}
+		}
+
+		synchronized boolean isDone() {
+			return done;
+		}
+
+		/**
+		 * Wait for the request to complete.
+		 * 
+		 * @return the result of the request.
+		 * @throws IOException
+		 *             the request failed, or the connection was lost.
+		 */
+		synchronized T get() throws IOException {
+			while (!done) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted waiting for "
+							+ identifier);
+				}
+			}
+			if (error != null)
+				throw error;
+			return result;
+		}
+
+		/**
+		 * Wait a limited time for the request to complete.
+		 * 
+		 * @param timeout
+		 *            maximum time to wait, in milliseconds.
+		 * @return the result of the request; null if it did not complete in
+		 *         time.
+		 * @throws IOException
+		 *             the request failed, or the connection was lost.
+		 */
+		synchronized T get(final long timeout) throws IOException {
+			final long end = System.currentTimeMillis() + timeout;
+			while (!done) {
+				final long left = end - System.currentTimeMillis();
+				if (left <= 0)
+					return null;
+				try {
+					wait(left);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("Interrupted waiting for "
+							+ identifier);
+				}
+			}
+			if (error != null)
+				throw error;
+			return result;
+		}
+	}
+
+	private class GetRequest extends Request<GetResult> {
+		private final GetResult ret = new GetResult();
+
+		private final boolean stream;
+
+		GetRequest(final String freenetURI, final boolean stream) {
+			super("GET", freenetURI);
+			this.stream = stream;
+			ret.uri = freenetURI;
+		}
+
+		@Override
+		DataPipe openData(final Message reply) {
+			if (!stream || !"AllData".equals(reply.type)
+					|| reply.dataLength < STREAM_THRESHOLD
+					|| reply.get("RedirectURI") != null)
+				return null;
+
+			final DataPipe pipe = new DataPipe();
+			reply.copyTo(ret.field);
+			ret.stream = pipe.in;
+			ret.length = reply.dataLength;
+			if (!complete(ret))
+				return null; // cancelled, discard the payload
+			return pipe;
+		}
+
+		@Override
+		void discard() {
+			final InputStream in;
+			synchronized (this) {
+				in = ret.stream;
+			}
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException err) {
+					// The pipe does not fail to close.
+				}
+			}
+		}
+
+		Message createMessage() {
+			Message msg = new Message();
+			msg.type = "ClientGet";
+			msg.field.put("URI", ret.uri);
+			msg.field.put("Identifier", identifier);
+			msg.field.put("PriorityClass", "1");
+			msg.field.put("Verbosity", "1");
+			msg.field.put("MaxSize", Integer.toString(Integer.MAX_VALUE));
+			msg.field.put("Global", "false");
+			msg.field.put("ClientToken", identifier);
+			msg.field.put("ReturnType", "direct");
+			return msg;
+		}
+
+		@Override
+		void onMessage(final Message reply) throws IOException {
+			if ("DataFound".equals(reply.type))
+				reply.copyTo(ret.field);
+			if ("GetFailed".equals(reply.type)
+					|| "AllData".equals(reply.type)) {
+				final String rURI = reply.get("RedirectURI");
+				if (rURI != null) {
+					ret.field.clear();
+					ret.uri = rURI;
+					identifier = newIdentifier("GET", rURI);
+					submit(this, createMessage());
+					return;
+				}
+
+				reply.copyTo(ret.field);
+				ret.data = reply.extraData;
+				if (ret.data != null)
+					ret.length = ret.data.length();
+				if (!complete(ret) && ret.data != null)
+					ret.data.destroy();
+			}
+		}
+	}
+
+	private class PutRequest extends Request<Message> {
+		private final ProgressMonitor monitor;
+
+		private final String monitorTask;
+
+		private final LinkedHashMap<String, String> allFields = new LinkedHashMap<String, String>();
+
+		private int totalBlocks = -1;
+
+		private int completedBlocks;
+
+		PutRequest(final String freenetURI, final ProgressMonitor monitor,
+				final String monitorTask) {
+			super("PUT", freenetURI);
+			this.monitor = monitor;
+			this.monitorTask = monitorTask;
+			if (monitor != null)
+				monitor.beginTask(monitorTask, ProgressMonitor.UNKNOWN);
+		}
+
+		@Override
+		void onMessage(final Message reply) {
+			if ("SimpleProgress".equals(reply.type) && monitor != null) {
+				if (totalBlocks == -1) {
+					totalBlocks = reply.getInt("Total", 0);
+					monitor.beginTask(monitorTask, totalBlocks);
+				}
+				int tmp = reply.getInt("Succeeded", 0);
+				if (tmp < totalBlocks)
+					monitor.update(tmp - completedBlocks);
+				completedBlocks = tmp;
+			}
+
+			if (monitor != null && totalBlocks == -1)
+				monitor.update(1);
+
+			if ("URIGenerated".equals(reply.type))
+				reply.copyTo(allFields);
+			if ("PutFailed".equals(reply.type)
+					|| "PutSuccessful".equals(reply.type)
+					|| "PutFetchable".equals(reply.type)) {
+				reply.copyTo(allFields);
+				final Message r = new Message();
+				r.type = reply.type;
+				r.field = allFields;
+				complete(r);
+			}
+		}
+
+		@Override
+		synchronized boolean complete(final Message r) {
+			if (!isDone() && monitor != null)
+				monitor.endTask();
+			return super.complete(r);
+		}
+
+		@Override
+		synchronized void fail(final IOException err) {
+			if (!isDone() && monitor != null)
+				monitor.endTask();
+			super.fail(err);
+		}
 	}
 
 	static class Message {
 		String type;
 
+		/** Fields of a message built locally, or merged from replies. */
 		LinkedHashMap<String, String> field = new LinkedHashMap<String, String>();
 
 		TemporaryBuffer extraData;
 
+		/** Length of the payload following the header; -1 if none. */
+		long dataLength = -1;
+
+		/** Header of a received message; null if built locally. */
+		private byte[] raw;
+
+		/** Names of the fields in {@link #raw}, interned if well known. */
+		private String[] names;
+
+		/** Start and end in {@link #raw} of each field's value. */
+		private int[] values;
+
+		/** Number of fields in {@link #raw}. */
+		private int count;
+
 		Message() {
 			// default constructor
 		}
 
-		static Message parse(InputStream in) throws IOException {
-			Message ret = new Message();
-			String line = readLine(in);
-			ret.type = line;
+		void setReceived(final byte[] header, final String[] fieldNames,
+				final int[] fieldValues, final int fieldCount) {
+			raw = header;
+			names = fieldNames;
+			values = fieldValues;
+			count = fieldCount;
+		}
 
-			while (true) {
-				line = readLine(in);
+		/**
+		 * Get the value of a field.
+		 * 
+		 * @param name
+		 *            name of the field.
+		 * @return the value; null if the message does not have the field.
+		 */
+		String get(final String name) {
+			if (raw == null)
+				return field.get(name);
+			final int i = indexOf(name);
+			if (i < 0)
+				return null;
+			return RawParseUtils.decode(raw, values[2 * i], values[2 * i + 1]);
+		}
 
-				if (line == null)
-					throw new IOException("Malformed FCP message");
-				if ("EndMessage".equals(line))
-					break;
-				if ("Data".equals(line)) {
-					String strLen = ret.field.get("DataLength");
-					if (strLen == null)
-						throw new IOException("DataLength not found");
-					int len;
-					try {
-						len = Integer.parseInt(strLen);
-					} catch (NumberFormatException e) {
-						throw new IOException("DataLength malformed");
-					}
-					ret.extraData = readData(in, len);
-					break;
-				}
+		/**
+		 * Get the value of a numeric field.
+		 * 
+		 * @param name
+		 *            name of the field.
+		 * @param defaultValue
+		 *            value to return if the message does not have the field.
+		 * @return the value.
+		 * @throws NumberFormatException
+		 *             the value is not a decimal number.
+		 */
+		long getLong(final String name, final long defaultValue) {
+			if (raw == null) {
+				final String v = field.get(name);
+				return v != null ? Long.parseLong(v) : defaultValue;
+			}
+			final int i = indexOf(name);
+			if (i < 0)
+				return defaultValue;
 
-				String[] v = line.split("=", 2);
-				if (v.length != 2)
-					throw new IOException("No '=' found in: " + line);
-				ret.field.put(v[0], v[1]);
+			int ptr = values[2 * i];
+			final int end = values[2 * i + 1];
+			final boolean neg = ptr < end && raw[ptr] == '-';
+			if (neg)
+				ptr++;
+			if (ptr == end)
+				throw new NumberFormatException(name);
+			long r = 0;
+			for (; ptr < end; ptr++) {
+				final int d = raw[ptr] - '0';
+				if (d < 0 || d > 9)
+					throw new NumberFormatException(name);
+				r = r * 10 + d;
 			}
+			return neg ? -r : r;
+		}
+
+		/**
+		 * Get the value of a numeric field.
+		 * 
+		 * @param name
+		 *            name of the field.
+		 * @param defaultValue
+		 *            value to return if the message does not have the field.
+		 * @return the value.
+		 * @throws NumberFormatException
+		 *             the value is not a decimal number.
+		 */
+		int getInt(final String name, final int defaultValue) {
+			return (int) getLong(name, defaultValue);
+		}
+
+		/**
+		 * Copy every field of this message into a map.
+		 * 
+		 * @param dst
+		 *            map to copy into; existing fields are replaced.
+		 */
+		void copyTo(final Map<String, String> dst) {
+			if (raw == null) {
+				dst.putAll(field);
+				return;
+			}
+			for (int i = 0; i < count; i++)
+				dst.put(names[i], RawParseUtils.decode(raw, values[2 * i],
+						values[2 * i + 1]));
+		}
 
-			return ret;
+		private int indexOf(final String name) {
+			// Callers pass literals, which are the same instances as
+			// the interned well known names.
+			for (int i = 0; i < count; i++)
+				if (names[i] == name)
+					return i;
+			for (int i = 0; i < count; i++)
+				if (names[i].equals(name))
+					return i;
+			return -1;
 		}
 
 		void writeTo(OutputStream os) throws IOException {
-			os.write(type.getBytes("UTF-8"));
+			os.write(Constants.encode(type));
 			os.write('\n');
 
 			for (Map.Entry<String, String> e : field.entrySet()) {
-				String l = e.getKey() + '=' + e.getValue();
-				os.write(l.getBytes("UTF-8"));
+				os.write(Constants.encode(e.getKey()));
+				os.write('=');
+				os.write(Constants.encode(e.getValue()));
 				os.write('\n');
 			}
 
 			if (extraData == null)
-				os.write("EndMessage\n".getBytes("UTF-8"));
+				os.write(END_MESSAGE);
 			else {
-				os.write("Data\n".getBytes("UTF-8"));
+				os.write(DATA);
 				extraData.writeTo(os, null);
 			}
 			os.flush();
@@ -387,44 +1028,28 @@ void writeTo(OutputStream os) throws IOException {
 
 		@Override
 		public String toString() {
-			return type + ":" + field;
+			final Map<String, String> m = new LinkedHashMap<String, String>();
+			copyTo(m);
+			return type + ":" + m;
 		}
 
-		static String readLine(InputStream in) throws IOException {
-			byte[] buf = new byte[256];
-			int offset = 0;
-
-			while (true) {
-				int b = in.read();
-				if (b == -1)
-					return null;
-				if (b == '\n') {
-					if (offset == 0)
-						continue; // skip empty line
-					break;
-				}
-
-				if (offset == buf.length) {
-					if (offset >= 4096)
-						throw new IOException("line too long");
-
-					byte[] buf2 = new byte[buf.length * 2];
-					System.arraycopy(buf, 0, buf2, 0, buf.length);
-					buf = buf2;
-				}
-
-				buf[offset++] = (byte) b;
+		static void skipData(InputStream in, long len) throws IOException {
+			byte[] tmp = new byte[8192];
+			long read = 0;
+			while (read < len) {
+				int r = in.read(tmp, 0, (int) Math.min(tmp.length, len - read));
+				if (r == -1)
+					throw new IOException("Not enough data");
+				read += r;
 			}
-
-			return new String(buf, 0, offset, "UTF-8");
 		}
 
-		static TemporaryBuffer readData(InputStream in, int len) throws IOException {
+		static TemporaryBuffer readData(InputStream in, long len) throws IOException {
 			TemporaryBuffer buf = new TemporaryBuffer();
 			byte[] tmp = new byte[8192];
-			int read = 0;
+			long read = 0;
 			while (read < len) {
-				int r = in.read(tmp, 0, Math.min(tmp.length, len - read));
+				int r = in.read(tmp, 0, (int) Math.min(tmp.length, len - read));
 				if (r == -1)
 					throw new IOException("Not enough data");
 				buf.write(tmp, 0, r);
@@ -434,4 +1059,128 @@ static TemporaryBuffer readData(InputStream in, int len) throws IOException {
 			return buf;
 		}
 	}
+
+	/**
+	 * Bounded buffer handing a payload from the reader thread to its consumer.
+	 * <p>
+	 * If the consumer closes {@link #in} early the rest of the payload is still
+	 * read from the socket, and discarded, to keep the connection in sync.
+	 */
+	static class DataPipe {
+		private final byte[] buf = new byte[STREAM_THRESHOLD];
+
+		/** Position of the next byte to read from {@link #buf}. */
+		private int head;
+
+		/** Number of bytes in {@link #buf} waiting to be read. */
+		private int count;
+
+		private boolean writerDone;
+
+		private boolean readerClosed;
+
+		private IOException writerError;
+
+		final InputStream in = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				final byte[] b = new byte[1];
+				return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+			}
+
+			@Override
+			public int read(final byte[] b, final int off, final int len)
+					throws IOException {
+				return DataPipe.this.read(b, off, len);
+			}
+
+			@Override
+			public int available() {
+				synchronized (DataPipe.this) {
+					return count;
+				}
+			}
+
+			@Override
+			public void close() {
+				synchronized (DataPipe.this) {
+					readerClosed = true;
+					count = 0;
+					DataPipe.this.notifyAll();
+				}
+			}
+		};
+
+		void copyFrom(final InputStream src, final long len) throws IOException {
+			final byte[] tmp = new byte[8192];
+			long done = 0;
+			try {
+				while (done < len) {
+					final int n = src.read(tmp, 0, (int) Math.min(tmp.length,
+							len - done));
+					if (n < 0)
+						throw new IOException("Not enough data");
+					write(tmp, n);
+					done += n;
+				}
+			} catch (IOException err) {
+				synchronized (this) {
+					writerError = err;
+					notifyAll();
+				}
+				throw err;
+			}
+			synchronized (this) {
+				writerDone = true;
+				notifyAll();
+			}
+		}
+
+		private synchronized void write(final byte[] b, final int len)
+				throws InterruptedIOException {
+			int off = 0;
+			while (off < len && !readerClosed) {
+				while (count == buf.length && !readerClosed)
+					await();
+				if (readerClosed)
+					break;
+				final int tail = (head + count) % buf.length;
+				final int n = Math.min(len - off, Math.min(buf.length - count,
+						buf.length - tail));
+				System.arraycopy(b, off, buf, tail, n);
+				count += n;
+				off += n;
+				notifyAll();
+			}
+		}
+
+		private synchronized int read(final byte[] b, final int off,
+				final int len) throws IOException {
+			if (len == 0)
+				return 0;
+			while (count == 0) {
+				if (readerClosed)
+					throw new IOException("Stream closed");
+				if (writerError != null)
+					throw writerError;
+				if (writerDone)
+					return -1;
+				await();
+			}
+			final int n = Math.min(len, Math.min(count, buf.length - head));
+			System.arraycopy(buf, head, b, off, n);
+			head = (head + n) % buf.length;
+			count -= n;
+			notifyAll();
+			return n;
+		}
+
+		private void await() throws InterruptedIOException {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+		}
+	}
 }
@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.transport;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.transport.FreenetFCP.Message;
+import org.spearce.jgit.util.RawParseUtils;
+
+/**
+ * Buffered input side of an FCP connection.
+ * <p>
+ * Message headers are parsed in place in the stream's buffer: lines are
+ * located by scanning for LF, well known field names and message types are
+ * matched as bytes against a table of interned strings, and field values are
+ * left undecoded. The header's bytes are copied once into the returned
+ * {@link Message}, which decodes a value only when it is asked for. Payloads
+ * are read through the ordinary {@link InputStream} methods, which return
+ * any bytes already buffered before reading the underlying stream.
+ */
+class FreenetFCPInputStream extends InputStream {
+	/** Largest header accepted, in bytes. */
+	private static final int MAX_HEADER = 64 * 1024;
+
+	private static final byte[] END_MESSAGE = { 'E', 'n', 'd', 'M', 'e',
+			's', 's', 'a', 'g', 'e' };
+
+	private static final byte[] DATA = { 'D', 'a', 't', 'a' };
+
+	/** Field names and message types to intern, as the node sends them. */
+	private static final String[] KNOWN = { "Identifier", "URI",
+			"DataLength", "Data", "EndMessage", "Global", "Total", "Required",
+			"Failed", "FatallyFailed", "Succeeded", "FinalizedTotal", "Code",
+			"CodeDescription", "ExtraDescription", "Fatal", "RedirectURI",
+			"ShortCodeDescription", "Metadata.ContentType", "Edition",
+			"RequestURI", "InsertURI", "ClientToken", "NewKnownGood",
+			"NewSlotToo", "DontPoll", "Codec", "CompressedSize",
+			"OriginalSize", "FCPVersion", "Version", "Node", "Build",
+			"ConnectionIdentifier", "NodeHello", "ProtocolError",
+			"IdentifierCollision", "SimpleProgress", "DataFound", "AllData",
+			"GetFailed", "PutSuccessful", "PutFailed", "PutFetchable",
+			"URIGenerated", "StartedCompression", "FinishedCompression",
+			"SSKKeypair", "SubscribedUSK", "SubscribedUSKUpdate",
+			"PersistentGet", "PersistentPut", "PersistentPutDir",
+			"ExpectedHashes", "ExpectedMIME", "ExpectedDataLength",
+			"SendingToNetwork", "CompatibilityMode", "EnterFiniteCooldown" };
+
+	private static final int TABLE_SIZE = 256;
+
+	private static final byte[][] tableBytes = new byte[TABLE_SIZE][];
+
+	private static final String[] tableNames = new String[TABLE_SIZE];
+
+	static {
+		for (final String s : KNOWN) {
+			final byte[] b = Constants.encodeASCII(s);
+			int i = hash(b, 0, b.length) & (TABLE_SIZE - 1);
+			while (tableBytes[i] != null)
+				i = (i + 1) & (TABLE_SIZE - 1);
+			tableBytes[i] = b;
+			tableNames[i] = s;
+		}
+	}
+
+	private static int hash(final byte[] b, int ptr, final int end) {
+		int h = end - ptr;
+		for (; ptr < end; ptr++)
+			h = h * 31 + b[ptr];
+		return h ^ (h >>> 8);
+	}
+
+	/**
+	 * Get the string for a name or message type.
+	 *
+	 * @param b
+	 *            buffer holding the name.
+	 * @param ptr
+	 *            first byte of the name.
+	 * @param end
+	 *            one past the last byte of the name.
+	 * @return the interned string if the name is well known, otherwise a new
+	 *         string decoded from the bytes.
+	 */
+	static String name(final byte[] b, final int ptr, final int end) {
+		int i = hash(b, ptr, end) & (TABLE_SIZE - 1);
+		for (byte[] k; (k = tableBytes[i]) != null; i = (i + 1)
+				& (TABLE_SIZE - 1)) {
+			if (match(b, ptr, end, k))
+				return tableNames[i];
+		}
+		return RawParseUtils.decode(b, ptr, end);
+	}
+
+	private static boolean match(final byte[] b, final int ptr,
+			final int end, final byte[] k) {
+		if (end - ptr != k.length)
+			return false;
+		for (int i = 0; i < k.length; i++)
+			if (b[ptr + i] != k[i])
+				return false;
+		return true;
+	}
+
+	private final InputStream in;
+
+	private byte[] buf = new byte[8192];
+
+	/** Next byte of {@link #buf} to return. */
+	private int ptr;
+
+	/** One past the last valid byte of {@link #buf}. */
+	private int end;
+
+	/**
+	 * Wrap the raw input of a connection.
+	 *
+	 * @param in
+	 *            stream to read from. It should not be buffered.
+	 */
+	FreenetFCPInputStream(final InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Read a message up to, but not including, its payload.
+	 *
+	 * @return the message. If {@link Message#dataLength} is not negative the
+	 *         next that many bytes of this stream are its payload.
+	 * @throws IOException
+	 *             the message could not be read, or is malformed.
+	 */
+	Message readHeader() throws IOException {
+		// Offsets are kept relative to ptr, which stays at the start of
+		// the header until it is complete; fill() may move the bytes.
+		//
+		final Message m = new Message();
+		String[] names = new String[16];
+		int[] values = new int[32];
+		int count = 0;
+		int line = 0;
+		int scan = 0;
+
+		for (;;) {
+			int lf = -1;
+			while (lf < 0) {
+				for (final int e = end - ptr; scan < e; scan++) {
+					if (buf[ptr + scan] == '\n') {
+						lf = scan++;
+						break;
+					}
+				}
+				if (lf < 0 && !fill(true)) {
+					if (m.type == null && line == scan)
+						throw new EOFException("FCP connection closed");
+					throw new IOException("Malformed FCP message");
+				}
+			}
+
+			final int s = ptr + line;
+			final int e = ptr + lf;
+			line = scan;
+			if (s == e)
+				continue; // skip empty line
+			if (m.type == null) {
+				m.type = name(buf, s, e);
+				continue;
+			}
+			if (match(buf, s, e, END_MESSAGE))
+				break;
+			if (match(buf, s, e, DATA)) {
+				m.dataLength = -2;
+				break;
+			}
+
+			int eq = s;
+			while (eq < e && buf[eq] != '=')
+				eq++;
+			if (eq == e)
+				throw new IOException("No '=' found in: "
+						+ RawParseUtils.decode(buf, s, e));
+			if (count == names.length) {
+				final String[] n = new String[count * 2];
+				System.arraycopy(names, 0, n, 0, count);
+				names = n;
+				final int[] v = new int[count * 4];
+				System.arraycopy(values, 0, v, 0, count * 2);
+				values = v;
+			}
+			names[count] = name(buf, s, eq);
+			values[2 * count] = eq + 1 - ptr;
+			values[2 * count + 1] = e - ptr;
+			count++;
+		}
+
+		final byte[] raw = new byte[scan];
+		System.arraycopy(buf, ptr, raw, 0, scan);
+		ptr += scan;
+		m.setReceived(raw, names, values, count);
+
+		if (m.dataLength == -2)
+			m.dataLength = dataLength(m);
+		return m;
+	}
+
+	/**
+	 * Determine the length of the payload following a header.
+	 * <p>
+	 * A <code>ClientPutComplexDir</code> message has no length of its own;
+	 * its payload is the content of each of its <code>direct</code> files,
+	 * one after the other.
+	 */
+	private static long dataLength(final Message m) throws IOException {
+		try {
+			if (m.get("DataLength") != null) {
+				final long len = m.getLong("DataLength", -1);
+				if (len < 0)
+					throw new IOException("DataLength malformed");
+				return len;
+			}
+			if (!"ClientPutComplexDir".equals(m.type))
+				throw new IOException("DataLength not found");
+
+			long len = 0;
+			for (int i = 0; m.get("Files." + i + ".Name") != null; i++) {
+				if (!"direct".equals(m.get("Files." + i + ".UploadFrom")))
+					continue;
+				final long n = m.getLong("Files." + i + ".DataLength", -1);
+				if (n < 0)
+					throw new IOException("DataLength malformed");
+				len += n;
+			}
+			return len;
+		} catch (NumberFormatException err) {
+			throw new IOException("DataLength malformed");
+		}
+	}
+
+	/**
+	 * Read a complete message, buffering its payload if it has one.
+	 *
+	 * @return the message.
+	 * @throws IOException
+	 *             the message could not be read, or is malformed.
+	 */
+	Message readMessage() throws IOException {
+		final Message m = readHeader();
+		if (m.dataLength >= 0)
+			m.extraData = Message.readData(this, m.dataLength);
+		return m;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (ptr == end && !fill(false))
+			return -1;
+		return buf[ptr++] & 0xff;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len)
+			throws IOException {
+		if (len == 0)
+			return 0;
+		if (ptr == end) {
+			if (len >= buf.length)
+				return in.read(b, off, len);
+			if (!fill(false))
+				return -1;
+		}
+		final int n = Math.min(len, end - ptr);
+		System.arraycopy(buf, ptr, b, off, n);
+		ptr += n;
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (end - ptr) + in.available();
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Read more bytes into the buffer, keeping the unread ones.
+	 *
+	 * @param header
+	 *            true if a header is being parsed, and the buffer may grow
+	 *            up to {@link #MAX_HEADER} to hold it.
+	 * @return false at the end of the stream.
+	 * @throws IOException
+	 *             the stream could not be read, or the header is too long.
+	 */
+	private boolean fill(final boolean header) throws IOException {
+		if (ptr > 0) {
+			System.arraycopy(buf, ptr, buf, 0, end - ptr);
+			end -= ptr;
+			ptr = 0;
+		}
+		if (end == buf.length) {
+			if (!header || buf.length >= MAX_HEADER)
+				throw new IOException("FCP message header too long");
+			final byte[] n = new byte[buf.length * 2];
+			System.arraycopy(buf, 0, n, 0, end);
+			buf = n;
+		}
+		final int n = in.read(buf, end, buf.length - end);
+		if (n < 0)
+			return false;
+		end += n;
+		return true;
+	}
+}
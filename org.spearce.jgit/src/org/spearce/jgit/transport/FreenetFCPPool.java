@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2009, Google Inc.
+ *
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or
+ * without modification, are permitted provided that the following
+ * conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above
+ *   copyright notice, this list of conditions and the following
+ *   disclaimer in the documentation and/or other materials provided
+ *   with the distribution.
+ *
+ * - Neither the name of the Git Development Community nor the
+ *   names of its contributors may be used to endorse or promote
+ *   products derived from this software without specific prior
+ *   written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND
+ * CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES,
+ * INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF
+ * ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.spearce.jgit.transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process wide pool of connected {@link FreenetFCP} sessions.
+ * <p>
+ * Opening a session costs a TCP connection and the
+ * <code>ClientHello</code>/<code>NodeHello</code> handshake. Transports lease
+ * a session from this pool instead, and release it when they close, so that
+ * the next transport talking to the same node can reuse it. Sessions left
+ * idle for {@link #IDLE_TIMEOUT} milliseconds are closed by a background
+ * thread.
+ * <p>
+ * Each session says hello under its own client name, as the node disconnects
+ * an older client when a new one uses the same name.
+ */
+class FreenetFCPPool {
+	/** Milliseconds an unused session is kept open. */
+	static final long IDLE_TIMEOUT = 5 * 60 * 1000;
+
+	/** Maximum number of unused sessions kept open per node. */
+	static final int MAX_IDLE = 4;
+
+	private static final FreenetFCPPool pool = new FreenetFCPPool();
+
+	/**
+	 * Lease a session with the node on this machine's default FCP port.
+	 *
+	 * @return a session which completed its handshake. The caller must
+	 *         {@link #release(FreenetFCP)} it when done.
+	 * @throws IOException
+	 *             no connection to the node could be established.
+	 */
+	static FreenetFCP lease() throws IOException {
+		return lease(InetAddress.getAllByName("127.0.0.1")[0],
+				FreenetFCP.DEFAULT_FCP_PORT);
+	}
+
+	/**
+	 * Lease a session with a node.
+	 *
+	 * @param addr
+	 *            address of the node.
+	 * @param port
+	 *            FCP port of the node.
+	 * @return a session which completed its handshake. The caller must
+	 *         {@link #release(FreenetFCP)} it when done.
+	 * @throws IOException
+	 *             no connection to the node could be established.
+	 */
+	static FreenetFCP lease(final InetAddress addr, final int port)
+			throws IOException {
+		return pool.leaseSession(addr, port);
+	}
+
+	/**
+	 * Return a session to the pool.
+	 * <p>
+	 * Requests still in flight on the session are abandoned. Sessions which
+	 * are no longer usable, or exceed {@link #MAX_IDLE}, are closed.
+	 *
+	 * @param fcp
+	 *            session obtained from {@link #lease(InetAddress, int)}.
+	 */
+	static void release(final FreenetFCP fcp) {
+		pool.releaseSession(fcp);
+	}
+
+	/** Close every idle session. */
+	static void clear() {
+		pool.evict(Long.MAX_VALUE);
+	}
+
+	/** Base of the client names, unique to this process. */
+	private final String namePrefix;
+
+	/** Sequence making each session's client name unique. */
+	private final AtomicInteger nextName = new AtomicInteger();
+
+	/** Idle sessions by node, most recently released last. */
+	private final Map<String, LinkedList<Idle>> idle = new HashMap<String, LinkedList<Idle>>();
+
+	/** Thread closing expired sessions; null while there are none idle. */
+	private Thread evictor;
+
+	private FreenetFCPPool() {
+		namePrefix = "JGit-" + Long.toString(System.currentTimeMillis(), 36)
+				+ "-" + Integer.toString(System.identityHashCode(this), 36);
+	}
+
+	private FreenetFCP leaseSession(final InetAddress addr, final int port)
+			throws IOException {
+		final String key = key(addr, port);
+		for (;;) {
+			final FreenetFCP fcp;
+			synchronized (this) {
+				final LinkedList<Idle> list = idle.get(key);
+				if (list == null || list.isEmpty())
+					break;
+				fcp = list.removeLast().fcp;
+				if (list.isEmpty())
+					idle.remove(key);
+			}
+			if (fcp.isUsable())
+				return fcp;
+			closeQuietly(fcp);
+		}
+
+		final FreenetFCP fcp = new FreenetFCP(addr, port);
+		fcp.connect();
+		try {
+			fcp.hello(namePrefix + "-" + nextName.incrementAndGet());
+		} catch (IOException err) {
+			closeQuietly(fcp);
+			throw err;
+		}
+		return fcp;
+	}
+
+	private void releaseSession(final FreenetFCP fcp) {
+		fcp.abandonPending();
+		if (!fcp.isUsable()) {
+			closeQuietly(fcp);
+			return;
+		}
+
+		final String key = key(fcp.getAddress(), fcp.getPort());
+		FreenetFCP extra = null;
+		synchronized (this) {
+			LinkedList<Idle> list = idle.get(key);
+			if (list == null) {
+				list = new LinkedList<Idle>();
+				idle.put(key, list);
+			}
+			list.addLast(new Idle(fcp));
+			if (list.size() > MAX_IDLE)
+				extra = list.removeFirst().fcp;
+			startEvictor();
+		}
+		if (extra != null)
+			closeQuietly(extra);
+	}
+
+	private void startEvictor() {
+		if (evictor != null)
+			return;
+		evictor = new Thread("JGit-FCP-Pool") {
+			public void run() {
+				for (;;) {
+					try {
+						Thread.sleep(IDLE_TIMEOUT / 4);
+					} catch (InterruptedException e) {
+						// Evict early.
+					}
+					evict(System.currentTimeMillis() - IDLE_TIMEOUT);
+					synchronized (FreenetFCPPool.this) {
+						if (idle.isEmpty()) {
+							evictor = null;
+							return;
+						}
+					}
+				}
+			}
+		};
+		evictor.setDaemon(true);
+		evictor.start();
+	}
+
+	/**
+	 * Close idle sessions released before a point in time.
+	 *
+	 * @param releasedBefore
+	 *            sessions released before this time are closed.
+	 */
+	private void evict(final long releasedBefore) {
+		final List<FreenetFCP> expired = new ArrayList<FreenetFCP>();
+		synchronized (this) {
+			final Iterator<LinkedList<Idle>> i = idle.values().iterator();
+			while (i.hasNext()) {
+				final LinkedList<Idle> list = i.next();
+				while (!list.isEmpty()
+						&& (list.getFirst().releasedAt < releasedBefore || !list
+								.getFirst().fcp.isUsable()))
+					expired.add(list.removeFirst().fcp);
+				if (list.isEmpty())
+					i.remove();
+			}
+		}
+		for (final FreenetFCP fcp : expired)
+			closeQuietly(fcp);
+	}
+
+	private static String key(final InetAddress addr, final int port) {
+		return addr.getHostAddress() + ":" + port;
+	}
+
+	private static void closeQuietly(final FreenetFCP fcp) {
+		try {
+			fcp.close();
+		} catch (IOException err) {
+			// Nothing else can be done with the session.
+		}
+	}
+
+	private static class Idle {
+		final FreenetFCP fcp;
+
+		final long releasedAt;
+
+		Idle(final FreenetFCP fcp) {
+			this.fcp = fcp;
+			this.releasedAt = System.currentTimeMillis();
+		}
+	}
+}
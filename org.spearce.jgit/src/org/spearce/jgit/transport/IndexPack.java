@@ -58,6 +58,7 @@
 import org.spearce.jgit.lib.AnyObjectId;
 import org.spearce.jgit.lib.BinaryDelta;
 import org.spearce.jgit.lib.Constants;
+import org.spearce.jgit.lib.DeflaterCache;
 import org.spearce.jgit.lib.InflaterCache;
 import org.spearce.jgit.lib.MutableObjectId;
 import org.spearce.jgit.lib.ObjectChecker;
@@ -490,33 +491,39 @@ private void fixThinPack(final ProgressMonitor progress) throws IOException {
 
 		packDigest.reset();
 		originalEOF = packOut.length() - 20;
-		final Deflater def = new Deflater(Deflater.DEFAULT_COMPRESSION, false);
+		final Deflater def = DeflaterCache.get(Deflater.DEFAULT_COMPRESSION);
 		final List<DeltaChain> missing = new ArrayList<DeltaChain>(64);
 		long end = originalEOF;
-		for (final DeltaChain baseId : baseById) {
-			if (baseId.head == null)
-				continue;
-			final ObjectLoader ldr = repo.openObject(readCurs, baseId);
-			if (ldr == null) {
-				missing.add(baseId);
-				continue;
+		try {
+			// Bases are opened one at a time, so only one of them is
+			// held inflated in memory at once.
+			//
+			for (final DeltaChain baseId : baseById) {
+				if (baseId.head == null)
+					continue;
+				final ObjectLoader ldr = repo.openObject(readCurs, baseId);
+				if (ldr == null) {
+					missing.add(baseId);
+					continue;
+				}
+				final byte[] data = ldr.getCachedBytes();
+				final int typeCode = ldr.getType();
+				final PackedObjectInfo oe;
+
+				crc.reset();
+				packOut.seek(end);
+				writeWhole(def, typeCode, data);
+				oe = new PackedObjectInfo(end, (int) crc.getValue(), baseId);
+				entries[entryCount++] = oe;
+				end = packOut.getFilePointer();
+
+				resolveChildDeltas(oe.getOffset(), typeCode, data, oe);
+				if (progress.isCancelled())
+					throw new IOException("Download cancelled during indexing");
 			}
-			final byte[] data = ldr.getCachedBytes();
-			final int typeCode = ldr.getType();
-			final PackedObjectInfo oe;
-
-			crc.reset();
-			packOut.seek(end);
-			writeWhole(def, typeCode, data);
-			oe = new PackedObjectInfo(end, (int) crc.getValue(), baseId);
-			entries[entryCount++] = oe;
-			end = packOut.getFilePointer();
-
-			resolveChildDeltas(oe.getOffset(), typeCode, data, oe);
-			if (progress.isCancelled())
-				throw new IOException("Download cancelled during indexing");
+		} finally {
+			DeflaterCache.release(def);
 		}
-		def.end();
 
 		for (final DeltaChain base : missing) {
 			if (base.head != null)
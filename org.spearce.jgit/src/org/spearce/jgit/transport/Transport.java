@@ -453,6 +453,11 @@ private static String findTrackingRefName(final String remoteName,
 	 */
 	public static final boolean DEFAULT_PUSH_THIN = false;
 
+	/**
+	 * Default setting for {@link #fetchConcurrency} option.
+	 */
+	public static final int DEFAULT_FETCH_CONCURRENCY = 1;
+
 	/**
 	 * Specification for fetch or push operations, to fetch or push all tags.
 	 * Acts as --tags.
@@ -514,6 +519,9 @@ private static String findTrackingRefName(final String remoteName,
 	/** Timeout in seconds to wait before aborting an IO read or write. */
 	private int timeout;
 
+	/** Number of files a dumb transport may download at the same time. */
+	private int fetchConcurrency = DEFAULT_FETCH_CONCURRENCY;
+
 	/**
 	 * Create a new transport instance.
 	 * 
@@ -751,6 +759,34 @@ public void setTimeout(final int seconds) {
 		timeout = seconds;
 	}
 
+	/**
+	 * Default setting is: {@value #DEFAULT_FETCH_CONCURRENCY}
+	 *
+	 * @return maximum number of pack and index files a dumb transport
+	 *         downloads at the same time.
+	 * @see WalkTransport
+	 */
+	public int getFetchConcurrency() {
+		return fetchConcurrency;
+	}
+
+	/**
+	 * Set how many files a dumb transport may download at the same time.
+	 * <p>
+	 * With a value greater than 1 dumb transports able to read concurrently
+	 * open every remote pack index up front, and download the packs needed
+	 * by the fetch in parallel. High latency remotes benefit the most.
+	 * Default setting is: {@value #DEFAULT_FETCH_CONCURRENCY}
+	 *
+	 * @param concurrency
+	 *            maximum number of concurrent downloads; values less than 1
+	 *            are treated as 1.
+	 * @see WalkTransport
+	 */
+	public void setFetchConcurrency(final int concurrency) {
+		fetchConcurrency = Math.max(1, concurrency);
+	}
+
 	/**
 	 * Fetch objects and refs from the remote repository to the local one.
 	 * <p>
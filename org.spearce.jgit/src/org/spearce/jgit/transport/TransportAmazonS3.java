@@ -228,6 +228,11 @@ Collection<String> getPackNames() throws IOException {
 			return packs;
 		}
 
+		@Override
+		boolean isConcurrentReadSupported() {
+			return true;
+		}
+
 		@Override
 		FileStream open(final String path) throws IOException {
 			final URLConnection c = s3.get(bucket, resolveKey(path));
@@ -44,12 +44,18 @@
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
@@ -61,12 +67,14 @@
 import org.spearce.jgit.errors.TransportException;
 import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.PackIndex;
 import org.spearce.jgit.lib.ProgressMonitor;
 import org.spearce.jgit.lib.Ref;
 import org.spearce.jgit.lib.Repository;
 import org.spearce.jgit.lib.Ref.Storage;
 import org.spearce.jgit.transport.FreenetFCP.GetResult;
 import org.spearce.jgit.transport.FreenetFCP.Message;
+import org.spearce.jgit.transport.FreenetFCP.Request;
 import org.spearce.jgit.util.FS;
 import org.spearce.jgit.util.TemporaryBuffer;
 
@@ -83,6 +91,9 @@
  * publicKey=USK@...............,....,AQACAAE/
  * privateKey=USK@..............,....,AQECAAE/
  * </pre>
+ * <p>
+ * The node is expected on <code>127.0.0.1:9481</code> unless
+ * <code>freenet.host</code> and <code>freenet.port</code> say otherwise.
  *
  * @see WalkFetchConnection
  */
@@ -98,12 +109,43 @@ static boolean canHandle(final URIish uri) {
 
 	private final String privateKey;
 
+	private final String nodeHost;
+
+	private final int nodePort;
+
+	private final FreenetCache cache;
+
+	private final FreenetEditions editions;
+
+	private final long subscribeWait;
+
+	private final FreenetChunker chunker;
+
 	private FreenetFCP fcp;
 
 	TransportFcp2(final Repository local, final URIish uri)
 			throws NotSupportedException {
 		super(local, uri);
 
+		final FreenetConfig cfg = local.getConfig().get(FreenetConfig.KEY);
+		nodeHost = cfg.getHost();
+		nodePort = cfg.getPort();
+		if (cfg.getCacheLimit() > 0)
+			cache = new FreenetCache(new File(local.getDirectory(),
+					"freenet-cache"), cfg.getCacheLimit());
+		else
+			cache = null;
+		if (cfg.isEditionCache())
+			editions = new FreenetEditions(new File(local.getDirectory(),
+					"freenet-editions"));
+		else
+			editions = null;
+		subscribeWait = cfg.getSubscribeWait();
+		if (cfg.isChunking())
+			chunker = new FreenetChunker(cfg.getChunkSize());
+		else
+			chunker = null;
+
 		File propsFile = new File(local.getDirectory(), uri.getHost());
 		if (!propsFile.isFile())
 			propsFile = new File(FS.userHome(), uri.getHost());
@@ -131,11 +173,11 @@ static boolean canHandle(final URIish uri) {
 	@Override
 	public FetchConnection openFetch() throws TransportException {
 		try {
-			fcp = new FreenetFCP();
-			fcp.connect();
-			fcp.hello("JGit-" + toString());
+			fcp = FreenetFCPPool.lease(InetAddress.getByName(nodeHost),
+					nodePort);
 
-			final FreenetDB c = new FreenetDB(fcp, publicKey, privateKey);
+			final FreenetDB c = new FreenetDB(fcp, cache, editions,
+					subscribeWait, chunker, publicKey, privateKey);
 			final WalkFetchConnection r = new WalkFetchConnection(this, c);
 			r.available(c.readAdvertisedRefs());
 			return r;
@@ -147,11 +189,16 @@ public FetchConnection openFetch() throws TransportException {
 	@Override
 	public PushConnection openPush() throws TransportException {
 		try {
-			fcp = new FreenetFCP();
-			fcp.connect();
-			fcp.hello("JGit-" + toString());
-
-			final FreenetDB c = new FreenetDB(fcp, publicKey, privateKey);
+			fcp = FreenetFCPPool.lease(InetAddress.getByName(nodeHost),
+					nodePort);
+
+			// A push republishes the file list it starts from, so it must
+			// start from the latest edition. Trusting a recorded edition
+			// nobody reported a successor to in time would silently drop
+			// whatever another pusher published since.
+			//
+			final FreenetDB c = new FreenetDB(fcp, cache, editions, 0,
+					chunker, publicKey, privateKey);
 			final WalkPushConnection r = new WalkPushConnection(this, c) {
 				@Override
 				public void push(final ProgressMonitor monitor,
@@ -174,12 +221,8 @@ public void push(final ProgressMonitor monitor,
 
 	@Override
 	public void close() {
-		try {
-			if (fcp != null)
-				fcp.close();
-		} catch (final IOException e) {
-			// Fall through.
-		}
+		if (fcp != null)
+			FreenetFCPPool.release(fcp);
 		fcp = null;
 	}
 
@@ -192,8 +235,32 @@ static class FreenetDB extends WalkRemoteObjectDatabase {
 
 		protected static final String FILELIST = ".JGIT-FREENET-FILELIST";
 
+		/** Lists the chunks of each file whose file list entry is chunked. */
+		protected static final String CHUNKLIST = ".JGIT-FREENET-CHUNKS";
+
+		/** File list entry of a file stored as chunks. */
+		private static final String URI_CHUNKED = "[CHUNKED]";
+
+		/** Number of chunks fetched ahead of the one being read. */
+		private static final int CHUNK_WINDOW = 8;
+
+		/** File list comment recording the size of a file, for statistics. */
+		protected static final String LENGTH_PREFIX = "#length\t";
+
 		protected final FreenetFCP conn;
 
+		/** Local copies of immutable content; null if not caching. */
+		protected final FreenetCache cache;
+
+		/** Latest known USK editions; null if not recorded. */
+		protected final FreenetEditions editions;
+
+		/** Milliseconds to wait for a later edition than the recorded one. */
+		protected final long subscribeWait;
+
+		/** Splits large packs before inserting them; null to not split. */
+		protected final FreenetChunker chunker;
+
 		/** Public key as specified by user */
 		protected final String publicKey;
 
@@ -208,25 +275,73 @@ static class FreenetDB extends WalkRemoteObjectDatabase {
 
 		protected final Set<TemporaryBuffer> tmpBuffers;
 
+		/** Fetches started ahead of {@link #open(String)}, by path. */
+		protected final Map<String, Request<GetResult>> fetching;
+
+		/** Inserts still running on the node, by path. */
+		protected final Map<String, Request<Message>> inserting;
+
+		/** Known sizes of the files in {@link #fileList}, by path. */
+		protected final Map<String, Long> fileLength;
+
+		/** Paths inserted as separate keys by this session. */
+		protected final Set<String> insertedPaths;
+
+		/** Chunks of each file stored as chunks, by path. */
+		protected final SortedMap<String, List<ChunkEntry>> chunks;
+
+		/** Every chunk known, by SHA-1 of its content. */
+		protected final Map<String, ChunkEntry> chunkIndex;
+
 		protected String baseArchive;
 
+		/** Bytes sent to the node by this session's inserts. */
+		private long insertedBytes;
+
+		/** Bytes of the last commit's files redirected to older inserts. */
+		private long reusedBytes;
+
 		/**
 		 * Create a new freesite
 		 *
 		 * @param conn
 		 *            freenet fcp connection
+		 * @param cache
+		 *            cache of fetched content, may be <code>null</code>.
+		 * @param editions
+		 *            record of USK editions, may be <code>null</code>.
+		 * @param subscribeWait
+		 *            milliseconds to wait for the node to report an edition
+		 *            later than the recorded one; 0 to always look it up.
+		 *            Must be 0 when the site will be pushed to, as an
+		 *            edition published elsewhere may not be reported in
+		 *            time.
+		 * @param chunker
+		 *            splitter for large packs, may be <code>null</code>.
 		 * @param publicKey
 		 *            public key
 		 * @param privateKey
 		 *            private key, may be <code>null</code>.
 		 * @throws IOException
 		 */
-		public FreenetDB(final FreenetFCP conn, final String publicKey,
+		public FreenetDB(final FreenetFCP conn, final FreenetCache cache,
+				final FreenetEditions editions, final long subscribeWait,
+				final FreenetChunker chunker, final String publicKey,
 				final String privateKey) throws IOException {
 			this.conn = conn;
+			this.cache = cache;
+			this.editions = editions;
+			this.subscribeWait = subscribeWait;
+			this.chunker = chunker;
 			this.fileList = new TreeMap<String, String>();
 			this.smallFile = new TreeMap<String, TemporaryBuffer>();
 			this.tmpBuffers = new HashSet<TemporaryBuffer>();
+			this.fetching = new HashMap<String, Request<GetResult>>();
+			this.inserting = new HashMap<String, Request<Message>>();
+			this.fileLength = new HashMap<String, Long>();
+			this.insertedPaths = new HashSet<String>();
+			this.chunks = new TreeMap<String, List<ChunkEntry>>();
+			this.chunkIndex = new HashMap<String, ChunkEntry>();
 
 			/*-
 			 * Freenet URI Format:
@@ -288,11 +403,38 @@ private String getCurrentKey(final String pubkey) throws IOException {
 			final String[] p = pubkey.split("\\/");
 			if (p[2].startsWith("-"))
 				p[2] = p[2].substring(1);
-			final GetResult m = conn.simpleGet(p[0] + "/" + p[1] + "/-" + p[2]);
+
+			// Start from the latest edition seen so far. If the node does
+			// not report a later one soon, assume nothing was published
+			// since, and skip the slow lookup on the network.
+			//
+			final String site = p[0] + "/" + p[1];
+			final long known = editions != null ? editions.get(site) : -1;
+			if (known >= 0 && known >= FreenetEditions.editionOf(pubkey)) {
+				p[2] = Long.toString(known);
+				if (subscribeWait > 0) {
+					final Request<Long> sub = conn
+							.subscribeUSK(site + "/" + known);
+					final Long later;
+					try {
+						later = sub.get(subscribeWait);
+					} finally {
+						conn.cancel(sub);
+					}
+					if (later == null)
+						return "SSK@" + p[0].substring(4) + "/" + p[1] + "-"
+								+ known + "/";
+					p[2] = later.toString();
+				}
+			}
+
+			final GetResult m = conn.simpleGet(site + "/-" + p[2]);
 			if (m.data != null)
 				tmpBuffers.add(m.data);
 			if (!m.uri.startsWith("USK@")) // ugh?
 				throw new IOException("Redirected to non-USK@: " + m.uri);
+			if (editions != null)
+				editions.update(m.uri);
 
 			final String[] q = m.uri.split("\\/");
 			if (q[2].startsWith("-"))
@@ -301,7 +443,14 @@ private String getCurrentKey(final String pubkey) throws IOException {
 		}
 
 		private void loadFileList() throws IOException {
-			final GetResult m = conn.simpleGet(currentKey + FILELIST);
+			final String key = currentKey + FILELIST;
+			final byte[] cached = cache != null ? cache.read(key) : null;
+			if (cached != null) {
+				parseFileList(cached);
+				return;
+			}
+
+			final GetResult m = conn.simpleGet(key);
 
 			if (m.data == null) {
 				if (NOT_IN_ARCHIVE.equals(m.field.get("Code"))) {
@@ -327,15 +476,33 @@ private void loadFileList() throws IOException {
 				return;
 			}
 			tmpBuffers.add(m.data);
+			if (cache != null)
+				cache.store(key, m.data);
+			parseFileList(m.data.toByteArray());
+		}
 
+		private void parseFileList(final byte[] raw) throws IOException {
 			final BufferedReader br = new BufferedReader(new InputStreamReader(
-					new ByteArrayInputStream(m.data.toByteArray()), "UTF-8"));
+					new ByteArrayInputStream(raw), "UTF-8"));
 			try {
 				for (;;) {
 					final String line = br.readLine();
 					if (line == null)
 						break;
 
+					if (line.startsWith(LENGTH_PREFIX)) {
+						final String p = line.substring(LENGTH_PREFIX.length());
+						final int tab = p.lastIndexOf('\t');
+						if (tab > 0) {
+							try {
+								fileLength.put(p.substring(0, tab), Long
+										.valueOf(p.substring(tab + 1)));
+							} catch (NumberFormatException e) {
+								// Only used for statistics; ignore it.
+							}
+						}
+						continue;
+					}
 					if (line.startsWith("#"))
 						continue;
 					if (line.startsWith("^") && !line.contains("\0")) {
@@ -354,6 +521,71 @@ private void loadFileList() throws IOException {
 			} finally {
 				br.close();
 			}
+
+			if (fileList.containsValue(URI_CHUNKED))
+				loadChunkList();
+		}
+
+		private void loadChunkList() throws IOException {
+			final String key = currentKey + CHUNKLIST;
+			byte[] raw = cache != null ? cache.read(key) : null;
+			if (raw == null) {
+				final GetResult m = conn.simpleGet(key);
+				if (m.data == null)
+					throw new IOException(m.field.get("CodeDescription") + "("
+							+ m.field.get("Code") + "): " + m.uri + " : "
+							+ m.field.get("ExtraDescription"));
+				tmpBuffers.add(m.data);
+				if (cache != null)
+					cache.store(key, m.data);
+				raw = m.data.toByteArray();
+			}
+
+			final BufferedReader br = new BufferedReader(new InputStreamReader(
+					new ByteArrayInputStream(raw), "UTF-8"));
+			try {
+				for (;;) {
+					final String line = br.readLine();
+					if (line == null)
+						break;
+					if (line.startsWith("#"))
+						continue;
+
+					// path <TAB> SHA-1 <TAB> length <TAB> URI
+					final String[] f = line.split("\t");
+					if (f.length != 4)
+						continue;
+					ChunkEntry e = chunkIndex.get(f[1]);
+					if (e == null) {
+						try {
+							e = new ChunkEntry(f[1], Long.parseLong(f[2]));
+						} catch (NumberFormatException err) {
+							throw new IOException("Invalid " + CHUNKLIST
+									+ " line: " + line);
+						}
+						e.uri = f[3];
+						chunkIndex.put(e.id, e);
+					}
+					List<ChunkEntry> list = chunks.get(f[0]);
+					if (list == null) {
+						list = new ArrayList<ChunkEntry>();
+						chunks.put(f[0], list);
+					}
+					list.add(e);
+				}
+			} finally {
+				br.close();
+			}
+
+			// A partially published edition, or one written by another
+			// client, may list chunked files the chunk list omits.
+			//
+			for (final Map.Entry<String, String> e : fileList.entrySet()) {
+				if (URI_CHUNKED.equals(e.getValue())
+						&& !chunks.containsKey(e.getKey()))
+					throw new TransportException(getURI(), CHUNKLIST
+							+ " has no chunks for " + e.getKey());
+			}
 		}
 
 		/**
@@ -371,6 +603,8 @@ public synchronized void commit(final ProgressMonitor monitor,
 			if (privateKey == null)
 				return;
 
+			awaitInserts(monitor);
+
 			final TemporaryBuffer tmpBuf = new TemporaryBuffer();
 			long fileListSize;
 			{
@@ -386,6 +620,15 @@ public synchronized void commit(final ProgressMonitor monitor,
 					w.append('\t');
 					w.append(e.getValue());
 					w.append('\n');
+
+					final Long len = fileLength.get(e.getKey());
+					if (len != null && !URI_DELETED.equals(e.getValue())) {
+						w.append(LENGTH_PREFIX);
+						w.append(e.getKey());
+						w.append('\t');
+						w.append(len);
+						w.append('\n');
+					}
 				}
 				for (final String f : smallFile.keySet()) {
 					w.append(f);
@@ -395,14 +638,36 @@ public synchronized void commit(final ProgressMonitor monitor,
 				fileListSize = b.length;
 				tmpBuf.write(b);
 			}
+			long chunkListSize = 0;
+			{
+				final StringBuffer w = new StringBuffer();
+				for (final Map.Entry<String, List<ChunkEntry>> e : chunks
+						.entrySet()) {
+					if (!URI_CHUNKED.equals(fileList.get(e.getKey())))
+						continue;
+					for (final ChunkEntry c : e.getValue()) {
+						w.append(e.getKey());
+						w.append('\t');
+						w.append(c.id);
+						w.append('\t');
+						w.append(c.length);
+						w.append('\t');
+						w.append(c.uri);
+						w.append('\n');
+					}
+				}
+				if (w.length() > 0) {
+					byte[] b = w.toString().getBytes("UTF-8");
+					chunkListSize = b.length;
+					tmpBuf.write(b);
+				}
+			}
 			for (final TemporaryBuffer b : smallFile.values())
 				b.writeTo(tmpBuf, null);
 
 			final Message msg = new Message();
 			msg.type = "ClientPutComplexDir";
-			msg.field.put("Identifier", privateKey);
 			msg.field.put("URI", privateKey);
-			msg.field.put("Verbosity", monitor == null ? "0" : "1");
 			msg.field.put("PriorityClass", "1");
 			msg.field.put("EarlyEncode", "true"); // progress
 			msg.field.put("Global", "false");
@@ -416,6 +681,14 @@ public synchronized void commit(final ProgressMonitor monitor,
 			msg.field.put("Files.0.Metadata.ContentType", "text/plain");
 
 			int idx = 1;
+			if (chunkListSize > 0) {
+				msg.field.put("Files.1.Name", CHUNKLIST);
+				msg.field.put("Files.1.UploadFrom", "direct");
+				msg.field.put("Files.1.DataLength", Long
+						.toString(chunkListSize));
+				msg.field.put("Files.1.Metadata.ContentType", "text/plain");
+				idx++;
+			}
 			for (final Map.Entry<String, TemporaryBuffer> e : smallFile
 					.entrySet()) {
 				msg.field.put("Files." + idx + ".Name", e.getKey());
@@ -424,13 +697,29 @@ public synchronized void commit(final ProgressMonitor monitor,
 						Long.toString(e.getValue().length()));
 				idx++;
 			}
+
+			// Everything else is a redirect to a key inserted before,
+			// either by an earlier push or by insert() during this one.
+			// Only the former is counted as reused.
+			//
+			reusedBytes = 0;
 			for (final Map.Entry<String, String> e : fileList.entrySet()) {
 				if (URI_DELETED.equals(e.getValue()))
 					continue;
+				if (URI_CHUNKED.equals(e.getValue())) {
+					for (final ChunkEntry c : chunks.get(e.getKey()))
+						if (!c.inserted)
+							reusedBytes += c.length;
+					continue;
+				}
 				msg.field.put("Files." + idx + ".Name", e.getKey());
 				msg.field.put("Files." + idx + ".UploadFrom", "redirect");
 				msg.field.put("Files." + idx + ".TargetURI", e.getValue());
 				idx++;
+
+				final Long len = fileLength.get(e.getKey());
+				if (len != null && !insertedPaths.contains(e.getKey()))
+					reusedBytes += len.longValue();
 			}
 
 			for (final TemporaryBuffer tmp2 : smallFile.values())
@@ -438,36 +727,72 @@ public synchronized void commit(final ProgressMonitor monitor,
 			smallFile.clear();
 
 			tmpBuf.close();
+			insertedBytes += tmpBuf.length();
 			msg.extraData = tmpBuf;
-			conn.send(msg);
-			tmpBuf.destroy();
-
-			int totalBlocks = -1;
-			int completedBlocks = 0;
-			if (monitor != null)
-				monitor.beginTask(monitorTask, ProgressMonitor.UNKNOWN);
+			final Request<Message> put;
 			try {
-				while (true) {
-					final Message r = conn.read(true);
-					if ("SimpleProgress".equals(r.type) && monitor != null) {
-						if (totalBlocks == -1) {
-							totalBlocks = Integer
-									.parseInt(r.field.get("Total"));
-							monitor.beginTask(monitorTask, totalBlocks);
-						}
-						final int tmp = Integer.parseInt(r.field
-								.get("Succeeded"));
-						if (tmp < totalBlocks)
-							monitor.update(tmp - completedBlocks);
-						completedBlocks = tmp;
-					}
+				put = conn.startPut(msg, monitor, monitorTask);
+			} finally {
+				tmpBuf.destroy();
+			}
 
-					if ("PutFailed".equals(r.type))
-						throw new IOException("FCP Error: " + r);
+			final Message r = put.get();
+			if ("PutFailed".equals(r.type))
+				throw new IOException("FCP Error: " + r);
+			if (editions != null && r.field.get("URI") != null)
+				editions.update(r.field.get("URI"));
 
-					if ("PutSuccessful".equals(r.type)
-							|| "PutFetchable".equals(r.type))
-						return;
+			if (monitor != null) {
+				report(monitor, "Inserted KiB", insertedBytes);
+				report(monitor, "Reused KiB", reusedBytes);
+			}
+		}
+
+		private static void report(final ProgressMonitor monitor,
+				final String title, final long bytes) {
+			monitor.beginTask(title, ProgressMonitor.UNKNOWN);
+			monitor.update((int) Math.min(bytes / 1024, Integer.MAX_VALUE));
+			monitor.endTask();
+		}
+
+		/** @return bytes inserted into the node by this session so far. */
+		long getInsertedBytes() {
+			return insertedBytes;
+		}
+
+		/**
+		 * @return bytes of the files the last {@link #commit} redirected to
+		 *         inserts made by an earlier push, as far as their sizes are
+		 *         known.
+		 */
+		long getReusedBytes() {
+			return reusedBytes;
+		}
+
+		private void awaitInserts(final ProgressMonitor monitor)
+				throws IOException {
+			final ArrayList<ChunkEntry> parts = new ArrayList<ChunkEntry>();
+			for (final ChunkEntry c : chunkIndex.values())
+				if (c.uri == null)
+					parts.add(c);
+			if (inserting.isEmpty() && parts.isEmpty())
+				return;
+
+			final ArrayList<String> paths = new ArrayList<String>(inserting
+					.keySet());
+			if (monitor != null)
+				monitor.beginTask("Waiting for inserts", paths.size()
+						+ parts.size());
+			try {
+				for (final String path : paths) {
+					awaitInsert(path);
+					if (monitor != null)
+						monitor.update(1);
+				}
+				for (final ChunkEntry c : parts) {
+					c.await();
+					if (monitor != null)
+						monitor.update(1);
 				}
 			} finally {
 				if (monitor != null)
@@ -475,6 +800,22 @@ public synchronized void commit(final ProgressMonitor monitor,
 			}
 		}
 
+		private void awaitInsert(final String path) throws IOException {
+			final Request<Message> put;
+			synchronized (this) {
+				put = inserting.remove(path);
+			}
+			if (put == null)
+				return;
+
+			final Message r = put.get();
+			if ("PutFailed".equals(r.type))
+				throw new IOException("FCP PutFailed: " + r.field);
+			synchronized (this) {
+				fileList.put(path, r.field.get("URI"));
+			}
+		}
+
 		@Override
 		Collection<String> getPackNames() throws IOException {
 			final Collection<String> packs = new ArrayList<String>();
@@ -508,46 +849,177 @@ URIish getURI() {
 			}
 		}
 
+		/**
+		 * Start fetching files which are likely to be opened soon.
+		 * <p>
+		 * The requests are pipelined on the node connection. A later
+		 * {@link #open(String)} of the same path waits for the request
+		 * already in flight instead of issuing a new one.
+		 *
+		 * @param paths
+		 *            paths, in the form accepted by {@link #open(String)}.
+		 * @throws IOException
+		 *             the requests could not be sent to the node.
+		 */
+		synchronized void prefetch(final Collection<String> paths)
+				throws IOException {
+			for (final String p : paths) {
+				final String path = resolvePath(p);
+				if (fetching.containsKey(path) || smallFile.containsKey(path)
+						|| inserting.containsKey(path))
+					continue;
+				final String key = keyFor(path);
+				if (key == null || (cache != null && cache.contains(key)))
+					continue;
+				fetching.put(path, conn.startGet(key));
+			}
+		}
+
+		private String keyFor(final String path) {
+			final String rURI = fileList.get(path);
+			if (URI_DELETED.equals(rURI) || URI_CHUNKED.equals(rURI))
+				return null;
+			if (rURI != null)
+				return rURI;
+			if (baseArchive != null)
+				return baseArchive + path;
+			return null;
+		}
+
+		@Override
+		boolean isConcurrentReadSupported() {
+			return true;
+		}
+
+		/**
+		 * Open the remote pack indexes through the local cache.
+		 * <p>
+		 * Keys in the file list are immutable, so an index fetched once stays
+		 * valid for every later push. Without a cache there is nowhere to keep
+		 * them, and no indexes are returned.
+		 */
+		@Override
+		Collection<PackIndex> openPackIndexes(
+				final Collection<String> packNames) throws IOException {
+			final List<PackIndex> r = new ArrayList<PackIndex>();
+			if (cache == null)
+				return r;
+
+			final List<String> paths = new ArrayList<String>();
+			for (final String n : packNames) {
+				if (n.endsWith(".pack"))
+					paths.add("pack/" + n.substring(0, n.length() - 5)
+							+ ".idx");
+			}
+			prefetch(paths);
+
+			for (final String path : paths) {
+				final String key;
+				synchronized (this) {
+					key = keyFor(resolvePath(path));
+				}
+				if (key == null || !FreenetCache.isCacheable(key))
+					continue;
+				try {
+					if (!cache.contains(key))
+						drain(open(path));
+					r.add(PackIndex.open(cache.fileFor(key)));
+				} catch (FileNotFoundException e) {
+					// Missing on the remote, or evicted again; just
+					// send whatever objects this index would cover.
+				}
+			}
+			return r;
+		}
+
+		private static void drain(final FileStream s) throws IOException {
+			try {
+				final byte[] buf = new byte[8192];
+				while (s.in.read(buf) >= 0) {
+					// Reading to the end commits the file to the cache.
+				}
+			} finally {
+				s.in.close();
+			}
+		}
+
 		@Override
 		FileStream open(String path) throws FileNotFoundException, IOException {
 			path = resolvePath(path);
+			awaitInsert(path);
 
-			// small file
-			final TemporaryBuffer b = smallFile.get(path);
-			if (b != null)
-				return new FileStream(new ByteArrayInputStream(b.toByteArray()));
-
-			// in file list
-			final String rURI = fileList.get(path);
-			if (URI_DELETED.equals(rURI))
-				throw new FileNotFoundException("deleted");
-			if (rURI != null) {
-				final GetResult r = conn.simpleGet(rURI);
-				if (r.data == null)
-					throw new IOException("FCP Error: "
-							+ r.field.get("CodeDescription") + "("
-							+ r.field.get("Code") + "): " + r.uri + " : "
-							+ r.field.get("ExtraDescription"));
-				tmpBuffers.add(r.data);
-				return new FileStream(r.data.getInputStream());
+			final List<ChunkEntry> parts;
+			synchronized (this) {
+				parts = URI_CHUNKED.equals(fileList.get(path)) ? chunks
+						.get(path) : null;
+			}
+			if (parts != null) {
+				long len = 0;
+				for (final ChunkEntry c : parts)
+					len += c.length;
+				return new FileStream(new ChunkStream(parts), len);
 			}
 
-			if (baseArchive != null) {
-				final GetResult r = conn.simpleGet(baseArchive + path);
-				if (r.data == null) {
-					if (NOT_IN_ARCHIVE.equals(r.field.get("Code")))
-						throw new FileNotFoundException();
-					throw new IOException("FCP Error: "
-							+ r.field.get("CodeDescription") + "("
-							+ r.field.get("Code") + "): " + r.uri + " : "
-							+ r.field.get("ExtraDescription"));
+			final boolean inArchive;
+			final String key;
+			Request<GetResult> req;
+			synchronized (this) {
+				// small file
+				final TemporaryBuffer b = smallFile.get(path);
+				if (b != null)
+					return new FileStream(new ByteArrayInputStream(b
+							.toByteArray()));
+
+				// in file list, or else in the base archive
+				final String rURI = fileList.get(path);
+				if (URI_DELETED.equals(rURI))
+					throw new FileNotFoundException("deleted");
+				inArchive = rURI == null;
+				key = keyFor(path);
+				if (key == null)
+					throw new FileNotFoundException();
+
+				req = fetching.remove(path);
+				if (req == null) {
+					final FileStream cached = cache != null ? cache
+							.open(key) : null;
+					if (cached != null)
+						return cached;
+					req = conn.startGet(key, true);
 				}
-				tmpBuffers.add(r.data);
-				fileList.put(path, r.uri);
-				return new FileStream(r.data.getInputStream());
 			}
 
-			throw new FileNotFoundException();
+			final GetResult r = req.get();
+			if (!r.isFound()) {
+				if (inArchive && NOT_IN_ARCHIVE.equals(r.field.get("Code")))
+					throw new FileNotFoundException();
+				throw new IOException("FCP Error: "
+						+ r.field.get("CodeDescription") + "("
+						+ r.field.get("Code") + "): " + r.uri + " : "
+						+ r.field.get("ExtraDescription"));
+			}
+
+			synchronized (this) {
+				if (r.data != null)
+					tmpBuffers.add(r.data);
+				if (inArchive)
+					fileList.put(path, r.uri);
+				if (r.length >= 0 && !smallFile.containsKey(path))
+					fileLength.put(path, Long.valueOf(r.length));
+			}
+
+			if (r.stream != null) {
+				// The payload is still arriving; the reader thread copies
+				// it to the caller as the caller reads it.
+				//
+				InputStream in = r.stream;
+				if (cache != null)
+					in = cache.storing(key, in, r.length);
+				return new FileStream(in, r.length);
+			}
+			if (cache != null)
+				cache.store(key, r.data);
+			return new FileStream(r.data.getInputStream(), r.length);
 		}
 
 		@Override
@@ -556,6 +1028,11 @@ synchronized void deleteFile(final String path) throws IOException {
 			
 			checkWrite();
 			smallFile.remove(resolvedPath);
+			fetching.remove(resolvedPath);
+			inserting.remove(resolvedPath);
+			insertedPaths.remove(resolvedPath);
+			fileLength.remove(resolvedPath);
+			chunks.remove(resolvedPath);
 			fileList.put(resolvedPath, URI_DELETED);
 		}
 
@@ -569,33 +1046,82 @@ OutputStream writeFile(final String path,
 				@Override
 				public void close() throws IOException {
 					super.close();
-					insert(path, this, monitor, monitorTask);
+					insert(path, this);
 				}
 			};
 			tmpBuffers.add(tb);
 			return tb;
 		}
 
-		private synchronized void insert(final String path, TemporaryBuffer buf,
-				final ProgressMonitor monitor, final String monitorTask)
+		private synchronized void insert(final String path, TemporaryBuffer buf)
 				throws IOException {
 			checkWrite();
 
 			String resolvedPath = resolvePath(path);
 			fileList.remove(resolvedPath);
 			smallFile.remove(resolvedPath);
+			fetching.remove(resolvedPath);
+			inserting.remove(resolvedPath);
+			insertedPaths.remove(resolvedPath);
+			fileLength.remove(resolvedPath);
+			chunks.remove(resolvedPath);
 
 			if (buf.length() < 2048) {
 				smallFile.put(resolvedPath, buf);
+			} else if (chunker != null && resolvedPath.endsWith(".pack")
+					&& buf.length() >= 2L * chunker.getMaxSize()) {
+				insertChunks(resolvedPath, buf);
 			} else {
-				final Message r = conn.simplePut("CHK@", buf, monitor,
-						monitorTask);
-				if ("PutFailed".equals(r.type))
-					throw new IOException("FCP PutFailed: " + r.field);
-				fileList.put(resolvedPath, r.field.get("URI"));
+				insertedPaths.add(resolvedPath);
+				fileLength.put(resolvedPath, Long.valueOf(buf.length()));
+				insertedBytes += buf.length();
+
+				// The insert runs on the node while the caller goes on
+				// writing; commit() collects the resulting CHK@ URI and
+				// reports progress over all of the inserts at once.
+				//
+				inserting.put(resolvedPath, conn.startPut("CHK@", buf, null,
+						null));
 			}
 		}
 
+		/**
+		 * Insert a file as chunks, reusing any chunk inserted before.
+		 * <p>
+		 * Only packs are split. A pack index is rewritten from scratch
+		 * whenever objects are added, so its chunks would rarely repeat.
+		 */
+		private void insertChunks(final String path, final TemporaryBuffer buf)
+				throws IOException {
+			final List<FreenetChunker.Chunk> pieces;
+			final InputStream in = buf.getInputStream();
+			try {
+				pieces = chunker.split(in);
+			} finally {
+				in.close();
+			}
+
+			final List<ChunkEntry> list = new ArrayList<ChunkEntry>();
+			for (final FreenetChunker.Chunk p : pieces) {
+				tmpBuffers.add(p.data);
+				final String id = p.id.name();
+				ChunkEntry c = chunkIndex.get(id);
+				if (c == null) {
+					c = new ChunkEntry(id, p.data.length());
+					c.put = conn.startPut("CHK@", p.data, null, null);
+					c.inserted = true;
+					insertedBytes += c.length;
+					chunkIndex.put(id, c);
+				} else {
+					p.data.destroy();
+				}
+				list.add(c);
+			}
+			chunks.put(path, list);
+			fileList.put(path, URI_CHUNKED);
+			fileLength.put(path, Long.valueOf(buf.length()));
+		}
+
 		private String resolvePath(String path) {
 			while (path.endsWith("/"))
 				path = path.substring(0, path.length() - 1);
@@ -631,6 +1157,13 @@ WalkRemoteObjectDatabase openAlternate(final String location)
 		}
 
 		Map<String, Ref> readAdvertisedRefs() throws TransportException {
+			try {
+				prefetch(Arrays.asList(INFO_REFS, ROOT_DIR + Constants.HEAD,
+						INFO_PACKS));
+			} catch (IOException err) {
+				throw new TransportException(getURI(), "cannot read refs", err);
+			}
+
 			final TreeMap<String, Ref> avail = new TreeMap<String, Ref>();
 			readInfoRefs(avail);
 			readRef(avail, Constants.HEAD);
@@ -738,6 +1271,148 @@ private PackProtocolException invalidAdvertisement(final String n) {
 			return new PackProtocolException("invalid advertisement of " + n);
 		}
 
+		/** One chunk of a file stored as chunks. */
+		static class ChunkEntry {
+			/** SHA-1 of the chunk's content. */
+			final String id;
+
+			final long length;
+
+			/** Key of the chunk; null until {@link #put} completes. */
+			String uri;
+
+			/** Insert of the chunk, if started by this session. */
+			Request<Message> put;
+
+			/** True if this session inserted the chunk. */
+			boolean inserted;
+
+			ChunkEntry(final String id, final long length) {
+				this.id = id;
+				this.length = length;
+			}
+
+			synchronized String await() throws IOException {
+				if (uri == null) {
+					final Message r = put.get();
+					if ("PutFailed".equals(r.type))
+						throw new IOException("FCP PutFailed: " + r.field);
+					uri = r.field.get("URI");
+				}
+				return uri;
+			}
+		}
+
+		/**
+		 * Reassembles a file stored as chunks.
+		 * <p>
+		 * Up to {@link #CHUNK_WINDOW} chunks are requested ahead of the one
+		 * being read, so the node retrieves them concurrently.
+		 */
+		private class ChunkStream extends InputStream {
+			private final List<ChunkEntry> parts;
+
+			/** Fetches of the chunks after the current one; null if cached. */
+			private final LinkedList<Request<GetResult>> window;
+
+			/** Index of the next chunk to start fetching. */
+			private int next;
+
+			private TemporaryBuffer curData;
+
+			private InputStream cur;
+
+			ChunkStream(final List<ChunkEntry> parts) throws IOException {
+				this.parts = parts;
+				this.window = new LinkedList<Request<GetResult>>();
+				fill();
+			}
+
+			@Override
+			public int read() throws IOException {
+				final byte[] b = new byte[1];
+				return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+			}
+
+			@Override
+			public int read(final byte[] b, final int off, final int len)
+					throws IOException {
+				for (;;) {
+					if (cur != null) {
+						final int n = cur.read(b, off, len);
+						if (n >= 0)
+							return n;
+					}
+					if (!advance())
+						return -1;
+				}
+			}
+
+			@Override
+			public void close() throws IOException {
+				release();
+				for (final Request<GetResult> r : window)
+					abandon(r);
+				window.clear();
+				next = parts.size();
+			}
+
+			private void fill() throws IOException {
+				while (next < parts.size() && window.size() < CHUNK_WINDOW) {
+					final String key = parts.get(next++).await();
+					if (cache != null && cache.contains(key))
+						window.add(null);
+					else
+						window.add(conn.startGet(key));
+				}
+			}
+
+			private boolean advance() throws IOException {
+				release();
+				if (window.isEmpty())
+					return false;
+
+				final String key = parts.get(next - window.size()).uri;
+				Request<GetResult> req = window.removeFirst();
+				if (req == null) {
+					final FileStream s = cache.open(key);
+					if (s != null) {
+						cur = s.in;
+						fill();
+						return true;
+					}
+					req = conn.startGet(key); // evicted meanwhile
+				}
+
+				final GetResult r = req.get();
+				if (!r.isFound())
+					throw new IOException("FCP Error: "
+							+ r.field.get("CodeDescription") + "("
+							+ r.field.get("Code") + "): " + r.uri + " : "
+							+ r.field.get("ExtraDescription"));
+				synchronized (FreenetDB.this) {
+					tmpBuffers.add(r.data);
+				}
+				if (cache != null)
+					cache.store(key, r.data);
+				curData = r.data;
+				cur = r.data.getInputStream();
+				fill();
+				return true;
+			}
+
+			private void release() throws IOException {
+				if (cur != null) {
+					cur.close();
+					cur = null;
+				}
+				if (curData != null) {
+					curData.destroy();
+					curData = null;
+				}
+			}
+		}
+
 		@Override
 		public String toString() {
 			return "PUB: " + publicKey //
@@ -747,8 +1422,41 @@ public String toString() {
 					+ "\n FL: " + fileList;
 		}
 
+		/**
+		 * Stop a fetch whose result nobody will read, and release its data.
+		 * 
+		 * @param r
+		 *            the fetch; may be null, as in a chunk window.
+		 */
+		private void abandon(final Request<GetResult> r) {
+			if (r == null)
+				return;
+			if (!r.isDone())
+				conn.cancel(r);
+
+			// The fetch may have completed before the cancel; a result
+			// arriving after it is destroyed by the request itself.
+			//
+			try {
+				final GetResult g = r.get();
+				if (g.data != null)
+					g.data.destroy();
+			} catch (IOException err) {
+				// Cancelled, or nobody asked for this file; ignore it.
+			}
+		}
+
 		@Override
 		void close() {
+			for (final Request<GetResult> r : fetching.values())
+				abandon(r);
+			fetching.clear();
+			inserting.clear();
+			insertedPaths.clear();
+			fileLength.clear();
+			chunks.clear();
+			chunkIndex.clear();
+
 			for (TemporaryBuffer b : tmpBuffers)
 				b.destroy();
 
@@ -176,6 +176,11 @@ Collection<String> getPackNames() throws IOException {
 			}
 		}
 
+		@Override
+		boolean isConcurrentReadSupported() {
+			return true;
+		}
+
 		@Override
 		FileStream open(final String path) throws IOException {
 			final URL base = objectsUrl;
@@ -42,6 +42,7 @@
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -51,6 +52,12 @@
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.spearce.jgit.errors.CompoundException;
 import org.spearce.jgit.errors.CorruptObjectException;
@@ -61,6 +68,7 @@
 import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.FileMode;
 import org.spearce.jgit.lib.MutableObjectId;
+import org.spearce.jgit.lib.NullProgressMonitor;
 import org.spearce.jgit.lib.ObjectChecker;
 import org.spearce.jgit.lib.ObjectId;
 import org.spearce.jgit.lib.PackIndex;
@@ -96,6 +104,11 @@
  * Instead it delegates the transfer to a {@link WalkRemoteObjectDatabase},
  * which knows how to read individual files from the remote repository and
  * supply the data as a standard Java InputStream.
+ * <p>
+ * If the transport's fetch concurrency is above 1 and the remote database
+ * supports concurrent reads, the index of every discovered pack is downloaded
+ * in the background as soon as the pack is listed, and packs holding objects
+ * waiting in the work queue are downloaded and indexed in parallel.
  * 
  * @see WalkRemoteObjectDatabase
  */
@@ -172,8 +185,26 @@ class WalkFetchConnection extends BaseFetchConnection {
 
 	private final List<PackLock> packLocks;
 
+	/** Maximum number of downloads running at once. */
+	private final int concurrency;
+
+	/** Runs background downloads; null if downloads are serial. */
+	private final ExecutorService prefetcher;
+
+	/** Packs whose index is loading, not yet matched to {@link #workQueue}. */
+	private final LinkedList<RemotePack> indexPending;
+
+	/** Packs with an index, matched to objects entering the work queue. */
+	private final LinkedList<RemotePack> indexReady;
+
+	/** Packs known to hold a queued object, in the order they were found. */
+	private final LinkedList<RemotePack> prefetchCandidates;
+
+	/** Packs being downloaded in the background. */
+	private final LinkedList<RemotePack> prefetching;
+
 	WalkFetchConnection(final WalkTransport t, final WalkRemoteObjectDatabase w) {
-		Transport wt = (Transport)t;
+		final Transport wt = (Transport)t;
 		local = wt.local;
 		objCheck = wt.isCheckFetchedObjects() ? new ObjectChecker() : null;
 
@@ -201,6 +232,27 @@ class WalkFetchConnection extends BaseFetchConnection {
 
 		localCommitQueue = new DateRevQueue();
 		workQueue = new LinkedList<ObjectId>();
+
+		indexPending = new LinkedList<RemotePack>();
+		indexReady = new LinkedList<RemotePack>();
+		prefetchCandidates = new LinkedList<RemotePack>();
+		prefetching = new LinkedList<RemotePack>();
+
+		if (w.isConcurrentReadSupported() && wt.getFetchConcurrency() > 1) {
+			concurrency = wt.getFetchConcurrency();
+			prefetcher = Executors.newFixedThreadPool(concurrency,
+					new ThreadFactory() {
+						public Thread newThread(final Runnable r) {
+							final Thread t = new Thread(r, "JGit-Walk-Fetch "
+									+ wt.getURI());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		} else {
+			concurrency = 1;
+			prefetcher = null;
+		}
 	}
 
 	public boolean didFetchTestConnectivity() {
@@ -232,10 +284,19 @@ public void setPackLockMessage(final String message) {
 
 	@Override
 	public void close() {
-		for (final RemotePack p : unfetchedPacks)
-			p.tmpIdx.delete();
+		if (prefetcher != null) {
+			for (final Runnable r : prefetcher.shutdownNow())
+				((Future<?>) r).cancel(false);
+		}
 		for (final WalkRemoteObjectDatabase r : remotes)
 			r.close();
+		for (final RemotePack p : unfetchedPacks) {
+			// A background download may still be writing the index;
+			// with the remotes closed it will stop soon.
+			//
+			p.awaitQuietly();
+			p.tmpIdx.delete();
+		}
 	}
 
 	private void queueWants(final Collection<Ref> want)
@@ -358,6 +419,8 @@ private void needs(final RevObject obj) {
 		if (!obj.has(IN_WORK_QUEUE)) {
 			obj.add(IN_WORK_QUEUE);
 			workQueue.add(obj);
+			if (prefetcher != null)
+				findPrefetchCandidate(obj);
 		}
 	}
 
@@ -415,8 +478,14 @@ private void downloadObject(final ProgressMonitor pm, final AnyObjectId id)
 				if (packNameList == null || packNameList.isEmpty())
 					continue;
 				for (final String packName : packNameList) {
-					if (packsConsidered.add(packName))
-						unfetchedPacks.add(new RemotePack(wrr, packName));
+					if (packsConsidered.add(packName)) {
+						final RemotePack pack = new RemotePack(wrr, packName);
+						unfetchedPacks.add(pack);
+						if (prefetcher != null) {
+							pack.prefetchIndex();
+							indexPending.add(pack);
+						}
+					}
 				}
 				if (downloadPackedObject(pm, id))
 					return;
@@ -467,6 +536,7 @@ private boolean downloadPackedObject(final ProgressMonitor monitor,
 				// another source, so don't consider it a failure.
 				//
 				recordError(id, err);
+				pack.discarded = true;
 				packItr.remove();
 				continue;
 			}
@@ -487,9 +557,14 @@ private boolean downloadPackedObject(final ProgressMonitor monitor,
 
 			// It should be in the associated pack. Download that
 			// and attach it to the local repository so we can use
-			// all of the contained objects.
+			// all of the contained objects. While it transfers, start
+			// on other packs the work queue is known to need.
 			//
 			try {
+				if (prefetcher != null) {
+					pack.prefetchPack();
+					prefetchPacks();
+				}
 				pack.downloadPack(monitor);
 			} catch (IOException err) {
 				// If the pack failed to download, index correctly,
@@ -507,6 +582,7 @@ private boolean downloadPackedObject(final ProgressMonitor monitor,
 				// shouldn't consult them again.
 				//
 				pack.tmpIdx.delete();
+				pack.discarded = true;
 				packItr.remove();
 			}
 
@@ -538,6 +614,80 @@ private boolean downloadPackedObject(final ProgressMonitor monitor,
 		return false;
 	}
 
+	/**
+	 * Start downloading packs the work queue is known to need.
+	 * <p>
+	 * Candidates are found incrementally: each pack is matched against the
+	 * queue once, when its index arrives, and each object is matched against
+	 * the indexed packs once, when it enters the queue. So this method only
+	 * looks at packs which changed state since it last ran.
+	 */
+	private void prefetchPacks() {
+		final Iterator<RemotePack> p = indexPending.iterator();
+		while (p.hasNext()) {
+			final RemotePack pack = p.next();
+			if (!pack.discarded && !pack.indexLoad.isDone())
+				continue;
+			p.remove();
+			if (pack.discarded || !pack.isIndexReady())
+				continue;
+			indexReady.add(pack);
+			for (final ObjectId id : workQueue) {
+				if (!isComplete(id) && pack.index.hasObject(id)) {
+					pack.wanted = id;
+					prefetchCandidates.add(pack);
+					break;
+				}
+			}
+		}
+
+		final Iterator<RemotePack> r = prefetching.iterator();
+		while (r.hasNext()) {
+			if (r.next().packLoad.isDone())
+				r.remove();
+		}
+
+		while (prefetching.size() < concurrency
+				&& !prefetchCandidates.isEmpty()) {
+			final RemotePack pack = prefetchCandidates.removeFirst();
+			final ObjectId id = pack.wanted;
+			pack.wanted = null;
+			if (pack.discarded || pack.packLoad != null)
+				continue;
+			if (isComplete(id) || local.hasObject(id))
+				continue; // let a later object nominate it again
+			pack.prefetchPack();
+		}
+	}
+
+	/**
+	 * Note the first indexed pack holding an object entering the work queue.
+	 *
+	 * @param id
+	 *            the object just queued.
+	 */
+	private void findPrefetchCandidate(final ObjectId id) {
+		final Iterator<RemotePack> i = indexReady.iterator();
+		while (i.hasNext()) {
+			final RemotePack pack = i.next();
+			if (pack.discarded || pack.packLoad != null) {
+				i.remove();
+				continue;
+			}
+			if (pack.index.hasObject(id)) {
+				if (pack.wanted == null) {
+					pack.wanted = id;
+					prefetchCandidates.add(pack);
+				}
+				return;
+			}
+		}
+	}
+
+	private boolean isComplete(final ObjectId id) {
+		return id instanceof RevObject && ((RevObject) id).has(COMPLETE);
+	}
+
 	private Iterator<ObjectId> swapFetchQueue() {
 		final Iterator<ObjectId> r = workQueue.iterator();
 		workQueue = new LinkedList<ObjectId>();
@@ -630,16 +780,20 @@ private void saveLooseObject(final AnyObjectId id, final byte[] compressed)
 		}
 
 		final File o = local.toFile(id);
-		if (tmp.renameTo(o))
+		if (tmp.renameTo(o)) {
+			local.looseObjectWritten(id);
 			return;
+		}
 
 		// Maybe the directory doesn't exist yet as the object
 		// directories are always lazily created. Note that we
 		// try the rename first as the directory likely does exist.
 		//
 		o.getParentFile().mkdir();
-		if (tmp.renameTo(o))
+		if (tmp.renameTo(o)) {
+			local.looseObjectWritten(id);
 			return;
+		}
 
 		tmp.delete();
 		if (local.hasObject(id))
@@ -791,6 +945,18 @@ private class RemotePack {
 
 		PackIndex index;
 
+		/** Background {@link #openIndex(ProgressMonitor)}, if started. */
+		Future<Object> indexLoad;
+
+		/** Background {@link #downloadPack(ProgressMonitor)}, if started. */
+		Future<Object> packLoad;
+
+		/** Queued object which made this pack a prefetch candidate. */
+		ObjectId wanted;
+
+		/** True once removed from {@link #unfetchedPacks}. */
+		boolean discarded;
+
 		RemotePack(final WalkRemoteObjectDatabase c, final String pn) {
 			final File objdir = local.getObjectsDirectory();
 			connection = c;
@@ -805,7 +971,67 @@ private class RemotePack {
 			tmpIdx = new File(objdir, "walk-" + tn + ".walkidx");
 		}
 
+		void prefetchIndex() {
+			indexLoad = prefetcher.submit(new Callable<Object>() {
+				public Object call() throws IOException {
+					openIndexImpl(NullProgressMonitor.INSTANCE);
+					return null;
+				}
+			});
+		}
+
+		void prefetchPack() {
+			if (packLoad != null)
+				return;
+			packLoad = prefetcher.submit(new Callable<Object>() {
+				public Object call() throws IOException {
+					downloadPackImpl(NullProgressMonitor.INSTANCE);
+					return null;
+				}
+			});
+			prefetching.add(this);
+		}
+
+		boolean isIndexReady() {
+			if (indexLoad == null)
+				return index != null;
+			if (!indexLoad.isDone())
+				return false;
+			try {
+				await(indexLoad);
+				return index != null;
+			} catch (IOException err) {
+				return false;
+			}
+		}
+
+		void awaitQuietly() {
+			awaitQuietly(indexLoad);
+			awaitQuietly(packLoad);
+		}
+
+		private void awaitQuietly(final Future<Object> f) {
+			if (f == null)
+				return;
+			try {
+				await(f);
+			} catch (IOException err) {
+				// Already failed; the caller discards the pack.
+			} catch (RuntimeException err) {
+				// Cancelled before it started running.
+			}
+		}
+
 		void openIndex(final ProgressMonitor pm) throws IOException {
+			if (indexLoad != null)
+				await(pm, "Get " + idxName.substring(0, 12) + "..idx",
+						indexLoad);
+			else
+				openIndexImpl(pm);
+		}
+
+		private void openIndexImpl(final ProgressMonitor pm)
+				throws IOException {
 			if (index != null)
 				return;
 			if (tmpIdx.isFile()) {
@@ -856,17 +1082,72 @@ void openIndex(final ProgressMonitor pm) throws IOException {
 		}
 
 		void downloadPack(final ProgressMonitor monitor) throws IOException {
+			if (packLoad != null)
+				await(monitor, "Get " + packName.substring(0, 12) + "..pack",
+						packLoad);
+			else
+				downloadPackImpl(monitor);
+		}
+
+		private void downloadPackImpl(final ProgressMonitor monitor)
+				throws IOException {
 			final WalkRemoteObjectDatabase.FileStream s;
 			final IndexPack ip;
 
 			s = connection.open("pack/" + packName);
-			ip = IndexPack.create(local, s.in);
-			ip.setFixThin(false);
-			ip.setObjectChecker(objCheck);
-			ip.index(monitor);
+			try {
+				ip = IndexPack.create(local, s.in);
+				ip.setFixThin(false);
+				if (objCheck != null && prefetcher != null) {
+					// ObjectChecker is not thread safe, and this may run
+					// alongside other pack downloads.
+					//
+					ip.setObjectChecker(new ObjectChecker());
+				} else
+					ip.setObjectChecker(objCheck);
+				ip.index(monitor);
+			} finally {
+				s.in.close();
+			}
 			final PackLock keep = ip.renameAndOpenPack(lockMessage);
-			if (keep != null)
-				packLocks.add(keep);
+			if (keep != null) {
+				synchronized (packLocks) {
+					packLocks.add(keep);
+				}
+			}
+		}
+	}
+
+	private static void await(final ProgressMonitor pm, final String task,
+			final Future<Object> f) throws IOException {
+		if (f.isDone()) {
+			await(f);
+			return;
+		}
+		pm.beginTask(task, ProgressMonitor.UNKNOWN);
+		try {
+			await(f);
+		} finally {
+			pm.endTask();
+		}
+	}
+
+	private static void await(final Future<Object> f) throws IOException {
+		try {
+			f.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			final Throwable why = e.getCause();
+			if (why instanceof IOException)
+				throw (IOException) why;
+			if (why instanceof RuntimeException)
+				throw (RuntimeException) why;
+			if (why instanceof Error)
+				throw (Error) why;
+			final IOException err = new IOException(why.getMessage());
+			err.initCause(why);
+			throw err;
 		}
 	}
 }
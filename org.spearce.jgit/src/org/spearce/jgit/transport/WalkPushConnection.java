@@ -52,6 +52,7 @@
 import org.spearce.jgit.lib.AnyObjectId;
 import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.PackIndex;
 import org.spearce.jgit.lib.PackWriter;
 import org.spearce.jgit.lib.ProgressMonitor;
 import org.spearce.jgit.lib.Ref;
@@ -211,6 +212,17 @@ private void sendpack(final List<RemoteRefUpdate> updates,
 				if (r.getPeeledObjectId() != null)
 					have.add(r.getPeeledObjectId());
 			}
+
+			// Objects already in a remote pack need not be sent again,
+			// even if the remote refs no longer reach them.
+			//
+			final LinkedHashMap<String, String> remotePacks;
+			remotePacks = new LinkedHashMap<String, String>();
+			for (final String n : dest.getPackNames())
+				remotePacks.put(n, n);
+			for (final PackIndex idx : dest.openPackIndexes(remotePacks
+					.keySet()))
+				pw.excludeObjects(idx);
 			pw.preparePack(need, have);
 
 			// We don't have to continue further if the pack will
@@ -220,9 +232,7 @@ private void sendpack(final List<RemoteRefUpdate> updates,
 			if (pw.getObjectsNumber() == 0)
 				return;
 
-			packNames = new LinkedHashMap<String, String>();
-			for (final String n : dest.getPackNames())
-				packNames.put(n, n);
+			packNames = remotePacks;
 
 			final String base = "pack-" + pw.computeName().name();
 			final String packName = base + ".pack";
@@ -46,11 +46,13 @@
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 
 import org.spearce.jgit.errors.TransportException;
 import org.spearce.jgit.lib.Constants;
 import org.spearce.jgit.lib.ObjectId;
+import org.spearce.jgit.lib.PackIndex;
 import org.spearce.jgit.lib.ProgressMonitor;
 import org.spearce.jgit.lib.Ref;
 import org.spearce.jgit.util.NB;
@@ -162,6 +164,39 @@ abstract FileStream open(String path) throws FileNotFoundException,
 	abstract WalkRemoteObjectDatabase openAlternate(String location)
 			throws IOException;
 
+	/**
+	 * Determine if {@link #open(String)} may be called from several threads.
+	 * <p>
+	 * When true {@link WalkFetchConnection} may download more than one file
+	 * at a time, and read the returned streams concurrently. Implementations
+	 * sharing a single non-thread-safe channel must return false, which is
+	 * the default.
+	 *
+	 * @return true if concurrent reads are supported; false otherwise.
+	 */
+	boolean isConcurrentReadSupported() {
+		return false;
+	}
+
+	/**
+	 * Open the indexes of packs already stored in the remote repository.
+	 * <p>
+	 * {@link WalkPushConnection} leaves any object found in these indexes out
+	 * of the pack it uploads, even if no remote ref reaches the object. Most
+	 * dumb transports would have to download every index to do this, which
+	 * usually costs more than it saves, so the default returns no indexes.
+	 *
+	 * @param packNames
+	 *            names of the remote packs, as from {@link #getPackNames()}.
+	 * @return indexes which could be opened cheaply; possibly empty.
+	 * @throws IOException
+	 *             an index could not be read.
+	 */
+	Collection<PackIndex> openPackIndexes(final Collection<String> packNames)
+			throws IOException {
+		return Collections.emptyList();
+	}
+
 	/**
 	 * Close any resources used by this connection.
 	 * <p>
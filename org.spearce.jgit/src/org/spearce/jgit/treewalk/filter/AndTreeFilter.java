@@ -107,6 +107,30 @@ public static TreeFilter create(final Collection<TreeFilter> list) {
 		return new List(subfilters);
 	}
 
+	/** @return the filters this filter requires to all include an entry. */
+	abstract TreeFilter[] subfilters();
+
+	@Override
+	public String[] getChangedPathLimits() {
+		boolean diff = false;
+		for (final TreeFilter f : subfilters())
+			diff |= f == ANY_DIFF;
+		return diff ? pathLimits() : null;
+	}
+
+	@Override
+	String[] pathLimits() {
+		// Every subfilter must include an entry, so the limits of
+		// any one of them bound this filter as well.
+		//
+		for (final TreeFilter f : subfilters()) {
+			final String[] r = f.pathLimits();
+			if (r != null)
+				return r;
+		}
+		return null;
+	}
+
 	private static class Binary extends AndTreeFilter {
 		private final TreeFilter a;
 
@@ -134,6 +158,11 @@ public TreeFilter clone() {
 			return new Binary(a.clone(), b.clone());
 		}
 
+		@Override
+		TreeFilter[] subfilters() {
+			return new TreeFilter[] { a, b };
+		}
+
 		@Override
 		public String toString() {
 			return "(" + a.toString() + " AND " + b.toString() + ")";
@@ -174,6 +203,11 @@ public TreeFilter clone() {
 			return new List(s);
 		}
 
+		@Override
+		TreeFilter[] subfilters() {
+			return subfilters;
+		}
+
 		@Override
 		public String toString() {
 			final StringBuffer r = new StringBuffer();
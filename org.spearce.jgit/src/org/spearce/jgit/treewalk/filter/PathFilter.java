@@ -100,6 +100,11 @@ public TreeFilter clone() {
 		return this;
 	}
 
+	@Override
+	String[] pathLimits() {
+		return new String[] { pathStr };
+	}
+
 	public String toString() {
 		return "PATH(\"" + pathStr + "\")";
 	}
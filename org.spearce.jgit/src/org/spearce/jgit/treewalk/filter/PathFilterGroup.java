@@ -137,6 +137,11 @@ public TreeFilter clone() {
 			return this;
 		}
 
+		@Override
+		String[] pathLimits() {
+			return path.pathLimits();
+		}
+
 		public String toString() {
 			return "FAST_" + path.toString();
 		}
@@ -185,6 +190,14 @@ public TreeFilter clone() {
 			return this;
 		}
 
+		@Override
+		String[] pathLimits() {
+			final String[] r = new String[paths.length];
+			for (int i = 0; i < r.length; i++)
+				r[i] = paths[i].pathStr;
+			return r;
+		}
+
 		public String toString() {
 			final StringBuffer r = new StringBuffer();
 			r.append("FAST(");
@@ -197,6 +197,31 @@ public abstract boolean include(TreeWalk walker)
 	 */
 	public abstract boolean shouldBeRecursive();
 
+	/**
+	 * Get the paths a difference must touch for this filter to include it.
+	 * <p>
+	 * If a filter returns paths, it only includes entries that differ between
+	 * the trees of the walk, and only entries at, above or below one of the
+	 * paths. A path limited revision walk can then skip a commit known to have
+	 * changed none of these paths without reading its trees.
+	 *
+	 * @return the paths; null if the filter may include entries that are the
+	 *         same in all trees, or entries at any path.
+	 */
+	public String[] getChangedPathLimits() {
+		return null;
+	}
+
+	/**
+	 * Get the paths this filter limits the walk to.
+	 *
+	 * @return paths such that no entry is included unless it is at, above or
+	 *         below one of them; null if entries at any path may be included.
+	 */
+	String[] pathLimits() {
+		return null;
+	}
+
 	/**
 	 * Clone this tree filter, including its parameters.
 	 * <p>